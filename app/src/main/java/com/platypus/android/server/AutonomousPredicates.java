@@ -3,11 +3,10 @@ package com.platypus.android.server;
 import android.os.Environment;
 import android.util.Log;
 
+import com.platypus.crw.VehicleServer.DataType;
 import com.platypus.crw.data.UtmPose;
 
-import org.jscience.geography.coordinates.LatLong;
-import org.jscience.geography.coordinates.UTM;
-import org.jscience.geography.coordinates.crs.ReferenceEllipsoid;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
@@ -20,6 +19,7 @@ import java.util.List;
 import java.util.Map;
 
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -28,9 +28,6 @@ import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.measure.unit.NonSI;
-import javax.measure.unit.SI;
-
 
 /**
  * Created by jason on 8/4/17.
@@ -137,6 +134,51 @@ import javax.measure.unit.SI;
         priority: 2, // don't want to prematurely cancel a sample
 		 }
 
+    Geofences are entries with a "fence" field instead of an action. Their name can then be used
+    as a pure boolean predicate that is true while the boat is inside the fence, and
+    "geofence_violation" is true while the boat is outside any keep_in fence or inside any
+    keep_out fence. "polygons" takes several rings; a ring inside another one is a hole.
+    lake:
+		 {
+        fence: keep_in,
+        polygons: [[[45.0001, 9.0001], [45.0001, 9.0099], [45.0099, 9.0099], [45.0099, 9.0001]],
+                   [[45.004, 9.004], [45.004, 9.005], [45.005, 9.005], [45.005, 9.004]]], // island
+		 }
+    harbor:
+		 {
+        fence: keep_out,
+        polygon: [[45.0001, 9.0001], [45.0001, 9.0010], [45.0010, 9.0010]],
+		 }
+    fence_home:
+		 {
+        action: return_home,
+        trigger: "geofence_violation",
+        interval: 1000,
+        ends: y,
+		 }
+
+    The boat also keeps a gridded map of each sensor data type (SensorMap). Triggers can compare
+    "<data type>_mean", "_variance", "_count" and "_gradient" (units per meter) in the map cell
+    the boat is in. In a cell without readings the count is 0 and the other comparisons are false.
+    front:
+		 {
+        action: slow_down,
+        trigger: "EC_GOSYS_gradient > 5",
+        interval: 1000,
+        ends: n,
+        priority: 0,
+		 }
+
+    The cover action starts the lawnmower survey set in the coverage preference, unless the boat
+    is already following waypoints.
+    survey:
+		 {
+        action: cover,
+        trigger: "lake",
+        interval: 5000,
+        ends: y,
+		 }
+
  *
  *
  *
@@ -150,6 +192,9 @@ public class AutonomousPredicates
 		Map<Long, ScheduledFuture> triggered_actions_map = new HashMap<>();
 		ScheduledThreadPoolExecutor poolExecutor = new ScheduledThreadPoolExecutor(4);
 		final double ISNEAR_DISTANCE_THRESHOLD = 3;
+		static final String GEOFENCE_VIOLATION = "geofence_violation";
+		Map<String, Geofence> fences = new ConcurrentHashMap<>();
+		static final String[] MAP_STATISTICS = {"mean", "variance", "count", "gradient"};
 		// TODO: do we want something that can increase and decrease the thread pool, rather than fixed?
 
 		class TriggeredAction implements Runnable
@@ -245,6 +290,7 @@ public class AutonomousPredicates
 				private Predicate<Void> generatePredicate(final String left_hand_side, final String comparator, final double right_hand_side) throws Exception
 				{
 						final String definition = String.format("%s %s %f", left_hand_side, comparator, right_hand_side);
+						final boolean is_map = isMapQuantity(left_hand_side);
 
 						Log.d(logTag, String.format("Generating new predicate: %s", definition));
 
@@ -256,7 +302,7 @@ public class AutonomousPredicates
 										Object retrieval = null;
 										try
 										{
-												retrieval = _serverImpl.getState(left_hand_side);
+												retrieval = is_map ? mapQuantity(left_hand_side) : _serverImpl.getState(left_hand_side);
 										}
 										catch (Exception e)
 										{
@@ -438,7 +484,9 @@ public class AutonomousPredicates
 				{
 						Predicate<Void> new_predicate = new Predicate<Void>()
 						{
-								final UTM location_utm = UTM.latLongToUtm(LatLong.valueOf(latitude, longitude, NonSI.DEGREE_ANGLE), ReferenceEllipsoid.WGS84);
+								final UtmPose location_utm = UtmProjection.toUtmPose(latitude, longitude);
+								final double location_easting = location_utm.pose.getX();
+								final double location_northing = location_utm.pose.getY();
 								@Override
 								public boolean test(Void aVoid)
 								{
@@ -448,8 +496,9 @@ public class AutonomousPredicates
 										try
 										{
 												UtmPose utmPose = _serverImpl.getState(VehicleState.States.CURRENT_POSE.name);
-												distance = Math.sqrt(Math.pow(utmPose.pose.getX() - location_utm.eastingValue(SI.METER), 2.0)
-																+ Math.pow(utmPose.pose.getY() - location_utm.northingValue(SI.METER), 2.0));
+												double dx = utmPose.pose.getX() - location_easting;
+												double dy = utmPose.pose.getY() - location_northing;
+												distance = Math.sqrt(dx*dx + dy*dy);
 												result = distance < radius;
 										}
 										catch (Exception e)
@@ -463,11 +512,60 @@ public class AutonomousPredicates
 						return new_predicate;
 				}
 
-				// TODO: useful building utilities
-				/*
-				List of ideas:
-				1) inConvexHull(vertices[]) --> current location is inside polygon defined by these
-				*/
+				public Predicate<Void> inFence(final Geofence fence)
+				{
+						Predicate<Void> new_predicate = new Predicate<Void>()
+						{
+								@Override
+								public boolean test(Void aVoid)
+								{
+										boolean result = false;
+										try
+										{
+												UtmPose utmPose = _serverImpl.getState(VehicleState.States.CURRENT_POSE.name);
+												result = fence.contains(utmPose);
+										}
+										catch (Exception e)
+										{
+												Log.e(logTag, String.format("inFence predicate error: %s", e.getMessage()));
+										}
+										Log.d(logTag, String.format("Executed inFence predicate: inside %s is %s", fence.name(), Boolean.toString(result)));
+										return result;
+								}
+						};
+						return new_predicate;
+				}
+
+				public Predicate<Void> geofenceViolation()
+				{
+						Predicate<Void> new_predicate = new Predicate<Void>()
+						{
+								@Override
+								public boolean test(Void aVoid)
+								{
+										String violated = null;
+										try
+										{
+												UtmPose utmPose = _serverImpl.getState(VehicleState.States.CURRENT_POSE.name);
+												for (Geofence fence : fences.values())
+												{
+														if (fence.isViolatedBy(utmPose))
+														{
+																violated = fence.name();
+																break;
+														}
+												}
+										}
+										catch (Exception e)
+										{
+												Log.e(logTag, String.format("geofenceViolation predicate error: %s", e.getMessage()));
+										}
+										Log.d(logTag, String.format("Executed geofenceViolation predicate: violated fence = %s", violated));
+										return violated != null;
+								}
+						};
+						return new_predicate;
+				}
 		}
 
 		public void loadDefaults()
@@ -518,17 +616,36 @@ public class AutonomousPredicates
 						return;
 				}
 
-				// parse each behavior and generate tasks
+				// load the geofences first, so any trigger can refer to them
 				Iterator<String> file_keys = file_json.keys();
 				String key;
 				while (file_keys.hasNext())
 				{
 						key = file_keys.next();
-						Log.i(logTag, String.format("Next task: %s", key));
+						try
+						{
+								JSONObject fence_json = (JSONObject)file_json.get(key);
+								if (!fence_json.has("fence")) continue;
+								Log.i(logTag, String.format("Next geofence: %s", key));
+								createFence(fence_json, key);
+						}
+						catch (Exception e)
+						{
+								Log.e(logTag, String.format("loadFromFile() geofence error: %s", e.getMessage()));
+						}
+				}
+
+				// parse each behavior and generate tasks
+				file_keys = file_json.keys();
+				while (file_keys.hasNext())
+				{
+						key = file_keys.next();
 						try
 						{
 								JSONObject task_json = (JSONObject)file_json.get(key);
 								// Log.v(logTag, task_json.toString(2));
+								if (task_json.has("fence")) continue;
+								Log.i(logTag, String.format("Next task: %s", key));
 								createTask(task_json, key);
 						}
 						catch (Exception e)
@@ -704,17 +821,39 @@ public class AutonomousPredicates
 										}
 										else
 										{
-												// pure boolean predicate
-												switch (splitting_boolean)
+												// pure boolean predicate, a geofence or a boolean state
+												Predicate<Void> fence_predicate = null;
+												Geofence fence = fences.get(components[0]);
+												if (fence != null) fence_predicate = dpc.inFence(fence);
+												else if (components[0].equals(GEOFENCE_VIOLATION)) fence_predicate = dpc.geofenceViolation();
+												if (fence_predicate != null)
 												{
-														case "&":
-																dpc.and(components[0]);
-																break;
-														case "|":
-																dpc.or(components[0]);
-																break;
-														default:
-																break;
+														Log.d(logTag, String.format("Using geofence predicate %s", components[0]));
+														switch (splitting_boolean)
+														{
+																case "&":
+																		dpc.and(fence_predicate);
+																		break;
+																case "|":
+																		dpc.or(fence_predicate);
+																		break;
+																default:
+																		break;
+														}
+												}
+												else
+												{
+														switch (splitting_boolean)
+														{
+																case "&":
+																		dpc.and(components[0]);
+																		break;
+																case "|":
+																		dpc.or(components[0]);
+																		break;
+																default:
+																		break;
+														}
 												}
 										}
 								}
@@ -729,6 +868,87 @@ public class AutonomousPredicates
 				}
 		}
 
+		/**
+		 * @return true if the name is a data type and a statistic of its sensor map, like
+		 * "EC_GOSYS_gradient"
+		 */
+		static boolean isMapQuantity(String name)
+		{
+				int split = name.lastIndexOf('_');
+				if (split <= 0) return false;
+				if (!Arrays.asList(MAP_STATISTICS).contains(name.substring(split + 1))) return false;
+				try
+				{
+						DataType.valueOf(name.substring(0, split));
+						return true;
+				}
+				catch (IllegalArgumentException e)
+				{
+						return false;
+				}
+		}
+
+		/**
+		 * @return the sensor map statistic in the cell of the current pose, or null if that cell
+		 * has no data for it
+		 */
+		private Double mapQuantity(String name)
+		{
+				int split = name.lastIndexOf('_');
+				SensorMap layer = _serverImpl.sensorMaps().get(DataType.valueOf(name.substring(0, split)));
+				if (layer == null) return null;
+				UtmPose utmPose = _serverImpl.getState(VehicleState.States.CURRENT_POSE.name);
+				double[] en = new double[2];
+				if (!layer.toMap(utmPose, en)) return null;
+				double value;
+				switch (name.substring(split + 1))
+				{
+						case "mean":
+								value = layer.mean(en[0], en[1]);
+								break;
+						case "variance":
+								value = layer.variance(en[0], en[1]);
+								break;
+						case "count":
+								value = layer.count(en[0], en[1]);
+								break;
+						default:
+								value = layer.gradientMagnitude(en[0], en[1]);
+								break;
+				}
+				return Double.isNaN(value) ? null : value;
+		}
+
+		private void createFence(JSONObject definition, String name) throws Exception
+		{
+				Geofence.Kind kind = Geofence.Kind.fromString(definition.getString("fence").trim().toLowerCase());
+				JSONArray rings_json;
+				if (definition.has("polygons"))
+				{
+						rings_json = definition.getJSONArray("polygons");
+				}
+				else
+				{
+						rings_json = new JSONArray();
+						rings_json.put(definition.getJSONArray("polygon"));
+				}
+				double[][][] polygons = new double[rings_json.length()][][];
+				for (int r = 0; r < polygons.length; r++)
+				{
+						JSONArray ring_json = rings_json.getJSONArray(r);
+						polygons[r] = new double[ring_json.length()][];
+						for (int i = 0; i < polygons[r].length; i++)
+						{
+								JSONArray vertex = ring_json.getJSONArray(i);
+								polygons[r][i] = new double[]{vertex.getDouble(0), vertex.getDouble(1)};
+						}
+				}
+				Geofence fence = new Geofence(name, kind, polygons);
+				fences.put(name, fence);
+				Log.i(logTag, String.format("Geofence %s: %s, %d edges in %d cells, %.2f edges per cell",
+								name, kind.name, fence.index().edgeCount(), fence.index().cellCount(), fence.index().meanEdgesPerCell()));
+		}
+
 		private void createTask(JSONObject definition, String name)
 		{
 				String key;
@@ -817,6 +1037,7 @@ public class AutonomousPredicates
 						entry.getValue().cancel(true);
 				}
 				triggered_actions_map.clear();
+				fences.clear();
 				ap_count = 0;
 		}
 
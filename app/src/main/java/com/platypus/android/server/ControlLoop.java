@@ -0,0 +1,230 @@
+package com.platypus.android.server;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a periodic control task on its own thread against the monotonic clock.
+ * <p/>
+ * Unlike a fixed-rate java.util.Timer, every tick is handed the time that really elapsed since the
+ * previous tick, so derivative and integral terms stay correct when a tick is late. Ticks that
+ * start a full period or more after their deadline are overruns. With SKIP the missed ticks are
+ * dropped and the schedule realigns to the next deadline; with CATCH_UP they run back to back,
+ * up to MAX_CATCH_UP_TICKS, before the rest are dropped. Ticks that run back to back are only
+ * microseconds apart, so with CATCH_UP each tick is handed the time between its deadline and the
+ * previous one instead, one period unless ticks were dropped in between, and never less.
+ * <p/>
+ * Start lateness and tick duration go into latency histograms, and overruns are logged at most
+ * once per OVERRUN_REPORT_INTERVAL_MS.
+ */
+final class ControlLoop
+{
+		interface Tick
+		{
+				/**
+				 * @param loop the loop running this tick, e.g. to stop it from inside the tick
+				 * @param dt seconds since the previous tick started, the nominal period on the first tick;
+				 *           with CATCH_UP, seconds since the previous tick's deadline
+				 */
+				void run(ControlLoop loop, double dt);
+		}
+
+		/**
+		 * The time source and the way the loop waits for its next deadline, replaced in tests.
+		 */
+		interface Clock
+		{
+				long nanoTime();
+
+				/**
+				 * Waits for up to nanos, or less if the loop is stopped.
+				 */
+				void park(Object blocker, long nanos);
+		}
+
+		static final Clock SYSTEM_CLOCK = new Clock()
+		{
+				@Override
+				public long nanoTime()
+				{
+						return System.nanoTime();
+				}
+
+				@Override
+				public void park(Object blocker, long nanos)
+				{
+						LockSupport.parkNanos(blocker, nanos);
+				}
+		};
+
+		enum OverrunPolicy
+		{
+				SKIP,
+				CATCH_UP
+		}
+
+		static final int MAX_CATCH_UP_TICKS = 5;
+		static final long OVERRUN_REPORT_INTERVAL_MS = 1000;
+
+		private final String name;
+		private final long period_ns;
+		private final OverrunPolicy policy;
+		private final Tick tick;
+		private final Clock clock;
+		private final LatencyHistogram lateness = new LatencyHistogram();
+		private final LatencyHistogram duration = new LatencyHistogram();
+		private volatile boolean running = false;
+		private volatile Thread thread = null;
+		private volatile long tick_count = 0;
+		private volatile long overrun_count = 0;
+		private volatile long skipped_count = 0;
+		private long last_report_ns = 0;
+		private long overruns_at_last_report = 0;
+		private String logTag;
+
+		ControlLoop(String _name, long period_ms, OverrunPolicy _policy, Tick _tick)
+		{
+				this(_name, period_ms, _policy, _tick, SYSTEM_CLOCK);
+		}
+
+		ControlLoop(String _name, long period_ms, OverrunPolicy _policy, Tick _tick, Clock _clock)
+		{
+				name = _name;
+				period_ns = period_ms*1000000L;
+				policy = _policy;
+				tick = _tick;
+				clock = _clock;
+				logTag = "ControlLoop:" + _name;
+		}
+
+		synchronized void start()
+		{
+				if (running) return;
+				running = true;
+				thread = new Thread(new Runnable()
+				{
+						@Override
+						public void run()
+						{
+								loop(Thread.currentThread());
+						}
+				}, name);
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MAX_PRIORITY);
+				thread.start();
+		}
+
+		/**
+		 * Stops the loop after the current tick, if any. Called from another thread, it waits for
+		 * that tick to finish, so the tick never runs again once stop() returns. Called from inside
+		 * a tick, it returns at once and the loop ends when the tick does.
+		 */
+		void stop()
+		{
+				Thread stopped;
+				synchronized (this)
+				{
+						if (!running) return;
+						running = false;
+						stopped = thread;
+						LockSupport.unpark(stopped);
+						Log.i(logTag, String.format("Stopped after %d ticks, %d overruns, %d skipped. Lateness: %s. Duration: %s",
+										tick_count, overrun_count, skipped_count, lateness, duration));
+				}
+				// joined outside the lock, since the tick may itself call stop() or start()
+				if (stopped == Thread.currentThread()) return;
+				boolean interrupted = false;
+				while (stopped.isAlive())
+				{
+						try
+						{
+								stopped.join();
+						}
+						catch (InterruptedException e)
+						{
+								interrupted = true;
+						}
+				}
+				if (interrupted) Thread.currentThread().interrupt();
+		}
+
+		boolean isRunning() { return running; }
+		long tickCount() { return tick_count; }
+		long overrunCount() { return overrun_count; }
+		long skippedCount() { return skipped_count; }
+
+		/**
+		 * How late each tick started relative to its deadline. Only the loop thread writes it.
+		 */
+		LatencyHistogram lateness() { return lateness; }
+
+		/**
+		 * How long each tick took to run. Only the loop thread writes it.
+		 */
+		LatencyHistogram duration() { return duration; }
+
+		/**
+		 * @param self this loop's thread, which exits once start() has handed the loop to another
+		 */
+		private void loop(Thread self)
+		{
+				long next = clock.nanoTime();
+				long last = next - period_ns;
+				while (running && thread == self)
+				{
+						long now = clock.nanoTime();
+						long wait = next - now;
+						if (wait > 0)
+						{
+								clock.park(this, wait);
+								continue;
+						}
+
+						long late = now - next;
+						lateness.record(late);
+						if (late >= period_ns)
+						{
+								overrun_count++;
+								long missed = late/period_ns;
+								if (policy == OverrunPolicy.SKIP)
+								{
+										skipped_count += missed;
+										next += missed*period_ns;
+								}
+								else if (missed > MAX_CATCH_UP_TICKS)
+								{
+										skipped_count += missed - MAX_CATCH_UP_TICKS;
+										next += (missed - MAX_CATCH_UP_TICKS)*period_ns;
+								}
+								reportOverrun(now, late);
+						}
+
+						// a catch-up tick stands for its own period, however soon after the last one it runs
+						long start = policy == OverrunPolicy.CATCH_UP ? next : now;
+						double dt = (start - last)/1e9;
+						last = start;
+						try
+						{
+								tick.run(this, dt);
+						}
+						catch (Exception e)
+						{
+								Log.e(logTag, String.format("Tick failed: %s", e.toString()));
+						}
+						duration.record(clock.nanoTime() - now);
+						tick_count++;
+						next += period_ns;
+				}
+		}
+
+		private void reportOverrun(long now, long late)
+		{
+				if (now - last_report_ns < OVERRUN_REPORT_INTERVAL_MS*1000000L) return;
+				Log.w(logTag, String.format("%d overruns since last report, latest %.1f ms late (%s)",
+								overrun_count - overruns_at_last_report, late/1e6,
+								policy == OverrunPolicy.SKIP ? "skipping" : "catching up"));
+				last_report_ns = now;
+				overruns_at_last_report = overrun_count;
+		}
+}
@@ -255,6 +255,28 @@ public class Controller {
         }
     }
 
+    /**
+     * Sends an already encoded command to the controller board without copying it.
+     *
+     * @param message the command, including its "\r\n" line terminator
+     * @param length  number of bytes of message to send
+     * @throws IOException if there is not a valid connection to a controller board.
+     */
+    public void send(byte[] message, int length) throws IOException {
+        synchronized (mUsbLock) {
+            if (mUsbOutputStream == null)
+                throw new ConnectionException("Not connected to hardware.");
+
+            try {
+                mUsbOutputStream.write(message, 0, length);
+                mUsbOutputStream.flush();
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+        }
+    }
+
     /**
      * Receives a JSON object from the controller board.
      * This method blocks until a valid message is received.
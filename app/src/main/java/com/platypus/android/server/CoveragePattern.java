@@ -0,0 +1,220 @@
+package com.platypus.android.server;
+
+/**
+ * Boustrophedon ("lawnmower") survey of a polygon, generated lazily as a mission source.
+ * <p/>
+ * The polygon is projected into UTM and rotated so the tracks run along the requested heading.
+ * Tracks are spaced evenly across the polygon, at most one swath width apart, with the outer
+ * tracks half a spacing in from the extreme vertices, and run in alternating directions. Every
+ * stretch of a track inside the polygon becomes a pair of waypoints. For a concave polygon a
+ * track can cross the polygon boundary more than twice; the stretches of one track are visited
+ * in order and the vehicle transits straight across the gaps between them.
+ * <p/>
+ * Only the polygon and one track's boundary crossings are kept in memory, whatever the area.
+ * size() is known up front from a counting pass over the tracks. Reads are expected in index
+ * order; reading from an earlier index replays the pattern from the start.
+ */
+final class CoveragePattern implements MissionSource
+{
+		private final int zone;
+		private final boolean is_north;
+		// origin of the rotated frame, in UTM
+		private final double origin_e, origin_n;
+		// along-track and cross-track unit vectors, in UTM
+		private final double along_e, along_n, cross_e, cross_n;
+		// polygon vertices in the rotated frame: u along the tracks, v across them
+		private final double[] us, vs;
+		private final double v_min;
+		private final double spacing;
+		private final int track_count;
+		private final int size;
+		private final String name;
+
+		private final double[] crossings;
+		private final double[] latlng = new double[2];
+		private int track = -1;
+		private int crossing_count = 0;
+		private int crossing_cursor = 0;
+		private int produced = 0;
+		private double next_u, next_v;
+
+		/**
+		 * @param polygon     vertices as {latitude, longitude}, in order, at least 3
+		 * @param swath_width greatest distance between neighboring tracks, in meters
+		 * @param heading_deg direction of the first track, in degrees clockwise from north
+		 */
+		CoveragePattern(double[][] polygon, double swath_width, double heading_deg)
+		{
+				if (polygon.length < 3) throw new IllegalArgumentException("A coverage polygon needs at least 3 vertices");
+				if (!(swath_width > 0)) throw new IllegalArgumentException("Swath width must be positive");
+
+				double[] en = new double[2];
+				zone = UtmProjection.latLongToUtm(polygon[0][0], polygon[0][1], en);
+				is_north = polygon[0][0] >= 0;
+				origin_e = en[0];
+				origin_n = en[1];
+				double heading = Math.toRadians(heading_deg);
+				along_e = Math.sin(heading);
+				along_n = Math.cos(heading);
+				cross_e = along_n;
+				cross_n = -along_e;
+
+				int n = polygon.length;
+				us = new double[n];
+				vs = new double[n];
+				double v_lo = Double.POSITIVE_INFINITY;
+				double v_hi = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < n; i++)
+				{
+						UtmProjection.latLongToUtm(polygon[i][0], polygon[i][1], zone, is_north, en, 0);
+						double de = en[0] - origin_e;
+						double dn = en[1] - origin_n;
+						us[i] = de*along_e + dn*along_n;
+						vs[i] = de*cross_e + dn*cross_n;
+						v_lo = Math.min(v_lo, vs[i]);
+						v_hi = Math.max(v_hi, vs[i]);
+				}
+				v_min = v_lo;
+				// the tolerance keeps projection round-off from adding a track
+				track_count = Math.max(1, (int)Math.ceil((v_hi - v_lo)/swath_width - 1e-6));
+				spacing = (v_hi - v_lo)/track_count;
+				crossings = new double[n];
+
+				int total = 0;
+				for (int k = 0; k < track_count; k++)
+				{
+						total += 2*(intersect(trackOffset(k))/2);
+				}
+				size = total;
+				name = String.format("coverage of %d vertices, %.1f m swath, heading %.0f deg",
+								n, swath_width, heading_deg);
+		}
+
+		/**
+		 * Parses "swath heading; lat,lng; lat,lng; lat,lng; ...", with the swath width in meters
+		 * and the heading of the first track in degrees clockwise from north, e.g.
+		 * <pre>
+		 *     5 90; 45.0010,9.0010; 45.0010,9.0090; 45.0090,9.0090; 45.0090,9.0010
+		 * </pre>
+		 */
+		static CoveragePattern parse(String spec)
+		{
+				String[] parts = spec == null ? new String[0] : spec.trim().split(";");
+				if (parts.length < 4)
+				{
+						throw new IllegalArgumentException("Coverage needs a swath width, a heading and at least 3 vertices: " + spec);
+				}
+				double swath_width, heading_deg;
+				double[][] polygon = new double[parts.length - 1][];
+				try
+				{
+						String[] settings = parts[0].trim().split("\\s+");
+						if (settings.length != 2) throw new NumberFormatException();
+						swath_width = Double.parseDouble(settings[0]);
+						heading_deg = Double.parseDouble(settings[1]);
+						for (int i = 0; i < polygon.length; i++)
+						{
+								String[] latlng = parts[i + 1].split(",");
+								if (latlng.length != 2) throw new NumberFormatException();
+								polygon[i] = new double[]{Double.parseDouble(latlng[0].trim()), Double.parseDouble(latlng[1].trim())};
+						}
+				}
+				catch (NumberFormatException e)
+				{
+						throw new IllegalArgumentException("Malformed coverage spec: " + spec);
+				}
+				return new CoveragePattern(polygon, swath_width, heading_deg);
+		}
+
+		int trackCount() { return track_count; }
+
+		@Override
+		public String name() { return name; }
+
+		@Override
+		public int size() { return size; }
+
+		@Override
+		public int read(int index, int max, double[] latitudes, double[] longitudes, long[] keep_times_ms)
+		{
+				if (index < produced) restart();
+				while (produced < index && advance()) { }
+				int n = 0;
+				while (n < max && advance())
+				{
+						double e = origin_e + next_u*along_e + next_v*cross_e;
+						double north = origin_n + next_u*along_n + next_v*cross_n;
+						UtmProjection.utmToLatLong(e, north, zone, is_north, latlng, 0);
+						latitudes[n] = latlng[0];
+						longitudes[n] = latlng[1];
+						keep_times_ms[n] = 0;
+						n++;
+				}
+				return n;
+		}
+
+		@Override
+		public void close() { }
+
+		/**
+		 * Moves to the next waypoint, leaving it in next_u and next_v.
+		 *
+		 * @return false once the pattern is finished
+		 */
+		private boolean advance()
+		{
+				while (crossing_cursor >= crossing_count)
+				{
+						if (track + 1 >= track_count) return false;
+						track++;
+						crossing_count = 2*(intersect(trackOffset(track))/2);
+						crossing_cursor = 0;
+				}
+				// even tracks run along the heading, odd tracks back against it
+				int i = track%2 == 0 ? crossing_cursor : crossing_count - 1 - crossing_cursor;
+				next_u = crossings[i];
+				next_v = trackOffset(track);
+				crossing_cursor++;
+				produced++;
+				return true;
+		}
+
+		private void restart()
+		{
+				track = -1;
+				crossing_count = 0;
+				crossing_cursor = 0;
+				produced = 0;
+		}
+
+		private double trackOffset(int k)
+		{
+				return v_min + (k + 0.5)*spacing;
+		}
+
+		/**
+		 * Fills crossings with the sorted along-track positions where the track at offset v
+		 * crosses the polygon boundary.
+		 *
+		 * @return the number of crossings
+		 */
+		private int intersect(double v)
+		{
+				int count = 0;
+				int n = us.length;
+				for (int i = 0, j = n - 1; i < n; j = i++)
+				{
+						// half-open test so a vertex exactly on the track is counted once
+						if ((vs[i] <= v) == (vs[j] <= v)) continue;
+						double u = us[j] + (v - vs[j])*(us[i] - us[j])/(vs[i] - vs[j]);
+						int k = count++;
+						while (k > 0 && crossings[k - 1] > u)
+						{
+								crossings[k] = crossings[k - 1];
+								k--;
+						}
+						crossings[k] = u;
+				}
+				return count;
+		}
+}
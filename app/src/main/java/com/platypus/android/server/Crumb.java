@@ -2,20 +2,15 @@ package com.platypus.android.server;
 
 import android.util.Log;
 
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
 import com.platypus.crw.data.UtmPose;
 
-import org.jscience.geography.coordinates.LatLong;
-import org.jscience.geography.coordinates.UTM;
-import org.jscience.geography.coordinates.crs.ReferenceEllipsoid;
-
-import javax.measure.unit.NonSI;
-import javax.measure.unit.SI;
-
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Created by jason on 6/7/17.
@@ -23,80 +18,163 @@ import java.util.concurrent.ThreadLocalRandom;
 
 public class Crumb
 {
-		// Instance fields
-		private long index;
-		private UTM location;
-		private double g = 0.; // initialize with zero
-		private double h; // run-time initialize e.g. set to the distance to the goal (if using A*)
-		private List<Long> successors = new ArrayList<>();
-		private long parent;
-
-		// Instance methods
-		private Crumb(long _index, UTM _location)
-		{
-				index = _index;
-				location = _location;
-		}
-		private void setG(double _g) { g= _g; }
-		private double getG() { return g; }
-		private void setH(double _h) { h = _h; }
-		private void setParent(long _parent) { parent = _parent; }
-		private long getParent() { return parent; }
-		private double getCost() { return g + h; }
-		long getIndex() { return index; }
-		UTM getLocation() { return location; }
-		public List<Long> getSuccessors() { return successors; }
+		private Crumb() { }
 
 		// Static fields
-		private final static double MAX_NEIGHBOR_DISTANCE = 10;
-		private static Map<Long, Crumb> crumbs_by_index = new HashMap<>();
-		private static Map<Long, Crumb> unsent_crumbs = new HashMap<>();
-		private static Map<Long, Map<Long, Double>> pairwise_distances = new HashMap<>();
-		private static Map<Long, List<Long>> neighbors = new HashMap<>();
+		final static double MAX_NEIGHBOR_DISTANCE = 10;
+		// crumb locations, neighbors are found with radius queries instead of stored pairwise distances
+		private static final CrumbGrid grid = new CrumbGrid(MAX_NEIGHBOR_DISTANCE);
+		private static final BitSet unsent_crumbs = new BitSet();
+		// incremental planner kept between replans, guarded by crumbs_lock like the grid it mirrors
+		private static DStarLitePlanner replanner = null;
+		// a crumb on the boat's track is never more than half the drop distance from the track, so
+		// shortcuts that stay that close to the trail are over water the boat has already crossed
+		private static final PathSmoother path_smoother =
+						new PathSmoother(2.0, 0.5*MAX_NEIGHBOR_DISTANCE, 5.0);
+		private static int trail_zone = 0;
+		private static boolean trail_is_north = true;
 		private static final Object crumbs_lock = new Object();
+		// on-disk copy of the trail, created lazily once the first crumb fixes the UTM zone
+		private static File store_path = null;
+		private static CrumbStore store = null;
+		// a saved trail older than this is from a previous deployment and is discarded
+		final static long MAX_TRAIL_AGE_MS = 6*60*60*1000;
 		private static String logTag = "crumbs";
+
+		/**
+		 * Restores the trail saved at path, if there is a recent one, and keeps appending new crumbs
+		 * to it. Must be called before the first crumb is dropped.
+		 *
+		 * @return the number of crumbs restored
+		 */
+		static int openStore(File path)
+		{
+				synchronized (crumbs_lock)
+				{
+						if (grid.size() > 0)
+						{
+								Log.w(logTag, "Trail already started, not restoring saved crumbs");
+								return 0;
+						}
+						store_path = path;
+						try
+						{
+								if (path.exists() && System.currentTimeMillis() - path.lastModified() > MAX_TRAIL_AGE_MS)
+								{
+										Log.i(logTag, "Discarding stale saved trail");
+										path.delete();
+										return 0;
+								}
+								store = CrumbStore.open(path);
+								if (store == null) return 0;
+								if (store.radius() != MAX_NEIGHBOR_DISTANCE)
+								{
+										Log.w(logTag, String.format("Saved trail uses a %.1f m neighbor radius, discarding it", store.radius()));
+										store.close();
+										store = null;
+										path.delete();
+										return 0;
+								}
+								trail_zone = store.zone();
+								trail_is_north = store.isNorth();
+								int count = store.replay(grid);
+								unsent_crumbs.set(0, count);
+								Log.i(logTag, String.format("Restored %d crumbs from %s", count, path.getPath()));
+								return count;
+						}
+						catch (IOException e)
+						{
+								Log.e(logTag, String.format("Unable to restore saved trail: %s", e.getMessage()));
+								closeStore();
+								store_path = null;
+								grid.clear();
+								unsent_crumbs.clear();
+								replanner = null;
+								return 0;
+						}
+				}
+		}
+
+		static void closeStore()
+		{
+				synchronized (crumbs_lock)
+				{
+						if (store != null) store.close();
+						store = null;
+				}
+		}
+
+		/**
+		 * Returns the first crumb of the trail, i.e. where the vehicle first had a GPS fix.
+		 */
+		static UtmPose firstCrumbPose()
+		{
+				synchronized (crumbs_lock)
+				{
+						if (grid.size() == 0) return null;
+						return new UtmPose(new Pose3D(grid.easting(0), grid.northing(0), 0, 0, 0, 0),
+										new Utm(trail_zone, trail_is_north));
+				}
+		}
 		static void checkForNewCrumb(UtmPose current_utmpose)
 		{
 				if (current_utmpose.equals(new UtmPose())) return; // ignore default location
-				long last_index = crumbs_by_index.size();
-				if (last_index < 1)
+				double x = current_utmpose.pose.getX();
+				double y = current_utmpose.pose.getY();
+				synchronized (crumbs_lock)
 				{
-						Log.i(logTag, "Generating first crumb");
-						newCrumb(UTM.valueOf(
-										current_utmpose.origin.zone,
-										current_utmpose.origin.isNorth ? 'T' : 'L',
-										current_utmpose.pose.getX(),
-										current_utmpose.pose.getY(),
-										SI.METER
-						));
-						return;
+						int last_index = grid.size() - 1;
+						if (last_index < 0)
+						{
+								Log.i(logTag, "Generating first crumb");
+								trail_zone = current_utmpose.origin.zone;
+								trail_is_north = current_utmpose.origin.isNorth;
+								newCrumb(x, y);
+								return;
+						}
+						Log.v(logTag, "Checking to drop a new crumb...");
+						double dx = x - grid.easting(last_index);
+						double dy = y - grid.northing(last_index);
+						if (dx*dx + dy*dy >= MAX_NEIGHBOR_DISTANCE*MAX_NEIGHBOR_DISTANCE)
+						{
+								Log.i(logTag, "Generating a new crumb");
+								newCrumb(x, y);
+						}
 				}
-				Log.v(logTag, String.format("Checking to drop a new crumb..."));
-				Crumb last_crumb = crumbs_by_index.get(last_index - 1);
-				UTM last_utm = last_crumb.getLocation();
-				double distance = Math.pow(current_utmpose.pose.getX() - last_utm.eastingValue(SI.METER), 2.0);
-				distance += Math.pow(current_utmpose.pose.getY() - last_utm.northingValue(SI.METER), 2.0);
-				if (distance >= MAX_NEIGHBOR_DISTANCE*MAX_NEIGHBOR_DISTANCE)
+		}
+		/**
+		 * @return the smallest crumb index greater than after that is not acknowledged, or -1
+		 */
+		static long nextUnsent(long after)
+		{
+				synchronized (crumbs_lock)
+				{
+						if (after >= grid.size()) return -1;
+						int index = unsent_crumbs.nextSetBit((int)Math.max(0, after + 1));
+						return index < grid.size() ? index : -1;
+				}
+		}
+
+		static boolean isUnsent(long _id)
+		{
+				synchronized (crumbs_lock)
 				{
-						Log.i(logTag, "Generating a new crumb");
-						newCrumb(UTM.valueOf(
-										current_utmpose.origin.zone,
-										current_utmpose.origin.isNorth ? 'T' : 'L',
-										current_utmpose.pose.getX(),
-										current_utmpose.pose.getY(),
-										SI.METER
-						));
+						return _id >= 0 && _id < grid.size() && unsent_crumbs.get((int)_id);
 				}
 		}
-		static Crumb getRandomCrumb()
+
+		/**
+		 * Fills latlng with the position of a crumb.
+		 *
+		 * @return false if there is no crumb with that index
+		 */
+		static boolean getLatLong(long _id, double[] latlng)
 		{
 				synchronized (crumbs_lock)
 				{
-						if (unsent_crumbs.size() < 1) return null;
-						Long[] unsent_ids = unsent_crumbs.keySet().toArray(new Long[0]);
-						int random_index = ThreadLocalRandom.current().nextInt(0, unsent_crumbs.size());
-						long index = unsent_ids[random_index];
-						return unsent_crumbs.get(index);
+						if (_id < 0 || _id >= grid.size()) return false;
+						UtmProjection.utmToLatLong(grid.easting((int)_id), grid.northing((int)_id), trail_zone, trail_is_north, latlng, 0);
+						return true;
 				}
 		}
 
@@ -104,188 +182,128 @@ public class Crumb
 		{
 				synchronized (crumbs_lock)
 				{
-						if (unsent_crumbs.containsKey(_id)) unsent_crumbs.remove(_id);
+						if (_id >= 0 && _id < grid.size()) unsent_crumbs.clear((int)_id);
 				}
 		}
 
 		// Static methods
-		private static double distanceBetweenUTM(UTM location_i, UTM location_j)
+		static double distanceBetweenUTM(double easting_i, double northing_i, double easting_j, double northing_j)
 		{
-				return Math.sqrt(
-								location_i.eastingValue(SI.METER)*location_j.eastingValue(SI.METER) +
-												location_i.northingValue(SI.METER)*location_j.northingValue(SI.METER)
-				);
+				double dx = easting_i - easting_j;
+				double dy = northing_i - northing_j;
+				return Math.sqrt(dx*dx + dy*dy);
 		}
 
-		private static double distanceBetweenCrumbs(long index_i, long index_j)
+		private static int newCrumb(double easting, double northing)
 		{
-				UTM location_i = crumbs_by_index.get(index_i).getLocation();
-				UTM location_j = crumbs_by_index.get(index_j).getLocation();
-				return distanceBetweenUTM(location_i, location_j);
+				synchronized (crumbs_lock)
+				{
+						int new_index = grid.add(easting, northing);
+						unsent_crumbs.set(new_index);
+						persist(easting, northing);
+						return new_index;
+				}
 		}
 
-		private static long newCrumb(UTM _location)
+		private static void persist(double easting, double northing)
 		{
+				if (store_path == null) return;
 				try
 				{
-						synchronized (crumbs_lock)
+						if (store == null)
 						{
-								// initialize objects
-								long new_index = crumbs_by_index.size();
-								Crumb new_crumb = new Crumb(new_index, _location);
-								crumbs_by_index.put(new_index, new_crumb);
-								unsent_crumbs.put(new_index, new_crumb);
-								pairwise_distances.put(new_index, new HashMap<Long, Double>());
-								neighbors.put(new_index, new ArrayList<Long>());
-
-								// calculate pairwise distances and neighbors
-								for (Map.Entry<Long, Crumb> entry_i : crumbs_by_index.entrySet())
-								{
-										for (Map.Entry<Long, Crumb> entry_j : crumbs_by_index.entrySet())
-										{
-												long index_i = entry_i.getKey();
-												long index_j = entry_j.getKey();
-
-												// if a Crumb is being compared to itself
-												// OR
-												// if a calculation was previously performed for pair (i,j)
-												if (index_i == index_j || pairwise_distances.get(index_i).containsKey(index_j))
-												{
-														continue; // don't perform the calculations
-												}
-
-												double pairwise_distance = distanceBetweenCrumbs(index_i, index_j);
-												pairwise_distances.get(index_i).put(index_j, pairwise_distance);
-												if (pairwise_distance <= MAX_NEIGHBOR_DISTANCE)
-												{
-														neighbors.get(index_i).add(index_j);
-												}
-										}
-								}
-								return new_index;
+								store = CrumbStore.create(store_path, trail_zone, trail_is_north, MAX_NEIGHBOR_DISTANCE);
 						}
+						store.append(easting, northing);
 				}
-				catch (Exception e)
+				catch (IOException e)
 				{
-						Log.e("crumbs", String.format("newCrumb() error: %s", e.getMessage()));
-						return -1;
+						// keep the in-memory trail going, just stop saving it
+						Log.e(logTag, String.format("Unable to save crumb, trail will not survive a restart: %s", e.getMessage()));
+						closeStore();
+						store_path = null;
 				}
 		}
 
-		public static List<Long> straightHome(UTM start, UTM goal)
+		/**
+		 * Plans from start to goal with the incremental planner. Repeated calls toward the same
+		 * goal reuse the previous search, so replanning as the boat moves and drops crumbs
+		 * only costs as much as what changed. Start and goal snap to the nearest crumb within
+		 * MAX_NEIGHBOR_DISTANCE and a new crumb is only dropped if there is none.
+		 */
+		public static List<Long> replan(UtmPose start, UtmPose goal)
 		{
-				// Simple: go straight home from the start
 				List<Long> path_sequence = new ArrayList<>();
-				long start_index = newCrumb(start);
-				long goal_index = newCrumb(goal);
-				path_sequence.add(start_index);
-				path_sequence.add(goal_index);
+				synchronized (crumbs_lock)
+				{
+						int start_index = nearestOrNewCrumb(start.pose.getX(), start.pose.getY());
+						int goal_index = nearestOrNewCrumb(goal.pose.getX(), goal.pose.getY());
+						if (replanner == null) replanner = new DStarLitePlanner(grid, MAX_NEIGHBOR_DISTANCE);
+						int[] path = replanner.plan(start_index, goal_index);
+						if (path == null)
+						{
+								Log.w("replan", String.format("Goal crumb %d is unreachable after expanding %d crumbs",
+												goal_index, replanner.expandedCount()));
+								return path_sequence;
+						}
+						for (int index : path) path_sequence.add((long)index);
+						Log.i("replan", String.format("Reached goal crumb %d, expanded %d crumbs, cost = %.1f m",
+										goal_index, replanner.expandedCount(), replanner.lastCost()));
+				}
 				return path_sequence;
 		}
 
-		public static List<Long> aStar(UTM start, UTM goal)
+		private static int nearestOrNewCrumb(double easting, double northing)
 		{
-				Log.i("aStar", "Starting A* calculation...");
-				long start_index = newCrumb(start);
-				long goal_index = newCrumb(goal);
-
-				// fill in distance to goal values
-				for (Map.Entry<Long, Crumb> entry : crumbs_by_index.entrySet())
-				{
-						entry.getValue().setH(distanceBetweenCrumbs(entry.getKey(), goal_index));
-				}
-
-				// make sure start is reachable (i.e. it has at least one neighbor)
-				// TODO: force the start to be reachable
-
-				// make sure goal is reachable (i.e. it has at least one neighbor)
-				// TODO: force the goal to be reachable
-
-				HashMap<Long, Void> open_crumbs = new HashMap<>();
-				HashMap<Long, Double> open_costs = new HashMap<>();
-				HashMap<Long, Void> closed_crumbs = new HashMap<>();
-				List<Long> path_sequence = new ArrayList<>();
-				long current_crumb = 0;
-				long iterations = 0;
-				open_crumbs.put(start_index, null);
-				Log.d("aStar", String.format("open_crumbs.size() = %d", open_crumbs.size()));
+				int index = grid.nearest(easting, northing, MAX_NEIGHBOR_DISTANCE);
+				if (index < 0) index = newCrumb(easting, northing);
+				return index;
+		}
 
-				while (open_crumbs.size() > 0)
+		/**
+		 * Converts a sequence of crumb indices into [latitude, longitude] waypoints.
+		 */
+		public static double[][] pathWaypoints(List<Long> path_sequence)
+		{
+				double[][] waypoints = new double[path_sequence.size()][2];
+				synchronized (crumbs_lock)
 				{
-						iterations += 1;
-						Log.d("aStar", String.format("A* iter %d:  %d open, %d closed",
-										iterations, open_crumbs.size(), closed_crumbs.size()));
-
-						// recreate open costs map
-						open_costs.clear();
-						double lowest_cost = 99999999;
-						for (Map.Entry<Long, Void> entry : open_crumbs.entrySet())
-						{
-								double cost = crumbs_by_index.get(entry.getKey()).getCost();
-								open_costs.put(entry.getKey(), cost);
-								if (cost < lowest_cost)
-								{
-										//Log.v("aStar", String.format("crumb # %d has lowest cost = %.2f", entry.getKey(), cost));
-										lowest_cost = cost;
-										current_crumb = entry.getKey();
-								}
-						}
-						Log.d("aStar", String.format("Current crumb index = %d", current_crumb));
-						if (current_crumb == goal_index)
+						for (int i = 0; i < path_sequence.size(); i++)
 						{
-								Log.i("aStar", String.format("Reached goal crumb %d, exiting loop", goal_index));
-								break; // reached goal node, exit loop
+								int index = path_sequence.get(i).intValue();
+								UtmProjection.utmToLatLong(grid.easting(index), grid.northing(index),
+												trail_zone, trail_is_north, waypoints[i], 0);
 						}
-						Log.d("aStar", String.format("Current crumb has %d neighbors: %s",
-										neighbors.get(current_crumb).size(),
-										neighbors.get(current_crumb).toString()));
-						for (long s : neighbors.get(current_crumb))
-						{
-								double potential_g = crumbs_by_index.get(current_crumb).getG() + pairwise_distances.get(current_crumb).get(s);
-								if (open_crumbs.containsKey(s))
-								{
-										if (crumbs_by_index.get(s).getG() <= potential_g) continue;
-								}
-								else if (closed_crumbs.containsKey(s))
-								{
-										if (crumbs_by_index.get(s).getG() > potential_g)
-										{
-												open_crumbs.put(s, null);
-												closed_crumbs.remove(s);
-										}
-										else
-										{
-												continue;
-										}
-								}
-								else
-								{
-										open_crumbs.put(s, null);
-								}
-								crumbs_by_index.get(s).setG(potential_g);
-								crumbs_by_index.get(s).setParent(current_crumb);
-						}
-						open_crumbs.remove(current_crumb);
-						closed_crumbs.put(current_crumb, null);
-				}
-				path_sequence.add(current_crumb);
-				while (path_sequence.get(0) != start_index)
-				{
-						path_sequence.add(0, crumbs_by_index.get(path_sequence.get(0)).getParent());
 				}
-				Log.i("aStar", "Path sequence = " + path_sequence.toString());
-				return path_sequence;
+				return waypoints;
 		}
 
-		public static void startPathSequence(List<Long> path_sequence)
+		/**
+		 * Like pathWaypoints, but the crumbs are first simplified and the corners rounded off so the
+		 * controller gets a few waypoints it can follow continuously instead of one every crumb.
+		 */
+		public static double[][] smoothedPathWaypoints(List<Long> path_sequence)
 		{
-				double[][] waypoints = new double[path_sequence.size()][2];
-				for (int i = 0; i < path_sequence.size(); i++)
+				int count = path_sequence.size();
+				double[] eastings = new double[count];
+				double[] northings = new double[count];
+				double[][] smoothed;
+				synchronized (crumbs_lock)
+				{
+						for (int i = 0; i < count; i++)
+						{
+								int index = path_sequence.get(i).intValue();
+								eastings[i] = grid.easting(index);
+								northings[i] = grid.northing(index);
+						}
+						smoothed = path_smoother.smooth(eastings, northings, count, grid);
+				}
+				double[][] waypoints = new double[smoothed.length][2];
+				for (int i = 0; i < smoothed.length; i++)
 				{
-						UTM utm = crumbs_by_index.get(path_sequence.get(i)).getLocation();
-						LatLong latlong = UTM.utmToLatLong(utm, ReferenceEllipsoid.WGS84);
-						waypoints[i] = new double[]{latlong.latitudeValue(NonSI.DEGREE_ANGLE), latlong.longitudeValue(NonSI.DEGREE_ANGLE)};
+						UtmProjection.utmToLatLong(smoothed[i][0], smoothed[i][1], trail_zone, trail_is_north, waypoints[i], 0);
 				}
-				//TODO: startWaypoints;
+				Log.i(logTag, String.format("Smoothed %d crumbs into %d waypoints", count, waypoints.length));
+				return waypoints;
 		}
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+package com.platypus.android.server;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid spatial index over crumb locations (easting, northing in meters).
+ * <p/>
+ * Points are stored in primitive arrays and chained per cell, with the cells kept in an
+ * open-addressing hash table keyed on the packed cell coordinates. Inserts are O(1) amortized and
+ * memory is linear in the number of points. Radius queries only visit the cells that overlap the
+ * query circle, so with the cell size equal to the neighbor radius a query touches 9 cells.
+ * <p/>
+ * Not synchronized, callers hold their own lock.
+ */
+final class CrumbGrid
+{
+		private static final int EMPTY = -1;
+
+		private final double cell_size;
+
+		// point storage, indexed by point id
+		private double[] eastings = new double[64];
+		private double[] northings = new double[64];
+		private int[] next_in_cell = new int[64];
+		private int size = 0;
+
+		// cell hash table, heads[slot] == EMPTY marks an unused slot
+		private long[] cell_keys = new long[64];
+		private int[] cell_heads = new int[64];
+		private int cell_count = 0;
+
+		/**
+		 * Reusable output of a radius query.
+		 */
+		static final class Neighbors
+		{
+				int[] index = new int[16];
+				double[] distance = new double[16];
+				int count = 0;
+
+				private void add(int i, double d)
+				{
+						if (count == index.length)
+						{
+								index = Arrays.copyOf(index, 2*count);
+								distance = Arrays.copyOf(distance, 2*count);
+						}
+						index[count] = i;
+						distance[count] = d;
+						count++;
+				}
+		}
+
+		CrumbGrid(double _cell_size)
+		{
+				cell_size = _cell_size;
+				Arrays.fill(cell_heads, EMPTY);
+		}
+
+		int size() { return size; }
+		double easting(int i) { return eastings[i]; }
+		double northing(int i) { return northings[i]; }
+		double cellSize() { return cell_size; }
+
+		/**
+		 * Adds a point and returns its id, ids are assigned sequentially from 0.
+		 */
+		int add(double easting, double northing)
+		{
+				if (size == eastings.length)
+				{
+						int capacity = 2*size;
+						eastings = Arrays.copyOf(eastings, capacity);
+						northings = Arrays.copyOf(northings, capacity);
+						next_in_cell = Arrays.copyOf(next_in_cell, capacity);
+				}
+				int id = size++;
+				eastings[id] = easting;
+				northings[id] = northing;
+
+				long key = cellKey(cellOf(easting), cellOf(northing));
+				int slot = findSlot(key);
+				if (cell_heads[slot] == EMPTY)
+				{
+						cell_keys[slot] = key;
+						cell_count++;
+						next_in_cell[id] = EMPTY;
+						cell_heads[slot] = id;
+						if (2*cell_count > cell_keys.length) rehash();
+				}
+				else
+				{
+						next_in_cell[id] = cell_heads[slot];
+						cell_heads[slot] = id;
+				}
+				return id;
+		}
+
+		/**
+		 * Finds every point within radius of (easting, northing), excluding the given id (use -1 to
+		 * keep all). Results are appended to a cleared out, in no particular order.
+		 */
+		void query(double easting, double northing, double radius, int exclude, Neighbors out)
+		{
+				out.count = 0;
+				double radius_sq = radius*radius;
+				int cx_min = cellOf(easting - radius), cx_max = cellOf(easting + radius);
+				int cy_min = cellOf(northing - radius), cy_max = cellOf(northing + radius);
+				for (int cx = cx_min; cx <= cx_max; cx++)
+				{
+						for (int cy = cy_min; cy <= cy_max; cy++)
+						{
+								int slot = findSlot(cellKey(cx, cy));
+								for (int i = cell_heads[slot]; i != EMPTY; i = next_in_cell[i])
+								{
+										if (i == exclude) continue;
+										double dx = eastings[i] - easting;
+										double dy = northings[i] - northing;
+										double d_sq = dx*dx + dy*dy;
+										if (d_sq <= radius_sq) out.add(i, Math.sqrt(d_sq));
+								}
+						}
+				}
+		}
+
+		/**
+		 * Returns the id of the point closest to (easting, northing) within max_radius, or -1.
+		 */
+		int nearest(double easting, double northing, double max_radius)
+		{
+				double best_sq = max_radius*max_radius;
+				int best = EMPTY;
+				int cx_min = cellOf(easting - max_radius), cx_max = cellOf(easting + max_radius);
+				int cy_min = cellOf(northing - max_radius), cy_max = cellOf(northing + max_radius);
+				for (int cx = cx_min; cx <= cx_max; cx++)
+				{
+						for (int cy = cy_min; cy <= cy_max; cy++)
+						{
+								int slot = findSlot(cellKey(cx, cy));
+								for (int i = cell_heads[slot]; i != EMPTY; i = next_in_cell[i])
+								{
+										double dx = eastings[i] - easting;
+										double dy = northings[i] - northing;
+										double d_sq = dx*dx + dy*dy;
+										if (d_sq <= best_sq)
+										{
+												best_sq = d_sq;
+												best = i;
+										}
+								}
+						}
+				}
+				return best;
+		}
+
+		void clear()
+		{
+				size = 0;
+				cell_count = 0;
+				Arrays.fill(cell_heads, EMPTY);
+		}
+
+		private int cellOf(double coordinate)
+		{
+				return (int)Math.floor(coordinate/cell_size);
+		}
+
+		private static long cellKey(int cx, int cy)
+		{
+				return ((long)cx << 32) | (cy & 0xffffffffL);
+		}
+
+		private int findSlot(long key)
+		{
+				int mask = cell_keys.length - 1;
+				long h = key*0x9E3779B97F4A7C15L;
+				int slot = (int)(h ^ (h >>> 32)) & mask;
+				while (cell_heads[slot] != EMPTY && cell_keys[slot] != key)
+				{
+						slot = (slot + 1) & mask;
+				}
+				return slot;
+		}
+
+		private void rehash()
+		{
+				long[] old_keys = cell_keys;
+				int[] old_heads = cell_heads;
+				cell_keys = new long[2*old_keys.length];
+				cell_heads = new int[2*old_heads.length];
+				Arrays.fill(cell_heads, EMPTY);
+				for (int i = 0; i < old_keys.length; i++)
+				{
+						if (old_heads[i] == EMPTY) continue;
+						int slot = findSlot(old_keys[i]);
+						cell_keys[slot] = old_keys[i];
+						cell_heads[slot] = old_heads[i];
+				}
+		}
+}
@@ -0,0 +1,135 @@
+package com.platypus.android.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only on-disk log of the crumb trail.
+ * <p/>
+ * Layout: a fixed header (magic, version, UTM zone, hemisphere, neighbor radius) followed by one
+ * 16 byte record {easting, northing} per crumb, in crumb index order. Crumb ids are implicit in
+ * the record position. Adjacency is not written out because it is fully determined by the
+ * positions and the neighbor radius stored in the header, so replaying the records into a
+ * {@link CrumbGrid} with the same radius reproduces the original graph exactly.
+ * <p/>
+ * Loading maps the file read-only and walks it once sequentially. A torn record at the end of the
+ * file (e.g. the process died mid-write) is ignored and truncated on the next append.
+ */
+final class CrumbStore
+{
+		private static final int MAGIC = 0x43524D42; // "CRMB"
+		private static final int VERSION = 1;
+		private static final int HEADER_BYTES = 24;
+		private static final int RECORD_BYTES = 16;
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		private final int zone;
+		private final boolean is_north;
+		private final double radius;
+		private int count;
+
+		private CrumbStore(RandomAccessFile _file, int _zone, boolean _is_north, double _radius, int _count)
+		{
+				file = _file;
+				channel = _file.getChannel();
+				zone = _zone;
+				is_north = _is_north;
+				radius = _radius;
+				count = _count;
+		}
+
+		int zone() { return zone; }
+		boolean isNorth() { return is_north; }
+		double radius() { return radius; }
+		int size() { return count; }
+
+		/**
+		 * Opens an existing store, or returns null if the file is missing or unreadable.
+		 */
+		static CrumbStore open(File path) throws IOException
+		{
+				if (!path.exists() || path.length() < HEADER_BYTES) return null;
+				RandomAccessFile raf = new RandomAccessFile(path, "rw");
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				raf.getChannel().read(header, 0);
+				header.flip();
+				if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				{
+						raf.close();
+						return null;
+				}
+				int zone = header.getInt();
+				boolean is_north = header.getInt() != 0;
+				double radius = header.getDouble();
+				int count = (int)((raf.length() - HEADER_BYTES)/RECORD_BYTES);
+				return new CrumbStore(raf, zone, is_north, radius, count);
+		}
+
+		/**
+		 * Creates a new empty store, replacing any existing file.
+		 */
+		static CrumbStore create(File path, int zone, boolean is_north, double radius) throws IOException
+		{
+				RandomAccessFile raf = new RandomAccessFile(path, "rw");
+				raf.setLength(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(zone).putInt(is_north ? 1 : 0).putDouble(radius);
+				header.flip();
+				raf.getChannel().write(header, 0);
+				return new CrumbStore(raf, zone, is_north, radius, 0);
+		}
+
+		/**
+		 * Streams every stored crumb, in index order, into the grid.
+		 *
+		 * @return the number of crumbs replayed
+		 */
+		int replay(CrumbGrid grid) throws IOException
+		{
+				if (count == 0) return 0;
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+								HEADER_BYTES, (long)count*RECORD_BYTES);
+				mapped.order(ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < count; i++)
+				{
+						grid.add(mapped.getDouble(), mapped.getDouble());
+				}
+				return count;
+		}
+
+		/**
+		 * Appends one crumb. Crumbs must be appended in index order.
+		 */
+		void append(double easting, double northing) throws IOException
+		{
+				record.clear();
+				record.putDouble(easting).putDouble(northing);
+				record.flip();
+				long position = HEADER_BYTES + (long)count*RECORD_BYTES;
+				while (record.hasRemaining())
+				{
+						position += channel.write(record, position);
+				}
+				count++;
+		}
+
+		void close()
+		{
+				try
+				{
+						channel.force(false);
+						file.close();
+				}
+				catch (IOException e)
+				{
+						// nothing useful to do, the records already written remain valid
+				}
+		}
+}
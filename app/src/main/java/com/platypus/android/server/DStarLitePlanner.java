@@ -0,0 +1,291 @@
+package com.platypus.android.server;
+
+import java.util.Arrays;
+
+/**
+ * Incremental shortest paths over the crumb trail (D* Lite, Koenig and Likhachev 2002).
+ * <p/>
+ * The search runs backwards from the goal, so g[i] is the cost from crumb i to the goal. Between
+ * calls to plan the planner keeps its g/rhs values and priority queue. When the boat moves only the
+ * key offset km changes, and when crumbs are dropped only the new crumbs and whatever they make
+ * inconsistent are touched, so a replan costs roughly the size of the change rather than the size
+ * of the trail. Changing the goal starts a fresh search.
+ * <p/>
+ * The planner mirrors the adjacency of the crumb grid it was given. The grid may only grow, and
+ * the caller must hold whatever lock protects the grid while calling plan.
+ */
+final class DStarLitePlanner
+{
+		private static final int NONE = -1;
+		private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+		private final CrumbGrid grid;
+		private final double radius;
+		private final CrumbGrid.Neighbors neighbors = new CrumbGrid.Neighbors();
+
+		// nodes mirrored from the grid
+		private int node_count = 0;
+		private double[] eastings = new double[0];
+		private double[] northings = new double[0];
+		private double[] g = new double[0];
+		private double[] rhs = new double[0];
+
+		// undirected edges stored as two directed entries, chained per node
+		private int[] edge_head = new int[0];
+		private int[] edge_next = new int[0];
+		private int[] edge_target = new int[0];
+		private double[] edge_weight = new double[0];
+		private int edge_count = 0;
+
+		private final IndexedMinHeap open = new IndexedMinHeap();
+		private int goal = NONE;
+		private int start = NONE;
+		private double km = 0.0;
+		private int expanded = 0;
+		private double last_cost = INFINITY;
+
+		DStarLitePlanner(CrumbGrid _grid, double _radius)
+		{
+				grid = _grid;
+				radius = _radius;
+		}
+
+		/**
+		 * Number of nodes expanded by the last call to plan.
+		 */
+		int expandedCount() { return expanded; }
+
+		/**
+		 * Length of the last path found, or infinity if the goal was unreachable.
+		 */
+		double lastCost() { return last_cost; }
+
+		int nodeCount() { return node_count; }
+
+		/**
+		 * Finds the shortest path from start to goal, reusing the previous search if the goal is the
+		 * same as last time.
+		 *
+		 * @return node ids from start to goal inclusive, or null if the goal is unreachable
+		 */
+		int[] plan(int _start, int _goal)
+		{
+				expanded = 0;
+				last_cost = INFINITY;
+				if (grid.size() < node_count)
+				{
+						// the grid was cleared, nothing of the old search is valid
+						node_count = 0;
+						edge_count = 0;
+						goal = NONE;
+				}
+				if (_goal != goal)
+				{
+						goal = NONE;
+						sync();
+						start = _start;
+						reset(_goal);
+				}
+				else
+				{
+						// new crumbs are keyed against the old start like everything already queued,
+						// then moving the start raises km for all of them at once
+						sync();
+						if (_start != start)
+						{
+								km += heuristic(start, _start);
+								start = _start;
+						}
+				}
+				computeShortestPath();
+				if (g[start] == INFINITY) return null;
+				last_cost = g[start];
+				return tracePath();
+		}
+
+		/**
+		 * Mirrors crumbs added to the grid since the last call. A new crumb only adds edges, which
+		 * can only lower costs, so its rhs is computed from its neighbors and it is queued if that
+		 * makes it inconsistent. Its neighbors are reached once it is expanded.
+		 */
+		private void sync()
+		{
+				int n = grid.size();
+				if (n == node_count) return;
+				ensureCapacity(n);
+				for (int u = node_count; u < n; u++)
+				{
+						eastings[u] = grid.easting(u);
+						northings[u] = grid.northing(u);
+						g[u] = INFINITY;
+						rhs[u] = INFINITY;
+						edge_head[u] = NONE;
+						// link u to older crumbs only, newer ones link back to u when they are mirrored
+						grid.query(eastings[u], northings[u], radius, u, neighbors);
+						for (int k = 0; k < neighbors.count; k++)
+						{
+								int v = neighbors.index[k];
+								if (v >= u) continue;
+								double w = neighbors.distance[k];
+								addEdge(u, v, w);
+								addEdge(v, u, w);
+								if (goal != NONE && w + g[v] < rhs[u]) rhs[u] = w + g[v];
+						}
+						node_count = u + 1;
+						if (goal != NONE) updateVertex(u);
+				}
+		}
+
+		private void reset(int _goal)
+		{
+				goal = _goal;
+				km = 0.0;
+				Arrays.fill(g, 0, node_count, INFINITY);
+				Arrays.fill(rhs, 0, node_count, INFINITY);
+				open.reset(node_count);
+				rhs[goal] = 0.0;
+				open.push(goal, heuristic(start, goal), 0.0);
+		}
+
+		private void computeShortestPath()
+		{
+				while (!open.isEmpty())
+				{
+						int u = open.peek();
+						double k1_old = open.key(u);
+						double k2_old = open.tie(u);
+						double start_min = Math.min(g[start], rhs[start]);
+						if (!IndexedMinHeap.less(k1_old, k2_old, start_min + km, start_min) && rhs[start] == g[start]) break;
+
+						double u_min = Math.min(g[u], rhs[u]);
+						double k1_new = u_min + heuristic(start, u) + km;
+						if (IndexedMinHeap.less(k1_old, k2_old, k1_new, u_min))
+						{
+								open.update(u, k1_new, u_min);
+								continue;
+						}
+						expanded++;
+						if (g[u] > rhs[u])
+						{
+								// overconsistent, u's cost is now final
+								g[u] = rhs[u];
+								open.remove(u);
+								for (int e = edge_head[u]; e != NONE; e = edge_next[e])
+								{
+										int s = edge_target[e];
+										if (s != goal && edge_weight[e] + g[u] < rhs[s])
+										{
+												rhs[s] = edge_weight[e] + g[u];
+												updateVertex(s);
+										}
+								}
+						}
+						else
+						{
+								// underconsistent, anything whose rhs came through u has to be recomputed
+								double g_old = g[u];
+								g[u] = INFINITY;
+								for (int e = edge_head[u]; e != NONE; e = edge_next[e])
+								{
+										int s = edge_target[e];
+										if (s != goal && rhs[s] == edge_weight[e] + g_old)
+										{
+												rhs[s] = minSuccessor(s);
+												updateVertex(s);
+										}
+								}
+								if (u != goal) rhs[u] = minSuccessor(u);
+								updateVertex(u);
+						}
+				}
+		}
+
+		private void updateVertex(int u)
+		{
+				boolean queued = open.contains(u);
+				if (g[u] != rhs[u])
+				{
+						double u_min = Math.min(g[u], rhs[u]);
+						double k1 = u_min + heuristic(start, u) + km;
+						if (queued) open.update(u, k1, u_min);
+						else open.push(u, k1, u_min);
+				}
+				else if (queued)
+				{
+						open.remove(u);
+				}
+		}
+
+		private double minSuccessor(int u)
+		{
+				double best = INFINITY;
+				for (int e = edge_head[u]; e != NONE; e = edge_next[e])
+				{
+						double cost = edge_weight[e] + g[edge_target[e]];
+						if (cost < best) best = cost;
+				}
+				return best;
+		}
+
+		private int[] tracePath()
+		{
+				int[] path = new int[16];
+				int length = 0;
+				int current = start;
+				path[length++] = current;
+				while (current != goal)
+				{
+						if (length > node_count) return null; // should not happen with consistent g values
+						int best = NONE;
+						double best_cost = INFINITY;
+						for (int e = edge_head[current]; e != NONE; e = edge_next[e])
+						{
+								double cost = edge_weight[e] + g[edge_target[e]];
+								if (cost < best_cost)
+								{
+										best_cost = cost;
+										best = edge_target[e];
+								}
+						}
+						if (best == NONE) return null;
+						if (length == path.length) path = Arrays.copyOf(path, 2*length);
+						path[length++] = best;
+						current = best;
+				}
+				return Arrays.copyOf(path, length);
+		}
+
+		private double heuristic(int i, int j)
+		{
+				double dx = eastings[i] - eastings[j];
+				double dy = northings[i] - northings[j];
+				return Math.sqrt(dx*dx + dy*dy);
+		}
+
+		private void addEdge(int from, int to, double weight)
+		{
+				if (edge_count == edge_target.length)
+				{
+						int capacity = Math.max(64, 2*edge_count);
+						edge_next = Arrays.copyOf(edge_next, capacity);
+						edge_target = Arrays.copyOf(edge_target, capacity);
+						edge_weight = Arrays.copyOf(edge_weight, capacity);
+				}
+				edge_target[edge_count] = to;
+				edge_weight[edge_count] = weight;
+				edge_next[edge_count] = edge_head[from];
+				edge_head[from] = edge_count++;
+		}
+
+		private void ensureCapacity(int n)
+		{
+				open.ensureCapacity(n);
+				if (g.length >= n) return;
+				int capacity = Math.max(n, 2*g.length);
+				eastings = Arrays.copyOf(eastings, capacity);
+				northings = Arrays.copyOf(northings, capacity);
+				g = Arrays.copyOf(g, capacity);
+				rhs = Arrays.copyOf(rhs, capacity);
+				edge_head = Arrays.copyOf(edge_head, capacity);
+		}
+}
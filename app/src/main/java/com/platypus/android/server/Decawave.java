@@ -6,210 +6,179 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
 import com.platypus.crw.data.UtmPose;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.util.Random;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Created by jason on 11/3/17.
- * IMPORTANT: ANCHOR 1 MUST BE THE X AXIS, AND THE ANCHORS MUST FORM A RIGHT-HAND COORDINATE SYSTEM
+ *
+ * Positions the boat from ranges to any number of fixed Decawave anchors. The anchors are read
+ * from pref_decawave_anchors_latlng as "lat, lng; lat, lng; ...", or from the three legacy
+ * per-anchor preferences if that is empty. Ranges must arrive in the same order as the anchors,
+ * and are gated against the filter's prediction before trilateration (see RangingFrontEnd).
  */
 
 
 class Decawave
 {
-		private static List<Double> d1_history = new ArrayList<>();
-		private static List<Double> d2_history = new ArrayList<>();
-		private static List<Double> d3_history = new ArrayList<>();
-		private static UtmPose a0;
-		private static UtmPose a1;
-		private static UtmPose a2;
-		private static double[] d21; // relative coordinate pure x
-		private static double[] d31; // relative coordinate pure y
-		private static double[] median_histories = new double[3];
-		private static double relative_coords_angle;
-		private static int median_filter_length = 20;
-		private double REJECTION_DISTANCE = 5.0; // meters change in a single step, beyond which we throw out the measurement
+		private static final double TRILATERATION_REJECTION_RESIDUAL = 1.5; // meters, beyond which an anchor is dropped from a fix
+		private int zone;
+		private boolean is_north;
+		private double origin_easting, origin_northing; // UTM of anchor 0, origin of the local frame
+		private double[] anchor_xs, anchor_ys; // anchors relative to anchor 0, meters east and north
+		private static final long STATS_INTERVAL_MS = 1000;
+		private RangingFrontEnd front_end;
+		private int median_filter_length = 20;
+		private long last_stats_ms = 0;
 		private VehicleServerImpl server;
+		private VehicleLogger logger;
 		private ScheduledThreadPoolExecutor pool; 
 		String logTag = "decawave";
 
-		Decawave(VehicleServerImpl _server, Context context)
+		Decawave(VehicleServerImpl _server, Context context, VehicleLogger _logger)
 		{
 				server = _server;
+				logger = _logger;
 				SharedPreferences mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
 
 				// read in size of median filter and anchor lat/lng locations from preferences
 				median_filter_length = Integer.valueOf(mPrefs.getString("pref_decawave_anchor_median_filter_length", "20"));
-				String a0_latlng_string = mPrefs.getString("pref_decawave_anchor_0_latlng", "0.0,0.0");
-				String a1_latlng_string = mPrefs.getString("pref_decawave_anchor_1_latlng", "0.0,0.0");
-				String a2_latlng_string = mPrefs.getString("pref_decawave_anchor_2_latlng", "0.0,0.0");
-				String[] a0_chunks = a0_latlng_string.split(",");
-				String[] a1_chunks = a1_latlng_string.split(",");
-				String[] a2_chunks = a2_latlng_string.split(",");
-				for (int i = 0; i < 2; i++)
+				String anchors_string = mPrefs.getString("pref_decawave_anchors_latlng", "").trim();
+				String[] anchor_strings;
+				if (anchors_string.isEmpty())
 				{
-						a0_chunks[i] = a0_chunks[i].trim();
-						a1_chunks[i] = a1_chunks[i].trim();
-						a2_chunks[i] = a2_chunks[i].trim();
+						anchor_strings = new String[]{
+										mPrefs.getString("pref_decawave_anchor_0_latlng", "0.0,0.0"),
+										mPrefs.getString("pref_decawave_anchor_1_latlng", "0.0,0.0"),
+										mPrefs.getString("pref_decawave_anchor_2_latlng", "0.0,0.0")};
+				}
+				else
+				{
+						anchor_strings = anchors_string.split(";");
+				}
+				double[][] anchors_latlng = new double[anchor_strings.length][];
+				for (int i = 0; i < anchor_strings.length; i++)
+				{
+						String[] chunks = anchor_strings[i].split(",");
+						anchors_latlng[i] = new double[]{Double.valueOf(chunks[0].trim()), Double.valueOf(chunks[1].trim())};
 				}
-				double[] a0_latlng = new double[]{Double.valueOf(a0_chunks[0]), Double.valueOf(a0_chunks[1])};
-				double[] a1_latlng = new double[]{Double.valueOf(a1_chunks[0]), Double.valueOf(a1_chunks[1])};
-				double[] a2_latlng = new double[]{Double.valueOf(a2_chunks[0]), Double.valueOf(a2_chunks[1])};
 				/*
-				double[] a0_latlng = new double[]{45.4033802, 10.9993635}; // origin
-				double[] a1_latlng = new double[]{45.4035170, 10.9992842}; // +x
-				double[] a2_latlng = new double[]{45.4033402, 10.9992327}; // +y
+				double[] a0_latlng = new double[]{45.4033802, 10.9993635};
+				double[] a1_latlng = new double[]{45.4035170, 10.9992842};
+				double[] a2_latlng = new double[]{45.4033402, 10.9992327};
 				*/
-				a0 = new UtmPose(a0_latlng);
-				a1 = new UtmPose(a1_latlng);
-				a2 = new UtmPose(a2_latlng);
-				d21 = new double[]{Math.sqrt(Math.pow(a1.pose.getX()-a0.pose.getX(), 2) + Math.pow(a1.pose.getY()-a0.pose.getY(), 2)), 0};
-				d31 = new double[]{0, Math.sqrt(Math.pow(a2.pose.getX()-a0.pose.getX(), 2) + Math.pow(a2.pose.getY()-a0.pose.getY(), 2))};
-
-				relative_coords_angle = Math.atan2(a1.pose.getY()-a0.pose.getY(), a1.pose.getX()-a0.pose.getX());
+				setAnchors(anchors_latlng);
 
 				// Uncomment the following to simulate decawave distance signals
 				//pool = new ScheduledThreadPoolExecutor(2);
 				//pool.scheduleAtFixedRate(new SimulatedDecawave(), 0, 100, TimeUnit.MILLISECONDS);
 		}
 
-		void newDecawaveDistances(double[] new_distances) throws Exception
+		/**
+		 * Places the anchors in a local metric frame centered on the first one, all in its UTM zone.
+		 */
+		private void setAnchors(double[][] anchors_latlng)
 		{
-				if (new_distances.length != 3) throw new Exception("Did not receive 3 distances properly");
-
-				// use median filter to estimate relative distances
-				double[] filtered_distances = elementWiseMedianFilter(new_distances);
-
-				// 2D trilateration to find relative x, y using filtered distances
-				double[] xy = trilateration(filtered_distances);
-				double x = xy[0];
-				double y = xy[1];
-				Log.d(logTag, String.format("relative x = %f, y = %f", x, y));
-
-				// transform the relative x, y into easting and northing respectively using the anchors' UtmPose values
-				double drel = Math.sqrt(Math.pow(x, 2) + Math.pow(y, 2));
-				double angle_within_relative_coords = Math.atan2(y, x);
-				double asum = LineFollowController.normalizeAngle(relative_coords_angle + angle_within_relative_coords);
-				double easting = a0.pose.getX() + drel*Math.cos(asum);
-				double northing = a0.pose.getY() + drel*Math.sin(asum);
-
-				// update the server's current pose using the estimated easting and northing
-				UtmPose pose = new UtmPose(new Pose3D(easting, northing, 0, 0, 0, 0), a0.origin);
-				Log.d(logTag, pose.toString());
-				server.filter.gpsUpdate(pose, System.currentTimeMillis());
-		}
-
-		private double[] trilateration(double[] d)
-		{
-
-				Log.v(logTag, String.format("d21 = %s", Arrays.toString(d21)));
-				Log.v(logTag, String.format("d31 = %s", Arrays.toString(d31)));
-				double d21norm = Math.sqrt(d21[0]*d21[0] + d21[1]*d21[1]);
-				double[] ex  = new double[]{d21[0]/d21norm, d21[1]/d21norm};
-				double i = ex[0]*d31[0] + ex[1]*d31[1];
-				double[] d31_min_iex = new double[]{d31[0] - i*ex[0], d31[1] - i*ex[1]};
-				double d31_min_iex_norm = Math.sqrt(d31_min_iex[0]*d31_min_iex[0] + d31_min_iex[1]*d31_min_iex[1]);
-				double[] ey = new double[]{d31_min_iex[0]/d31_min_iex_norm, d31_min_iex[1]/d31_min_iex_norm};
-				double j = ey[0]*d31[0] + ey[1]*d31[1];
-				double x = (d[0]*d[0] - d[1]*d[1] + d21norm*d21norm)/(2*d21norm);
-				double y = (d[0]*d[0] - d[2]*d[2] + i*i + j*j)/(2*j) - i/j*x;
-				return new double[]{x*ex[0] + y*ey[0], x*ex[1] + y*ey[1]};
-		}
-
-		private double median(Double[] x)
-		{
-				double[] xx = new double[x.length];
-				for (int i = 0; i < x.length; i++)
+				int n = anchors_latlng.length;
+				double[] en = new double[2];
+				zone = UtmProjection.latLongToUtm(anchors_latlng[0][0], anchors_latlng[0][1], en);
+				is_north = anchors_latlng[0][0] >= 0;
+				origin_easting = en[0];
+				origin_northing = en[1];
+				anchor_xs = new double[n];
+				anchor_ys = new double[n];
+				for (int i = 0; i < n; i++)
 				{
-						xx[i] = x[i];
+						UtmProjection.latLongToUtm(anchors_latlng[i][0], anchors_latlng[i][1], zone, is_north, en, 0);
+						anchor_xs[i] = en[0] - origin_easting;
+						anchor_ys[i] = en[1] - origin_northing;
+						Log.i(logTag, String.format("anchor %d at x = %.2f, y = %.2f", i, anchor_xs[i], anchor_ys[i]));
 				}
-				return median(xx);
+				front_end = new RangingFrontEnd(anchor_xs, anchor_ys, median_filter_length, TRILATERATION_REJECTION_RESIDUAL);
 		}
-		private double median(double[] x)
+
+		void newDecawaveDistances(double[] new_distances) throws Exception
 		{
-				double m;
-				Arrays.sort(x);
-				if (x.length % 2 == 0)
+				if (new_distances.length != anchor_xs.length)
 				{
-						m = (x[x.length/2] + x[x.length/2 - 1])/2;
+						throw new Exception(String.format("Received %d distances for %d anchors", new_distances.length, anchor_xs.length));
 				}
-				else
+
+				// predicted position from the filter, in the anchors' local frame, to gate the ranges against
+				long now = System.currentTimeMillis();
+				UtmPose predicted = server.filter.pose(now);
+				double predicted_variance = server.filter.positionVariance(now);
+				if (predicted.origin.zone != zone || predicted.origin.isNorth != is_north)
 				{
-						m = x[x.length/2];
+						predicted_variance = Double.POSITIVE_INFINITY;
 				}
-				return m;
-		}
-
-		private double[] elementWiseMedianFilter(double[] new_distances)
-		{
-
-				// TODO: keep track of last median result. If new value has jumped, throw away new value
-				if (median_filter_length <= 0) return new_distances;
+				double px = predicted.pose.getX() - origin_easting;
+				double py = predicted.pose.getY() - origin_northing;
 
-				for (int i = 0; i < 3; i++)
+				// gate, median filter and least squares over all anchors, in meters east and north of anchor 0
+				boolean fixed = front_end.update(new_distances, px, py, predicted_variance);
+				logStats(now);
+				if (!fixed)
 				{
-						if (new_distances[i] == 0.0)
-						{
-								Log.w(logTag, String.format("Rejected new distances due to a%d pure zero", i));
-								return median_histories;
-						}
+						Log.d(logTag, "No fix from this set of ranges");
+						return;
 				}
+				double x = front_end.x();
+				double y = front_end.y();
+				Log.d(logTag, String.format("relative x = %f, y = %f, %d anchors, sigma = %.3f, %.3f",
+								x, y, front_end.used(), Math.sqrt(front_end.covarianceXX()), Math.sqrt(front_end.covarianceYY())));
+
+				// update the server's current pose using the estimated easting and northing, weighted by its covariance
+				UtmPose pose = new UtmPose(new Pose3D(origin_easting + x, origin_northing + y, 0, 0, 0, 0), new Utm(zone, is_north));
+				server.filter.positionUpdate(pose, front_end.covarianceXX(), front_end.covarianceXY(), front_end.covarianceYY(), now);
+		}
 
-				/*
-				if (d1_history.size() > 5)
+		/**
+		 * Writes the gate and anchor health statistics to the vehicle log, at most once per STATS_INTERVAL_MS.
+		 */
+		private void logStats(long now)
+		{
+				if (logger == null || now - last_stats_ms < STATS_INTERVAL_MS) return;
+				last_stats_ms = now;
+				try
 				{
-						for (int i = 0; i < 3; i++)
+						JSONArray anchors = new JSONArray();
+						for (int i = 0; i < front_end.anchorCount(); i++)
 						{
-								if (Math.abs(new_distances[i] - median_histories[i]) > REJECTION_DISTANCE)
-								{
-										Log.w(logTag, String.format("Rejected new distances due to a%d large jump", i));
-										return median_histories;
-								}
+								anchors.put(new JSONObject()
+												.put("accept_rate", front_end.acceptRate(i))
+												.put("rejected", front_end.rejected(i))
+												.put("residual_mean", front_end.residualMean(i))
+												.put("residual_sigma", front_end.residualSigma(i))
+												.put("innovation", front_end.lastInnovation(i))
+												.put("healthy", front_end.isHealthy(i)));
 						}
+						logger.info(new JSONObject().put("decawave", new JSONObject()
+										.put("updates", front_end.updates())
+										.put("fixes", front_end.fixes())
+										.put("reacquisitions", front_end.reacquisitions())
+										.put("rms", front_end.meanFixRms())
+										.put("anchors", anchors)));
 				}
-				*/
-
-				// push in new value to static lists
-				// check size of dX_history objects against median filter length
-				// if larger than filter length, remove oldest
-				d1_history.add(new_distances[0]);
-				d2_history.add(new_distances[1]);
-				d3_history.add(new_distances[2]);
-				if (d1_history.size() > median_filter_length) d1_history.remove(0);
-				if (d2_history.size() > median_filter_length) d2_history.remove(0);
-				if (d3_history.size() > median_filter_length) d3_history.remove(0);
-
-				// calculate median of dX_history object
-				Double[][] histories = new Double[][]{d1_history.toArray(new Double[0]),
-																							d2_history.toArray(new Double[0]),
-																							d3_history.toArray(new Double[0])};
-				double[] m = new double[3];
-				for (int i = 0; i < 3; i++)
+				catch (JSONException e)
 				{
-						m[i] = median(histories[i]);
-						median_histories[i] = m[i];
+						Log.w(logTag, "Failed to log ranging statistics.", e);
 				}
-
-				// return double[] of filtered d1, d2, d3
-				Log.d("decawave", String.format("filtered = %f, %f, %f", m[0], m[1], m[2]));
-				return m;
 		}
 
 		class SimulatedDecawave implements Runnable
 		{
-				double x1 = d21[0];
-				double y2 = d31[1];
 				double x = 0; // relative x
 				double y = 0; // relative y
-				double d1 = Math.sqrt(x*x + y*y);
-				double d2 = Math.sqrt((x1-x)*(x1-x) + y*y);
-				double d3 = Math.sqrt(x*x + (y2-y)*(y2-y));
+				double[] d = new double[anchor_xs.length];
 				long t0 = System.currentTimeMillis();
 				Random gen = new Random();
 				@Override
@@ -217,20 +186,21 @@ class Decawave
 				{
 						x = 5 + 2.5*Math.cos((System.currentTimeMillis()-t0)/1000./2.);
 						y = 5 + 2.5*Math.sin((System.currentTimeMillis()-t0)/1000./2.);
-						d1 = Math.sqrt(x*x + y*y) + gen.nextFloat()-0.5;
-						d2 = Math.sqrt((x1-x)*(x1-x) + y*y) + gen.nextFloat()-0.5;
-						d3 = Math.sqrt(x*x + (y2-y)*(y2-y)) + gen.nextFloat()-0.5;
+						for (int i = 0; i < d.length; i++)
+						{
+								d[i] = Math.sqrt((anchor_xs[i]-x)*(anchor_xs[i]-x) + (anchor_ys[i]-y)*(anchor_ys[i]-y)) + gen.nextFloat()-0.5;
+						}
 						/*
 						if (gen.nextFloat() < 0.25)
 						{
 								// randomly horrible jump in value
 								Log.w(logTag, "RANDOMLY HORRIBLE DISTANCE SIGNAL");
-								d2 = 0.0;
+								d[1] = 0.0;
 						}
 						*/
 						try
 						{
-								newDecawaveDistances(new double[]{d1, d2, d3});
+								newDecawaveDistances(d);
 						}
 						catch (Exception e)
 						{
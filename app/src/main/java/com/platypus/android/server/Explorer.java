@@ -0,0 +1,254 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.DataType;
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * Picks exploration waypoints from the on-board sensor map of one data type.
+ * <p/>
+ * The search area is a circle of radius meters around the first pose the explorer sees, and
+ * the candidates are the centers of the map cells inside it. A spec gives the data type, the
+ * strategy and the radius:
+ * <pre>
+ *     EC_GOSYS uncertainty 100
+ *     DO_GOSYS gradient 150
+ * </pre>
+ * Uncertainty scores a cell by prior/(1 + count) + variance/count, where the prior is the
+ * largest cell variance found in the previous sweep, so unvisited cells come first and then
+ * the noisiest ones. Gradient scores a cell by the gradient magnitude of the map there, and
+ * falls back to uncertainty while the map is still flat. Both divide the score by
+ * 1 + distance/radius, so of two similar cells the nearer one wins.
+ * <p/>
+ * Cells closer than MIN_SPACING_M to the boat, to an earlier target or to a sample in the
+ * shared SampleIndex are skipped. The candidates are scanned a few per tick() on the update
+ * thread, so a tick costs at most budget cell lookups however large the area is. A finished
+ * sweep publishes its best cell as the target, which nextTarget() hands out once, and only
+ * while the boat is not navigating, so exploration goes one waypoint at a time. The
+ * explorer stays in the UTM zone of its first pose and ignores poses and map layers in any
+ * other zone.
+ */
+final class Explorer
+{
+		enum Strategy
+		{
+				UNCERTAINTY, GRADIENT;
+
+				static Strategy fromString(String s)
+				{
+						for (Strategy strategy : values())
+						{
+								if (strategy.name().equalsIgnoreCase(s)) return strategy;
+						}
+						throw new IllegalArgumentException("Unknown exploration strategy: " + s);
+				}
+		}
+
+		static final double MIN_SPACING_M = 10.0;
+		static final int CANDIDATES_PER_TICK = 64;
+
+		private final SensorMaps maps;
+		private final DataType type;
+		private final Strategy strategy;
+		private final double radius;
+		private final int budget;
+		private final double step;
+		private final SampleIndex samples;
+		private final SampleIndex targets = new SampleIndex(MIN_SPACING_M);
+
+		// frame and search area, fixed by the first pose
+		private int zone = -1;
+		private boolean is_north;
+		private double anchor_e, anchor_n;
+		private long first_cx, first_cy;
+		private final int side;
+
+		// the sweep in progress
+		private int cursor = 0;
+		private SensorMap layer;
+		private double boat_e, boat_n;
+		private double best_score, best_e, best_n;
+		private double flat_score, flat_e, flat_n;
+		private double max_variance;
+		private double prior_variance = 1.0;
+
+		// result of the last sweep
+		private boolean has_target = false;
+		private double target_e, target_n;
+		private long sweeps = 0;
+		private long evaluated = 0;
+
+		/**
+		 * @param samples places where the sampler already ran, also avoided by exploration
+		 * @param budget  most candidate cells looked at per tick
+		 */
+		Explorer(SensorMaps _maps, DataType _type, Strategy _strategy, double _radius, int _budget, SampleIndex _samples)
+		{
+				if (_radius <= 0) throw new IllegalArgumentException("Exploration radius must be positive");
+				if (_budget < 1) throw new IllegalArgumentException("Exploration needs at least one candidate per tick");
+				maps = _maps;
+				type = _type;
+				strategy = _strategy;
+				radius = _radius;
+				budget = _budget;
+				samples = _samples;
+				step = maps.cellSize();
+				side = 2*(int)Math.ceil(radius/step) + 1;
+		}
+
+		/**
+		 * Parses "type strategy radius" as described above.
+		 */
+		static Explorer parse(String spec, SensorMaps maps, SampleIndex samples)
+		{
+				String[] parts = spec == null ? new String[0] : spec.trim().split("\\s+");
+				if (parts.length != 3)
+				{
+						throw new IllegalArgumentException("Exploration needs a data type, a strategy and a radius: " + spec);
+				}
+				DataType type;
+				double radius;
+				try
+				{
+						type = DataType.valueOf(parts[0].toUpperCase());
+						radius = Double.parseDouble(parts[2]);
+				}
+				catch (IllegalArgumentException e)
+				{
+						throw new IllegalArgumentException("Malformed exploration spec: " + spec);
+				}
+				return new Explorer(maps, type, Strategy.fromString(parts[1]), radius, CANDIDATES_PER_TICK, samples);
+		}
+
+		DataType type() { return type; }
+		Strategy strategy() { return strategy; }
+		synchronized long sweeps() { return sweeps; }
+		synchronized long evaluated() { return evaluated; }
+		synchronized boolean hasTarget() { return has_target; }
+
+		/**
+		 * Cells in one sweep, inside the search area or not.
+		 */
+		int candidates() { return side*side; }
+
+		/**
+		 * Looks at the next few candidates, and publishes a target when the sweep is done.
+		 */
+		synchronized void tick(UtmPose pose)
+		{
+				if (zone < 0)
+				{
+						zone = pose.origin.zone;
+						is_north = pose.origin.isNorth;
+						anchor_e = pose.pose.getX();
+						anchor_n = pose.pose.getY();
+						first_cx = (long)Math.floor(anchor_e/step) - side/2;
+						first_cy = (long)Math.floor(anchor_n/step) - side/2;
+				}
+				else if (pose.origin.zone != zone || pose.origin.isNorth != is_north)
+				{
+						return;
+				}
+
+				if (cursor == 0) startSweep(pose);
+				int end = Math.min(cursor + budget, side*side);
+				evaluated += end - cursor;
+				for (; cursor < end; cursor++) evaluate(cursor);
+				if (cursor == side*side) finishSweep();
+		}
+
+		/**
+		 * Hands out the target of the last sweep and keeps later targets away from it.
+		 *
+		 * @param latlng     receives {latitude, longitude}
+		 * @param navigating whether the boat is still following waypoints, e.g. toward the last
+		 *                   target; the new target then waits until it is done
+		 * @return false if there is no new target since the last call, or the boat is navigating
+		 */
+		synchronized boolean nextTarget(double[] latlng, boolean navigating)
+		{
+				if (!has_target || navigating) return false;
+				UtmProjection.utmToLatLong(target_e, target_n, zone, is_north, latlng, 0);
+				targets.add(target_e, target_n);
+				has_target = false;
+				cursor = 0; // the sweep in progress does not know about this target
+				return true;
+		}
+
+		/**
+		 * Derives the plan of the next exploration leg, which holds only the new target. Earlier
+		 * targets were reached by the legs that went to them, so the plan is replaced, not extended.
+		 *
+		 * @param plan       the current waypoint plan
+		 * @param navigating as for nextTarget()
+		 * @return the plan to swap in, or null if there is no new target or the boat is navigating
+		 */
+		WaypointPlan nextLeg(WaypointPlan plan, boolean navigating)
+		{
+				double[] latlng = new double[2];
+				if (!nextTarget(latlng, navigating)) return null;
+				return plan.replace(new double[][]{latlng});
+		}
+
+		private void startSweep(UtmPose pose)
+		{
+				boat_e = pose.pose.getX();
+				boat_n = pose.pose.getY();
+				layer = maps.get(type);
+				if (layer != null && (!layer.hasZone() || layer.zone() != zone || layer.isNorth() != is_north)) layer = null;
+				best_score = flat_score = -1;
+				max_variance = 0;
+		}
+
+		private void evaluate(int index)
+		{
+				double e = (first_cx + index%side + 0.5)*step;
+				double n = (first_cy + index/side + 0.5)*step;
+				double ax = e - anchor_e, ay = n - anchor_n;
+				if (ax*ax + ay*ay > radius*radius) return;
+				double bx = e - boat_e, by = n - boat_n;
+				double distance = Math.sqrt(bx*bx + by*by);
+				if (distance < MIN_SPACING_M) return;
+				if (targets.isCrowded(e, n) || samples.isCrowded(e, n)) return;
+
+				int count = layer == null ? 0 : layer.count(e, n);
+				double variance = count > 1 ? layer.variance(e, n) : 0.0;
+				if (variance > max_variance) max_variance = variance;
+				double discount = 1 + distance/radius;
+				double uncertainty = (prior_variance/(1 + count) + (count > 1 ? variance/count : 0.0))/discount;
+				if (uncertainty > flat_score)
+				{
+						flat_score = uncertainty;
+						flat_e = e;
+						flat_n = n;
+				}
+				if (strategy != Strategy.GRADIENT || layer == null) return;
+
+				double gradient = layer.gradientMagnitude(e, n);
+				if (Double.isNaN(gradient) || gradient <= 0) return;
+				if (gradient/discount > best_score)
+				{
+						best_score = gradient/discount;
+						best_e = e;
+						best_n = n;
+				}
+		}
+
+		private void finishSweep()
+		{
+				if (best_score > 0)
+				{
+						target_e = best_e;
+						target_n = best_n;
+				}
+				else if (flat_score > 0)
+				{
+						target_e = flat_e;
+						target_n = flat_n;
+				}
+				has_target = best_score > 0 || flat_score > 0;
+				if (max_variance > 0) prior_variance = max_variance;
+				layer = null;
+				sweeps++;
+				cursor = 0;
+		}
+}
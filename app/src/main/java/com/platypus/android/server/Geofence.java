@@ -0,0 +1,109 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * A named keep-in or keep-out zone made of one or more polygons.
+ * <p/>
+ * Polygons are given as {latitude, longitude} rings and combined with the even-odd rule, so a
+ * ring inside another one cuts a hole (e.g. an island in a keep-in lake) and disjoint rings make
+ * a multi-polygon. The rings are projected once into the UTM zone of the first vertex, relative
+ * to that vertex to keep full precision, and indexed with a {@link PolygonIndex}.
+ */
+final class Geofence
+{
+		enum Kind
+		{
+				KEEP_IN("keep_in"),
+				KEEP_OUT("keep_out");
+
+				final String name;
+
+				Kind(String s)
+				{
+						name = s;
+				}
+
+				static Kind fromString(String s)
+				{
+						for (Kind kind : values())
+						{
+								if (kind.name.equals(s)) return kind;
+						}
+						throw new IllegalArgumentException(String.format("Unknown geofence kind \"%s\"", s));
+				}
+		}
+
+		private final String name;
+		private final Kind kind;
+		private final int zone;
+		private final boolean is_north;
+		private final double origin_e, origin_n;
+		private final PolygonIndex index;
+
+		/**
+		 * @param polygons rings of {latitude, longitude} vertices
+		 */
+		Geofence(String _name, Kind _kind, double[][][] polygons)
+		{
+				if (polygons.length == 0 || polygons[0].length == 0)
+				{
+						throw new IllegalArgumentException(String.format("Geofence %s has no vertices", _name));
+				}
+				name = _name;
+				kind = _kind;
+				double[] en = new double[2];
+				zone = UtmProjection.latLongToUtm(polygons[0][0][0], polygons[0][0][1], en);
+				is_north = polygons[0][0][0] >= 0;
+				origin_e = en[0];
+				origin_n = en[1];
+				double[][] rings = new double[polygons.length][];
+				for (int r = 0; r < polygons.length; r++)
+				{
+						double[][] polygon = polygons[r];
+						rings[r] = new double[2*polygon.length];
+						for (int i = 0; i < polygon.length; i++)
+						{
+								UtmProjection.latLongToUtm(polygon[i][0], polygon[i][1], zone, is_north, en, 0);
+								rings[r][2*i] = en[0] - origin_e;
+								rings[r][2*i + 1] = en[1] - origin_n;
+						}
+				}
+				index = new PolygonIndex(rings);
+		}
+
+		String name() { return name; }
+		Kind kind() { return kind; }
+		PolygonIndex index() { return index; }
+
+		/**
+		 * @return true if the UTM position, in this fence's zone, is inside the fence
+		 */
+		boolean contains(double easting, double northing)
+		{
+				return index.contains(easting - origin_e, northing - origin_n);
+		}
+
+		/**
+		 * @return true if the pose is inside the fence, reprojecting it if it is in another UTM zone
+		 */
+		boolean contains(UtmPose pose)
+		{
+				if (pose.origin.zone == zone && pose.origin.isNorth == is_north)
+				{
+						return contains(pose.pose.getX(), pose.pose.getY());
+				}
+				double[] latlng = new double[2];
+				UtmProjection.utmToLatLong(pose.pose.getX(), pose.pose.getY(), pose.origin.zone, pose.origin.isNorth, latlng, 0);
+				UtmProjection.latLongToUtm(latlng[0], latlng[1], zone, is_north, latlng, 0);
+				return contains(latlng[0], latlng[1]);
+		}
+
+		/**
+		 * @return true if a vehicle at the pose breaks this fence: outside a keep-in, or inside a keep-out
+		 */
+		boolean isViolatedBy(UtmPose pose)
+		{
+				return contains(pose) != (kind == Kind.KEEP_IN);
+		}
+}
@@ -0,0 +1,169 @@
+package com.platypus.android.server;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of node ids with decrease-key, positions are tracked per node.
+ * <p/>
+ * Keys are compared lexicographically as (key, tie), which is what D* Lite needs. Planners that
+ * only have one key use the single key methods and leave the tie at zero.
+ */
+final class IndexedMinHeap
+{
+		private int[] heap = new int[0];
+		private double[] keys = new double[0];
+		private double[] ties = new double[0];
+		private int[] position = new int[0]; // -1 if not in the heap
+		private int size = 0;
+
+		/**
+		 * Empties the heap and makes room for node ids 0 .. n - 1.
+		 */
+		void reset(int n)
+		{
+				if (position.length < n)
+				{
+						int capacity = Math.max(n, 2*position.length);
+						heap = new int[capacity];
+						keys = new double[capacity];
+						ties = new double[capacity];
+						position = new int[capacity];
+						Arrays.fill(position, -1);
+				}
+				else
+				{
+						for (int i = 0; i < size; i++) position[heap[i]] = -1;
+				}
+				size = 0;
+		}
+
+		/**
+		 * Makes room for node ids 0 .. n - 1 while keeping the current contents.
+		 */
+		void ensureCapacity(int n)
+		{
+				if (position.length >= n) return;
+				int capacity = Math.max(n, 2*position.length);
+				int old_length = position.length;
+				heap = Arrays.copyOf(heap, capacity);
+				keys = Arrays.copyOf(keys, capacity);
+				ties = Arrays.copyOf(ties, capacity);
+				position = Arrays.copyOf(position, capacity);
+				Arrays.fill(position, old_length, capacity, -1);
+		}
+
+		boolean isEmpty() { return size == 0; }
+		int size() { return size; }
+		boolean contains(int node) { return position[node] >= 0; }
+		double key(int node) { return keys[node]; }
+		double tie(int node) { return ties[node]; }
+		int peek() { return heap[0]; }
+
+		void push(int node, double key)
+		{
+				push(node, key, 0.0);
+		}
+
+		void push(int node, double key, double tie)
+		{
+				keys[node] = key;
+				ties[node] = tie;
+				heap[size] = node;
+				position[node] = size;
+				siftUp(size++);
+		}
+
+		void decrease(int node, double key)
+		{
+				keys[node] = key;
+				siftUp(position[node]);
+		}
+
+		/**
+		 * Changes the key of a node already in the heap in either direction.
+		 */
+		void update(int node, double key)
+		{
+				update(node, key, ties[node]);
+		}
+
+		void update(int node, double key, double tie)
+		{
+				boolean smaller = less(key, tie, keys[node], ties[node]);
+				keys[node] = key;
+				ties[node] = tie;
+				if (smaller) siftUp(position[node]);
+				else siftDown(position[node]);
+		}
+
+		void remove(int node)
+		{
+				int i = position[node];
+				position[node] = -1;
+				size--;
+				if (i == size) return;
+				int last = heap[size];
+				heap[i] = last;
+				position[last] = i;
+				siftUp(i);
+				siftDown(position[last]);
+		}
+
+		int pop()
+		{
+				int top = heap[0];
+				position[top] = -1;
+				size--;
+				if (size > 0)
+				{
+						heap[0] = heap[size];
+						position[heap[0]] = 0;
+						siftDown(0);
+				}
+				return top;
+		}
+
+		static boolean less(double key_a, double tie_a, double key_b, double tie_b)
+		{
+				return key_a < key_b || (key_a == key_b && tie_a < tie_b);
+		}
+
+		private boolean less(int node_a, int node_b)
+		{
+				return less(keys[node_a], ties[node_a], keys[node_b], ties[node_b]);
+		}
+
+		private void siftUp(int i)
+		{
+				int node = heap[i];
+				while (i > 0)
+				{
+						int p = (i - 1) >>> 1;
+						int parent_node = heap[p];
+						if (!less(node, parent_node)) break;
+						heap[i] = parent_node;
+						position[parent_node] = i;
+						i = p;
+				}
+				heap[i] = node;
+				position[node] = i;
+		}
+
+		private void siftDown(int i)
+		{
+				int node = heap[i];
+				int half = size >>> 1;
+				while (i < half)
+				{
+						int c = 2*i + 1;
+						int r = c + 1;
+						if (r < size && less(heap[r], heap[c])) c = r;
+						if (!less(heap[c], node)) break;
+						heap[i] = heap[c];
+						position[heap[i]] = i;
+						i = c;
+				}
+				heap[i] = node;
+				position[node] = i;
+		}
+}
@@ -0,0 +1,89 @@
+package com.platypus.android.server;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size log-linear histogram of durations.
+ * <p/>
+ * Values are kept in microseconds: below 16 us every value has its own bucket, above that every
+ * power of two is split into 16 buckets, so a reported percentile is within about 6% of the true
+ * value. Recording never allocates. One thread should record, other threads may read the
+ * statistics at any time and will see a slightly stale but usable picture.
+ */
+final class LatencyHistogram
+{
+		private static final int SUB_BUCKET_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		// up to 2^40 us, about 12 days
+		private static final int BUCKETS = SUB_BUCKETS + (40 - SUB_BUCKET_BITS)*SUB_BUCKETS;
+
+		private final long[] counts = new long[BUCKETS];
+		private long count = 0;
+		private long total_us = 0;
+		private long max_us = 0;
+
+		void record(long nanos)
+		{
+				long us = nanos < 0 ? 0 : nanos/1000;
+				counts[bucketOf(us)]++;
+				count++;
+				total_us += us;
+				if (us > max_us) max_us = us;
+		}
+
+		long count() { return count; }
+
+		long maxMicros() { return max_us; }
+
+		double meanMicros() { return count == 0 ? 0.0 : (double)total_us/count; }
+
+		/**
+		 * @param fraction between 0 and 1, e.g. 0.99
+		 * @return the upper bound in microseconds of the bucket holding that fraction of the values
+		 */
+		long percentileMicros(double fraction)
+		{
+				if (count == 0) return 0;
+				long rank = (long)Math.ceil(fraction*count);
+				if (rank < 1) rank = 1;
+				long seen = 0;
+				for (int i = 0; i < BUCKETS; i++)
+				{
+						seen += counts[i];
+						if (seen >= rank) return Math.min(upperBoundOf(i), max_us);
+				}
+				return max_us;
+		}
+
+		void reset()
+		{
+				Arrays.fill(counts, 0);
+				count = 0;
+				total_us = 0;
+				max_us = 0;
+		}
+
+		@Override
+		public String toString()
+		{
+				return String.format("n = %d, mean = %.0f us, p50 = %d us, p99 = %d us, max = %d us",
+								count, meanMicros(), percentileMicros(0.5), percentileMicros(0.99), max_us);
+		}
+
+		static int bucketOf(long us)
+		{
+				if (us < SUB_BUCKETS) return (int)us;
+				int exponent = 63 - Long.numberOfLeadingZeros(us);
+				int shift = exponent - SUB_BUCKET_BITS;
+				int index = SUB_BUCKETS + shift*SUB_BUCKETS + (int)(us >>> shift) - SUB_BUCKETS;
+				return Math.min(index, BUCKETS - 1);
+		}
+
+		static long upperBoundOf(int bucket)
+		{
+				if (bucket < SUB_BUCKETS) return bucket;
+				int shift = (bucket - SUB_BUCKETS)/SUB_BUCKETS;
+				long sub = (bucket - SUB_BUCKETS)%SUB_BUCKETS + SUB_BUCKETS;
+				return ((sub + 1) << shift) - 1;
+		}
+}
@@ -8,14 +8,22 @@ import com.platypus.crw.data.Twist;
 import com.platypus.crw.data.UtmPose;
 import com.platypus.crw.data.Pose3D;
 
+import java.util.Arrays;
+
 class LineFollowController implements VehicleController {
 
-    private int last_wp_index = -2;
-    private Pose3D source_pose;
-    private Pose3D destination_pose;
-    private Pose3D current_pose;
-    private Pose3D original_pose;
-    private boolean original_pose_set = false;
+    // The path being tracked runs from the source (the previous waypoint, or where the boat was
+    // when navigation started) through the current waypoint and on to the next waypoint that has
+    // a station keep time, or the last waypoint. Waypoints in between are passed without stopping.
+    private PolylineTracker tracker;
+    private int first_wp_index = -1; // waypoint index of tracker vertex 1
+    private int expected_wp_index = -2; // waypoint index this controller last saw or set
+    private long plan_version = -1; // version of the waypoint plan the path was built from
+    private double[] span_x = new double[16];
+    private double[] span_y = new double[16];
+    private final double[] utm = new double[2];
+    private final double[] lookahead_point = new double[2];
+
     private long station_keep_time_ms = 0;
     private long start_time = 0;
     private long elapsed_time = 0;
@@ -30,14 +38,9 @@ class LineFollowController implements VehicleController {
     private double[] thrust_pids;
     private double base_thrust, thrust_coefficient;
 
-    private double x_dest, x_source, x_current, y_dest, y_source, y_current, th_full, th_current;
-    private double x_projected, y_projected, x_lookahead, y_lookahead;
-    private double dx_current, dx_full, dy_current, dy_full, L_current, L_full, dth;
-    private double L_projected, distance_from_ideal_line;
-    private double dx_lookahead, dy_lookahead;
+    private double x_current, y_current, dx_end, dy_end;
     private double heading_desired, heading_current, heading_error;
-    private double heading_error_deriv, heading_signal;
-    private double thrust_signal, angle_from_projected_to_boat, cross_product;
+    private double heading_error_deriv, heading_signal, thrust_signal;
 
     @Override
     public void update(VehicleServer server, double dt)
@@ -48,62 +51,40 @@ class LineFollowController implements VehicleController {
 
         // Get the position of the vehicle
         UtmPose state = server.getPose();
-        current_pose = state.pose;
-
-        if (!original_pose_set)
-        {
-            original_pose = current_pose.clone();
-            original_pose_set = true;
-        }
-
+        x_current = state.pose.getX();
+        y_current = state.pose.getY();
 
+        // read the plan before the index, an edit publishes the plan first
+        WaypointPlan plan = server_impl.getWaypointPlan();
         int current_wp_index = server_impl.getCurrentWaypointIndex();
         if (current_wp_index < 0)
         {
             server.setVelocity(twist);
             return;
         }
-        if (last_wp_index != current_wp_index)
+        if (current_wp_index != expected_wp_index || plan.version() != plan_version)
         {
-            heading_error_accum = 0.0; // reset any integral terms
-            last_wp_index = current_wp_index;
-
-            // TODO: set station_keep_time_ms to the requested station keep time
-            station_keep_time_ms = server_impl.getCurrentWaypointKeepTime();
-            Log.v("AP", String.format("new station keep time = %d ms", station_keep_time_ms));
-
-            double[] destination = server_impl.getCurrentWaypoint();
-            if (destination == null)
+            // new waypoints, an inserted waypoint, or the end of a station keep
+            if (!buildPath(plan, state, current_wp_index))
             {
                 server.setVelocity(twist);
                 return;
             }
-            UtmPose destination_UtmPose = new UtmPose(destination);
-            destination_pose = destination_UtmPose.pose;
-
-            if (current_wp_index == 0)
-            {
-                source_pose = current_pose.clone();
-            }
-            else
-            {
-                double[] source = server_impl.getSpecificWaypoint(current_wp_index-1);
-                UtmPose source_UtmPose = new UtmPose(source);
-                source_pose = source_UtmPose.pose;
-            }
+        }
 
-            x_dest = destination_pose.getX() - original_pose.getX();
-            y_dest = destination_pose.getY() - original_pose.getY();
-            x_source = source_pose.getX() - original_pose.getX();
-            y_source = source_pose.getY() - original_pose.getY();
-            dx_full = x_dest - x_source;
-            dy_full = y_dest - y_source;
-            th_full = Math.atan2(dy_full, dx_full);
-            L_full = Math.sqrt(Math.pow(dx_full, 2.) + Math.pow(dy_full, 2.));
+        tracker.project(x_current, y_current);
+        // waypoints the boat has passed on the way count as reached
+        while (expected_wp_index < first_wp_index + tracker.segment())
+        {
+            server_impl.incrementWaypointIndex();
+            expected_wp_index++;
         }
 
-        double distanceSq = planarDistanceSq(current_pose, destination_pose);
-        if (distanceSq < SUFFICIENT_PROXIMITY*SUFFICIENT_PROXIMITY)
+        int last_vertex = tracker.segmentCount();
+        dx_end = tracker.vertexX(last_vertex) - x_current;
+        dy_end = tracker.vertexY(last_vertex) - y_current;
+        if (expected_wp_index == first_wp_index + last_vertex - 1
+                && dx_end*dx_end + dy_end*dy_end < SUFFICIENT_PROXIMITY*SUFFICIENT_PROXIMITY)
         {
             // check if there is a station keep time associated with the current waypoint
             // if there is, do NOT increment the index until that amount of time has expired
@@ -124,84 +105,125 @@ class LineFollowController implements VehicleController {
                     server_impl.incrementWaypointIndex();
                 }
             }
+            return;
         }
-        else
+
+        heading_current = state.pose.getRotation().toYaw();
+        lookahead = LOOKAHEAD_DISTANCE_BASE*(1. - Math.tanh(0.2*Math.abs(tracker.crossTrackError())));
+        tracker.lookahead(lookahead, lookahead_point);
+        heading_desired = Math.atan2(lookahead_point[1] - y_current, lookahead_point[0] - x_current);
+        heading_error = normalizeAngle(heading_desired - heading_current);
+
+        // PID
+        rudder_pids = server_impl.getGains(5);
+        heading_error_deriv = (heading_error - heading_error_old)/dt;
+        Log.v("gyro", String.format("heading error rate = %.2f  rev./sec", heading_error_deriv/2/Math.PI));
+        double[] gyro = server_impl.getGyro(); // gyro[2] is yaw rate
+        if (rudder_pids[1] > 0.0)
         {
-            x_current = current_pose.getX() - original_pose.getX();
-            y_current = current_pose.getY() - original_pose.getY();
-            heading_current = current_pose.getRotation().toYaw();
-            dx_current = x_current - x_source;
-            dy_current = y_current - y_source;
-            L_current = Math.sqrt(Math.pow(dx_current, 2.) + Math.pow(dy_current, 2.));
-            th_current = Math.atan2(dy_current, dx_current);
-            dth = normalizeAngle(th_full - th_current);
-            L_projected = L_current*Math.cos(dth);
-            distance_from_ideal_line = L_current*Math.sin(dth);
-            x_projected = x_source + L_projected*Math.cos(th_full);
-            y_projected = y_source + L_projected*Math.sin(th_full);
-            lookahead = LOOKAHEAD_DISTANCE_BASE*(1. - Math.tanh(0.2*Math.abs(distance_from_ideal_line)));
-            x_lookahead = x_projected + lookahead*Math.cos(th_full);
-            y_lookahead = y_projected + lookahead*Math.sin(th_full);
-            if (L_projected + lookahead > L_full)
-            {
-                x_lookahead = x_dest;
-                y_lookahead = y_dest;
-            }
-            dx_lookahead = x_lookahead - x_current;
-            dy_lookahead = y_lookahead - y_current;
-            heading_desired = Math.atan2(dy_lookahead, dx_lookahead);
-            heading_error = normalizeAngle(heading_desired - heading_current);
-
-            // PID
-            rudder_pids = server_impl.getGains(5);
-            heading_error_deriv = (heading_error - heading_error_old)/dt;
-            Log.v("gyro", String.format("heading error rate = %.2f  rev./sec", heading_error_deriv/2/Math.PI));
-            double[] gyro = server_impl.getGyro(); // gyro[2] is yaw rate
-            if (rudder_pids[1] > 0.0)
-            {
-                heading_error_accum += dt*heading_error;
-            }
-            heading_error_old = heading_error;
+            heading_error_accum += dt*heading_error;
+        }
+        heading_error_old = heading_error;
+
+        // we only want derivative action when error is low
+        double error_envelope = 1.0 - Math.min(1.0, Math.abs(heading_error/(Math.PI/2.)));
+        // error_envelope is small when heading error approaches 90 degrees or more, i.e. derivative term is small
+        // error_envelope approaches 1 when heading error approaches 0, so drastic derivative terms can take arresting action
+
+        heading_signal = rudder_pids[0]*heading_error
+                + -1*rudder_pids[2]*gyro[2]*error_envelope;
+                // + rudder_pids[1]*heading_error_accum
+                //+ rudder_pids[2]*heading_error_deriv;
 
-            // we only want derivative action when error is low
-            double error_envelope = 1.0 - Math.min(1.0, Math.abs(heading_error/(Math.PI/2.)));
-            // error_envelope is small when heading error approaches 90 degrees or more, i.e. derivative term is small
-            // error_envelope approaches 1 when heading error approaches 0, so drastic derivative terms can take arresting action
+        if (Math.abs(heading_signal) > 1.0)
+        {
+            heading_signal = Math.copySign(1.0, heading_signal);
+        }
 
-            heading_signal = rudder_pids[0]*heading_error
-                    + -1*rudder_pids[2]*gyro[2]*error_envelope;
-                    // + rudder_pids[1]*heading_error_accum
-                    //+ rudder_pids[2]*heading_error_deriv;
+        // thrust
+        thrust_pids = server_impl.getGains(0);
+        base_thrust = thrust_pids[0];
+        thrust_coefficient = 1.0;
 
-            if (Math.abs(heading_signal) > 1.0)
+        // check vehicle type. Modify turning in place behavior.
+        if (!vehicle_type.equals("VECTORED"))
+        {
+            // propboats should turn in place if they are off by more than 45 degrees
+            if (Math.abs(heading_error) > Math.PI/4.)
             {
-                heading_signal = Math.copySign(1.0, heading_signal);
+                thrust_coefficient = 0.0;
             }
+        }
+        thrust_signal = thrust_coefficient*base_thrust;
 
-            // thrust
-            thrust_pids = server_impl.getGains(0);
-            base_thrust = thrust_pids[0];
-            angle_from_projected_to_boat = Math.atan2(y_projected - y_current,
-                    x_projected - x_current);
-            cross_product = Math.cos(th_full)*Math.sin(angle_from_projected_to_boat) -
-                    Math.cos(angle_from_projected_to_boat)*Math.sin(th_full);
-            thrust_coefficient = 1.0;
-
-            // check vehicle type. Modify turning in place behavior.
-            if (!vehicle_type.equals("VECTORED"))
+        twist.dx(thrust_signal);
+        twist.drz(heading_signal);
+        server.setVelocity(twist);
+    }
+
+    /**
+     * Builds the tracked path starting at the given waypoint index, in the boat's UTM zone.
+     * If only the plan changed, e.g. more waypoints of a mission arrived, a station keep at an
+     * unchanged end point carries on.
+     *
+     * @return false if there is no such waypoint
+     */
+    private boolean buildPath(WaypointPlan plan, UtmPose state, int wp_index)
+    {
+        if (wp_index < plan.first() || wp_index >= plan.end()) return false;
+        int zone = state.origin.zone;
+        boolean is_north = state.origin.isNorth;
+        boolean same_waypoint = tracker != null && wp_index == expected_wp_index;
+        double old_end_x = same_waypoint ? tracker.vertexX(tracker.segmentCount()) : Double.NaN;
+        double old_end_y = same_waypoint ? tracker.vertexY(tracker.segmentCount()) : Double.NaN;
+
+        if (wp_index - 1 < plan.first())
+        {
+            span_x[0] = x_current;
+            span_y[0] = y_current;
+        }
+        else
+        {
+            UtmProjection.latLongToUtm(plan.latitude(wp_index - 1), plan.longitude(wp_index - 1),
+                    zone, is_north, utm, 0);
+            span_x[0] = utm[0];
+            span_y[0] = utm[1];
+        }
+        int count = 1;
+        station_keep_time_ms = 0;
+        for (int i = wp_index; i < plan.end(); i++)
+        {
+            if (count == span_x.length)
             {
-                // propboats should turn in place if they are off by more than 45 degrees
-                if (Math.abs(heading_error) * 180. / Math.PI > 45.0)
-                {
-                    thrust_coefficient = 0.0;
-                }
+                span_x = Arrays.copyOf(span_x, 2*count);
+                span_y = Arrays.copyOf(span_y, 2*count);
             }
-            thrust_signal = thrust_coefficient*base_thrust;
-
-            twist.dx(thrust_signal);
-            twist.drz(heading_signal);
-            server.setVelocity(twist);
+            UtmProjection.latLongToUtm(plan.latitude(i), plan.longitude(i), zone, is_north, utm, 0);
+            span_x[count] = utm[0];
+            span_y[count] = utm[1];
+            count++;
+            if (plan.keepTime(i) > 0)
+            {
+                station_keep_time_ms = plan.keepTime(i);
+                break;
+            }
+        }
+        Log.v("AP", String.format("Tracking %d waypoints from index %d, station keep time = %d ms",
+                count - 1, wp_index, station_keep_time_ms));
+
+        tracker = new PolylineTracker(span_x, span_y, count);
+        first_wp_index = wp_index;
+        expected_wp_index = wp_index;
+        plan_version = plan.version();
+        if (!same_waypoint)
+        {
+            heading_error_accum = 0.0; // reset any integral terms
+        }
+        if (!same_waypoint || span_x[count - 1] != old_end_x || span_y[count - 1] != old_end_y)
+        {
+            station_keeping = false;
         }
+        return true;
     }
 
     /**
@@ -0,0 +1,29 @@
+package com.platypus.android.server;
+
+import java.io.IOException;
+
+/**
+ * Where the navigation loop pulls the waypoints of a mission from, a window at a time, so the
+ * whole mission never has to be in memory. Reads come from the navigation loop in index order.
+ */
+interface MissionSource
+{
+		/**
+		 * Name of the mission for the vehicle log, e.g. the file holding it.
+		 */
+		String name();
+
+		/**
+		 * Number of waypoints available so far.
+		 */
+		int size();
+
+		/**
+		 * Reads up to max waypoints starting at index into the arrays.
+		 *
+		 * @return the number of waypoints read
+		 */
+		int read(int index, int max, double[] latitudes, double[] longitudes, long[] keep_times_ms) throws IOException;
+
+		void close();
+}
@@ -0,0 +1,136 @@
+package com.platypus.android.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only on-disk buffer of the waypoints of one mission, so a survey is limited by storage
+ * rather than by the heap or the size of a single request.
+ * <p/>
+ * Layout: a fixed header (magic, version) followed by one 24 byte record {latitude, longitude,
+ * station keep time in ms} per waypoint, in mission order. Pages are appended as they arrive and
+ * read back a window at a time through one reusable buffer. The file only lives as long as the
+ * mission: close() deletes it, so finished and replaced missions do not pile up on storage.
+ * <p/>
+ * Methods are synchronized, so one thread can append pages while the navigation loop reads.
+ */
+final class MissionStore implements MissionSource
+{
+		private static final int MAGIC = 0x4D49534E; // "MISN"
+		private static final int VERSION = 1;
+		private static final int HEADER_BYTES = 8;
+		private static final int RECORD_BYTES = 24;
+
+		private final File path;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private ByteBuffer page = ByteBuffer.allocate(64*RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		private int count = 0;
+
+		private MissionStore(File _path, RandomAccessFile _file)
+		{
+				path = _path;
+				file = _file;
+				channel = _file.getChannel();
+		}
+
+		/**
+		 * Creates a new empty store, replacing any existing file.
+		 */
+		static MissionStore create(File path) throws IOException
+		{
+				RandomAccessFile raf = new RandomAccessFile(path, "rw");
+				raf.setLength(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION);
+				header.flip();
+				raf.getChannel().write(header, 0);
+				return new MissionStore(path, raf);
+		}
+
+		@Override
+		public String name() { return path.getName(); }
+
+		@Override
+		public synchronized int size() { return count; }
+
+		/**
+		 * Appends a page of waypoints.
+		 *
+		 * @param waypoints {latitude, longitude} pairs
+		 * @param keep_times_ms station keep time of each waypoint, or null for none
+		 */
+		synchronized void append(double[][] waypoints, long[] keep_times_ms) throws IOException
+		{
+				ensurePage(waypoints.length);
+				page.clear();
+				for (int i = 0; i < waypoints.length; i++)
+				{
+						page.putDouble(waypoints[i][0]).putDouble(waypoints[i][1])
+										.putLong(keep_times_ms == null ? 0 : keep_times_ms[i]);
+				}
+				page.flip();
+				long position = HEADER_BYTES + (long)count*RECORD_BYTES;
+				while (page.hasRemaining())
+				{
+						position += channel.write(page, position);
+				}
+				count += waypoints.length;
+		}
+
+		@Override
+		public synchronized int read(int index, int max, double[] latitudes, double[] longitudes, long[] keep_times_ms)
+						throws IOException
+		{
+				int n = Math.max(0, Math.min(max, count - index));
+				if (n == 0) return 0;
+				ensurePage(n);
+				page.clear();
+				page.limit(n*RECORD_BYTES);
+				long position = HEADER_BYTES + (long)index*RECORD_BYTES;
+				while (page.hasRemaining())
+				{
+						int read = channel.read(page, position);
+						if (read < 0) throw new IOException(String.format("Mission %s ends early", name()));
+						position += read;
+				}
+				page.flip();
+				for (int i = 0; i < n; i++)
+				{
+						latitudes[i] = page.getDouble();
+						longitudes[i] = page.getDouble();
+						keep_times_ms[i] = page.getLong();
+				}
+				return n;
+		}
+
+		/**
+		 * Closes and deletes the file.
+		 */
+		@Override
+		public synchronized void close()
+		{
+				try
+				{
+						file.close();
+				}
+				catch (IOException e)
+				{
+						// nothing useful to do, the file goes away below
+				}
+				if (!path.delete() && path.exists())
+				{
+						path.deleteOnExit();
+				}
+		}
+
+		private void ensurePage(int records)
+		{
+				if (page.capacity() >= records*RECORD_BYTES) return;
+				page = ByteBuffer.allocate(records*RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		}
+}
@@ -0,0 +1,136 @@
+package com.platypus.android.server;
+
+/**
+ * Writes controller board commands such as {"m0":{"v":0.25},"m1":{"v":-0.1}} straight into a
+ * reusable byte buffer, so sending a command every control tick does not allocate.
+ * <p/>
+ * The buffer holds one command at a time: begin() starts a new one, motor() and servo() add
+ * actuators, and end() closes the object and appends the "\r\n" line terminator the board expects.
+ * Values are written with up to six decimals, which is finer than the board's 16 bit PWM.
+ * Non-finite values are written as 0 so a bad command can never produce invalid JSON.
+ */
+final class MotorCommandEncoder
+{
+		private static final int DECIMALS = 6;
+		private static final long SCALE = 1000000L;
+
+		private byte[] buffer = new byte[128];
+		private int length = 0;
+		private boolean first_field = true;
+
+		MotorCommandEncoder begin()
+		{
+				length = 0;
+				first_field = true;
+				put('{');
+				return this;
+		}
+
+		/**
+		 * Adds a motor velocity, e.g. "m0":{"v":0.5}.
+		 */
+		MotorCommandEncoder motor(int index, double velocity)
+		{
+				return field('m', index, 'v', velocity);
+		}
+
+		/**
+		 * Adds a servo position, e.g. "s0":{"p":-0.2}.
+		 */
+		MotorCommandEncoder servo(int index, double position)
+		{
+				return field('s', index, 'p', position);
+		}
+
+		MotorCommandEncoder end()
+		{
+				put('}');
+				put('\r');
+				put('\n');
+				return this;
+		}
+
+		/**
+		 * The encoded command. Only the first length() bytes are valid, and only until the next begin().
+		 */
+		byte[] buffer() { return buffer; }
+
+		/**
+		 * Length of the command including the line terminator.
+		 */
+		int length() { return length; }
+
+		/**
+		 * Length of the JSON object alone, without the line terminator.
+		 */
+		int jsonLength() { return length - 2; }
+
+		private MotorCommandEncoder field(char type, int index, char key, double value)
+		{
+				if (!first_field) put(',');
+				first_field = false;
+				put('"');
+				put(type);
+				putLong(index);
+				put('"');
+				put(':');
+				put('{');
+				put('"');
+				put(key);
+				put('"');
+				put(':');
+				putDecimal(value);
+				put('}');
+				return this;
+		}
+
+		private void putDecimal(double value)
+		{
+				if (Double.isNaN(value) || Double.isInfinite(value)) value = 0.0;
+				long scaled = Math.round(Math.abs(value)*SCALE);
+				if (value < 0 && scaled != 0) put('-');
+				putLong(scaled/SCALE);
+				long fraction = scaled%SCALE;
+				if (fraction == 0) return;
+				put('.');
+				int digits = DECIMALS;
+				while (fraction%10 == 0)
+				{
+						fraction /= 10;
+						digits--;
+				}
+				for (long divisor = pow10(digits - 1); divisor > 0; divisor /= 10)
+				{
+						put((char)('0' + (fraction/divisor)%10));
+				}
+		}
+
+		private void putLong(long value)
+		{
+				if (value < 10)
+				{
+						put((char)('0' + value));
+						return;
+				}
+				putLong(value/10);
+				put((char)('0' + value%10));
+		}
+
+		private static long pow10(int exponent)
+		{
+				long result = 1;
+				for (int i = 0; i < exponent; i++) result *= 10;
+				return result;
+		}
+
+		private void put(char c)
+		{
+				if (length == buffer.length)
+				{
+						byte[] larger = new byte[2*buffer.length];
+						System.arraycopy(buffer, 0, larger, 0, length);
+						buffer = larger;
+				}
+				buffer[length++] = (byte)c;
+		}
+}
@@ -0,0 +1,177 @@
+package com.platypus.android.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns a planned crumb path into a short polyline the controller can follow without stopping.
+ * <p/>
+ * First the path is simplified with Douglas-Peucker, but a shortcut is only accepted if it stays
+ * inside the corridor around the crumb trail, i.e. every point sampled along it is within
+ * corridor meters of some crumb. Water the boat has already crossed is known to be navigable,
+ * so this keeps shortcuts from cutting across land between two legs of the trail.
+ * <p/>
+ * Then every remaining corner is replaced by a circular arc of at most turn_radius, tangent to
+ * both legs. The arc never uses more than half of either leg, so consecutive fillets do not
+ * overlap.
+ */
+final class PathSmoother
+{
+		private final double tolerance;
+		private final double corridor;
+		private final double turn_radius;
+		private final double max_arc_step; // radians per arc piece
+
+		/**
+		 * @param _tolerance maximum distance in meters a dropped crumb may be from the simplified path
+		 * @param _corridor maximum distance in meters of a shortcut from the nearest crumb
+		 * @param _turn_radius radius in meters of the arcs that replace corners, 0 to keep corners
+		 */
+		PathSmoother(double _tolerance, double _corridor, double _turn_radius)
+		{
+				tolerance = _tolerance;
+				corridor = _corridor;
+				turn_radius = _turn_radius;
+				max_arc_step = Math.toRadians(15);
+		}
+
+		/**
+		 * @param eastings path vertices in UTM
+		 * @param northings path vertices in UTM
+		 * @param count number of vertices
+		 * @param grid the crumb trail, the caller must hold whatever lock protects it
+		 * @return the smoothed path as [easting, northing] pairs, starting and ending on the path ends
+		 */
+		double[][] smooth(double[] eastings, double[] northings, int count, CrumbGrid grid)
+		{
+				if (count <= 2)
+				{
+						double[][] result = new double[count][];
+						for (int i = 0; i < count; i++) result[i] = new double[]{eastings[i], northings[i]};
+						return result;
+				}
+				int[] kept = simplify(eastings, northings, count, grid);
+				return fillet(eastings, northings, kept);
+		}
+
+		/**
+		 * Douglas-Peucker with the corridor check, returns the indices of the kept vertices in order.
+		 */
+		int[] simplify(double[] eastings, double[] northings, int count, CrumbGrid grid)
+		{
+				boolean[] keep = new boolean[count];
+				keep[0] = true;
+				keep[count - 1] = true;
+				// explicit stack of [first, last] ranges so long paths cannot overflow the call stack
+				int[] stack = new int[2*count];
+				int top = 0;
+				stack[top++] = 0;
+				stack[top++] = count - 1;
+				while (top > 0)
+				{
+						int last = stack[--top];
+						int first = stack[--top];
+						if (last - first < 2) continue;
+
+						int farthest = first + 1;
+						double farthest_distance = -1.0;
+						for (int i = first + 1; i < last; i++)
+						{
+								double d = distanceToSegment(eastings[i], northings[i],
+												eastings[first], northings[first], eastings[last], northings[last]);
+								if (d > farthest_distance)
+								{
+										farthest_distance = d;
+										farthest = i;
+								}
+						}
+						if (farthest_distance <= tolerance && inCorridor(eastings[first], northings[first],
+										eastings[last], northings[last], grid))
+						{
+								continue;
+						}
+						keep[farthest] = true;
+						stack[top++] = first;
+						stack[top++] = farthest;
+						stack[top++] = farthest;
+						stack[top++] = last;
+				}
+
+				int kept_count = 0;
+				for (boolean k : keep) if (k) kept_count++;
+				int[] kept = new int[kept_count];
+				for (int i = 0, j = 0; i < count; i++) if (keep[i]) kept[j++] = i;
+				return kept;
+		}
+
+		private boolean inCorridor(double x0, double y0, double x1, double y1, CrumbGrid grid)
+		{
+				double length = Math.hypot(x1 - x0, y1 - y0);
+				// samples half a corridor apart, so nothing wider than that can slip between them
+				int samples = (int)Math.ceil(length/(0.5*corridor));
+				for (int s = 1; s < samples; s++)
+				{
+						double t = (double)s/samples;
+						if (grid.nearest(x0 + t*(x1 - x0), y0 + t*(y1 - y0), corridor) < 0) return false;
+				}
+				return true;
+		}
+
+		private double[][] fillet(double[] eastings, double[] northings, int[] kept)
+		{
+				List<double[]> points = new ArrayList<>();
+				points.add(new double[]{eastings[kept[0]], northings[kept[0]]});
+				for (int k = 1; k < kept.length - 1; k++)
+				{
+						double px = eastings[kept[k]], py = northings[kept[k]];
+						double ax = eastings[kept[k - 1]] - px, ay = northings[kept[k - 1]] - py;
+						double bx = eastings[kept[k + 1]] - px, by = northings[kept[k + 1]] - py;
+						double a_length = Math.hypot(ax, ay);
+						double b_length = Math.hypot(bx, by);
+						ax /= a_length; ay /= a_length;
+						bx /= b_length; by /= b_length;
+
+						// phi is the angle between the two legs at the corner, pi for a straight line
+						double phi = Math.acos(Math.max(-1.0, Math.min(1.0, ax*bx + ay*by)));
+						double sweep = Math.PI - phi;
+						if (turn_radius <= 0 || sweep < 1e-3 || phi < 1e-3)
+						{
+								points.add(new double[]{px, py});
+								continue;
+						}
+						double tan_half = Math.tan(0.5*phi);
+						double tangent = Math.min(turn_radius/tan_half, 0.5*Math.min(a_length, b_length));
+						double radius = tangent*tan_half;
+
+						// arc center lies on the bisector of the corner
+						double mx = ax + bx, my = ay + by;
+						double m_length = Math.hypot(mx, my);
+						double center_distance = radius/Math.sin(0.5*phi);
+						double cx = px + mx/m_length*center_distance;
+						double cy = py + my/m_length*center_distance;
+
+						double t1x = px + ax*tangent - cx, t1y = py + ay*tangent - cy;
+						double t2x = px + bx*tangent - cx, t2y = py + by*tangent - cy;
+						double direction = Math.signum(t1x*t2y - t1y*t2x);
+						int pieces = Math.max(1, (int)Math.ceil(sweep/max_arc_step));
+						for (int i = 0; i <= pieces; i++)
+						{
+								double angle = direction*sweep*i/pieces;
+								double cos = Math.cos(angle), sin = Math.sin(angle);
+								points.add(new double[]{cx + cos*t1x - sin*t1y, cy + sin*t1x + cos*t1y});
+						}
+				}
+				int last = kept[kept.length - 1];
+				points.add(new double[]{eastings[last], northings[last]});
+				return points.toArray(new double[points.size()][]);
+		}
+
+		static double distanceToSegment(double x, double y, double x0, double y0, double x1, double y1)
+		{
+				double dx = x1 - x0, dy = y1 - y0;
+				double length_sq = dx*dx + dy*dy;
+				double t = length_sq > 0 ? ((x - x0)*dx + (y - y0)*dy)/length_sq : 0.0;
+				t = Math.max(0.0, Math.min(1.0, t));
+				return Math.hypot(x - (x0 + t*dx), y - (y0 + t*dy));
+		}
+}
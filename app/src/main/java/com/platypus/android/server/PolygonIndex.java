@@ -0,0 +1,231 @@
+package com.platypus.android.server;
+
+import java.util.Arrays;
+
+/**
+ * Point-in-polygon index over one or more rings, using the even-odd rule, so a ring inside
+ * another is a hole and separate rings make a multi-polygon.
+ * <p/>
+ * The bounding box is split into a grid of about CELLS_PER_EDGE cells per edge. Every cell keeps
+ * the edges that touch it and whether its center is inside. A query walks from the point to the
+ * center of its cell and flips the center's answer once for every edge it crosses; that walk
+ * never leaves the cell, so only the cell's own edges are tested, usually none or a few, however
+ * many vertices the rings have.
+ * <p/>
+ * Building costs O(rows x edges) for the center classification plus the cells each edge touches.
+ * Queries do not allocate, and the index is immutable so any thread may query it.
+ */
+final class PolygonIndex
+{
+		private static final int CELLS_PER_EDGE = 4;
+		private static final int MAX_CELLS = 1 << 18;
+
+		// edges as {x0, y0, x1, y1}
+		private final double[] edges;
+		private final double min_x, min_y, max_x, max_y;
+		private final double cell_w, cell_h;
+		private final int nx, ny;
+		// the edges touching cell c are cell_edges[cell_start[c]] up to cell_edges[cell_start[c + 1]]
+		private final int[] cell_start;
+		private final int[] cell_edges;
+		private final boolean[] center_inside;
+
+		/**
+		 * @param rings each ring as interleaved {x0, y0, x1, y1, ...}, implicitly closed; rings with
+		 *              fewer than 3 vertices are ignored
+		 */
+		PolygonIndex(double[][] rings)
+		{
+				int edge_count = 0;
+				for (double[] ring : rings)
+				{
+						if (ring.length >= 6) edge_count += ring.length/2;
+				}
+				edges = new double[4*edge_count];
+				double lo_x = Double.POSITIVE_INFINITY, lo_y = Double.POSITIVE_INFINITY;
+				double hi_x = Double.NEGATIVE_INFINITY, hi_y = Double.NEGATIVE_INFINITY;
+				int e = 0;
+				for (double[] ring : rings)
+				{
+						if (ring.length < 6) continue;
+						int vertices = ring.length/2;
+						for (int i = 0; i < vertices; i++)
+						{
+								int j = (i + 1)%vertices;
+								edges[4*e] = ring[2*i];
+								edges[4*e + 1] = ring[2*i + 1];
+								edges[4*e + 2] = ring[2*j];
+								edges[4*e + 3] = ring[2*j + 1];
+								e++;
+								lo_x = Math.min(lo_x, ring[2*i]);
+								hi_x = Math.max(hi_x, ring[2*i]);
+								lo_y = Math.min(lo_y, ring[2*i + 1]);
+								hi_y = Math.max(hi_y, ring[2*i + 1]);
+						}
+				}
+				min_x = lo_x;
+				min_y = lo_y;
+				max_x = hi_x;
+				max_y = hi_y;
+
+				if (edge_count == 0 || !(max_x > min_x) || !(max_y > min_y))
+				{
+						// nothing has an inside
+						nx = ny = 0;
+						cell_w = cell_h = 1.0;
+						cell_start = new int[1];
+						cell_edges = new int[0];
+						center_inside = new boolean[0];
+						return;
+				}
+
+				double width = max_x - min_x;
+				double height = max_y - min_y;
+				int cells = Math.min(MAX_CELLS, CELLS_PER_EDGE*edge_count);
+				nx = Math.max(1, Math.min(cells, (int)Math.round(Math.sqrt(cells*width/height))));
+				ny = Math.max(1, Math.min(cells, cells/nx));
+				cell_w = width/nx;
+				cell_h = height/ny;
+
+				// bucket the edges by cell, counting first so the buckets pack into one array
+				cell_start = new int[nx*ny + 1];
+				int[] bucketed = null;
+				for (int pass = 0; pass < 2; pass++)
+				{
+						int[] fill = pass == 0 ? null : Arrays.copyOf(cell_start, nx*ny);
+						for (e = 0; e < edge_count; e++)
+						{
+								double x0 = edges[4*e], y0 = edges[4*e + 1], x1 = edges[4*e + 2], y1 = edges[4*e + 3];
+								int i0 = column(Math.min(x0, x1)), i1 = column(Math.max(x0, x1));
+								int j0 = row(Math.min(y0, y1)), j1 = row(Math.max(y0, y1));
+								for (int j = j0; j <= j1; j++)
+								{
+										for (int i = i0; i <= i1; i++)
+										{
+												if (!touchesCell(x0, y0, x1, y1, i, j)) continue;
+												int c = j*nx + i;
+												if (pass == 0) cell_start[c + 1]++;
+												else bucketed[fill[c]++] = e;
+										}
+								}
+						}
+						if (pass == 0)
+						{
+								for (int c = 0; c < nx*ny; c++) cell_start[c + 1] += cell_start[c];
+								bucketed = new int[cell_start[nx*ny]];
+						}
+				}
+				cell_edges = bucketed;
+
+				// classify the cell centers one row at a time, with a horizontal ray
+				center_inside = new boolean[nx*ny];
+				double[] crossings = new double[edge_count];
+				for (int j = 0; j < ny; j++)
+				{
+						double y = min_y + (j + 0.5)*cell_h;
+						int count = 0;
+						for (e = 0; e < edge_count; e++)
+						{
+								double x0 = edges[4*e], y0 = edges[4*e + 1], x1 = edges[4*e + 2], y1 = edges[4*e + 3];
+								if ((y0 > y) == (y1 > y)) continue;
+								crossings[count++] = x0 + (y - y0)*(x1 - x0)/(y1 - y0);
+						}
+						Arrays.sort(crossings, 0, count);
+						int passed = 0;
+						for (int i = 0; i < nx; i++)
+						{
+								double x = min_x + (i + 0.5)*cell_w;
+								while (passed < count && crossings[passed] < x) passed++;
+								center_inside[j*nx + i] = passed%2 == 1;
+						}
+				}
+		}
+
+		/**
+		 * @return true if (x, y) is inside, by the even-odd rule. Points exactly on an edge may go
+		 * either way.
+		 */
+		boolean contains(double x, double y)
+		{
+				if (nx == 0 || !(x >= min_x && x <= max_x && y >= min_y && y <= max_y)) return false;
+				int i = column(x);
+				int j = row(y);
+				int c = j*nx + i;
+				double cx = min_x + (i + 0.5)*cell_w;
+				double cy = min_y + (j + 0.5)*cell_h;
+				boolean inside = center_inside[c];
+				for (int k = cell_start[c]; k < cell_start[c + 1]; k++)
+				{
+						int e = 4*cell_edges[k];
+						if (crosses(x, y, cx, cy, edges[e], edges[e + 1], edges[e + 2], edges[e + 3])) inside = !inside;
+				}
+				return inside;
+		}
+
+		int edgeCount() { return edges.length/4; }
+		int cellCount() { return nx*ny; }
+
+		/**
+		 * Average number of edges tested per query, over the cells.
+		 */
+		double meanEdgesPerCell() { return nx == 0 ? 0.0 : (double)cell_edges.length/(nx*ny); }
+
+		private int column(double x)
+		{
+				return Math.max(0, Math.min(nx - 1, (int)((x - min_x)/cell_w)));
+		}
+
+		private int row(double y)
+		{
+				return Math.max(0, Math.min(ny - 1, (int)((y - min_y)/cell_h)));
+		}
+
+		/**
+		 * Whether segment p-q crosses segment a-b. An endpoint lying on the other segment's line
+		 * counts as being on its negative side, which is the half-open rule that makes a walk
+		 * through a shared vertex count exactly one crossing when the boundary really passes there.
+		 */
+		private static boolean crosses(double px, double py, double qx, double qy,
+		                               double ax, double ay, double bx, double by)
+		{
+				boolean a_side = orient(px, py, qx, qy, ax, ay) > 0;
+				boolean b_side = orient(px, py, qx, qy, bx, by) > 0;
+				if (a_side == b_side) return false;
+				boolean p_side = orient(ax, ay, bx, by, px, py) > 0;
+				boolean q_side = orient(ax, ay, bx, by, qx, qy) > 0;
+				return p_side != q_side;
+		}
+
+		private static double orient(double ax, double ay, double bx, double by, double cx, double cy)
+		{
+				return (bx - ax)*(cy - ay) - (by - ay)*(cx - ax);
+		}
+
+		/**
+		 * Liang-Barsky clip of the segment against cell (i, j), grown slightly so edges along a
+		 * cell border land in both neighbors.
+		 */
+		private boolean touchesCell(double x0, double y0, double x1, double y1, int i, int j)
+		{
+				double margin = 1e-9*(cell_w + cell_h);
+				double left = min_x + i*cell_w - margin, right = min_x + (i + 1)*cell_w + margin;
+				double bottom = min_y + j*cell_h - margin, top = min_y + (j + 1)*cell_h + margin;
+				double dx = x1 - x0, dy = y1 - y0;
+				double t0 = 0.0, t1 = 1.0;
+				double[] p = {-dx, dx, -dy, dy};
+				double[] q = {x0 - left, right - x0, y0 - bottom, top - y0};
+				for (int k = 0; k < 4; k++)
+				{
+						if (p[k] == 0)
+						{
+								if (q[k] < 0) return false;
+								continue;
+						}
+						double t = q[k]/p[k];
+						if (p[k] < 0) t0 = Math.max(t0, t);
+						else t1 = Math.min(t1, t);
+						if (t0 > t1) return false;
+				}
+				return true;
+		}
+}
@@ -0,0 +1,157 @@
+package com.platypus.android.server;
+
+/**
+ * Progress along a fixed polyline, for pure pursuit over a whole path instead of one segment.
+ * <p/>
+ * Segment lengths, unit directions, headings and cumulative arc length are computed once in the
+ * constructor. The progress cursor only moves forward, so projecting the boat onto the path looks
+ * at the current segment and the ones right after it, which is O(1) amortized over a run. The
+ * lookahead point is found by arc length and may lie several segments ahead of the boat.
+ */
+final class PolylineTracker
+{
+		private final int vertex_count;
+		private final double[] xs;
+		private final double[] ys;
+		private final double[] arc_length; // cumulative, arc_length[i] is at vertex i
+		private final double[] ux; // unit direction of segment i
+		private final double[] uy;
+		private final double[] heading; // heading of segment i, atan2(uy, ux)
+
+		private int segment = 0;
+		private double progress = 0.0;
+		private double cross_track = 0.0;
+		private int lookahead_segment = 0;
+
+		/**
+		 * @param _xs vertex eastings
+		 * @param _ys vertex northings
+		 * @param count number of vertices, at least 2
+		 */
+		PolylineTracker(double[] _xs, double[] _ys, int count)
+		{
+				vertex_count = count;
+				xs = new double[count];
+				ys = new double[count];
+				System.arraycopy(_xs, 0, xs, 0, count);
+				System.arraycopy(_ys, 0, ys, 0, count);
+				arc_length = new double[count];
+				ux = new double[count - 1];
+				uy = new double[count - 1];
+				heading = new double[count - 1];
+				for (int i = 0; i < count - 1; i++)
+				{
+						double dx = xs[i + 1] - xs[i];
+						double dy = ys[i + 1] - ys[i];
+						double length = Math.sqrt(dx*dx + dy*dy);
+						arc_length[i + 1] = arc_length[i] + length;
+						if (length > 0)
+						{
+								ux[i] = dx/length;
+								uy[i] = dy/length;
+						}
+						else if (i > 0)
+						{
+								// repeated vertex, keep the previous direction
+								ux[i] = ux[i - 1];
+								uy[i] = uy[i - 1];
+						}
+						else
+						{
+								ux[i] = 1.0;
+						}
+						heading[i] = Math.atan2(uy[i], ux[i]);
+				}
+		}
+
+		int segmentCount() { return vertex_count - 1; }
+
+		/**
+		 * Index of the segment the boat was last projected onto, it ends at vertex segment + 1.
+		 */
+		int segment() { return segment; }
+
+		/**
+		 * Arc length from the first vertex to the projection of the boat.
+		 */
+		double progress() { return progress; }
+
+		double length() { return arc_length[vertex_count - 1]; }
+
+		double remaining() { return arc_length[vertex_count - 1] - progress; }
+
+		/**
+		 * Signed distance from the path at the last projection, positive when the boat is to the left.
+		 */
+		double crossTrackError() { return cross_track; }
+
+		double segmentHeading(int i) { return heading[i]; }
+
+		double vertexX(int i) { return xs[i]; }
+
+		double vertexY(int i) { return ys[i]; }
+
+		/**
+		 * Moves the progress cursor to the projection of (x, y). The cursor moves to the next
+		 * segment as long as that segment is at least as close as the current one, and never back.
+		 */
+		void project(double x, double y)
+		{
+				double t = clampedProjection(segment, x, y);
+				double d_sq = distanceSq(segment, t, x, y);
+				while (segment < vertex_count - 2)
+				{
+						double t_next = clampedProjection(segment + 1, x, y);
+						double d_next_sq = distanceSq(segment + 1, t_next, x, y);
+						if (d_next_sq > d_sq) break;
+						segment++;
+						t = t_next;
+						d_sq = d_next_sq;
+				}
+				double new_progress = arc_length[segment] + t;
+				if (new_progress > progress) progress = new_progress;
+				cross_track = ux[segment]*(y - ys[segment]) - uy[segment]*(x - xs[segment]);
+				if (lookahead_segment < segment) lookahead_segment = segment;
+		}
+
+		/**
+		 * Writes the point distance meters of arc length past the current progress into out[0..1],
+		 * stopping at the last vertex.
+		 *
+		 * @return the index of the segment the point lies on
+		 */
+		int lookahead(double distance, double[] out)
+		{
+				double target = progress + distance;
+				if (target >= arc_length[vertex_count - 1])
+				{
+						out[0] = xs[vertex_count - 1];
+						out[1] = ys[vertex_count - 1];
+						lookahead_segment = vertex_count - 2;
+						return lookahead_segment;
+				}
+				// the lookahead distance can shrink between ticks, so step back to the cursor if needed
+				int i = Math.max(segment, lookahead_segment);
+				while (i > segment && arc_length[i] > target) i--;
+				while (i < vertex_count - 2 && arc_length[i + 1] < target) i++;
+				lookahead_segment = i;
+				double along = target - arc_length[i];
+				out[0] = xs[i] + along*ux[i];
+				out[1] = ys[i] + along*uy[i];
+				return i;
+		}
+
+		private double clampedProjection(int i, double x, double y)
+		{
+				double t = (x - xs[i])*ux[i] + (y - ys[i])*uy[i];
+				double length = arc_length[i + 1] - arc_length[i];
+				return t < 0 ? 0 : (t > length ? length : t);
+		}
+
+		private double distanceSq(int i, double t, double x, double y)
+		{
+				double dx = xs[i] + t*ux[i] - x;
+				double dy = ys[i] + t*uy[i] - y;
+				return dx*dx + dy*dy;
+		}
+}
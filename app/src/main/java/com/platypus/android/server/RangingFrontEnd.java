@@ -0,0 +1,193 @@
+package com.platypus.android.server;
+
+import java.util.Arrays;
+
+/**
+ * Gating, smoothing and trilateration of raw anchor ranges, ahead of the pose filter.
+ * <p/>
+ * Every raw range is checked against the range predicted from the filter's current position. It
+ * is rejected if it is zero or if the innovation (measured minus predicted) is more than
+ * GATE_SIGMAS standard deviations, where the variance is the anchor's range variance plus the
+ * filter's position variance. Accepted ranges go through the anchor's sliding median and into
+ * a weighted least squares fix, each anchor weighted by the inverse of its range variance. The
+ * fix comes with its covariance, so the filter can weight it properly.
+ * <p/>
+ * Each anchor keeps its health: accept and reject counts, consecutive rejections, and running
+ * mean and variance of its residual against the fixes. An anchor whose residual variance grows
+ * is trusted less, in the gate and in the fix. If fewer than three anchors pass the gate for
+ * REACQUIRE_AFTER updates in a row, the prediction itself is assumed wrong (e.g. after a filter
+ * reset), the medians are cleared and the next update is taken ungated.
+ * <p/>
+ * Allocation free once constructed. Not thread safe.
+ */
+final class RangingFrontEnd
+{
+		static final double GATE_SIGMAS = 3.0;
+		static final double RANGE_SIGMA = 0.3; // meters, nominal noise of a single raw range
+		static final int REACQUIRE_AFTER = 10;
+		private static final double HEALTH_ALPHA = 0.05; // weight of the newest residual in the running stats
+		private static final int MIN_ANCHORS = 3;
+
+		private final double[] xs, ys;
+		private final SlidingMedian[] medians; // null when the median filter is off
+		private final Trilateration trilateration;
+		private final double[] filtered;
+		private final double[] weights;
+
+		// per anchor health
+		private final long[] accepted, rejected;
+		private final int[] consecutive_rejections;
+		private final double[] residual_mean, residual_variance;
+		private final double[] last_innovation;
+
+		private long updates = 0;
+		private long fixes = 0;
+		private int starved_updates = 0;
+		private long reacquisitions = 0;
+		private double fix_rms_mean = 0.0;
+
+		/**
+		 * @param anchor_xs     anchor positions in the local frame, in meters
+		 * @param median_window number of accepted ranges each anchor's median is taken over, or 0
+		 *                      or less to turn the median filter off and use the raw ranges
+		 */
+		RangingFrontEnd(double[] anchor_xs, double[] anchor_ys, int median_window, double rejection_residual)
+		{
+				int n = anchor_xs.length;
+				xs = anchor_xs.clone();
+				ys = anchor_ys.clone();
+				trilateration = new Trilateration(xs, ys, rejection_residual);
+				medians = median_window > 0 ? new SlidingMedian[n] : null;
+				for (int i = 0; medians != null && i < n; i++)
+				{
+						medians[i] = new SlidingMedian(median_window);
+				}
+				filtered = new double[n];
+				weights = new double[n];
+				accepted = new long[n];
+				rejected = new long[n];
+				consecutive_rejections = new int[n];
+				residual_mean = new double[n];
+				residual_variance = new double[n];
+				last_innovation = new double[n];
+				Arrays.fill(residual_variance, RANGE_SIGMA*RANGE_SIGMA);
+		}
+
+		int anchorCount() { return xs.length; }
+
+		/**
+		 * Gates, filters and trilaterates one set of ranges.
+		 *
+		 * @param ranges             raw range to each anchor in meters, in anchor order; 0 if missing
+		 * @param predicted_x        filter position in the local frame
+		 * @param predicted_variance filter position variance in m^2 per axis, or infinity if the
+		 *                           filter has no position yet, which disables the gate
+		 * @return true if there is a new fix, available from x(), y() and the covariance accessors
+		 */
+		boolean update(double[] ranges, double predicted_x, double predicted_y, double predicted_variance)
+		{
+				updates++;
+				boolean gated = !Double.isInfinite(predicted_variance) && !Double.isNaN(predicted_variance);
+				if (starved_updates >= REACQUIRE_AFTER)
+				{
+						gated = false;
+						starved_updates = 0;
+						reacquisitions++;
+						trilateration.reset();
+						if (medians != null) for (SlidingMedian median : medians) median.clear();
+				}
+
+				int passed = 0;
+				for (int i = 0; i < xs.length; i++)
+				{
+						weights[i] = 0.0;
+						double range = ranges[i];
+						boolean accept = range > 0.0;
+						if (accept && gated)
+						{
+								double dx = predicted_x - xs[i];
+								double dy = predicted_y - ys[i];
+								last_innovation[i] = range - Math.sqrt(dx*dx + dy*dy);
+								double variance = Math.max(RANGE_SIGMA*RANGE_SIGMA, residual_variance[i]) + predicted_variance;
+								accept = last_innovation[i]*last_innovation[i] <= GATE_SIGMAS*GATE_SIGMAS*variance;
+						}
+						if (!accept)
+						{
+								rejected[i]++;
+								consecutive_rejections[i]++;
+								continue;
+						}
+						accepted[i]++;
+						consecutive_rejections[i] = 0;
+						filtered[i] = medians == null ? range : medians[i].add(range);
+						// the median of w samples has roughly pi/(2w) of the variance of one sample, and the
+						// residuals measure what is left after the median, including any anchor bias
+						double samples = medians == null ? 1 : medians[i].size();
+						double variance = Math.max(RANGE_SIGMA*RANGE_SIGMA*Math.PI/(2*samples), residual_variance[i]);
+						weights[i] = 1.0/Math.max(variance, 1e-4);
+						passed++;
+				}
+
+				if (passed < MIN_ANCHORS)
+				{
+						starved_updates++;
+						return false;
+				}
+				starved_updates = 0;
+				if (!trilateration.solve(filtered, weights)) return false;
+				fixes++;
+
+				for (int i = 0; i < xs.length; i++)
+				{
+						if (weights[i] == 0.0) continue;
+						double residual = trilateration.residual(i);
+						double delta = residual - residual_mean[i];
+						residual_mean[i] += HEALTH_ALPHA*delta;
+						residual_variance[i] = (1 - HEALTH_ALPHA)*(residual_variance[i] + HEALTH_ALPHA*delta*delta);
+				}
+				fix_rms_mean += HEALTH_ALPHA*(trilateration.rms() - fix_rms_mean);
+				return true;
+		}
+
+		double x() { return trilateration.x(); }
+		double y() { return trilateration.y(); }
+		double covarianceXX() { return trilateration.covarianceXX(); }
+		double covarianceXY() { return trilateration.covarianceXY(); }
+		double covarianceYY() { return trilateration.covarianceYY(); }
+
+		/**
+		 * Number of anchors in the last fix, after gating and residual rejection.
+		 */
+		int used() { return trilateration.used(); }
+
+		long updates() { return updates; }
+		long fixes() { return fixes; }
+		long reacquisitions() { return reacquisitions; }
+
+		/**
+		 * Running mean of the rms residual of the fixes, in meters.
+		 */
+		double meanFixRms() { return fix_rms_mean; }
+
+		long accepted(int anchor) { return accepted[anchor]; }
+		long rejected(int anchor) { return rejected[anchor]; }
+
+		/**
+		 * Fraction of the anchor's ranges that passed the gate, or 0 before any range arrived.
+		 */
+		double acceptRate(int anchor)
+		{
+				long total = accepted[anchor] + rejected[anchor];
+				return total == 0 ? 0.0 : (double)accepted[anchor]/total;
+		}
+
+		int consecutiveRejections(int anchor) { return consecutive_rejections[anchor]; }
+		double residualMean(int anchor) { return residual_mean[anchor]; }
+		double residualSigma(int anchor) { return Math.sqrt(residual_variance[anchor]); }
+		double lastInnovation(int anchor) { return last_innovation[anchor]; }
+
+		/**
+		 * An anchor is healthy while it has passed the gate within the last REACQUIRE_AFTER updates.
+		 */
+		boolean isHealthy(int anchor) { return consecutive_rejections[anchor] < REACQUIRE_AFTER; }
+}
@@ -0,0 +1,221 @@
+package com.platypus.android.server;
+
+/**
+ * Windowed, acknowledged delivery of numbered items (sensor readings, crumbs) over the lossy
+ * radio link.
+ * <p/>
+ * Items are identified by the id they are sent with, which is also what the listener echoes back
+ * in its acknowledgement, and they are pulled from the channel in increasing id order. At most
+ * cwnd items are in flight. Radio loss is mostly noise rather than congestion, so cwnd is not cut
+ * for every lost packet: it grows by one per acknowledgement and halves only when items time out
+ * and nothing at all has been acknowledged for a whole timeout, i.e. when the link has gone quiet.
+ * A dead link is then probed with a single item at a time. Each tick sends at most
+ * max_sends_per_tick packets in total; anything that does not fit stays in the channel's own
+ * buffer, which is where back-pressure ends up.
+ * <p/>
+ * Retransmit timeouts adapt to the link as in RFC 6298: a smoothed round trip time and its
+ * variation are estimated from the acknowledgements of items sent only once (Karn's rule), and
+ * each retransmission of an item doubles its timeout, up to max_rto_ms. An item is dropped from
+ * the window after MAX_TRANSMISSIONS attempts and is picked up again on the next pass over the
+ * channel, once the newer items have had their turn.
+ * <p/>
+ * Acknowledgements arrive on the network thread and ticks on a timer, so methods are synchronized.
+ */
+final class ReliableSender
+{
+		/**
+		 * Where the items come from and how they go out.
+		 */
+		interface Channel
+		{
+				/**
+				 * @return the smallest id greater than after that still needs delivering, or -1
+				 */
+				long nextPending(long after);
+
+				/**
+				 * @return true if the item still needs delivering, i.e. it exists and is unacknowledged
+				 */
+				boolean isPending(long id);
+
+				/**
+				 * Sends the item with its id.
+				 *
+				 * @return false if the item no longer exists
+				 */
+				boolean transmit(long id);
+		}
+
+		static final int MAX_TRANSMISSIONS = 8;
+		private static final long INITIAL_RTO_MS = 1000;
+		private static final double INITIAL_WINDOW = 4.0;
+
+		private final Channel channel;
+		private final long min_rto_ms, max_rto_ms;
+		private final int max_sends_per_tick;
+
+		// the window, as parallel arrays of slots
+		private final long[] ids;
+		private final long[] first_sent_ms, last_sent_ms;
+		private final int[] transmissions;
+		private final boolean[] in_use;
+		private int in_flight = 0;
+
+		private double cwnd = INITIAL_WINDOW;
+		private long cursor = -1; // last id pulled from the channel
+		private boolean have_rtt = false;
+		private double srtt_ms = 0, rttvar_ms = 0;
+		private long rto_ms = INITIAL_RTO_MS;
+		private long last_ack_ms = Long.MIN_VALUE/2;
+
+		private long sent = 0, retransmitted = 0, acknowledged = 0, given_up = 0;
+
+		/**
+		 * @param max_window         most items in flight at once
+		 * @param max_sends_per_tick most packets, new or retransmitted, sent by one tick()
+		 */
+		ReliableSender(Channel _channel, int max_window, long _min_rto_ms, long _max_rto_ms, int _max_sends_per_tick)
+		{
+				channel = _channel;
+				min_rto_ms = _min_rto_ms;
+				max_rto_ms = _max_rto_ms;
+				max_sends_per_tick = _max_sends_per_tick;
+				ids = new long[max_window];
+				first_sent_ms = new long[max_window];
+				last_sent_ms = new long[max_window];
+				transmissions = new int[max_window];
+				in_use = new boolean[max_window];
+				cwnd = Math.min(INITIAL_WINDOW, max_window);
+		}
+
+		/**
+		 * Retransmits what has timed out, then fills the window with new items.
+		 */
+		synchronized void tick(long now)
+		{
+				int budget = max_sends_per_tick;
+				boolean lost = false;
+				for (int slot = 0; slot < ids.length; slot++)
+				{
+						if (!in_use[slot]) continue;
+						long id = ids[slot];
+						if (!channel.isPending(id))
+						{
+								// acknowledged some other way, or dropped by the channel
+								free(slot);
+								continue;
+						}
+						long timeout = Math.min(max_rto_ms, rto_ms << Math.min(transmissions[slot] - 1, 16));
+						if (now - last_sent_ms[slot] < timeout || budget == 0) continue;
+						lost = true;
+						if (transmissions[slot] >= MAX_TRANSMISSIONS)
+						{
+								given_up++;
+								free(slot);
+								continue;
+						}
+						if (!channel.transmit(id))
+						{
+								free(slot);
+								continue;
+						}
+						transmissions[slot]++;
+						last_sent_ms[slot] = now;
+						retransmitted++;
+						budget--;
+				}
+				if (lost && now - last_ack_ms >= rto_ms) cwnd = Math.max(1.0, cwnd/2);
+
+				boolean wrapped = false;
+				while (in_flight < (int)cwnd && budget > 0)
+				{
+						long id = channel.nextPending(cursor);
+						if (id < 0)
+						{
+								// caught up: go around once more for anything dropped from the window earlier
+								if (wrapped || cursor < 0) break;
+								wrapped = true;
+								cursor = -1;
+								continue;
+						}
+						cursor = id;
+						if (slotOf(id) >= 0) continue;
+						if (!channel.transmit(id)) continue;
+						int slot = freeSlot();
+						ids[slot] = id;
+						first_sent_ms[slot] = last_sent_ms[slot] = now;
+						transmissions[slot] = 1;
+						in_use[slot] = true;
+						in_flight++;
+						sent++;
+						budget--;
+				}
+		}
+
+		/**
+		 * Records the listener's acknowledgement of an item. Unknown ids are ignored.
+		 */
+		synchronized void acknowledged(long id, long now)
+		{
+				int slot = slotOf(id);
+				if (slot < 0) return;
+				if (transmissions[slot] == 1) sampleRtt(now - first_sent_ms[slot]);
+				free(slot);
+				acknowledged++;
+				last_ack_ms = now;
+				cwnd = Math.min(ids.length, cwnd + 1.0);
+		}
+
+		synchronized int inFlight() { return in_flight; }
+		synchronized double window() { return cwnd; }
+		synchronized long rtoMs() { return rto_ms; }
+		synchronized double smoothedRttMs() { return srtt_ms; }
+		synchronized long sent() { return sent; }
+		synchronized long retransmitted() { return retransmitted; }
+		synchronized long acknowledged() { return acknowledged; }
+
+		/**
+		 * Number of times an item was dropped from the window after MAX_TRANSMISSIONS attempts.
+		 */
+		synchronized long givenUp() { return given_up; }
+
+		private void sampleRtt(long rtt_ms)
+		{
+				if (!have_rtt)
+				{
+						srtt_ms = rtt_ms;
+						rttvar_ms = rtt_ms/2.0;
+						have_rtt = true;
+				}
+				else
+				{
+						rttvar_ms = 0.75*rttvar_ms + 0.25*Math.abs(srtt_ms - rtt_ms);
+						srtt_ms = 0.875*srtt_ms + 0.125*rtt_ms;
+				}
+				rto_ms = Math.max(min_rto_ms, Math.min(max_rto_ms, (long)Math.ceil(srtt_ms + 4*rttvar_ms)));
+		}
+
+		private int slotOf(long id)
+		{
+				for (int slot = 0; slot < ids.length; slot++)
+				{
+						if (in_use[slot] && ids[slot] == id) return slot;
+				}
+				return -1;
+		}
+
+		private int freeSlot()
+		{
+				for (int slot = 0; slot < ids.length; slot++)
+				{
+						if (!in_use[slot]) return slot;
+				}
+				throw new IllegalStateException("Send window is full");
+		}
+
+		private void free(int slot)
+		{
+				in_use[slot] = false;
+				in_flight--;
+		}
+}
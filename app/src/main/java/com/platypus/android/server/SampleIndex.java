@@ -0,0 +1,80 @@
+package com.platypus.android.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Places the boat has sampled, hashed into square buckets of the minimum spacing, so asking
+ * whether a position is too close to any of them only looks at the 3 x 3 buckets around it.
+ * <p/>
+ * Positions are easting and northing in the boat's UTM zone. Callers that keep the spacing
+ * put at most a few points in a bucket, so buckets are flat arrays of {easting, northing}
+ * pairs. Thread safe.
+ */
+final class SampleIndex
+{
+		private final double spacing;
+		private final Map<Long, double[]> buckets = new HashMap<>();
+		private int size = 0;
+
+		SampleIndex(double _spacing)
+		{
+				if (_spacing <= 0) throw new IllegalArgumentException("Sample spacing must be positive");
+				spacing = _spacing;
+		}
+
+		double spacing() { return spacing; }
+		synchronized int size() { return size; }
+
+		synchronized void add(double easting, double northing)
+		{
+				long key = key(bucketOf(easting), bucketOf(northing));
+				double[] bucket = buckets.get(key);
+				int n = bucket == null ? 0 : bucket.length;
+				double[] grown = new double[n + 2];
+				if (bucket != null) System.arraycopy(bucket, 0, grown, 0, n);
+				grown[n] = easting;
+				grown[n + 1] = northing;
+				buckets.put(key, grown);
+				size++;
+		}
+
+		/**
+		 * @return true if some sample is closer than the spacing
+		 */
+		synchronized boolean isCrowded(double easting, double northing)
+		{
+				long bx = bucketOf(easting), by = bucketOf(northing);
+				double limit = spacing*spacing;
+				for (long x = bx - 1; x <= bx + 1; x++)
+				{
+						for (long y = by - 1; y <= by + 1; y++)
+						{
+								double[] bucket = buckets.get(key(x, y));
+								if (bucket == null) continue;
+								for (int i = 0; i < bucket.length; i += 2)
+								{
+										double dx = bucket[i] - easting, dy = bucket[i + 1] - northing;
+										if (dx*dx + dy*dy < limit) return true;
+								}
+						}
+				}
+				return false;
+		}
+
+		synchronized void clear()
+		{
+				buckets.clear();
+				size = 0;
+		}
+
+		private long bucketOf(double coordinate)
+		{
+				return (long)Math.floor(coordinate/spacing);
+		}
+
+		private static long key(long bx, long by)
+		{
+				return (bx << 32) | (by & 0xFFFFFFFFL);
+		}
+}
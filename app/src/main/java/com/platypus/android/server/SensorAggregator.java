@@ -0,0 +1,264 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.DataType;
+import com.platypus.crw.data.SensorData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per channel and data type reduction of the sensor stream before it goes out over the radio.
+ * <p/>
+ * A rule gives a channel (or any channel), a data type (or any type), a mode and its parameter:
+ * <pre>
+ *     channel type mode parameter; ...
+ *     1 DEPTH_LOWRANCE deadband 0.1; * BATTERY last 10000; 2 * mean 1000
+ * </pre>
+ * The windowed modes (mean, min, max, last) report one reading per window of parameter ms,
+ * when the first reading after the window closes arrives, at the position of the window's last
+ * reading. flush() reports the windows still open, e.g. before the rules are replaced or the
+ * server stops. Deadband reports a reading when it
+ * differs from the last one reported by at least parameter. Readings without a rule pass
+ * through unchanged. When several rules match, the first one wins.
+ * <p/>
+ * Each channel and type gets its own accumulator, found by index, and a reading costs O(1)
+ * with no allocation unless it is reported. The aggregator only decides what to send; callers
+ * still log every reading. Not thread safe.
+ */
+final class SensorAggregator
+{
+		enum Mode
+		{
+				MEAN, MIN, MAX, LAST, DEADBAND;
+
+				static Mode fromString(String s)
+				{
+						for (Mode mode : values())
+						{
+								if (mode.name().equalsIgnoreCase(s)) return mode;
+						}
+						throw new IllegalArgumentException("Unknown aggregation mode: " + s);
+				}
+		}
+
+		static final int ANY_CHANNEL = -1;
+
+		private static final DataType[] TYPES = DataType.values();
+
+		private static final class Rule
+		{
+				final int channel;
+				final DataType type; // null for any type
+				final Mode mode;
+				final double parameter;
+
+				Rule(int _channel, DataType _type, Mode _mode, double _parameter)
+				{
+						channel = _channel;
+						type = _type;
+						mode = _mode;
+						parameter = _parameter;
+				}
+
+				boolean matches(int c, DataType t)
+				{
+						return (channel == ANY_CHANNEL || channel == c) && (type == null || type == t);
+				}
+		}
+
+		/**
+		 * Streaming state of one channel and type.
+		 */
+		private static final class Accumulator
+		{
+				final Rule rule; // null if the readings pass through
+				final int channel;
+				final DataType type;
+				long window_start_ms;
+				int count;
+				double sum, min, max, last;
+				double[] latlng;
+				double reported = Double.NaN;
+
+				Accumulator(Rule _rule, int _channel, DataType _type)
+				{
+						rule = _rule;
+						channel = _channel;
+						type = _type;
+				}
+
+				void reset(long now)
+				{
+						window_start_ms = now;
+						count = 0;
+						sum = 0;
+						min = Double.POSITIVE_INFINITY;
+						max = Double.NEGATIVE_INFINITY;
+				}
+
+				void add(double value, double[] _latlng)
+				{
+						count++;
+						sum += value;
+						if (value < min) min = value;
+						if (value > max) max = value;
+						last = value;
+						latlng = _latlng;
+				}
+
+				SensorData report()
+				{
+						SensorData out = new SensorData();
+						out.channel = channel;
+						out.type = type;
+						out.value = value();
+						out.latlng = latlng;
+						return out;
+				}
+
+				double value()
+				{
+						switch (rule.mode)
+						{
+								case MEAN: return sum/count;
+								case MIN: return min;
+								case MAX: return max;
+								default: return last;
+						}
+				}
+		}
+
+		private final List<Rule> rules;
+		private Accumulator[] accumulators = new Accumulator[0];
+
+		private long offered = 0;
+		private long reported = 0;
+
+		private SensorAggregator(List<Rule> _rules)
+		{
+				rules = _rules;
+		}
+
+		/**
+		 * Parses rules in the form described above. An empty or null spec passes everything.
+		 */
+		static SensorAggregator parse(String spec)
+		{
+				List<Rule> rules = new ArrayList<>();
+				if (spec == null) return new SensorAggregator(rules);
+				for (String entry : spec.split(";"))
+				{
+						entry = entry.trim();
+						if (entry.isEmpty()) continue;
+						String[] parts = entry.split("\\s+");
+						if (parts.length != 4)
+						{
+								throw new IllegalArgumentException("Aggregation rule needs channel, type, mode and parameter: " + entry);
+						}
+						int channel;
+						DataType type;
+						double parameter;
+						try
+						{
+								channel = parts[0].equals("*") ? ANY_CHANNEL : Integer.parseInt(parts[0]);
+								type = parts[1].equals("*") ? null : DataType.valueOf(parts[1].toUpperCase());
+								parameter = Double.parseDouble(parts[3]);
+						}
+						catch (IllegalArgumentException e)
+						{
+								throw new IllegalArgumentException("Malformed aggregation rule: " + entry);
+						}
+						if (parameter < 0) throw new IllegalArgumentException("Negative aggregation parameter: " + entry);
+						rules.add(new Rule(channel, type, Mode.fromString(parts[2]), parameter));
+				}
+				return new SensorAggregator(rules);
+		}
+
+		int ruleCount() { return rules.size(); }
+		long offered() { return offered; }
+		long reported() { return reported; }
+
+		/**
+		 * @return the reading to send for this one, which is the reading itself if it has no rule,
+		 * or null if nothing is due yet
+		 */
+		SensorData offer(SensorData sd, long now)
+		{
+				offered++;
+				Accumulator a = accumulator(sd.channel, sd.type);
+				if (a.rule == null)
+				{
+						reported++;
+						return sd;
+				}
+
+				if (a.rule.mode == Mode.DEADBAND)
+				{
+						if (!Double.isNaN(a.reported) && Math.abs(sd.value - a.reported) < a.rule.parameter) return null;
+						a.reported = sd.value;
+						reported++;
+						return sd;
+				}
+
+				SensorData out = null;
+				if (a.count > 0 && now - a.window_start_ms >= a.rule.parameter)
+				{
+						out = a.report();
+						reported++;
+						a.reset(now);
+				}
+				else if (a.count == 0)
+				{
+						a.reset(now);
+				}
+				a.add(sd.value, sd.latlng);
+				return out;
+		}
+
+		/**
+		 * Reports every window that has readings, without waiting for it to close, and starts the
+		 * windows over empty.
+		 *
+		 * @return one reading per open window, in channel and type order
+		 */
+		List<SensorData> flush()
+		{
+				List<SensorData> out = new ArrayList<>();
+				for (Accumulator a : accumulators)
+				{
+						if (a == null || a.rule == null || a.rule.mode == Mode.DEADBAND || a.count == 0) continue;
+						out.add(a.report());
+						reported++;
+						a.count = 0;
+				}
+				return out;
+		}
+
+		private Accumulator accumulator(int channel, DataType type)
+		{
+				int t = type == null ? 0 : type.ordinal();
+				int index = Math.max(0, channel)*TYPES.length + t;
+				if (index >= accumulators.length)
+				{
+						Accumulator[] grown = new Accumulator[Math.max(index + 1, 2*accumulators.length)];
+						System.arraycopy(accumulators, 0, grown, 0, accumulators.length);
+						accumulators = grown;
+				}
+				Accumulator a = accumulators[index];
+				if (a == null)
+				{
+						Rule match = null;
+						for (Rule rule : rules)
+						{
+								if (rule.matches(channel, type))
+								{
+										match = rule;
+										break;
+								}
+						}
+						a = new Accumulator(match, channel, type);
+						accumulators[index] = a;
+				}
+				return a;
+		}
+}
@@ -0,0 +1,312 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.UtmPose;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gridded running statistics of one sensor quantity, built on the boat as readings arrive.
+ * <p/>
+ * The map lives in one UTM zone, fixed by its first reading; later readings and queries are
+ * projected into it. Space is cut into square cells of cell_size meters, grouped into tiles of
+ * TILE x TILE cells. Each tile stores count, mean, sum of squared deviations (Welford) and last
+ * update time of its cells in primitive arrays, so adding a reading is a few arithmetic
+ * operations on one cell. A tile is marked dirty when one of its cells changes, and
+ * drainDirty() hands out the changed tiles once, so only those need to go to clients.
+ * <p/>
+ * At most max_tiles tiles are kept. Tiles are ordered by last use, and the least recently used
+ * one is dropped when a reading needs a new tile. The tile of the previous reading is cached,
+ * so a boat that stays inside a tile touches the LRU order only when it crosses into another.
+ * <p/>
+ * Methods are synchronized: readings arrive on the controller thread, predicates and the
+ * streaming service query from their own.
+ */
+final class SensorMap
+{
+		static final int TILE = 16; // cells per tile side
+		static final int CELLS = TILE*TILE;
+
+		/**
+		 * Statistics of TILE x TILE cells. Cell (i, j) of the tile, counted east then north, is
+		 * at index i + TILE*j.
+		 */
+		static final class Tile
+		{
+				final int tx, ty;
+				final int[] count = new int[CELLS];
+				final double[] mean = new double[CELLS];
+				final double[] m2 = new double[CELLS];
+				final long[] last_ms = new long[CELLS];
+				boolean dirty;
+
+				Tile(int _tx, int _ty)
+				{
+						tx = _tx;
+						ty = _ty;
+				}
+
+				double variance(int cell)
+				{
+						return count[cell] > 1 ? m2[cell]/(count[cell] - 1) : 0.0;
+				}
+		}
+
+		private final double cell_size;
+		private final int max_tiles;
+		private final LinkedHashMap<Long, Tile> tiles;
+		private final double[] en = new double[2];
+		private int zone = -1;
+		private boolean is_north;
+		private Tile last_tile = null;
+		private long readings = 0;
+		private long evicted = 0;
+
+		SensorMap(double _cell_size, int _max_tiles)
+		{
+				if (_cell_size <= 0) throw new IllegalArgumentException("Map cells need a positive size");
+				if (_max_tiles < 1) throw new IllegalArgumentException("Map needs room for at least one tile");
+				cell_size = _cell_size;
+				max_tiles = _max_tiles;
+				tiles = new LinkedHashMap<Long, Tile>(16, 0.75f, true)
+				{
+						@Override
+						protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest)
+						{
+								if (size() <= max_tiles) return false;
+								if (eldest.getValue() == last_tile) last_tile = null;
+								evicted++;
+								return true;
+						}
+				};
+		}
+
+		double cellSize() { return cell_size; }
+		synchronized boolean hasZone() { return zone >= 0; }
+		synchronized int zone() { return zone; }
+		synchronized boolean isNorth() { return is_north; }
+		synchronized int tileCount() { return tiles.size(); }
+		synchronized long readings() { return readings; }
+
+		/**
+		 * Number of tiles dropped to stay within max_tiles.
+		 */
+		synchronized long evicted() { return evicted; }
+
+		/**
+		 * Adds a reading taken at a latitude and longitude.
+		 */
+		synchronized void add(double latitude, double longitude, double value, long time_ms)
+		{
+				if (zone < 0)
+				{
+						zone = UtmProjection.latLongToUtm(latitude, longitude, en);
+						is_north = latitude >= 0;
+				}
+				else
+				{
+						UtmProjection.latLongToUtm(latitude, longitude, zone, is_north, en, 0);
+				}
+				addUtm(en[0], en[1], value, time_ms);
+		}
+
+		/**
+		 * Adds a reading at a position already in the map's zone.
+		 */
+		synchronized void addUtm(double easting, double northing, double value, long time_ms)
+		{
+				if (Double.isNaN(value) || Double.isInfinite(value)) return;
+				long cx = cellOf(easting), cy = cellOf(northing);
+				Tile tile = tile(cx, cy, true);
+				int cell = cellIndex(tile, cx, cy);
+				int n = ++tile.count[cell];
+				double delta = value - tile.mean[cell];
+				tile.mean[cell] += delta/n;
+				tile.m2[cell] += delta*(value - tile.mean[cell]);
+				tile.last_ms[cell] = time_ms;
+				tile.dirty = true;
+				readings++;
+		}
+
+		/**
+		 * Projects a pose into the map's zone.
+		 *
+		 * @param out receives {easting, northing}
+		 * @return false if the map has no zone yet
+		 */
+		synchronized boolean toMap(UtmPose pose, double[] out)
+		{
+				if (zone < 0) return false;
+				out[0] = pose.pose.getX();
+				out[1] = pose.pose.getY();
+				if (pose.origin.zone != zone || pose.origin.isNorth != is_north)
+				{
+						UtmProjection.utmToLatLong(out[0], out[1], pose.origin.zone, pose.origin.isNorth, out, 0);
+						UtmProjection.latLongToUtm(out[0], out[1], zone, is_north, out, 0);
+				}
+				return true;
+		}
+
+		synchronized int count(double easting, double northing)
+		{
+				long cx = cellOf(easting), cy = cellOf(northing);
+				Tile tile = tile(cx, cy, false);
+				return tile == null ? 0 : tile.count[cellIndex(tile, cx, cy)];
+		}
+
+		/**
+		 * @return the mean of the cell, or NaN if it has no readings
+		 */
+		synchronized double mean(double easting, double northing)
+		{
+				return meanOfCell(cellOf(easting), cellOf(northing));
+		}
+
+		/**
+		 * @return the sample variance of the cell, 0 for a single reading, or NaN for none
+		 */
+		synchronized double variance(double easting, double northing)
+		{
+				long cx = cellOf(easting), cy = cellOf(northing);
+				Tile tile = tile(cx, cy, false);
+				if (tile == null) return Double.NaN;
+				int cell = cellIndex(tile, cx, cy);
+				return tile.count[cell] == 0 ? Double.NaN : tile.variance(cell);
+		}
+
+		/**
+		 * @return when the cell last got a reading, in ms, or -1 if never
+		 */
+		synchronized long lastUpdate(double easting, double northing)
+		{
+				long cx = cellOf(easting), cy = cellOf(northing);
+				Tile tile = tile(cx, cy, false);
+				if (tile == null) return -1;
+				int cell = cellIndex(tile, cx, cy);
+				return tile.count[cell] == 0 ? -1 : tile.last_ms[cell];
+		}
+
+		/**
+		 * Gradient of the cell means at a position, by central differences between the
+		 * neighboring cells, or one-sided against the cell itself if only one neighbor has data.
+		 * An axis without enough data contributes 0.
+		 *
+		 * @param out receives {d/d easting, d/d northing} in units per meter
+		 * @return false if neither axis could be estimated
+		 */
+		synchronized boolean gradient(double easting, double northing, double[] out)
+		{
+				long cx = cellOf(easting), cy = cellOf(northing);
+				double center = meanOfCell(cx, cy);
+				double gx = difference(meanOfCell(cx - 1, cy), center, meanOfCell(cx + 1, cy))/cell_size;
+				double gy = difference(meanOfCell(cx, cy - 1), center, meanOfCell(cx, cy + 1))/cell_size;
+				out[0] = Double.isNaN(gx) ? 0.0 : gx;
+				out[1] = Double.isNaN(gy) ? 0.0 : gy;
+				return !Double.isNaN(gx) || !Double.isNaN(gy);
+		}
+
+		/**
+		 * @return the magnitude of gradient(), or NaN if it could not be estimated
+		 */
+		synchronized double gradientMagnitude(double easting, double northing)
+		{
+				double[] g = new double[2];
+				if (!gradient(easting, northing, g)) return Double.NaN;
+				return Math.sqrt(g[0]*g[0] + g[1]*g[1]);
+		}
+
+		/**
+		 * @return the tiles changed since the last call, which are no longer dirty afterwards
+		 */
+		synchronized List<Tile> drainDirty()
+		{
+				List<Tile> dirty = new ArrayList<>();
+				for (Tile tile : tiles.values())
+				{
+						if (!tile.dirty) continue;
+						tile.dirty = false;
+						dirty.add(tile);
+				}
+				return dirty;
+		}
+
+		/**
+		 * Marks every tile as changed, e.g. for a client that just subscribed.
+		 */
+		synchronized void markAllDirty()
+		{
+				for (Tile tile : tiles.values()) tile.dirty = true;
+		}
+
+		/**
+		 * Writes a tile for clients: {int tx, int ty, 4 longs of occupied cells, then for each
+		 * occupied cell: float mean, float standard deviation, unsigned short count, unsigned
+		 * short seconds since its last update}, counts and ages saturating at 65535.
+		 */
+		synchronized void writeTile(Tile tile, long now, DataOutput out) throws IOException
+		{
+				out.writeInt(tile.tx);
+				out.writeInt(tile.ty);
+				long[] occupied = new long[CELLS/64];
+				for (int cell = 0; cell < CELLS; cell++)
+				{
+						if (tile.count[cell] > 0) occupied[cell >> 6] |= 1L << (cell & 63);
+				}
+				for (long word : occupied) out.writeLong(word);
+				for (int cell = 0; cell < CELLS; cell++)
+				{
+						if (tile.count[cell] == 0) continue;
+						out.writeFloat((float)tile.mean[cell]);
+						out.writeFloat((float)Math.sqrt(tile.variance(cell)));
+						out.writeShort(Math.min(tile.count[cell], 0xFFFF));
+						out.writeShort((int)Math.max(0, Math.min((now - tile.last_ms[cell])/1000, 0xFFFF)));
+				}
+		}
+
+		private static double difference(double before, double center, double after)
+		{
+				if (!Double.isNaN(before) && !Double.isNaN(after)) return (after - before)/2;
+				if (!Double.isNaN(center) && !Double.isNaN(after)) return after - center;
+				if (!Double.isNaN(center) && !Double.isNaN(before)) return center - before;
+				return Double.NaN;
+		}
+
+		private double meanOfCell(long cx, long cy)
+		{
+				Tile tile = tile(cx, cy, false);
+				if (tile == null) return Double.NaN;
+				int cell = cellIndex(tile, cx, cy);
+				return tile.count[cell] == 0 ? Double.NaN : tile.mean[cell];
+		}
+
+		private long cellOf(double coordinate)
+		{
+				return (long)Math.floor(coordinate/cell_size);
+		}
+
+		private static int cellIndex(Tile tile, long cx, long cy)
+		{
+				return (int)(cx - (long)tile.tx*TILE) + TILE*(int)(cy - (long)tile.ty*TILE);
+		}
+
+		private Tile tile(long cx, long cy, boolean create)
+		{
+				int tx = (int)Math.floorDiv(cx, (long)TILE);
+				int ty = (int)Math.floorDiv(cy, (long)TILE);
+				if (last_tile != null && last_tile.tx == tx && last_tile.ty == ty) return last_tile;
+				Long key = ((long)tx << 32) | (ty & 0xFFFFFFFFL);
+				Tile tile = tiles.get(key);
+				if (tile == null)
+				{
+						if (!create) return null;
+						tile = new Tile(tx, ty);
+						tiles.put(key, tile);
+				}
+				if (create) last_tile = tile;
+				return tile;
+		}
+}
@@ -0,0 +1,73 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.DataType;
+import com.platypus.crw.data.SensorData;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One SensorMap per sensor data type, created on its first georeferenced reading.
+ * <p/>
+ * Every layer has the same cell size and tile budget, so with CELL_SIZE_M = 5 and
+ * MAX_TILES = 128 a layer covers up to 128 tiles of 80 m x 80 m and takes under 1 MB.
+ */
+final class SensorMaps
+{
+		static final double CELL_SIZE_M = 5.0;
+		static final int MAX_TILES = 128;
+
+		private final double cell_size;
+		private final int max_tiles;
+		private final Map<DataType, SensorMap> layers = new EnumMap<>(DataType.class);
+
+		SensorMaps()
+		{
+				this(CELL_SIZE_M, MAX_TILES);
+		}
+
+		SensorMaps(double _cell_size, int _max_tiles)
+		{
+				cell_size = _cell_size;
+				max_tiles = _max_tiles;
+		}
+
+		double cellSize() { return cell_size; }
+
+		/**
+		 * Adds a reading to the layer of its type, if it has a position.
+		 */
+		void record(SensorData sd, long now)
+		{
+				if (sd.type == null || sd.latlng == null || sd.latlng.length < 2) return;
+				SensorMap layer;
+				synchronized (layers)
+				{
+						layer = layers.get(sd.type);
+						if (layer == null)
+						{
+								layer = new SensorMap(cell_size, max_tiles);
+								layers.put(sd.type, layer);
+						}
+				}
+				layer.add(sd.latlng[0], sd.latlng[1], sd.value, now);
+		}
+
+		/**
+		 * @return the layer of a data type, or null if it has no readings yet
+		 */
+		SensorMap get(DataType type)
+		{
+				synchronized (layers) { return layers.get(type); }
+		}
+
+		/**
+		 * @return the types that have a layer, in enum order
+		 */
+		List<DataType> types()
+		{
+				synchronized (layers) { return new ArrayList<>(layers.keySet()); }
+		}
+}
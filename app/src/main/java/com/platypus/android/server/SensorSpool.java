@@ -0,0 +1,302 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer;
+import com.platypus.crw.data.SensorData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Disk-backed store-and-forward queue of sensor readings, kept while the listener is out of
+ * radio range and drained once it acknowledges again.
+ * <p/>
+ * The file is memory-mapped and holds a header followed by a ring of capacity fixed-size
+ * records. Readings get consecutive ids, which are never reused, and the record of an id is at
+ * slot id % capacity. The header keeps the next id and the ack cursor, the smallest id that has
+ * not been acknowledged; every id below it has been acknowledged or evicted. Acknowledgements
+ * can arrive in any order, so each record carries its own acked flag and the cursor advances
+ * over the acked records ahead of it.
+ * <p/>
+ * Appending to a full ring overwrites the record at the cursor, the oldest unacknowledged one,
+ * and counts it as evicted. Record layout, little-endian:
+ * {id + 1, time ms, channel, type, acked, reserved, value, latitude, longitude}. The id is
+ * stored plus one so a zeroed slot never looks valid. A record is complete once its id is
+ * written, which happens last, so on open any records appended after the last header update
+ * are recovered by walking forward while the ids line up.
+ * <p/>
+ * Writes go to the page cache and survive the process dying; force() flushes them to disk.
+ */
+final class SensorSpool
+{
+		private static final int MAGIC = 0x53504F4C; // "SPOL"
+		private static final int VERSION = 1;
+		private static final int HEADER_BYTES = 32;
+		private static final int RECORD_BYTES = 48;
+
+		// header offsets
+		private static final int NEXT_ID = 16;
+		private static final int CURSOR = 24;
+
+		// record offsets
+		private static final int ID = 0;
+		private static final int TIME = 8;
+		private static final int CHANNEL = 16;
+		private static final int TYPE = 20;
+		private static final int ACKED = 21;
+		private static final int VALUE = 24;
+		private static final int LATITUDE = 32;
+		private static final int LONGITUDE = 40;
+
+		private static final VehicleServer.DataType[] TYPES = VehicleServer.DataType.values();
+
+		private final RandomAccessFile file;
+		private final MappedByteBuffer mapped;
+		private final int capacity;
+		private long next_id;
+		private long cursor;
+		private int unacked;
+		private long evicted = 0;
+
+		private SensorSpool(RandomAccessFile _file, MappedByteBuffer _mapped, int _capacity)
+		{
+				file = _file;
+				mapped = _mapped;
+				capacity = _capacity;
+		}
+
+		/**
+		 * Opens the spool at path, recovering its contents, or creates an empty one with the given
+		 * capacity if the file is missing or not a spool. An existing spool keeps its own capacity.
+		 */
+		static SensorSpool open(File path, int capacity) throws IOException
+		{
+				RandomAccessFile raf = new RandomAccessFile(path, "rw");
+				try
+				{
+						boolean existing = false;
+						if (raf.length() >= HEADER_BYTES)
+						{
+								raf.seek(0);
+								existing = Integer.reverseBytes(raf.readInt()) == MAGIC
+												&& Integer.reverseBytes(raf.readInt()) == VERSION;
+								if (existing)
+								{
+										int stored = Integer.reverseBytes(raf.readInt());
+										existing = stored > 0 && raf.length() == bytesFor(stored);
+										if (existing) capacity = stored;
+								}
+						}
+						if (capacity < 1 || bytesFor(capacity) > Integer.MAX_VALUE)
+						{
+								throw new IllegalArgumentException("Spool capacity out of range: " + capacity);
+						}
+						if (!existing)
+						{
+								raf.setLength(0);
+								raf.setLength(bytesFor(capacity));
+						}
+
+						MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytesFor(capacity));
+						mapped.order(ByteOrder.LITTLE_ENDIAN);
+						SensorSpool spool = new SensorSpool(raf, mapped, capacity);
+						if (existing) spool.recover();
+						else spool.initialize();
+						return spool;
+				}
+				catch (IOException | RuntimeException e)
+				{
+						raf.close();
+						throw e;
+				}
+		}
+
+		private static long bytesFor(int capacity)
+		{
+				return HEADER_BYTES + (long)capacity*RECORD_BYTES;
+		}
+
+		private void initialize()
+		{
+				mapped.putInt(0, MAGIC);
+				mapped.putInt(4, VERSION);
+				mapped.putInt(8, capacity);
+				next_id = cursor = 0;
+				unacked = 0;
+				writeHeader();
+		}
+
+		private void recover()
+		{
+				next_id = mapped.getLong(NEXT_ID);
+				cursor = mapped.getLong(CURSOR);
+				// records whose append finished after the last header update
+				while (storedId(next_id) == next_id) next_id++;
+				cursor = Math.max(cursor, next_id - capacity);
+				unacked = 0;
+				for (long id = cursor; id < next_id; id++)
+				{
+						if (storedId(id) == id && mapped.get(offset(id) + ACKED) == 0) unacked++;
+				}
+				advanceCursor();
+				writeHeader();
+		}
+
+		int capacity() { return capacity; }
+		synchronized long nextId() { return next_id; }
+		synchronized long cursor() { return cursor; }
+
+		/**
+		 * Number of readings stored and not acknowledged.
+		 */
+		synchronized int unacked() { return unacked; }
+
+		/**
+		 * Number of unacknowledged readings overwritten since the spool was opened.
+		 */
+		synchronized long evicted() { return evicted; }
+
+		/**
+		 * Appends a reading, evicting the oldest unacknowledged one if the ring is full.
+		 *
+		 * @return the id of the reading
+		 */
+		synchronized long append(SensorData sd, long time_ms)
+		{
+				long id = next_id;
+				if (id - cursor == capacity)
+				{
+						// the slot holds the record at the cursor, which is unacknowledged
+						evicted++;
+						unacked--;
+						cursor++;
+						advanceCursor();
+				}
+				int offset = offset(id);
+				mapped.putLong(offset + ID, 0);
+				mapped.putLong(offset + TIME, time_ms);
+				mapped.putInt(offset + CHANNEL, sd.channel);
+				mapped.put(offset + TYPE, (byte)(sd.type == null ? 0 : sd.type.ordinal()));
+				mapped.put(offset + ACKED, (byte)0);
+				mapped.putShort(offset + ACKED + 1, (short)0);
+				mapped.putDouble(offset + VALUE, sd.value);
+				boolean has_position = sd.latlng != null && sd.latlng.length >= 2;
+				mapped.putDouble(offset + LATITUDE, has_position ? sd.latlng[0] : Double.NaN);
+				mapped.putDouble(offset + LONGITUDE, has_position ? sd.latlng[1] : Double.NaN);
+				mapped.putLong(offset + ID, id + 1);
+				next_id++;
+				unacked++;
+				writeHeader();
+				return id;
+		}
+
+		/**
+		 * @return the smallest id greater than after of an unacknowledged reading, or -1 if there is none
+		 */
+		synchronized long nextUnacked(long after)
+		{
+				for (long id = Math.max(after + 1, cursor); id < next_id; id++)
+				{
+						if (mapped.get(offset(id) + ACKED) == 0) return id;
+				}
+				return -1;
+		}
+
+		/**
+		 * @return true if the reading with this id is stored and not acknowledged
+		 */
+		synchronized boolean isUnacked(long id)
+		{
+				return isStored(id) && mapped.get(offset(id) + ACKED) == 0;
+		}
+
+		/**
+		 * @return a copy of the reading with this id, or null if it was acknowledged or evicted
+		 */
+		synchronized SensorData get(long id)
+		{
+				if (!isStored(id)) return null;
+				int offset = offset(id);
+				SensorData sd = new SensorData();
+				sd.channel = mapped.getInt(offset + CHANNEL);
+				int type = mapped.get(offset + TYPE) & 0xFF;
+				sd.type = type < TYPES.length ? TYPES[type] : VehicleServer.DataType.UNKNOWN;
+				sd.value = mapped.getDouble(offset + VALUE);
+				double latitude = mapped.getDouble(offset + LATITUDE);
+				double longitude = mapped.getDouble(offset + LONGITUDE);
+				if (!Double.isNaN(latitude)) sd.latlng = new double[]{latitude, longitude};
+				return sd;
+		}
+
+		/**
+		 * @return when the reading with this id was taken, in ms, or -1 if it is not stored
+		 */
+		synchronized long timestamp(long id)
+		{
+				return isStored(id) ? mapped.getLong(offset(id) + TIME) : -1;
+		}
+
+		synchronized void acknowledged(long id)
+		{
+				if (!isStored(id)) return;
+				int offset = offset(id);
+				if (mapped.get(offset + ACKED) != 0) return;
+				mapped.put(offset + ACKED, (byte)1);
+				unacked--;
+				if (id == cursor)
+				{
+						advanceCursor();
+						writeHeader();
+				}
+		}
+
+		/**
+		 * Flushes the mapped pages to disk.
+		 */
+		synchronized void force()
+		{
+				mapped.force();
+		}
+
+		synchronized void close()
+		{
+				try
+				{
+						mapped.force();
+						file.close();
+				}
+				catch (IOException e)
+				{
+						// nothing useful to do, the mapped records already reached the page cache
+				}
+		}
+
+		private boolean isStored(long id)
+		{
+				return id >= cursor && id < next_id;
+		}
+
+		private int offset(long id)
+		{
+				return HEADER_BYTES + (int)(id%capacity)*RECORD_BYTES;
+		}
+
+		private long storedId(long id)
+		{
+				return mapped.getLong(offset(id) + ID) - 1;
+		}
+
+		private void advanceCursor()
+		{
+				while (cursor < next_id && mapped.get(offset(cursor) + ACKED) != 0) cursor++;
+		}
+
+		private void writeHeader()
+		{
+				mapped.putLong(NEXT_ID, next_id);
+				mapped.putLong(CURSOR, cursor);
+		}
+}
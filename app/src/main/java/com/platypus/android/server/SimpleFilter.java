@@ -25,6 +25,11 @@ public class SimpleFilter implements VehicleFilter {
 	// 0.0 means no confidence, 1.0 means perfect accuracy.  Nominal is ~0.1.
 	public static final double ALPHA_COMPASS = 0.1;
 	public static final double ALPHA_GPS = 0.9;
+
+	// Position variance (m^2 per axis) assumed after a GPS fix, which carries no covariance,
+	// and its growth rate (m^2/s) between position updates.
+	public static final double GPS_VARIANCE = 9.0;
+	public static final double POSITION_PROCESS_NOISE = 1.0;
 	
 	// Indicator variables used to mark whether absolute heading and position were measured
 	boolean _isInitializedGps = false;
@@ -36,6 +41,10 @@ public class SimpleFilter implements VehicleFilter {
 	
 	// The current time in milliseconds, used to measure filter update intervals
 	long _time = System.currentTimeMillis();
+
+	// Isotropic position variance (m^2 per axis) as of _positionTime
+	double _positionVariance = Double.POSITIVE_INFINITY;
+	long _positionTime = _time;
 	
 	protected void predict(long time) {
 		/*while(_time < time) {
@@ -83,6 +92,8 @@ public class SimpleFilter implements VehicleFilter {
 			_pose.origin = utm.origin.clone();
 			_pose.pose = utm.pose.clone();
 			_isInitializedGps = true;
+			_positionVariance = GPS_VARIANCE;
+			_positionTime = time;
 		} else {
 			// On other update, average together the readings
 			double x = ALPHA_GPS * utm.pose.getX() + (1 - ALPHA_GPS) * _pose.pose.getX();
@@ -102,9 +113,60 @@ public class SimpleFilter implements VehicleFilter {
 			Quaternion orientation = _pose.pose.getRotation();
 			// Create new pose from update
 			 _pose.pose = new Pose3D(x,y,z,orientation);
+			_positionVariance = GPS_VARIANCE;
+			_positionTime = time;
 		}
 	}
 
+	/**
+	 * Variance of the position estimate at the given time, in m^2 per axis, or infinity
+	 * if there has been no position yet.
+	 */
+	public synchronized double positionVariance(long time) {
+		return _positionVariance + POSITION_PROCESS_NOISE * Math.max(0, time - _positionTime) / 1000.0;
+	}
+
+	/**
+	 * Position update that carries its own covariance, e.g. a fix from ranging anchors.
+	 * It is blended with the current estimate by a Kalman gain rather than the fixed
+	 * GPS weight.  The estimate's variance is kept isotropic, as the mean of both axes.
+	 *
+	 * @param utm the measured position
+	 * @param cxx measurement covariance (m^2) along easting
+	 * @param cxy measurement covariance (m^2) between easting and northing
+	 * @param cyy measurement covariance (m^2) along northing
+	 * @param time the time of the measurement
+	 */
+	public synchronized void positionUpdate(UtmPose utm, double cxx, double cxy, double cyy, long time) {
+		predict(time);
+		double p = positionVariance(time);
+
+		if (!_pose.origin.equals(utm.origin) || !_isInitializedGps || Double.isInfinite(p)) {
+			_pose.origin = utm.origin.clone();
+			_pose.pose = new Pose3D(utm.pose.getX(), utm.pose.getY(), _pose.pose.getZ(), _pose.pose.getRotation());
+			_isInitializedGps = true;
+			_positionVariance = 0.5 * (cxx + cyy);
+			_positionTime = time;
+			return;
+		}
+
+		// K = P (P + R)^-1 with P = p I
+		double s00 = p + cxx, s01 = cxy, s11 = p + cyy;
+		double det = s00 * s11 - s01 * s01;
+		if (!(det > 0))
+			return;
+		double k00 = p * s11 / det, k01 = -p * s01 / det, k11 = p * s00 / det;
+		double ex = utm.pose.getX() - _pose.pose.getX();
+		double ey = utm.pose.getY() - _pose.pose.getY();
+		double x = _pose.pose.getX() + k00 * ex + k01 * ey;
+		double y = _pose.pose.getY() + k01 * ex + k11 * ey;
+		_pose.pose = new Pose3D(x, y, _pose.pose.getZ(), _pose.pose.getRotation());
+
+		// P' = (I - K) P, kept isotropic
+		_positionVariance = 0.5 * p * ((1 - k00) + (1 - k11));
+		_positionTime = time;
+	}
+
 	@Override
 	public synchronized void gyroUpdate(double yawVel, long time) {
 		/*predict(time);
@@ -124,6 +186,8 @@ public class SimpleFilter implements VehicleFilter {
 		
 		_isInitializedGps = true;
 		_isInitializedCompass = true;
+		_positionVariance = GPS_VARIANCE;
+		_positionTime = time;
 	}
 
 	/**
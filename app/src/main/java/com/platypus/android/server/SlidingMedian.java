@@ -0,0 +1,164 @@
+package com.platypus.android.server;
+
+/**
+ * Median of the last N samples of a stream, updated in O(log N) per sample without allocating.
+ * <p/>
+ * Samples live in a ring buffer. Every ring slot is in one of two indexed heaps: a max-heap
+ * holding the lower half of the window and a min-heap holding the upper half, with the lower
+ * half never smaller and at most one larger. The slot being overwritten is taken out of its heap
+ * by position before the new sample goes in, so the oldest sample leaves the window without a
+ * search. The median is the top of the lower half, or the mean of both tops for an even count.
+ * <p/>
+ * Not thread safe.
+ */
+final class SlidingMedian
+{
+		private final double[] values;
+		private final int[] low; // max-heap of slots
+		private final int[] high; // min-heap of slots
+		private final int[] position; // index of each slot within its heap
+		private final boolean[] in_low;
+		private int low_size = 0;
+		private int high_size = 0;
+		private int next = 0; // slot the next sample overwrites
+		private int count = 0;
+
+		SlidingMedian(int window)
+		{
+				if (window < 1) throw new IllegalArgumentException("Median window must hold at least 1 sample");
+				values = new double[window];
+				low = new int[window];
+				high = new int[window];
+				position = new int[window];
+				in_low = new boolean[window];
+		}
+
+		int window() { return values.length; }
+		int size() { return count; }
+
+		void clear()
+		{
+				low_size = high_size = next = count = 0;
+		}
+
+		/**
+		 * Adds a sample, dropping the oldest one once the window is full.
+		 *
+		 * @return the new median
+		 */
+		double add(double value)
+		{
+				int slot = next;
+				if (count == values.length)
+				{
+						remove(slot);
+				}
+				else
+				{
+						count++;
+				}
+				values[slot] = value;
+				if (low_size == 0 || value <= values[low[0]]) push(true, slot);
+				else push(false, slot);
+
+				// rebalance so the lower half has the extra sample, if any
+				if (low_size > high_size + 1) push(false, pop(true));
+				else if (high_size > low_size) push(true, pop(false));
+
+				next = (next + 1)%values.length;
+				return median();
+		}
+
+		/**
+		 * @return the median of the window, or NaN if it is empty
+		 */
+		double median()
+		{
+				if (count == 0) return Double.NaN;
+				if (low_size > high_size) return values[low[0]];
+				return (values[low[0]] + values[high[0]])/2;
+		}
+
+		private void remove(int slot)
+		{
+				boolean is_low = in_low[slot];
+				int[] heap = is_low ? low : high;
+				int last = (is_low ? --low_size : --high_size);
+				int i = position[slot];
+				if (i == last) return;
+				int moved = heap[last];
+				place(heap, i, moved);
+				if (!siftUp(is_low, i)) siftDown(is_low, i);
+		}
+
+		private void push(boolean is_low, int slot)
+		{
+				in_low[slot] = is_low;
+				int i = is_low ? low_size++ : high_size++;
+				place(is_low ? low : high, i, slot);
+				siftUp(is_low, i);
+		}
+
+		private int pop(boolean is_low)
+		{
+				int[] heap = is_low ? low : high;
+				int top = heap[0];
+				int last = (is_low ? --low_size : --high_size);
+				if (last > 0)
+				{
+						place(heap, 0, heap[last]);
+						siftDown(is_low, 0);
+				}
+				return top;
+		}
+
+		private void place(int[] heap, int i, int slot)
+		{
+				heap[i] = slot;
+				position[slot] = i;
+		}
+
+		/**
+		 * Whether slot a belongs above slot b in the given heap.
+		 */
+		private boolean above(boolean is_low, int a, int b)
+		{
+				return is_low ? values[a] > values[b] : values[a] < values[b];
+		}
+
+		/**
+		 * @return true if the entry moved
+		 */
+		private boolean siftUp(boolean is_low, int i)
+		{
+				int[] heap = is_low ? low : high;
+				int slot = heap[i];
+				int start = i;
+				while (i > 0)
+				{
+						int parent = (i - 1)/2;
+						if (!above(is_low, slot, heap[parent])) break;
+						place(heap, i, heap[parent]);
+						i = parent;
+				}
+				place(heap, i, slot);
+				return i != start;
+		}
+
+		private void siftDown(boolean is_low, int i)
+		{
+				int[] heap = is_low ? low : high;
+				int size = is_low ? low_size : high_size;
+				int slot = heap[i];
+				while (true)
+				{
+						int child = 2*i + 1;
+						if (child >= size) break;
+						if (child + 1 < size && above(is_low, heap[child + 1], heap[child])) child++;
+						if (!above(is_low, heap[child], slot)) break;
+						place(heap, i, heap[child]);
+						i = child;
+				}
+				place(heap, i, slot);
+		}
+}
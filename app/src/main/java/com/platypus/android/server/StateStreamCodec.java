@@ -0,0 +1,233 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Quaternion;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * Compact encoding of a pose stream as periodic keyframes plus quantized deltas.
+ * <p/>
+ * Each pose is reduced to six fields in fixed point: easting, northing and altitude in
+ * centimeters, roll, pitch and yaw in milliradians. A subscriber only gets the fields in its
+ * mask. A keyframe carries the UTM zone and the absolute value of every subscribed field. A
+ * delta carries only the fields that differ from the last keyframe, each as the difference from
+ * it rather than from the last delta. A lost delta therefore costs nothing, and a lost keyframe
+ * costs the deltas until the next one, which the receiver detects from the keyframe sequence
+ * number. Values are zig-zag varints, so a boat moving at survey speed needs one or two bytes
+ * per field.
+ * <p/>
+ * Layout: {flags, keyframe sequence, [zone | north << 7 if keyframe], varint per field in
+ * flags}, where flags holds KEYFRAME and the bits of the fields that follow.
+ * <p/>
+ * The encoder also decides whether a subscriber gets a pose at all. A pose is sent no more
+ * often than the subscriber's interval, and only if some subscribed field changed since the
+ * last pose sent to it. A keyframe goes out every keyframe interval or when the zone changes,
+ * so a boat at rest costs one small packet per keyframe interval.
+ * <p/>
+ * Encoding does not allocate. Streams are not thread safe.
+ */
+final class StateStreamCodec
+{
+		static final int EASTING = 0;
+		static final int NORTHING = 1;
+		static final int ALTITUDE = 2;
+		static final int ROLL = 3;
+		static final int PITCH = 4;
+		static final int YAW = 5;
+		static final int FIELDS = 6;
+		static final int ALL_FIELDS = (1 << FIELDS) - 1;
+		static final int PLANAR_FIELDS = (1 << EASTING) | (1 << NORTHING) | (1 << YAW);
+
+		static final int KEYFRAME = 0x80;
+		static final double POSITION_QUANTUM = 0.01; // meters
+		static final double ANGLE_QUANTUM = 0.001; // radians
+
+		/**
+		 * Upper bound on the size of one encoded pose.
+		 */
+		static final int MAX_BYTES = 3 + FIELDS*10;
+
+		private StateStreamCodec() { }
+
+		/**
+		 * Per subscriber state, on either end of the link.
+		 */
+		static final class Stream
+		{
+				final int mask;
+				final long interval_ms;
+				final long keyframe_interval_ms;
+
+				private final long[] keyframe = new long[FIELDS];
+				private final long[] last = new long[FIELDS];
+				private final long[] current = new long[FIELDS];
+				private int zone = -1;
+				private boolean is_north;
+				private int sequence = -1;
+				private long last_sent_ms = Long.MIN_VALUE/2;
+				private long last_keyframe_ms = Long.MIN_VALUE/2;
+
+				/**
+				 * @param mask                 bits of the fields the subscriber wants
+				 * @param interval_ms          shortest time between two poses
+				 * @param keyframe_interval_ms longest time between two keyframes
+				 */
+				Stream(int mask, long interval_ms, long keyframe_interval_ms)
+				{
+						if ((mask & ALL_FIELDS) == 0) throw new IllegalArgumentException("A state stream needs at least one field");
+						this.mask = mask & ALL_FIELDS;
+						this.interval_ms = interval_ms;
+						this.keyframe_interval_ms = keyframe_interval_ms;
+				}
+
+				/**
+				 * @return sequence number of the last keyframe encoded or decoded, or -1 if none
+				 */
+				int keyframeSequence() { return sequence; }
+		}
+
+		/**
+		 * Encodes the pose for one subscriber, if it is due.
+		 *
+		 * @param out at least MAX_BYTES long
+		 * @return the number of bytes written, or 0 if the subscriber does not get this pose
+		 */
+		static int encode(Stream s, UtmPose pose, long now, byte[] out)
+		{
+				if (now - s.last_sent_ms < s.interval_ms) return 0;
+				quantize(pose, s.current);
+
+				boolean keyframe = s.sequence < 0
+								|| pose.origin.zone != s.zone || pose.origin.isNorth != s.is_north
+								|| now - s.last_keyframe_ms >= s.keyframe_interval_ms;
+				boolean changed = false;
+				int fields = 0;
+				for (int i = 0; i < FIELDS; i++)
+				{
+						if ((s.mask & (1 << i)) == 0) continue;
+						changed |= s.current[i] != s.last[i];
+						// fields equal to the keyframe are left out, so the delta stands on its own
+						if (keyframe || s.current[i] != s.keyframe[i]) fields |= 1 << i;
+				}
+				if (!keyframe && !changed) return 0;
+
+				int n = 0;
+				if (keyframe)
+				{
+						s.sequence = (s.sequence + 1) & 0xFF;
+						s.zone = pose.origin.zone;
+						s.is_north = pose.origin.isNorth;
+						s.last_keyframe_ms = now;
+						System.arraycopy(s.current, 0, s.keyframe, 0, FIELDS);
+						out[n++] = (byte)(KEYFRAME | fields);
+						out[n++] = (byte)s.sequence;
+						out[n++] = (byte)(s.zone | (s.is_north ? 0x80 : 0));
+				}
+				else
+				{
+						out[n++] = (byte)fields;
+						out[n++] = (byte)s.sequence;
+				}
+				for (int i = 0; i < FIELDS; i++)
+				{
+						if ((fields & (1 << i)) == 0) continue;
+						n = writeVarint(out, n, keyframe ? s.current[i] : s.current[i] - s.keyframe[i]);
+				}
+				System.arraycopy(s.current, 0, s.last, 0, FIELDS);
+				s.last_sent_ms = now;
+				return n;
+		}
+
+		/**
+		 * Decodes one encoded pose against the receiver's stream state. Fields outside the stream's
+		 * mask are zero.
+		 *
+		 * @return the pose, or null if it is a delta against a keyframe that was not received
+		 */
+		static UtmPose decode(Stream s, byte[] in, int offset, int length)
+		{
+				int n = offset;
+				int flags = in[n++] & 0xFF;
+				int sequence = in[n++] & 0xFF;
+				boolean keyframe = (flags & KEYFRAME) != 0;
+				if (keyframe)
+				{
+						int zone = in[n++] & 0xFF;
+						s.zone = zone & 0x7F;
+						s.is_north = (zone & 0x80) != 0;
+						s.sequence = sequence;
+				}
+				else if (sequence != s.sequence)
+				{
+						return null;
+				}
+
+				long[] position = new long[1];
+				for (int i = 0; i < FIELDS; i++)
+				{
+						if ((flags & (1 << i)) == 0)
+						{
+								if (!keyframe) s.current[i] = s.keyframe[i];
+								continue;
+						}
+						n = readVarint(in, n, offset + length, position);
+						if (n < 0) throw new IllegalArgumentException("Truncated state stream packet");
+						s.current[i] = keyframe ? position[0] : s.keyframe[i] + position[0];
+				}
+				if (keyframe) System.arraycopy(s.current, 0, s.keyframe, 0, FIELDS);
+				return toPose(s.current, s.zone, s.is_north);
+		}
+
+		static void quantize(UtmPose pose, long[] out)
+		{
+				Pose3D p = pose.pose;
+				Quaternion q = p.getRotation();
+				out[EASTING] = Math.round(p.getX()/POSITION_QUANTUM);
+				out[NORTHING] = Math.round(p.getY()/POSITION_QUANTUM);
+				out[ALTITUDE] = Math.round(p.getZ()/POSITION_QUANTUM);
+				out[ROLL] = Math.round(q.toRoll()/ANGLE_QUANTUM);
+				out[PITCH] = Math.round(q.toPitch()/ANGLE_QUANTUM);
+				out[YAW] = Math.round(q.toYaw()/ANGLE_QUANTUM);
+		}
+
+		private static UtmPose toPose(long[] q, int zone, boolean is_north)
+		{
+				return new UtmPose(new Pose3D(
+								q[EASTING]*POSITION_QUANTUM, q[NORTHING]*POSITION_QUANTUM, q[ALTITUDE]*POSITION_QUANTUM,
+								q[ROLL]*ANGLE_QUANTUM, q[PITCH]*ANGLE_QUANTUM, q[YAW]*ANGLE_QUANTUM),
+								new Utm(zone, is_north));
+		}
+
+		private static int writeVarint(byte[] out, int n, long value)
+		{
+				long v = (value << 1) ^ (value >> 63); // zig-zag, so small negatives stay short
+				while ((v & ~0x7FL) != 0)
+				{
+						out[n++] = (byte)((v & 0x7F) | 0x80);
+						v >>>= 7;
+				}
+				out[n++] = (byte)v;
+				return n;
+		}
+
+		/**
+		 * @return the index after the varint, or -1 if it runs past end
+		 */
+		private static int readVarint(byte[] in, int n, int end, long[] value)
+		{
+				long v = 0;
+				for (int shift = 0; shift < 64; shift += 7)
+				{
+						if (n >= end) return -1;
+						int b = in[n++] & 0xFF;
+						v |= (long)(b & 0x7F) << shift;
+						if ((b & 0x80) == 0)
+						{
+								value[0] = (v >>> 1) ^ -(v & 1);
+								return n;
+						}
+				}
+				return -1;
+		}
+}
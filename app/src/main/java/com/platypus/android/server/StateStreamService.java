@@ -0,0 +1,287 @@
+package com.platypus.android.server;
+
+import android.util.Log;
+
+import com.platypus.crw.PoseListener;
+import com.platypus.crw.VehicleServer;
+import com.platypus.crw.VehicleServer.DataType;
+import com.platypus.crw.data.UtmPose;
+import com.platypus.crw.udp.UdpConstants;
+import com.platypus.crw.udp.UdpServer;
+import com.platypus.crw.udp.UdpVehicleService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+
+/**
+ * UdpVehicleService with an additional, compact pose stream for clients that ask for it.
+ * <p/>
+ * A client registers with CMD_REGISTER_STATE_STREAM {int field mask, int max rate in Hz} and
+ * renews the registration like any other listener, at least once per
+ * REGISTRATION_TIMEOUT_COUNT registration periods. It then gets CMD_STATE_DELTA
+ * {unsigned byte length, StateStreamCodec packet} with only the fields it asked for, at
+ * most at its rate, and only when they change. Clients that register an ordinary pose
+ * listener still get every full pose, so existing operator software keeps working unchanged.
+ * <p/>
+ * A client that registers with CMD_REGISTER_MAP_STREAM, renewed the same way, gets the tiles
+ * of the on-board sensor maps that changed, checked once per registration period, as
+ * CMD_MAP_TILE {unsigned byte data type ordinal, unsigned byte zone | north << 7, float cell
+ * size, SensorMap.writeTile() payload}. A new map subscriber marks every tile changed, so it
+ * gets the whole map once; other subscribers get those tiles again too.
+ */
+class StateStreamService extends UdpVehicleService
+{
+		private static final String TAG = StateStreamService.class.getSimpleName();
+
+		static final String CMD_REGISTER_STATE_STREAM = "CMD_REGISTER_STATE_STREAM";
+		static final String CMD_STATE_DELTA = "CMD_STATE_DELTA";
+		static final String CMD_REGISTER_MAP_STREAM = "CMD_REGISTER_MAP_STREAM";
+		static final String CMD_MAP_TILE = "CMD_MAP_TILE";
+		static final long KEYFRAME_INTERVAL_MS = 1000;
+		static final int MAX_RATE_HZ = 10; // the rate the server updates its pose at
+
+		private static final class Subscriber
+		{
+				StateStreamCodec.Stream stream;
+				int ttl;
+		}
+
+		private final Map<SocketAddress, Subscriber> subscribers = new HashMap<>();
+		private final byte[] packet = new byte[StateStreamCodec.MAX_BYTES];
+		private final VehicleServer server;
+		private final SensorMaps maps;
+		private long bytes_sent = 0;
+		private long poses_sent = 0;
+
+		private final Map<SocketAddress, Integer> map_subscribers = new HashMap<>();
+		private final ByteArrayOutputStream tile_bytes = new ByteArrayOutputStream(UdpConstants.MAX_PACKET_SIZE);
+		private final DataOutputStream tile_stream = new DataOutputStream(tile_bytes);
+		private long tiles_sent = 0;
+
+		private final PoseListener pose_listener = new PoseListener()
+		{
+				@Override
+				public void receivedPose(UtmPose pose)
+				{
+						long now = System.currentTimeMillis();
+						synchronized (subscribers)
+						{
+								for (Map.Entry<SocketAddress, Subscriber> entry : subscribers.entrySet())
+								{
+										int n = StateStreamCodec.encode(entry.getValue().stream, pose, now, packet);
+										if (n == 0) continue;
+										try
+										{
+												UdpServer.Response response = new UdpServer.Response(UdpConstants.NO_TICKET, entry.getKey());
+												response.stream.writeUTF(CMD_STATE_DELTA);
+												response.stream.writeByte(n);
+												response.stream.write(packet, 0, n);
+												_udpServer.send(response);
+												bytes_sent += n;
+												poses_sent++;
+										}
+										catch (IOException e)
+										{
+												Log.w(TAG, "Failed to send state delta: " + e.getMessage());
+										}
+								}
+						}
+				}
+		};
+
+		private final TimerTask expiry_task = new TimerTask()
+		{
+				@Override
+				public void run()
+				{
+						synchronized (subscribers)
+						{
+								Iterator<Subscriber> it = subscribers.values().iterator();
+								while (it.hasNext())
+								{
+										if (--it.next().ttl < 0) it.remove();
+								}
+						}
+				}
+		};
+
+		private final TimerTask map_task = new TimerTask()
+		{
+				@Override
+				public void run()
+				{
+						synchronized (map_subscribers)
+						{
+								Iterator<Map.Entry<SocketAddress, Integer>> it = map_subscribers.entrySet().iterator();
+								while (it.hasNext())
+								{
+										Map.Entry<SocketAddress, Integer> entry = it.next();
+										if (entry.getValue() <= 0) it.remove();
+										else entry.setValue(entry.getValue() - 1);
+								}
+								// without subscribers the tiles stay dirty, a new one gets them all anyway
+								if (map_subscribers.isEmpty()) return;
+
+								long now = System.currentTimeMillis();
+								for (DataType type : maps.types())
+								{
+										SensorMap layer = maps.get(type);
+										for (SensorMap.Tile tile : layer.drainDirty())
+										{
+												try
+												{
+														tile_bytes.reset();
+														tile_stream.writeByte(type.ordinal());
+														tile_stream.writeByte(layer.zone() | (layer.isNorth() ? 0x80 : 0));
+														tile_stream.writeFloat((float)layer.cellSize());
+														layer.writeTile(tile, now, tile_stream);
+														for (SocketAddress address : map_subscribers.keySet())
+														{
+																UdpServer.Response response = new UdpServer.Response(UdpConstants.NO_TICKET, address);
+																response.stream.writeUTF(CMD_MAP_TILE);
+																tile_bytes.writeTo(response.stream);
+																_udpServer.send(response);
+																tiles_sent++;
+														}
+												}
+												catch (IOException e)
+												{
+														Log.w(TAG, "Failed to send map tile: " + e.getMessage());
+												}
+										}
+								}
+						}
+				}
+		};
+
+		StateStreamService(int port, VehicleServer _server, SensorMaps _maps)
+		{
+				super(port, _server);
+				server = _server;
+				maps = _maps;
+				server.addPoseListener(pose_listener);
+				_registrationTimer.scheduleAtFixedRate(expiry_task, 0, UdpConstants.REGISTRATION_RATE_MS);
+				_registrationTimer.scheduleAtFixedRate(map_task, 0, UdpConstants.REGISTRATION_RATE_MS);
+		}
+
+		@Override
+		public void received(UdpServer.Request req)
+		{
+				String command;
+				try
+				{
+						req.stream.mark(UdpConstants.MAX_PACKET_SIZE);
+						command = req.stream.readUTF();
+						if (CMD_REGISTER_MAP_STREAM.equals(command))
+						{
+								subscribeMap(req.source);
+								UdpServer.Response response = new UdpServer.Response(req);
+								response.stream.writeUTF(command);
+								_udpServer.respond(response);
+								return;
+						}
+						if (!CMD_REGISTER_STATE_STREAM.equals(command))
+						{
+								req.stream.reset();
+								super.received(req);
+								return;
+						}
+
+						int mask = req.stream.readInt() & StateStreamCodec.ALL_FIELDS;
+						int rate_hz = Math.max(1, Math.min(MAX_RATE_HZ, req.stream.readInt()));
+						if (mask == 0) mask = StateStreamCodec.PLANAR_FIELDS;
+						subscribe(req.source, mask, rate_hz);
+
+						UdpServer.Response response = new UdpServer.Response(req);
+						response.stream.writeUTF(command);
+						_udpServer.respond(response);
+				}
+				catch (IOException e)
+				{
+						Log.w(TAG, "Failed to parse request: " + e.getMessage());
+				}
+		}
+
+		/**
+		 * Adds or renews a subscriber. A renewal with the same mask and rate keeps the stream, so
+		 * the client does not get an extra keyframe.
+		 */
+		void subscribe(SocketAddress address, int mask, int rate_hz)
+		{
+				synchronized (subscribers)
+				{
+						Subscriber subscriber = subscribers.get(address);
+						if (subscriber == null)
+						{
+								subscriber = new Subscriber();
+								subscribers.put(address, subscriber);
+						}
+						// half an update of slack, so timer jitter does not skip every other pose
+						long interval_ms = 1000/rate_hz - 500/MAX_RATE_HZ;
+						if (subscriber.stream == null || subscriber.stream.mask != mask || subscriber.stream.interval_ms != interval_ms)
+						{
+								subscriber.stream = new StateStreamCodec.Stream(mask, interval_ms, KEYFRAME_INTERVAL_MS);
+						}
+						subscriber.ttl = UdpConstants.REGISTRATION_TIMEOUT_COUNT;
+				}
+		}
+
+		/**
+		 * Adds or renews a map subscriber. A new one gets every tile on the next map update.
+		 */
+		void subscribeMap(SocketAddress address)
+		{
+				synchronized (map_subscribers)
+				{
+						Integer previous = map_subscribers.put(address, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
+						if (previous != null) return;
+				}
+				for (DataType type : maps.types()) maps.get(type).markAllDirty();
+		}
+
+		int mapSubscriberCount()
+		{
+				synchronized (map_subscribers) { return map_subscribers.size(); }
+		}
+
+		long tilesSent()
+		{
+				synchronized (map_subscribers) { return tiles_sent; }
+		}
+
+		int subscriberCount()
+		{
+				synchronized (subscribers) { return subscribers.size(); }
+		}
+
+		/**
+		 * Bytes of encoded poses sent so far, without the command and packet headers.
+		 */
+		long bytesSent()
+		{
+				synchronized (subscribers) { return bytes_sent; }
+		}
+
+		long posesSent()
+		{
+				synchronized (subscribers) { return poses_sent; }
+		}
+
+		@Override
+		public void shutdown()
+		{
+				expiry_task.cancel();
+				map_task.cancel();
+				server.removePoseListener(pose_listener);
+				synchronized (subscribers) { subscribers.clear(); }
+				synchronized (map_subscribers) { map_subscribers.clear(); }
+				super.shutdown();
+		}
+}
@@ -0,0 +1,42 @@
+package com.platypus.android.server;
+
+/**
+ * Converts thrust and heading efforts into actuator signals for one hull type.
+ * <p/>
+ * A mixer is created with whatever gains it needs already resolved, and mix() runs on every
+ * update tick, so it works on primitives only and must not allocate. Mixers are registered by
+ * vehicle type in {@link ThrustMixers}.
+ */
+interface ThrustMixer
+{
+		/**
+		 * Upper bound on motorCount() and servoCount(), the size of the output arrays.
+		 */
+		int MAX_OUTPUTS = 8;
+
+		/**
+		 * Number of motor outputs written by mix(), sent as "m0", "m1", ...
+		 */
+		int motorCount();
+
+		/**
+		 * Number of servo outputs written by mix(), sent as "s0", "s1", ...
+		 */
+		int servoCount();
+
+		/**
+		 * @param thrust  forward effort, nominally in [-1, 1]
+		 * @param heading turning effort, nominally in [-1, 1], positive turns left
+		 * @param motors  receives motorCount() motor velocities
+		 * @param servos  receives servoCount() servo positions
+		 */
+		void mix(double thrust, double heading, double[] motors, double[] servos);
+
+		interface Factory
+		{
+				/**
+				 * @param thrust_gains the current thrust gains (axis 0), not kept by the mixer
+				 */
+				ThrustMixer create(double[] thrust_gains);
+		}
+}
@@ -0,0 +1,202 @@
+package com.platypus.android.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of thrust mixers by vehicle type (the values of pref_vehicle_type), plus the mixers for
+ * the stock hulls.
+ * <p/>
+ * A new hull only needs a ThrustMixer and a call to register() before the server starts, e.g.
+ * <pre>
+ *     ThrustMixers.register("QUAD_CATAMARAN", new ThrustMixer.Factory()
+ *     {
+ *         public ThrustMixer create(double[] thrust_gains) { return new QuadCatamaranMixer(); }
+ *     });
+ * </pre>
+ */
+final class ThrustMixers
+{
+		// Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
+		static final double SAFE_DIFFERENTIAL_THRUST = 1.0;
+		static final double SAFE_VECTORED_THRUST = 1.0;
+		// PROPGUARD scale between positive and negative thrust when the integral thrust gain is unset
+		static final double DEFAULT_PROPGUARD_SCALE = 5.0;
+
+		private static final ConcurrentHashMap<String, ThrustMixer.Factory> factories = new ConcurrentHashMap<>();
+
+		static
+		{
+				register("DIFFERENTIAL", new ThrustMixer.Factory()
+				{
+						@Override
+						public ThrustMixer create(double[] thrust_gains)
+						{
+								return new Differential(SAFE_DIFFERENTIAL_THRUST);
+						}
+				});
+				register("VECTORED", new ThrustMixer.Factory()
+				{
+						@Override
+						public ThrustMixer create(double[] thrust_gains)
+						{
+								return new Vectored(SAFE_VECTORED_THRUST);
+						}
+				});
+				register("PROPGUARD", new ThrustMixer.Factory()
+				{
+						@Override
+						public ThrustMixer create(double[] thrust_gains)
+						{
+								// try using the integral gain for thrust as the scale between positive and negative thrust
+								double scale = thrust_gains[1];
+								return new PropGuard(scale == 0 ? DEFAULT_PROPGUARD_SCALE : scale);
+						}
+				});
+		}
+
+		private ThrustMixers() { }
+
+		static void register(String vehicle_type, ThrustMixer.Factory factory)
+		{
+				factories.put(vehicle_type, factory);
+		}
+
+		/**
+		 * Removes a vehicle type. Mixers already created for it keep working.
+		 */
+		static void unregister(String vehicle_type)
+		{
+				factories.remove(vehicle_type);
+		}
+
+		static Set<String> vehicleTypes()
+		{
+				return Collections.unmodifiableSet(factories.keySet());
+		}
+
+		/**
+		 * @return a mixer for the vehicle type, or null if no mixer is registered for it
+		 */
+		static ThrustMixer create(String vehicle_type, double[] thrust_gains)
+		{
+				ThrustMixer.Factory factory = factories.get(vehicle_type);
+				if (factory == null) return null;
+				ThrustMixer mixer = factory.create(thrust_gains);
+				if (mixer.motorCount() > ThrustMixer.MAX_OUTPUTS || mixer.servoCount() > ThrustMixer.MAX_OUTPUTS)
+				{
+						throw new IllegalArgumentException(String.format("Mixer for %s has too many outputs", vehicle_type));
+				}
+				return mixer;
+		}
+
+		/**
+		 * Two fixed motors, turning by differential thrust.
+		 */
+		static final class Differential implements ThrustMixer
+		{
+				private final double safe_thrust;
+
+				Differential(double _safe_thrust) { safe_thrust = _safe_thrust; }
+
+				@Override public int motorCount() { return 2; }
+				@Override public int servoCount() { return 0; }
+
+				@Override
+				public void mix(double thrust, double heading, double[] motors, double[] servos)
+				{
+						motors[0] = map(clip(thrust - heading, -1.0, 1.0), -1.0, 1.0, -safe_thrust, safe_thrust);
+						motors[1] = map(clip(thrust + heading, -1.0, 1.0), -1.0, 1.0, -safe_thrust, safe_thrust);
+				}
+		}
+
+		/**
+		 * One motor on a rudder servo.
+		 */
+		static final class Vectored implements ThrustMixer
+		{
+				private final double safe_thrust;
+
+				Vectored(double _safe_thrust) { safe_thrust = _safe_thrust; }
+
+				@Override public int motorCount() { return 1; }
+				@Override public int servoCount() { return 1; }
+
+				@Override
+				public void mix(double thrust, double heading, double[] motors, double[] servos)
+				{
+						motors[0] = map(clip(thrust, -1.0, 1.0), 0.0, 1.0, 0.0, safe_thrust);
+						// Rudder is constrained to +/-1.0, and reversed
+						servos[0] = -clip(heading, -1.0, 1.0);
+				}
+		}
+
+		/**
+		 * Differential drive with prop guards, which push much less in reverse. When turning in place
+		 * the forward motor is scaled down so the two motors push equally.
+		 */
+		static final class PropGuard implements ThrustMixer
+		{
+				private final double guard_scale;
+
+				PropGuard(double _guard_scale) { guard_scale = _guard_scale; }
+
+				@Override public int motorCount() { return 2; }
+				@Override public int servoCount() { return 0; }
+
+				@Override
+				public void mix(double thrust, double heading, double[] motors, double[] servos)
+				{
+						double v0 = thrust - heading;
+						double v1 = thrust + heading;
+
+						// if either motor is out of range, scale both down together
+						double max_signal = Math.max(Math.abs(v0), Math.abs(v1));
+						if (max_signal > 1.0)
+						{
+								v0 /= max_signal;
+								v1 /= max_signal;
+						}
+
+						// reduce positive motor signals if turning in place
+						if (v0 > 0 && v1 < 0) v0 /= guard_scale;
+						if (v0 < 0 && v1 > 0) v1 /= guard_scale;
+						motors[0] = v0;
+						motors[1] = v1;
+				}
+		}
+
+		/**
+		 * Simple clipping function that restricts a value to a given range.
+		 *
+		 * @param input value that needs to be clipped
+		 * @param min   minimum allowable value
+		 * @param max   maximum allowable value
+		 * @return value after it has been clipped between min and max.
+		 */
+		static double clip(double input, double min, double max)
+		{
+				return Math.min(Math.max(input, min), max);
+		}
+
+		/**
+		 * Simple linear scaling function that maps a value from a given input range to a desired output range.
+		 * <p/>
+		 * This does *not* clip out of range values.  To invert values, swap min and max.
+		 *
+		 * @param input      value that needs to be scaled
+		 * @param input_min  lower bound of original mapping
+		 * @param input_max  upper bound of original mapping
+		 * @param output_min lower bound of desired mapping
+		 * @param output_max upper bound of desired mapping.
+		 * @return the input value mapped into the output range.
+		 */
+		static double map(double input,
+		                  double input_min, double input_max,
+		                  double output_min, double output_max)
+		{
+				return (input - input_min) / (input_max - input_min)
+								* (output_max - output_min) + output_min;
+		}
+}
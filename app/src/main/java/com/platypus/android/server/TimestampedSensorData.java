@@ -2,98 +2,155 @@ package com.platypus.android.server;
 
 import com.platypus.crw.data.SensorData;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.BitSet;
 
 /**
  * Created by jason on 10/17/17.
  *
+ * Bounded store of recent sensor readings waiting to be acknowledged by the listener.
+ * <p/>
+ * Readings get consecutive ids and live in a ring of CAPACITY slots indexed by id, so the slot of
+ * an id is known without a lookup, and once the ring is full each new reading overwrites the
+ * oldest one. A bitmap marks the slots that have not been acknowledged yet. Adding, evicting,
+ * acknowledging and finding the next unsent reading touch one slot plus at most one scan of the
+ * CAPACITY/64 bitmap words, and nothing is boxed or allocated.
  */
-
-class TimestampedSensorData
+final class TimestampedSensorData
 {
+		static final int CAPACITY = 1024; // power of two
+		private static final int MASK = CAPACITY - 1;
+
 		private static final Object lock = new Object();
-		private static long count = 0;
-		private static final long count_cutoff = 1000; // start purging stored values once you hit this
-		static HashMap<Long, TimestampedSensorData> allSensorData = new HashMap<>();
-		private static HashMap<Long, TimestampedSensorData> unsentSensorData = new HashMap<>();
+		private static final SensorData[] data = new SensorData[CAPACITY];
+		private static final long[] timestamps = new long[CAPACITY];
+		private static final BitSet unsent = new BitSet(CAPACITY);
+		private static long next_id = 0; // ids next_id - size up to next_id - 1 are stored
+		private static int size = 0;
+		private static int unsent_count = 0;
+		private static long evicted_unsent = 0;
 
-		static TimestampedSensorData getRandomDatum()
+		private TimestampedSensorData() { }
+
+		/**
+		 * Stores a reading as unsent, evicting the oldest reading if the ring is full.
+		 *
+		 * @return the id of the reading
+		 */
+		static long add(SensorData sd)
 		{
 				synchronized (lock)
 				{
-						// pull from the unsent data and send it
-						if (unsentSensorData.size() < 1) return null;
-						Long[] unsent_ids = unsentSensorData.keySet().toArray(new Long[0]);
-						int random_index = ThreadLocalRandom.current().nextInt(0, unsentSensorData.size());
-						long index = unsent_ids[random_index];
-						return unsentSensorData.get(index);
+						long id = next_id++;
+						int slot = (int)(id & MASK);
+						if (size == CAPACITY)
+						{
+								// the slot holds the oldest reading
+								if (unsent.get(slot))
+								{
+										unsent_count--;
+										evicted_unsent++;
+								}
+						}
+						else
+						{
+								size++;
+						}
+						data[slot] = sd;
+						timestamps[slot] = System.currentTimeMillis();
+						unsent.set(slot);
+						unsent_count++;
+						return id;
 				}
 		}
 
-		static void purgeAll()
+		/**
+		 * @return the smallest id greater than after of an unacknowledged reading, or -1 if there is none
+		 */
+		static long nextUnsent(long after)
 		{
 				synchronized (lock)
 				{
-						allSensorData.clear();
-						unsentSensorData.clear();
+						long start_id = Math.max(after + 1, next_id - size);
+						if (start_id >= next_id || unsent_count == 0) return -1;
+						int start_slot = (int)(start_id & MASK);
+						int slot = unsent.nextSetBit(start_slot);
+						if (slot < 0) slot = unsent.nextSetBit(0);
+						if (slot < 0) return -1;
+						// past the wrap, slots hold newer ids first and then ids older than start_id
+						long id = start_id + ((slot - start_slot) & MASK);
+						return id < next_id ? id : -1;
 				}
 		}
 
-		private static void purgeOldest()
+		/**
+		 * @return true if the reading with this id is stored and not acknowledged
+		 */
+		static boolean isUnsent(long id)
 		{
 				synchronized (lock)
 				{
-						long t = System.currentTimeMillis();
-						long oldest_id = 0;
-						for (Map.Entry<Long, TimestampedSensorData> entry : allSensorData.entrySet())
-						{
-								long timestamp = entry.getValue().getTimestamp();
-								if (timestamp < t)
-								{
-										t = timestamp;
-										oldest_id = entry.getKey();
-								}
-						}
-						if (unsentSensorData.containsKey(oldest_id)) unsentSensorData.remove(oldest_id);
-						allSensorData.remove(oldest_id);
+						return isStored(id) && unsent.get((int)(id & MASK));
 				}
 		}
 
-		static void acknowledged(long id)
+		/**
+		 * @return the reading with this id, or null if it was evicted or never stored
+		 */
+		static SensorData get(long id)
 		{
 				synchronized (lock)
 				{
-						allSensorData.get(id).listener_acknowledged = true;
-						if (unsentSensorData.containsKey(id)) unsentSensorData.remove(id);
+						return isStored(id) ? data[(int)(id & MASK)] : null;
 				}
 		}
 
-		private SensorData sensorData;
-		private long timestamp;
-		private long id;
-		private boolean listener_acknowledged;
+		/**
+		 * @return when the reading with this id was stored, in ms, or -1 if it is not stored
+		 */
+		static long timestamp(long id)
+		{
+				synchronized (lock)
+				{
+						return isStored(id) ? timestamps[(int)(id & MASK)] : -1;
+				}
+		}
 
-		TimestampedSensorData(SensorData sd)
+		static void acknowledged(long id)
 		{
-				sensorData = sd;
-				timestamp = System.currentTimeMillis();
-				id = count++;
-				listener_acknowledged = false;
 				synchronized (lock)
 				{
-						allSensorData.put(id, this);
-						unsentSensorData.put(id, this);
+						if (!isStored(id)) return;
+						int slot = (int)(id & MASK);
+						if (unsent.get(slot))
+						{
+								unsent.clear(slot);
+								unsent_count--;
+						}
 				}
-				if (allSensorData.size() > count_cutoff)
+		}
+
+		static void purgeAll()
+		{
+				synchronized (lock)
 				{
-						purgeOldest();
+						for (int i = 0; i < CAPACITY; i++) data[i] = null;
+						unsent.clear();
+						size = 0;
+						unsent_count = 0;
+						evicted_unsent = 0;
 				}
 		}
 
-		public SensorData getSensorData() { return sensorData; }
-		public long getId() { return id; }
-		private long getTimestamp() { return timestamp; }
+		static int size() { synchronized (lock) { return size; } }
+		static int unsentCount() { synchronized (lock) { return unsent_count; } }
 
+		/**
+		 * Number of readings overwritten before they were acknowledged.
+		 */
+		static long evictedUnsent() { synchronized (lock) { return evicted_unsent; } }
+
+		private static boolean isStored(long id)
+		{
+				return id >= next_id - size && id < next_id;
+		}
 }
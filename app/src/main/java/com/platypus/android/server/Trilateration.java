@@ -0,0 +1,211 @@
+package com.platypus.android.server;
+
+/**
+ * 2D position from ranges to any number of fixed anchors, by weighted Gauss-Newton least squares.
+ * <p/>
+ * Anchors are given in a local metric frame (e.g. meters east and north of one of them). The
+ * first solve starts from the linearized closed-form solution; later solves start from the
+ * previous fix, which is normally within a few centimeters at ranging rates. After convergence,
+ * while more than three anchors are in use, the anchor with the largest weighted residual is
+ * dropped if that residual exceeds the rejection threshold, and the fix is refined without it.
+ * <p/>
+ * All work arrays are allocated up front, so a solve does not allocate. Not thread safe.
+ */
+final class Trilateration
+{
+		private static final int MAX_ITERATIONS = 10;
+		private static final double CONVERGED_STEP = 1e-4; // meters
+		private static final int MIN_ANCHORS = 3;
+
+		private final double[] xs, ys;
+		private final double rejection_residual;
+		private final double[] residuals;
+		private final boolean[] active;
+		private boolean have_fix = false;
+		private double x, y;
+		private double rms;
+		private int used;
+		private double cov_xx, cov_xy, cov_yy;
+
+		/**
+		 * @param anchor_xs          anchor positions in the local frame, in meters
+		 * @param rejection_residual weighted residual in meters beyond which an anchor is dropped
+		 */
+		Trilateration(double[] anchor_xs, double[] anchor_ys, double rejection_residual)
+		{
+				if (anchor_xs.length != anchor_ys.length) throw new IllegalArgumentException("Anchor coordinates differ in length");
+				if (anchor_xs.length < MIN_ANCHORS) throw new IllegalArgumentException("Trilateration needs at least 3 anchors");
+				xs = anchor_xs.clone();
+				ys = anchor_ys.clone();
+				this.rejection_residual = rejection_residual;
+				residuals = new double[xs.length];
+				active = new boolean[xs.length];
+		}
+
+		int anchorCount() { return xs.length; }
+		double x() { return x; }
+		double y() { return y; }
+
+		/**
+		 * Root mean square of the residuals of the anchors used in the last fix, in meters.
+		 */
+		double rms() { return rms; }
+
+		/**
+		 * Covariance of the last fix in m^2, the inverse of the weighted normal matrix. It is only
+		 * meaningful if the weights given to solve() were inverse range variances.
+		 */
+		double covarianceXX() { return cov_xx; }
+		double covarianceXY() { return cov_xy; }
+		double covarianceYY() { return cov_yy; }
+
+		/**
+		 * Number of anchors used in the last fix.
+		 */
+		int used() { return used; }
+
+		/**
+		 * Whether anchor i was used in the last fix, i.e. had a positive weight and was not rejected.
+		 */
+		boolean isUsed(int i) { return active[i]; }
+
+		/**
+		 * Residual of anchor i in the last fix, distance to the fix minus measured range, in meters.
+		 */
+		double residual(int i) { return residuals[i]; }
+
+		/**
+		 * Forgets the previous fix, so the next solve starts from the closed-form solution.
+		 */
+		void reset() { have_fix = false; }
+
+		/**
+		 * @param ranges  measured range to each anchor, in meters
+		 * @param weights inverse variance of each range, or null for equal weights. Anchors with
+		 *                zero weight are ignored.
+		 * @return true if a fix was found, available from x() and y()
+		 */
+		boolean solve(double[] ranges, double[] weights)
+		{
+				used = 0;
+				for (int i = 0; i < xs.length; i++)
+				{
+						active[i] = weight(weights, i) > 0 && ranges[i] > 0;
+						if (active[i]) used++;
+				}
+				if (used < MIN_ANCHORS) return false;
+
+				if (!have_fix && !initialGuess(ranges, weights)) return false;
+				while (true)
+				{
+						if (!iterate(ranges, weights))
+						{
+								have_fix = false;
+								return false;
+						}
+						if (used <= MIN_ANCHORS) break;
+						int worst = -1;
+						double worst_residual = rejection_residual;
+						for (int i = 0; i < xs.length; i++)
+						{
+								if (!active[i]) continue;
+								double weighted = Math.abs(residuals[i])*Math.sqrt(weight(weights, i));
+								if (weighted > worst_residual)
+								{
+										worst_residual = weighted;
+										worst = i;
+								}
+						}
+						if (worst < 0) break;
+						active[worst] = false;
+						used--;
+				}
+				have_fix = true;
+				return true;
+		}
+
+		private static double weight(double[] weights, int i)
+		{
+				return weights == null ? 1.0 : weights[i];
+		}
+
+		/**
+		 * Gauss-Newton from the current (x, y) over the active anchors, filling residuals and rms.
+		 */
+		private boolean iterate(double[] ranges, double[] weights)
+		{
+				for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++)
+				{
+						double a00 = 0, a01 = 0, a11 = 0, b0 = 0, b1 = 0;
+						for (int i = 0; i < xs.length; i++)
+						{
+								if (!active[i]) continue;
+								double dx = x - xs[i];
+								double dy = y - ys[i];
+								double r = Math.max(1e-6, Math.sqrt(dx*dx + dy*dy));
+								double jx = dx/r, jy = dy/r;
+								double w = weight(weights, i);
+								double residual = r - ranges[i];
+								a00 += w*jx*jx;
+								a01 += w*jx*jy;
+								a11 += w*jy*jy;
+								b0 += w*jx*residual;
+								b1 += w*jy*residual;
+						}
+						double det = a00*a11 - a01*a01;
+						if (!(Math.abs(det) > 1e-12*(a00 + a11)*(a00 + a11))) return false;
+						double step_x = (a11*b0 - a01*b1)/det;
+						double step_y = (a00*b1 - a01*b0)/det;
+						cov_xx = a11/det;
+						cov_xy = -a01/det;
+						cov_yy = a00/det;
+						x -= step_x;
+						y -= step_y;
+						if (step_x*step_x + step_y*step_y < CONVERGED_STEP*CONVERGED_STEP) break;
+				}
+
+				double sum = 0;
+				for (int i = 0; i < xs.length; i++)
+				{
+						double dx = x - xs[i];
+						double dy = y - ys[i];
+						residuals[i] = Math.sqrt(dx*dx + dy*dy) - ranges[i];
+						if (active[i]) sum += residuals[i]*residuals[i];
+				}
+				rms = Math.sqrt(sum/used);
+				return !Double.isNaN(x) && !Double.isNaN(y);
+		}
+
+		/**
+		 * Closed-form start: subtracting the range equation of the first active anchor from the
+		 * others leaves equations linear in (x, y), solved here by weighted least squares.
+		 */
+		private boolean initialGuess(double[] ranges, double[] weights)
+		{
+				int ref = 0;
+				while (!active[ref]) ref++;
+				double xr = xs[ref], yr = ys[ref];
+				double dr2 = ranges[ref]*ranges[ref];
+				double a00 = 0, a01 = 0, a11 = 0, b0 = 0, b1 = 0;
+				for (int i = ref + 1; i < xs.length; i++)
+				{
+						if (!active[i]) continue;
+						// 2(xi - xr) x + 2(yi - yr) y = dr^2 - di^2 + |ai|^2 - |ar|^2, relative to the reference
+						double ax = 2*(xs[i] - xr);
+						double ay = 2*(ys[i] - yr);
+						double dx = xs[i] - xr, dy = ys[i] - yr;
+						double rhs = dr2 - ranges[i]*ranges[i] + dx*dx + dy*dy;
+						double w = weight(weights, i);
+						a00 += w*ax*ax;
+						a01 += w*ax*ay;
+						a11 += w*ay*ay;
+						b0 += w*ax*rhs;
+						b1 += w*ay*rhs;
+				}
+				double det = a00*a11 - a01*a01;
+				if (!(Math.abs(det) > 1e-12*(a00 + a11)*(a00 + a11))) return false;
+				x = xr + (a11*b0 - a01*b1)/det;
+				y = yr + (a00*b1 - a01*b0)/det;
+				return true;
+		}
+}
@@ -0,0 +1,261 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * Allocation-free WGS84 Universal Transverse Mercator projection.
+ * <p/>
+ * Uses the 6th order Krueger series (Karney 2011), which is accurate to well under a millimeter
+ * within a UTM zone. All inputs and outputs are primitive doubles so the projection can be called
+ * from the control loop and sensor callbacks without creating jscience Measure/Amount objects.
+ * Latitudes and longitudes are in degrees, eastings and northings in meters.
+ */
+final class UtmProjection
+{
+		// WGS84 ellipsoid
+		private static final double A = 6378137.0;
+		private static final double F = 1.0/298.257223563;
+		private static final double K0 = 0.9996;
+		private static final double FALSE_EASTING = 500000.0;
+		private static final double FALSE_NORTHING_SOUTH = 10000000.0;
+
+		private static final double E2 = F*(2.0 - F);
+		private static final double E = Math.sqrt(E2);
+		private static final double ONE_MINUS_E2 = 1.0 - E2;
+		private static final double N = F/(2.0 - F);
+
+		// rectifying radius scaled by the central meridian scale factor
+		private static final double K0_A;
+
+		// series coefficients, index 0 is unused so that ALPHA[j] multiplies sin(2*j*xi)
+		private static final double[] ALPHA = new double[7];
+		private static final double[] BETA = new double[7];
+
+		// central meridian of every zone in radians, index 0 is unused
+		private static final double[] CENTRAL_MERIDIAN = new double[61];
+
+		static
+		{
+				double n2 = N*N, n3 = n2*N, n4 = n3*N, n5 = n4*N, n6 = n5*N;
+				K0_A = K0*A/(1.0 + N)*(1.0 + n2/4.0 + n4/64.0 + n6/256.0);
+
+				ALPHA[1] = N/2 - 2*n2/3 + 5*n3/16 + 41*n4/180 - 127*n5/288 + 7891*n6/37800;
+				ALPHA[2] = 13*n2/48 - 3*n3/5 + 557*n4/1440 + 281*n5/630 - 1983433*n6/1935360;
+				ALPHA[3] = 61*n3/240 - 103*n4/140 + 15061*n5/26880 + 167603*n6/181440;
+				ALPHA[4] = 49561*n4/161280 - 179*n5/168 + 6601661*n6/7257600;
+				ALPHA[5] = 34729*n5/80640 - 3418889*n6/1995840;
+				ALPHA[6] = 212378941*n6/319334400;
+
+				BETA[1] = N/2 - 2*n2/3 + 37*n3/96 - n4/360 - 81*n5/512 + 96199*n6/604800;
+				BETA[2] = n2/48 + n3/15 - 437*n4/1440 + 46*n5/105 - 1118711*n6/3870720;
+				BETA[3] = 17*n3/480 - 37*n4/840 - 209*n5/4480 + 5569*n6/90720;
+				BETA[4] = 4397*n4/161280 - 11*n5/504 - 830251*n6/7257600;
+				BETA[5] = 4583*n5/161280 - 108847*n6/3991680;
+				BETA[6] = 20648693*n6/638668800;
+
+				for (int zone = 1; zone <= 60; zone++)
+				{
+						CENTRAL_MERIDIAN[zone] = Math.toRadians(zone*6.0 - 183.0);
+				}
+		}
+
+		private UtmProjection() { }
+
+		/**
+		 * Returns the UTM longitude zone of a location, including the Norway and Svalbard exceptions.
+		 */
+		static int zone(double latitude, double longitude)
+		{
+				if (longitude >= 180.0) longitude -= 360.0;
+				if (longitude < -180.0) longitude += 360.0;
+				int zone = (int)Math.floor((longitude + 180.0)/6.0) + 1;
+				if (zone > 60) zone = 60;
+
+				if (latitude >= 56.0 && latitude < 64.0 && longitude >= 3.0 && longitude < 12.0)
+				{
+						return 32;
+				}
+				if (latitude >= 72.0 && latitude < 84.0 && longitude >= 0.0 && longitude < 42.0)
+				{
+						if (longitude < 9.0) return 31;
+						if (longitude < 21.0) return 33;
+						if (longitude < 33.0) return 35;
+						return 37;
+				}
+				return zone;
+		}
+
+		/**
+		 * Projects a latitude/longitude into its natural UTM zone.
+		 *
+		 * @param en receives {easting, northing}
+		 * @return the zone that was used, the hemisphere is north if latitude >= 0
+		 */
+		static int latLongToUtm(double latitude, double longitude, double[] en)
+		{
+				int zone = zone(latitude, longitude);
+				latLongToUtm(latitude, longitude, zone, latitude >= 0.0, en, 0);
+				return zone;
+		}
+
+		/**
+		 * Projects a latitude/longitude into a specific UTM zone and hemisphere.
+		 * Forcing the zone keeps coordinates continuous for missions that straddle a zone boundary.
+		 *
+		 * @param en     receives easting at en[offset] and northing at en[offset + 1]
+		 * @param offset index into en
+		 */
+		static void latLongToUtm(double latitude, double longitude, int zone, boolean isNorth,
+		                         double[] en, int offset)
+		{
+				double phi = Math.toRadians(latitude);
+				double lambda = Math.toRadians(longitude) - CENTRAL_MERIDIAN[zone];
+				if (lambda > Math.PI) lambda -= 2.0*Math.PI;
+				if (lambda < -Math.PI) lambda += 2.0*Math.PI;
+
+				// conformal latitude, in terms of its tangent
+				double tau = Math.tan(phi);
+				double tau_prime = conformalTangent(tau);
+
+				double cos_lambda = Math.cos(lambda);
+				double xi_prime = Math.atan2(tau_prime, cos_lambda);
+				double eta_prime = asinh(Math.sin(lambda)/Math.sqrt(tau_prime*tau_prime + cos_lambda*cos_lambda));
+
+				// sum the series using angle addition for the higher harmonics
+				double s1 = Math.sin(2.0*xi_prime), c1 = Math.cos(2.0*xi_prime);
+				double exp_eta = Math.exp(2.0*eta_prime);
+				double sh1 = 0.5*(exp_eta - 1.0/exp_eta), ch1 = 0.5*(exp_eta + 1.0/exp_eta);
+				double s = s1, c = c1, sh = sh1, ch = ch1;
+				double xi = xi_prime, eta = eta_prime;
+				for (int j = 1; j <= 6; j++)
+				{
+						xi += ALPHA[j]*s*ch;
+						eta += ALPHA[j]*c*sh;
+						double s_next = s*c1 + c*s1;
+						double c_next = c*c1 - s*s1;
+						double sh_next = sh*ch1 + ch*sh1;
+						double ch_next = ch*ch1 + sh*sh1;
+						s = s_next; c = c_next; sh = sh_next; ch = ch_next;
+				}
+
+				en[offset] = FALSE_EASTING + K0_A*eta;
+				en[offset + 1] = K0_A*xi + (isNorth ? 0.0 : FALSE_NORTHING_SOUTH);
+		}
+
+		/**
+		 * Converts UTM coordinates back into latitude/longitude.
+		 *
+		 * @param latlng receives latitude at latlng[offset] and longitude at latlng[offset + 1]
+		 * @param offset index into latlng
+		 */
+		static void utmToLatLong(double easting, double northing, int zone, boolean isNorth,
+		                         double[] latlng, int offset)
+		{
+				double xi = (northing - (isNorth ? 0.0 : FALSE_NORTHING_SOUTH))/K0_A;
+				double eta = (easting - FALSE_EASTING)/K0_A;
+
+				double s1 = Math.sin(2.0*xi), c1 = Math.cos(2.0*xi);
+				double exp_eta = Math.exp(2.0*eta);
+				double sh1 = 0.5*(exp_eta - 1.0/exp_eta), ch1 = 0.5*(exp_eta + 1.0/exp_eta);
+				double s = s1, c = c1, sh = sh1, ch = ch1;
+				double xi_prime = xi, eta_prime = eta;
+				for (int j = 1; j <= 6; j++)
+				{
+						xi_prime -= BETA[j]*s*ch;
+						eta_prime -= BETA[j]*c*sh;
+						double s_next = s*c1 + c*s1;
+						double c_next = c*c1 - s*s1;
+						double sh_next = sh*ch1 + ch*sh1;
+						double ch_next = ch*ch1 + sh*sh1;
+						s = s_next; c = c_next; sh = sh_next; ch = ch_next;
+				}
+
+				double sinh_eta_prime = Math.sinh(eta_prime);
+				double cos_xi_prime = Math.cos(xi_prime);
+				double tau_prime = Math.sin(xi_prime)/Math.sqrt(sinh_eta_prime*sinh_eta_prime + cos_xi_prime*cos_xi_prime);
+
+				// invert the conformal latitude with Newton's method, converges in 2-3 iterations
+				double tau = tau_prime;
+				for (int i = 0; i < 5; i++)
+				{
+						double tau_i_prime = conformalTangent(tau);
+						double delta = (tau_prime - tau_i_prime)/Math.sqrt(1.0 + tau_i_prime*tau_i_prime)
+										*(1.0 + ONE_MINUS_E2*tau*tau)/(ONE_MINUS_E2*Math.sqrt(1.0 + tau*tau));
+						tau += delta;
+						if (Math.abs(delta) < 1e-14) break;
+				}
+
+				latlng[offset] = Math.toDegrees(Math.atan(tau));
+				latlng[offset + 1] = Math.toDegrees(CENTRAL_MERIDIAN[zone] + Math.atan2(sinh_eta_prime, cos_xi_prime));
+		}
+
+		/**
+		 * Projects a batch of interleaved {lat, lng, lat, lng, ...} points into a single zone.
+		 *
+		 * @param latlngs interleaved latitude/longitude pairs
+		 * @param en      receives interleaved easting/northing pairs, may be the same array as latlngs
+		 * @param count   number of points (not array elements)
+		 */
+		static void latLongToUtm(double[] latlngs, int zone, boolean isNorth, double[] en, int count)
+		{
+				for (int i = 0; i < 2*count; i += 2)
+				{
+						latLongToUtm(latlngs[i], latlngs[i + 1], zone, isNorth, en, i);
+				}
+		}
+
+		/**
+		 * Converts a batch of interleaved {easting, northing, ...} points from a single zone.
+		 *
+		 * @param en      interleaved easting/northing pairs
+		 * @param latlngs receives interleaved latitude/longitude pairs, may be the same array as en
+		 * @param count   number of points (not array elements)
+		 */
+		static void utmToLatLong(double[] en, int zone, boolean isNorth, double[] latlngs, int count)
+		{
+				for (int i = 0; i < 2*count; i += 2)
+				{
+						utmToLatLong(en[i], en[i + 1], zone, isNorth, latlngs, i);
+				}
+		}
+
+		/**
+		 * Convenience wrapper that builds the UtmPose used throughout the server.
+		 */
+		static UtmPose toUtmPose(double latitude, double longitude)
+		{
+				double[] en = new double[2];
+				int zone = latLongToUtm(latitude, longitude, en);
+				return new UtmPose(new Pose3D(en[0], en[1], 0.0, 0.0, 0.0, 0.0), new Utm(zone, latitude >= 0.0));
+		}
+
+		/**
+		 * Convenience wrapper returning {latitude, longitude} of a UtmPose.
+		 */
+		static double[] toLatLong(UtmPose utmPose)
+		{
+				double[] latlng = new double[2];
+				utmToLatLong(utmPose.pose.getX(), utmPose.pose.getY(),
+								utmPose.origin.zone, utmPose.origin.isNorth, latlng, 0);
+				return latlng;
+		}
+
+		private static double conformalTangent(double tau)
+		{
+				double tau1 = Math.sqrt(1.0 + tau*tau);
+				double sigma = Math.sinh(E*atanh(E*tau/tau1));
+				return tau*Math.sqrt(1.0 + sigma*sigma) - sigma*tau1;
+		}
+
+		private static double asinh(double x)
+		{
+				return Math.copySign(Math.log(Math.abs(x) + Math.sqrt(x*x + 1.0)), x);
+		}
+
+		private static double atanh(double x)
+		{
+				return 0.5*Math.log((1.0 + x)/(1.0 - x));
+		}
+}
@@ -54,6 +54,10 @@ public class VehicleLogger {
      * Internal timestamp of when log was created.
      */
     private long mStartTime;
+    /**
+     * Reusable line buffer for entries that are logged from raw bytes.
+     */
+    private char[] mLineBuffer = new char[256];
 
     /**
      * Create a new vehicle log file.
@@ -97,6 +101,13 @@ public class VehicleLogger {
         return DEFAULT_LOG_PREFIX + sdf.format(d) + ".txt";
     }
 
+    /**
+     * The directory holding the log files, for files that log entries refer to by name.
+     */
+    public File directory() {
+        return mLogFileFinal.getParentFile();
+    }
+
     public synchronized void close() {
         // Close the data log (a new one will be created on restart)
         if (mLogWriter != null) {
@@ -124,6 +135,58 @@ public class VehicleLogger {
         mLogWriter.println(message);
     }
 
+    /**
+     * Creates a log entry of the form {"key":json} from JSON that is already encoded as ASCII
+     * bytes, e.g. a command that was just sent to the controller board. Unlike the JSONObject
+     * methods, this does not allocate once the line buffer is large enough.
+     *
+     * @param key    the name of the entry
+     * @param json   ASCII encoded JSON value
+     * @param length number of bytes of json to log
+     */
+    public synchronized void log(Level level, String key, byte[] json, int length) {
+        if (mLogWriter == null)
+            return;
+
+        int needed = 20 + 4 + key.length() + 5 + length + 1;
+        if (mLineBuffer.length < needed)
+            mLineBuffer = new char[2 * needed];
+        char[] line = mLineBuffer;
+
+        // Write the elapsed time digits backwards, then shift them into place.
+        long elapsed = Math.max(0, System.currentTimeMillis() - mStartTime);
+        int n = 0;
+        do {
+            line[n++] = (char) ('0' + elapsed % 10);
+            elapsed /= 10;
+        } while (elapsed > 0);
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            char c = line[i];
+            line[i] = line[j];
+            line[j] = c;
+        }
+
+        line[n++] = '\t';
+        line[n++] = level.code().charAt(0);
+        line[n++] = '\t';
+        line[n++] = '{';
+        line[n++] = '"';
+        for (int i = 0; i < key.length(); i++)
+            line[n++] = key.charAt(i);
+        line[n++] = '"';
+        line[n++] = ':';
+        for (int i = 0; i < length; i++)
+            line[n++] = (char) json[i];
+        line[n++] = '}';
+
+        mLogWriter.write(line, 0, n);
+        mLogWriter.println();
+    }
+
+    public synchronized void info(String key, byte[] json, int length) {
+        log(Level.INFO, key, json, length);
+    }
+
     public synchronized void debug(JSONObject obj) {
         log(Level.DEBUG, obj);
     }
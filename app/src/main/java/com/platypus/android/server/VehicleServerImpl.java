@@ -11,7 +11,6 @@ import android.util.Log;
 
 import com.platypus.crw.AbstractVehicleServer;
 import com.platypus.crw.VehicleController;
-import com.platypus.crw.VehicleFilter;
 import com.platypus.crw.VehicleServer;
 import com.platypus.crw.data.SensorData;
 import com.platypus.crw.data.Twist;
@@ -19,12 +18,11 @@ import com.platypus.crw.data.Utm;
 import com.platypus.crw.data.UtmPose;
 
 import org.jscience.geography.coordinates.LatLong;
-import org.jscience.geography.coordinates.UTM;
-import org.jscience.geography.coordinates.crs.ReferenceEllipsoid;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -32,16 +30,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.measure.unit.NonSI;
-import javax.measure.unit.SI;
 
 import com.platypus.crw.data.Pose3D;
-import com.platypus.crw.data.Quaternion;
 
 /**
  * Contains the actual implementation of vehicle functionality, accessible as a
@@ -55,6 +48,9 @@ public class VehicleServerImpl extends AbstractVehicleServer
 {
 
 		private static final int UPDATE_INTERVAL_MS = 100;
+		private static final String CRUMB_STORE_FILENAME = "crumbs.bin";
+		private static final String SENSOR_SPOOL_FILENAME = "sensors.spool";
+		private static final int SENSOR_SPOOL_RECORDS = 1 << 18; // 12 MB, hours of readings at survey rates
 
 		////////////////////////////////////////////////////////////////////////////////////////////////
 		// ASDF
@@ -104,6 +100,8 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				STOP_SAMPLER("sampler_stop"),
 				RESET_SAMPLER("sampler_reset"),
 				START_SAMPLER_TEST("start_sampler_test"),
+				EXPLORE("explore"),
+				COVER("cover"),
 				DO_NOTHING("do_nothing");
 
 				final String name;
@@ -164,6 +162,13 @@ public class VehicleServerImpl extends AbstractVehicleServer
 						}
 						case START_SAMPLER:
 						{
+								UtmPose sample_pose = getState(VehicleState.States.CURRENT_POSE.name);
+								if (mSampledLocations.isCrowded(sample_pose.pose.getX(), sample_pose.pose.getY()))
+								{
+										Log.w("AP", String.format("Already sampled within %.0f m. Ignoring START_SAMPLER command", mSampledLocations.spacing()));
+										return;
+								}
+
 								// First, find next available sample jar
 								Object retrieval = getState(VehicleState.States.NEXT_AVAILABLE_JAR.name);
 								if (retrieval == null)
@@ -194,7 +199,7 @@ public class VehicleServerImpl extends AbstractVehicleServer
 														Log.v("AP", String.format("Before insertWaypoint: \n" +
 																		"# of WPs = %d\n" +
 																		"current index = %d\n" +
-																		"WPs: %s", _waypoints.length, current_waypoint_index.get(), Arrays.toString(_waypoints)));
+																		"WPs: %s", mWaypointPlan.size(), current_waypoint_index.get(), mWaypointPlan));
 														*/
 
 														final long SAMPLER_STATION_KEEP_TIME = 4*60*1000; // TODO: don't hardcode this
@@ -208,7 +213,7 @@ public class VehicleServerImpl extends AbstractVehicleServer
 														Log.v("AP", String.format("After insertWaypoint: \n" +
 																		"# of WPs = %d\n" +
 																		"current index = %d\n" +
-																		"WPs: %s", _waypoints.length, current_waypoint_index.get(), Arrays.toString(_waypoints)));
+																		"WPs: %s", mWaypointPlan.size(), current_waypoint_index.get(), mWaypointPlan));
 														*/
 
 														command.put(String.format("s%d", i), samplerSettings);
@@ -217,6 +222,7 @@ public class VehicleServerImpl extends AbstractVehicleServer
 														setState(VehicleState.States.IS_TAKING_SAMPLE.name, true);
 														vehicle_state.usingJar(next_available_jar);
 														mController.send(command);
+														mSampledLocations.add(sample_pose.pose.getX(), sample_pose.pose.getY());
 
 														// TODO: start a time task that will run after SAMPLER_STATION_KEEP_TIME, setting is_taking_sample to false
 
@@ -260,10 +266,50 @@ public class VehicleServerImpl extends AbstractVehicleServer
 								break;
 						}
 
+						case EXPLORE:
+						{
+								WaypointPlan leg;
+								synchronized (_waypointLock)
+								{
+										leg = mExplorer.nextLeg(mWaypointPlan, isNavigating());
+										if (leg != null)
+										{
+												closeMission();
+												mWaypointPlan = leg;
+												current_waypoint_index.set(0);
+										}
+								}
+								if (leg == null)
+								{
+										Log.d("AP", "No exploration target, or still navigating");
+										break;
+								}
+								Log.i("AP", String.format("Exploring %s toward %.6f, %.6f", mExplorer.type(), leg.latitude(0), leg.longitude(0)));
+								setAutonomous(true);
+								ensureNavigation();
+								break;
+						}
+
+						case COVER:
+						{
+								// a trigger that fires again during the survey must not restart it
+								if (isNavigating()) break;
+								try
+								{
+										startCoverage(mPrefs.getString("pref_coverage", ""));
+								}
+								catch (IllegalArgumentException e)
+								{
+										Log.w("AP", "Ignoring cover action: " + e.getMessage());
+								}
+								break;
+						}
+
 						// TODO: finish up the remaining actions
 						case RETURN_HOME:
 						{
 								Log.w("AP", "RETURNING HOME");
+								startGoHome();
 								break;
 						}
 
@@ -300,9 +346,8 @@ public class VehicleServerImpl extends AbstractVehicleServer
 		private static final double[] NAN_GAINS =
 						new double[]{Double.NaN, Double.NaN, Double.NaN};
 		private static final double[] DEFAULT_TWIST = {0, 0, 0, 0, 0, 0};
-		private static final double SAFE_DIFFERENTIAL_THRUST = 1.0;
-		private static final double SAFE_VECTORED_THRUST = 1.0;
 		private static final long VELOCITY_TIMEOUT_MS = 10000;
+		private static final long VELOCITY_TIMEOUT_NS = VELOCITY_TIMEOUT_MS*1000000L;
 		private static final String TAG = "VehicleServerImpl"; //VehicleServerImpl.class.getName();
 		private final SharedPreferences mPrefs;
 		private final Object _captureLock = new Object();
@@ -312,23 +357,50 @@ public class VehicleServerImpl extends AbstractVehicleServer
 		private final Context _context;
 		private final VehicleLogger mLogger;
 		private final Controller mController;
-		// Velocity shutdown timer.
-		private final ScheduledThreadPoolExecutor mVelocityExecutor = new ScheduledThreadPoolExecutor(1);
-
 		/**
 		 * Raw gyroscopic readings from the phone gyro.
 		 */
 		private final double[] _gyroPhone = new double[3];
 		private final Timer _updateTimer = new Timer();
-		private final Timer _navigationTimer = new Timer();
 		private final Timer _captureTimer = new Timer();
 		private final Timer _crumbSendTimer = new Timer();
 		private final Timer _sensorSendTimer = new Timer();
-		private double[][] _waypoints = new double[0][0];
-		private Long[] _waypointsKeepTimes = new Long[0];
+		/**
+		 * The current waypoint plan. Replaced as a whole under _waypointLock, read without it.
+		 */
+		private volatile WaypointPlan mWaypointPlan = WaypointPlan.EMPTY;
+
+		/**
+		 * Mission streaming: waypoints come from mMissionSource, which is either mMission, the store
+		 * of a paged mission, or a generated pattern. The navigation loop feeds them into the plan so
+		 * it holds at most MISSION_WINDOW_AHEAD waypoints ahead of the current one, topping up when
+		 * fewer than MISSION_REFILL_AHEAD are left. Guarded by _waypointLock; the volatile counters
+		 * are also read without it to skip the lock.
+		 */
+		private static final int MISSION_WINDOW_AHEAD = 64;
+		private static final int MISSION_REFILL_AHEAD = 16;
+		// most waypoints in one mission log entry
+		private static final int MISSION_LOG_CHUNK = 64;
+		private MissionSource mMissionSource = null;
+		private MissionStore mMission = null;
+		private volatile boolean mMissionOpen = false;
+		private volatile int mMissionCount = 0;
+		private volatile int mMissionFed = 0;
+		private final double[] mMissionLatitudes = new double[MISSION_WINDOW_AHEAD];
+		private final double[] mMissionLongitudes = new double[MISSION_WINDOW_AHEAD];
+		private final long[] mMissionKeepTimes = new long[MISSION_WINDOW_AHEAD];
 
 		private AtomicInteger current_waypoint_index = new AtomicInteger(-1);
 
+		/**
+		 * @return true while waypoints are being followed. Finishing them resets the waypoint index
+		 * to -1 but leaves the plan in place, so an empty plan is no sign of being idle.
+		 */
+		private boolean isNavigating()
+		{
+				return current_waypoint_index.get() >= 0;
+		}
+
 		int getCurrentWaypointIndex()
 		{
 				return current_waypoint_index.get();
@@ -340,87 +412,42 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				Log.i(TAG, String.format("New waypoint index = %d", current_waypoint_index.get()));
 		}
 
-		double[] getCurrentWaypoint()
-		{
-				synchronized (_waypointLock)
-				{
-						if (current_waypoint_index.get() >= 0)
-						{
-								return _waypoints[current_waypoint_index.get()];
-						}
-						else
-						{
-								return null;
-						}
-				}
-		}
-
-		double[] getSpecificWaypoint(int i)
-		{
-				synchronized (_waypointLock)
-				{
-						if (i >= 0 && i < _waypoints.length)
-						{
-								return _waypoints[i];
-						}
-						else
-						{
-								return null;
-						}
-				}
-		}
-
-		Long getCurrentWaypointKeepTime()
+		/**
+		 * The current waypoint plan, for the navigation controller. Never null, and never changes;
+		 * edits publish a new plan with a higher version.
+		 */
+		WaypointPlan getWaypointPlan()
 		{
-				synchronized (_waypointLock)
-				{
-						if (current_waypoint_index.get() >= 0)
-						{
-								return _waypointsKeepTimes[current_waypoint_index.get()];
-						}
-						else
-						{
-								return null;
-						}
-				}
+				return mWaypointPlan;
 		}
 
-		public Long getSpecificWaypointKeepTime(int i)
+		/**
+		 * Gridded statistics of every georeferenced reading, one layer per data type, for
+		 * predicates, exploration and map streaming.
+		 */
+		SensorMaps sensorMaps()
 		{
-				synchronized (_waypointLock)
-				{
-						if (i >= 0 && i < _waypointsKeepTimes.length)
-						{
-								return _waypointsKeepTimes[i];
-						}
-						else
-						{
-								return null;
-						}
-				}
+				return mSensorMaps;
 		}
 
 		public String getVehicleType()
 		{
-				String vehicleType = mPrefs.getString("pref_vehicle_type",
-								_context.getResources().getString(R.string.pref_vehicle_type_default));
-				return vehicleType;
+				return mVehicleType;
 		}
 
 		private TimerTask _captureTask = null;
-		private TimerTask _navigationTask = null;
-		private ScheduledFuture mVelocityFuture = null;
+		private ControlLoop _navigationTask = null;
 
 		/**
 		 * Filter used internally to update the current pose estimate
 		 */
-		VehicleFilter filter = new SimpleFilter();
+		SimpleFilter filter = new SimpleFilter();
 
 		/**
 		 * Inertial velocity vector, containing a 6D angular velocity estimate: [rx,
-		 * ry, rz, rPhi, rPsi, rOmega]
+		 * ry, rz, rPhi, rPsi, rOmega]. Commands older than VELOCITY_TIMEOUT_MS read as zero.
 		 */
-		private Twist _velocities = new Twist(DEFAULT_TWIST);
+		private final VelocityCommand _velocities = new VelocityCommand();
 		/**
 		 * Hard-coded PID gains and thrust limits per vehicle type.
 		 * These values are loaded from the application SharedPreferences in the class constructor.
@@ -436,39 +463,17 @@ public class VehicleServerImpl extends AbstractVehicleServer
 		//Define sound URI
 		private Uri soundUri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
 
-		private static UTM UtmPose_to_UTM(UtmPose utmPose)
-		{
-				return UTM.valueOf(
-								utmPose.origin.zone,
-								utmPose.origin.isNorth ? 'T' : 'L',
-								utmPose.pose.getX(),
-								utmPose.pose.getY(),
-								SI.METER
-				);
-		}
-
 		public LatLong UtmPose_to_LatLng(UtmPose utmPose)
 		{
-				return UTM.utmToLatLong(UtmPose_to_UTM(utmPose), ReferenceEllipsoid.WGS84);
-		}
-
-		private UtmPose UTM_to_UtmPose(UTM utm)
-		{
-				if (utm == null) return null;
-				Pose3D pose = new Pose3D(utm.eastingValue(SI.METER),
-								utm.northingValue(SI.METER),
-								0.0,
-								Quaternion.fromEulerAngles(0, 0, 0));
-				Utm origin = new Utm(utm.longitudeZone(),
-								utm.latitudeZone() > 'O');
-				return new UtmPose(pose, origin);
+				double[] latlng = UtmProjection.toLatLong(utmPose);
+				return LatLong.valueOf(latlng[0], latlng[1], NonSI.DEGREE_ANGLE);
 		}
 
 		public UtmPose LatLng_to_UtmPose(LatLong latlong)
 		{
 				// Convert from lat/long to UTM coordinates
-				UTM utm = UTM.latLongToUtm(latlong, ReferenceEllipsoid.WGS84);
-				return UTM_to_UtmPose(utm);
+				return UtmProjection.toUtmPose(latlong.latitudeValue(NonSI.DEGREE_ANGLE),
+								latlong.longitudeValue(NonSI.DEGREE_ANGLE));
 		}
 
 		boolean[] received_expected_sensor_type = {false, false, false};
@@ -521,45 +526,67 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				}
 		};
 
-		private double[] scaleDown(double[] raw_signals)
+		// Windowed, acknowledged delivery of crumbs and sensor readings, if pref_reliable_telemetry is set
+		private static final long TELEMETRY_TICK_MS = 100;
+		private boolean mReliableTelemetry = false;
+		private final double[] mCrumbLatLong = new double[2];
+
+		private final ReliableSender mCrumbSender = new ReliableSender(new ReliableSender.Channel()
 		{
-        /*ASDF*/
-				double[] scaled_signals = raw_signals.clone();
-				boolean needs_scaling = false;
-				double max_signal = 0.0;
-				for (double signal : raw_signals)
+				@Override
+				public long nextPending(long after) { return Crumb.nextUnsent(after); }
+
+				@Override
+				public boolean isPending(long id) { return Crumb.isUnsent(id); }
+
+				@Override
+				public boolean transmit(long id)
 				{
-						if (Math.abs(signal) > 1.0)
-						{
-								needs_scaling = true;
-						}
-						if (Math.abs(signal) > max_signal)
-						{
-								max_signal = Math.abs(signal);
-						}
+						if (!Crumb.getLatLong(id, mCrumbLatLong)) return false;
+						sendCrumb(mCrumbLatLong, id);
+						return true;
 				}
-				if (needs_scaling)
+		}, 8, 200, 8000, 4);
+
+		// Readings wait on disk while the link is down, or in memory if the spool cannot be opened
+		private static final long SENSOR_SPOOL_FORCE_MS = 5000;
+		private volatile SensorSpool mSensorSpool = null;
+		private long mSensorSpoolForced = 0;
+
+		private final ReliableSender.Channel mSensorChannel = new ReliableSender.Channel()
+		{
+				@Override
+				public long nextPending(long after)
 				{
-						for (int i = 0; i < raw_signals.length; i++)
-						{
-								scaled_signals[i] = raw_signals[i] / max_signal;
-						}
+						SensorSpool spool = mSensorSpool;
+						return spool != null ? spool.nextUnacked(after) : TimestampedSensorData.nextUnsent(after);
 				}
-				return scaled_signals;
-		}
+
+				@Override
+				public boolean isPending(long id)
+				{
+						SensorSpool spool = mSensorSpool;
+						return spool != null ? spool.isUnacked(id) : TimestampedSensorData.isUnsent(id);
+				}
+
+				@Override
+				public boolean transmit(long id)
+				{
+						SensorSpool spool = mSensorSpool;
+						SensorData sd = spool != null ? spool.get(id) : TimestampedSensorData.get(id);
+						if (sd == null) return false;
+						sendSensor(sd, id);
+						return true;
+				}
+		};
+		private volatile ReliableSender mSensorSender = new ReliableSender(mSensorChannel, 32, 200, 8000, 16);
 
 		private TimerTask _crumbSendTask = new TimerTask()
 		{
 				@Override
 				public void run()
 				{
-						Log.v(TAG, "Sending a random crumb");
-						Crumb crumb = Crumb.getRandomCrumb();
-						if (crumb == null) return;
-						UTM utm = crumb.getLocation();
-						UtmPose utmpose = UTM_to_UtmPose(utm);
-						sendCrumb(utmpose.getLatLong(), crumb.getIndex());
-						Log.i(TAG, String.format("Sent crumb # %d", crumb.getIndex()));
+						mCrumbSender.tick(System.currentTimeMillis());
 				}
 		};
 
@@ -568,11 +595,15 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				@Override
 				public void run()
 				{
-						TimestampedSensorData tsd = TimestampedSensorData.getRandomDatum();
-						if (tsd == null) return;
-						Log.i(TAG, String.format("Sending unacknowledged SensorData, # %d", tsd.getId()));
-						SensorData sd = TimestampedSensorData.allSensorData.get(tsd.getId()).getSensorData();
-						sendSensor(sd, tsd.getId());
+						long now = System.currentTimeMillis();
+						mSensorSender.tick(now);
+						SensorSpool spool = mSensorSpool;
+						if (spool != null && now - mSensorSpoolForced > SENSOR_SPOOL_FORCE_MS)
+						{
+								// the page cache survives the app dying, but not the battery
+								spool.force();
+								mSensorSpoolForced = now;
+						}
 				}
 		};
 
@@ -580,11 +611,15 @@ public class VehicleServerImpl extends AbstractVehicleServer
 		public void acknowledgeCrumb(long id)
 		{
 				Crumb.acknowledge(id);
+				mCrumbSender.acknowledged(id, System.currentTimeMillis());
 		}
 		@Override
 		public void acknowledgeSensorData(long id)
 		{
-				TimestampedSensorData.acknowledged(id);
+				SensorSpool spool = mSensorSpool;
+				if (spool != null) spool.acknowledged(id);
+				else TimestampedSensorData.acknowledged(id);
+				mSensorSender.acknowledged(id, System.currentTimeMillis());
 		}
 
 		/**
@@ -601,6 +636,7 @@ public class VehicleServerImpl extends AbstractVehicleServer
 						if (getState(VehicleState.States.HAS_FIRST_GPS.name))
 						{
 								Crumb.checkForNewCrumb(pose); // see if a new crumb should be added
+								mExplorer.tick(pose); // a bounded slice of the search for the next exploration waypoint
 						}
 
 						try
@@ -618,179 +654,190 @@ public class VehicleServerImpl extends AbstractVehicleServer
 						sendState(pose);
 
 						// Send vehicle command by converting raw command to appropriate vehicle model.
-						JSONObject command = new JSONObject();
-						String vehicleType = mPrefs.getString("pref_vehicle_type",
-										_context.getResources().getString(R.string.pref_vehicle_type_default));
-						switch (vehicleType)
+						ThrustMixer mixer = mThrustMixer;
+						if (mixer == null) return;
+						_velocities.read(mVelocityInputs, System.nanoTime(), VELOCITY_TIMEOUT_NS);
+						mixer.mix(mVelocityInputs[0], mVelocityInputs[5], mMotorOutputs, mServoOutputs);
+						mMotorCommand.begin();
+						for (int i = 0; i < mixer.motorCount(); i++) mMotorCommand.motor(i, (float) mMotorOutputs[i]);
+						for (int i = 0; i < mixer.servoCount(); i++) mMotorCommand.servo(i, (float) mServoOutputs[i]);
+						mMotorCommand.end();
+
+						// Send and log the transmitted command.
+						try
 						{
-								case "DIFFERENTIAL":
-								{
-										// Construct objects to hold velocities
-										JSONObject velocity0 = new JSONObject();
-										JSONObject velocity1 = new JSONObject();
-
-										// Send velocities as a JSON command
-										try
-										{
-												double constrainedV0 = clip(_velocities.dx() - _velocities.drz(), -1.0, 1.0);
-												double constrainedV1 = clip(_velocities.dx() + _velocities.drz(), -1.0, 1.0);
-
-												// Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
-												constrainedV0 = map(constrainedV0,
-																-1.0, 1.0, // Original range.
-																-VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-												constrainedV1 = map(constrainedV1,
-																-1.0, 1.0, // Original range.
-																-VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-
-												velocity0.put("v", (float) constrainedV0);
-												velocity1.put("v", (float) constrainedV1);
-
-												command.put("m0", velocity0);
-												command.put("m1", velocity1);
-
-												// Send and log the transmitted command.
-												if (mController.isConnected())
-														mController.send(command);
-												mLogger.info(new JSONObject().put("cmd", command));
-												//Log.v(TAG, command.toString());
-										}
-										catch (JSONException e)
-										{
-												Log.w(TAG, "Failed to serialize command.", e);
-										}
-										catch (IOException e)
-										{
-												Log.w(TAG, "Failed to send command.", e);
-										}
-								}
-								break;
-
-								case "VECTORED":
-								{
-										// Construct objects to hold velocities
-										JSONObject thrust = new JSONObject();
-										JSONObject rudder = new JSONObject();
-
-										// Send velocities as a JSON command
-										try
-										{
-												double constrainedV = clip(_velocities.dx(), -1.0, 1.0);
-
-												// Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
-												constrainedV = map(constrainedV,
-																0.0, 1.0, // Original range.
-																0.0, VehicleServerImpl.SAFE_VECTORED_THRUST); // New range.
-
-												// Rudder is constrained to +/-1.0
-												double constrainedP = clip(_velocities.drz(), -1.0, 1.0);
-
-												// Fix for rudder being reversed.
-												constrainedP *= -1.0;
-
-												thrust.put("v", (float) constrainedV);
-												rudder.put("p", (float) constrainedP);
+								if (mController.isConnected())
+										mController.send(mMotorCommand.buffer(), mMotorCommand.length());
+						}
+						catch (IOException e)
+						{
+								Log.w(TAG, "Failed to send command.", e);
+						}
+						mLogger.info("cmd", mMotorCommand.buffer(), mMotorCommand.jsonLength());
+				}
+		};
 
-												command.put("m0", thrust);
-												command.put("s0", rudder);
+		private final MotorCommandEncoder mMotorCommand = new MotorCommandEncoder();
+		private final double[] mVelocityInputs = new double[VelocityCommand.SIZE];
+		private final double[] mMotorOutputs = new double[ThrustMixer.MAX_OUTPUTS];
+		private final double[] mServoOutputs = new double[ThrustMixer.MAX_OUTPUTS];
+		private volatile String mVehicleType;
+		private volatile ThrustMixer mThrustMixer;
+		private final Object _aggregatorLock = new Object();
+		private SensorAggregator mSensorAggregator = SensorAggregator.parse(null); // guarded by _aggregatorLock
+		private final SensorMaps mSensorMaps = new SensorMaps();
+		private final SampleIndex mSampledLocations = new SampleIndex(Explorer.MIN_SPACING_M);
+		private volatile Explorer mExplorer = new Explorer(mSensorMaps, DataType.EC_GOSYS,
+						Explorer.Strategy.UNCERTAINTY, 100, Explorer.CANDIDATES_PER_TICK, mSampledLocations);
 
-												// Send and log the transmitted command.
-												if (mController.isConnected())
-														mController.send(command);
-												mLogger.info(new JSONObject().put("cmd", command));
-										}
-										catch (JSONException e)
-										{
-												Log.w(TAG, "Failed to serialize command.", e);
-										}
-										catch (IOException e)
-										{
-												Log.w(TAG, "Failed to send command.", e);
-										}
-								}
-								break;
+		/**
+		 * Follows the preferences that are resolved once rather than read on every update tick or
+		 * reading: the thrust mixer of the vehicle type, the sensor aggregation rules and the explorer.
+		 * SharedPreferences only keeps a weak reference to its listeners, so this has to be a field.
+		 */
+		private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener =
+						new SharedPreferences.OnSharedPreferenceChangeListener()
+		{
+				@Override
+				public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
+				{
+						if ("pref_vehicle_type".equals(key)) updateVehicleType();
+						else if ("pref_sensor_aggregation".equals(key)) updateSensorAggregation();
+						else if ("pref_exploration".equals(key)) updateExploration();
+				}
+		};
 
-								case "PROPGUARD":
-								{
-										// Construct objects to hold velocities
-										JSONObject velocity0 = new JSONObject();
-										JSONObject velocity1 = new JSONObject();
+		/**
+		 * Opens the on-disk sensor queue, which keeps readings from before a restart until they
+		 * are acknowledged, and sizes the sender's per-tick budget from the drain rate preference.
+		 */
+		private void openSensorSpool()
+		{
+				int drain_rate = 160;
+				try
+				{
+						drain_rate = Integer.valueOf(mPrefs.getString("pref_telemetry_drain_rate", "160").trim());
+				}
+				catch (NumberFormatException e)
+				{
+						Log.w(TAG, "Invalid telemetry drain rate, using " + drain_rate + " readings/s");
+				}
+				int sends_per_tick = (int)Math.max(1, drain_rate*TELEMETRY_TICK_MS/1000);
+				mSensorSender = new ReliableSender(mSensorChannel, Math.max(32, 2*sends_per_tick), 200, 8000, sends_per_tick);
 
-										// Send velocities as a JSON command
-										try
-										{
-                        /*ASDF*/
-												// to start out, I will *not* include the negative thrust bias
-												// instead, i'll just have it just set thrust to zero while error is > 45 degrees
+				try
+				{
+						mSensorSpool = SensorSpool.open(new File(_context.getFilesDir(), SENSOR_SPOOL_FILENAME), SENSOR_SPOOL_RECORDS);
+						Log.i(TAG, String.format("Sensor spool has %d unacknowledged readings", mSensorSpool.unacked()));
+				}
+				catch (IOException | IllegalArgumentException e)
+				{
+						Log.e(TAG, "Cannot open sensor spool, keeping readings in memory: " + e.getMessage());
+						mSensorSpool = null;
+				}
+		}
 
-												// _velocities.dx() --> thrust effort fraction
-												// _velocities.drz() --> heading effort fraction
+		/**
+		 * Rebuilds the per channel reduction of outgoing sensor readings from its preference, after
+		 * sending what the windows of the previous rules hold. A malformed spec keeps the previous rules.
+		 */
+		private void updateSensorAggregation()
+		{
+				String spec = mPrefs.getString("pref_sensor_aggregation", "");
+				SensorAggregator aggregator;
+				try
+				{
+						aggregator = SensorAggregator.parse(spec);
+				}
+				catch (IllegalArgumentException e)
+				{
+						Log.w(TAG, "Ignoring sensor aggregation rules: " + e.getMessage());
+						return;
+				}
+				Log.i(TAG, String.format("Sensor aggregation rules: %d", aggregator.ruleCount()));
+				long now = System.currentTimeMillis();
+				for (SensorData sd : replaceSensorAggregation(aggregator)) queueSensor(sd, now);
+		}
 
-												// try using the integral gain for thrust as the scale between positive and negative thrust
-												double[] thrust_pids = getGains(0);
-												if (thrust_pids[1] == 0)
-												{
-														thrust_pids[1] = 5.;
-												}
-												double T = _velocities.dx();
-												double H = _velocities.drz();
-												// bias thrust backwards according to heading
-												// T -= 0.5*H;
+		/**
+		 * Switches to new aggregation rules.
+		 *
+		 * @return what the windows of the previous rules still held, to be sent so the readings at
+		 * the end of a window are not lost
+		 */
+		private List<SensorData> replaceSensorAggregation(SensorAggregator next)
+		{
+				synchronized (_aggregatorLock)
+				{
+						List<SensorData> flushed = mSensorAggregator.flush();
+						mSensorAggregator = next;
+						return flushed;
+				}
+		}
 
-												//double[] rawV = {_velocities.dx() - _velocities.drz(),
-												//        _velocities.dx() + _velocities.drz()};
-												double[] rawV = {T - H, T + H};
+		/**
+		 * Hands an outgoing reading to the sensor spool when telemetry is reliable, or sends it once.
+		 */
+		private void queueSensor(final SensorData sd, long now)
+		{
+				if (mReliableTelemetry)
+				{
+						// the sender task picks it up and resends it until it is acknowledged
+						SensorSpool spool = mSensorSpool;
+						if (spool != null) spool.append(sd, now);
+						else TimestampedSensorData.add(sd);
+						return;
+				}
 
-												double[] constrainedV = scaleDown(rawV);
-												double constrainedV0 = constrainedV[0];
-												double constrainedV1 = constrainedV[1];
+				// sends data with a slight delay so it doesn't send duplicates
+				// when sending more than one reading at a time
+				_sensorSendTimer.schedule(new TimerTask()
+				{
+						@Override
+						public void run()
+						{
+								sendSensor(sd, 0);
+						}
+				}, 100);
+		}
 
-												// need to account for prop guard, reduce positive motor signals if turning in place
-												if (Math.signum(constrainedV0) > 0 && Math.signum(constrainedV1) < 0)
-												{
-														constrainedV0 = constrainedV0 / (thrust_pids[1]);
-												}
-												if (Math.signum(constrainedV0) < 0 && Math.signum(constrainedV1) > 0)
-												{
-														constrainedV1 = constrainedV1 / (thrust_pids[1]);
-												}
+		/**
+		 * Rebuilds the explorer from its preference, which starts a new search area around the
+		 * next pose. A malformed spec keeps the previous explorer.
+		 */
+		private void updateExploration()
+		{
+				String spec = mPrefs.getString("pref_exploration", "EC_GOSYS uncertainty 100");
+				try
+				{
+						mExplorer = Explorer.parse(spec, mSensorMaps, mSampledLocations);
+						Log.i(TAG, String.format("Exploring %s by %s, %d cells per sweep",
+										mExplorer.type(), mExplorer.strategy(), mExplorer.candidates()));
+				}
+				catch (IllegalArgumentException e)
+				{
+						Log.w(TAG, "Ignoring exploration spec: " + e.getMessage());
+				}
+		}
 
-												// Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
-                        /*
-                        constrainedV0 = map(constrainedV0,
-                                -1.0, 1.0, // Original range.
-                                -VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-                        constrainedV1 = map(constrainedV1,
-                                -1.0, 1.0, // Original range.
-                                -VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-                        */
-												velocity0.put("v", (float) constrainedV0);
-												velocity1.put("v", (float) constrainedV1);
-
-												command.put("m0", velocity0);
-												command.put("m1", velocity1);
-
-												// Send and log the transmitted command.
-												if (mController.isConnected())
-														mController.send(command);
-												mLogger.info(new JSONObject().put("cmd", command));
-										}
-										catch (JSONException e)
-										{
-												Log.w(TAG, "Failed to serialize command.", e);
-										}
-										catch (IOException e)
-										{
-												Log.w(TAG, "Failed to send command.", e);
-										}
-								}
-								break;
+		private void updateVehicleType()
+		{
+				String vehicleType = mPrefs.getString("pref_vehicle_type",
+								_context.getResources().getString(R.string.pref_vehicle_type_default));
+				mVehicleType = vehicleType;
+				Log.i(TAG, "Vehicle type = " + vehicleType);
+				updateThrustMixer();
+		}
 
-								default:
-										Log.w(TAG, "Unknown vehicle type: " + vehicleType);
-						}
-				}
-		};
+		/**
+		 * Rebuilds the mixer for the current vehicle type, e.g. after the thrust gains change.
+		 */
+		private void updateThrustMixer()
+		{
+				ThrustMixer mixer = ThrustMixers.create(mVehicleType, t_PID);
+				if (mixer == null) Log.w(TAG, "Unknown vehicle type: " + mVehicleType);
+				mThrustMixer = mixer;
+		}
 
 		/**
 		 * Creates a new instance of the vehicle implementation. This function
@@ -816,8 +863,14 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				autonomous_predicates = new AutonomousPredicates(this);
 				autonomous_predicates.loadDefaults();
 
-				decawave = new Decawave(this, context);
+				decawave = new Decawave(this, context, mLogger);
 
+				// Reload the crumb trail from before a restart so that going home works immediately
+				if (Crumb.openStore(new File(_context.getFilesDir(), CRUMB_STORE_FILENAME)) > 0)
+				{
+						setState(VehicleState.States.HOME_POSE.name, Crumb.firstCrumbPose());
+						setState(VehicleState.States.HAS_FIRST_GPS.name, true);
+				}
 
 				// Load PID values from SharedPreferences.
 				// Use hard-coded defaults if not specified.
@@ -829,10 +882,22 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				t_PID[1] = mPrefs.getFloat("gain_tI", 0.0f);
 				t_PID[2] = mPrefs.getFloat("gain_tD", 0.0f);
 
+				// The mixer depends on the thrust gains, so resolve it once they are loaded
+				updateVehicleType();
+				updateSensorAggregation();
+				updateExploration();
+				mPrefs.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+
 				// Start any regular update runnables
 				_updateTimer.scheduleAtFixedRate(_updateTask, 0, UPDATE_INTERVAL_MS);
-				//_crumbSendTimer.scheduleAtFixedRate(_crumbSendTask, 0, 1000); // TODO: don't to send crumbs for now
-				//_sensorSendTimer.scheduleAtFixedRate(_sensorSendTask, 0, 500); // TODO: use memoryless sensordata transmission for now
+				// Sensor data is sent once and forgotten unless the listener acknowledges it
+				mReliableTelemetry = mPrefs.getBoolean("pref_reliable_telemetry", false);
+				if (mReliableTelemetry)
+				{
+						openSensorSpool();
+						_crumbSendTimer.scheduleAtFixedRate(_crumbSendTask, 0, TELEMETRY_TICK_MS);
+						_sensorSendTimer.scheduleAtFixedRate(_sensorSendTask, 0, TELEMETRY_TICK_MS);
+				}
 
 				// Create a thread to read data from the controller board.
 				final Thread receiveThread = new Thread(new Runnable()
@@ -872,39 +937,6 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				receiveThread.start();
 		}
 
-		/**
-		 * Simple clipping function that restricts a value to a given range.
-		 *
-		 * @param input value that needs to be clipped
-		 * @param min   minimum allowable value
-		 * @param max   maximum allowable value
-		 * @return value after it has been clipped between min and max.
-		 */
-		private static double clip(double input, double min, double max)
-		{
-				return Math.min(Math.max(input, min), max);
-		}
-
-		/**
-		 * Simple linear scaling function that maps a value from a given input range to a desired output range.
-		 * <p/>
-		 * This does *not* clip out of range values.  To invert values, swap min and max.
-		 *
-		 * @param input      value that needs to be scaled
-		 * @param input_min  lower bound of original mapping
-		 * @param input_max  upper bound of original mapping
-		 * @param output_min lower bound of desired mapping
-		 * @param output_max upper bound of desired mapping.
-		 * @return the input value mapped into the output range.
-		 */
-		private static double map(double input,
-		                         double input_min, double input_max,
-		                         double output_min, double output_max)
-		{
-				return (input - input_min) / (input_max - input_min)
-								* (output_max - output_min) + output_min;
-		}
-
 		/**
 		 * @see VehicleServer#getGains(int)
 		 */
@@ -938,37 +970,29 @@ public class VehicleServerImpl extends AbstractVehicleServer
 		@Override
 		public void startGoHome()
 		{
-				/*
-				if (home_UTM == null)
+				UtmPose home = getState(VehicleState.States.HOME_POSE.name);
+				UtmPose current = getState(VehicleState.States.CURRENT_POSE.name);
+				if (home == null || home.equals(new UtmPose()))
 				{
-						Log.e(TAG, "Cannot trigger failsafe, home is null");
+						Log.e(TAG, "Cannot go home, home is not set");
+						return;
+				}
+				if (current == null || current.equals(new UtmPose()))
+				{
+						Log.e(TAG, "Cannot go home, current location is unknown");
+						return;
 				}
-				is_executing_failsafe.set(true);
-				// need to execute a single start waypoints command
-				// need current position and home position
-				// START the go home action
-				UTM current_location = UTM.valueOf(
-								_utmPose.origin.zone,
-								_utmPose.origin.isNorth ? 'T' : 'L',
-								_utmPose.pose.getX(),
-								_utmPose.pose.getY(),
-								SI.METER);
-
-				/////////////////////////////////////////////
-				// List<Long> path_crumb_indices = Crumb.aStar(current_location, home_UTM);
-				List<Long> path_crumb_indices = Crumb.straightHome(current_location, home_UTM);
-				/////////////////////////////////////////////
 
-				UtmPose[] path_waypoints = new UtmPose[path_crumb_indices.size()];
-				int wp_index = 0;
-				for (long index : path_crumb_indices)
+				// follow the crumb trail back, it is known to be navigable
+				double[][] path_waypoints = Crumb.smoothedPathWaypoints(Crumb.replan(current, home));
+				if (path_waypoints.length == 0)
 				{
-						UTM wp = Crumb.crumbs_by_index.get(index).getLocation();
-						path_waypoints[wp_index] = UTM_to_UtmPose(wp);
-						wp_index++;
+						Log.w(TAG, "Home is not reachable along the crumb trail, going straight home");
+						path_waypoints = new double[][]{UtmProjection.toLatLong(home)};
 				}
+				// set the flag directly, setAutonomous would overwrite home the first time it is called
+				setState(VehicleState.States.IS_AUTONOMOUS.name, true);
 				startWaypoints(path_waypoints);
-				*/
 		}
 
 		/**
@@ -1021,6 +1045,7 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				else if (axis == 0)
 				{
 						t_PID = k.clone();
+						updateThrustMixer();
 
 						// Save the PID values to the SharedPreferences as well.
 						mPrefs.edit()
@@ -1532,31 +1557,25 @@ public class VehicleServerImpl extends AbstractVehicleServer
 														continue;
 												}
 
-												for (final SensorData sd : readings)
+												long now = System.currentTimeMillis();
+												boolean has_gps = getState(VehicleState.States.HAS_FIRST_GPS.name);
+												for (SensorData reading : readings)
 												{
+														// the map gets every reading too, before any aggregation
+														if (has_gps) mSensorMaps.record(reading, now);
+														// the log gets every reading, the radio only what the aggregation rules let through
 														mLogger.info(new JSONObject()
 																		.put("sensor", new JSONObject()
-																						.put("channel", sd.channel)
-																						.put("type", sd.type.name())
-																						.put("data", sd.value)));
-
-														// Send out the collected sensor reading
-
-														// sends data with a slight delay so it doesn't send duplicates
-														// when sending more than one reading at a time
-														_sensorSendTimer.schedule(new TimerTask()
+																						.put("channel", reading.channel)
+																						.put("type", reading.type.name())
+																						.put("data", reading.value)));
+														SensorData sd;
+														synchronized (_aggregatorLock)
 														{
-																@Override
-																public void run()
-																{
-																		sendSensor(sd, 0);
-																}
-														}, 100);
-
-														// TODO: use memoryless sensordata transmission for now, switch later
-														// send battery data immediately, but everything else send with the task
-														//if (sd.type == DataType.BATTERY) continue; // don't store battery data
-														//new TimestampedSensorData(sd);
+																sd = mSensorAggregator.offer(reading, now);
+														}
+														// Send out the collected sensor reading
+														if (sd != null) queueSensor(sd, now);
 												}
 												readings.clear();
 										}
@@ -1593,18 +1612,7 @@ public class VehicleServerImpl extends AbstractVehicleServer
 										}
 
 										// Convert from lat/long to UTM coordinates
-										UTM utmLoc = UTM.latLongToUtm(
-														LatLong.valueOf(latitude, longitude, NonSI.DEGREE_ANGLE),
-														ReferenceEllipsoid.WGS84);
-
-										// Convert to UTM data structure
-										Pose3D pose = new Pose3D(utmLoc.eastingValue(SI.METER),
-														utmLoc.northingValue(SI.METER),
-														0.0,
-														Quaternion.fromEulerAngles(0, 0, 0));
-										Utm origin = new Utm(utmLoc.longitudeZone(),
-														utmLoc.latitudeZone() > 'O');
-										UtmPose utm = new UtmPose(pose, origin);
+										UtmPose utm = UtmProjection.toUtmPose(latitude, longitude);
 
 										filter.gpsUpdate(utm, time_);
 								}
@@ -1814,68 +1822,304 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				sendState(pose);
 		}
 
+		/**
+		 * Inserts a waypoint into the running plan and makes it the current waypoint. Navigation
+		 * keeps running; the controller picks up the new plan on its next tick.
+		 */
 		void insertWaypoint(int inserted_index, double[] waypoint, long station_keep_time)
 		{
+				if (inserted_index < 0)
+				{
+						Log.w("AP", "insertWaypoint(): inserted_index is less than 0. Setting to 0.");
+						inserted_index = 0;
+				}
 				synchronized (_waypointLock)
 				{
-						if (inserted_index < 0)
-						{
-								Log.w("AP", "insertWaypoint(): inserted_index is less than 0. Setting to 0.");
-								inserted_index = 0;
-						}
-						ArrayList<double[]> waypoint_list = new ArrayList<>();
-						ArrayList<Long> times_list = new ArrayList<>();
-						waypoint_list.addAll(Arrays.asList(_waypoints));
-						times_list.addAll(Arrays.asList(_waypointsKeepTimes));
-						waypoint_list.add(inserted_index, waypoint);
-						times_list.add(inserted_index, station_keep_time);
-						// start the new batch of waypoints, but begin at the inserted waypoint
-						setAutonomous(true);
-						startWaypoints(waypoint_list.toArray(new double[0][0]));
-						_waypointsKeepTimes = times_list.toArray(new Long[0]);
+						WaypointPlan plan = mWaypointPlan.insert(inserted_index, waypoint[0], waypoint[1], station_keep_time);
+						inserted_index = Math.max(plan.first(), Math.min(inserted_index, plan.end() - 1));
+						mWaypointPlan = plan;
 						current_waypoint_index.set(inserted_index);
 				}
+				Log.i(TAG, String.format("Inserted waypoint %d with station keep time %d ms", inserted_index, station_keep_time));
+				setAutonomous(true);
+				ensureNavigation();
 		}
 
 		@Override
 		public void startWaypoints(final double[][] waypoints)
 		{
 				setState(VehicleState.States.TIME_SINCE_OPERATOR.name, null);
-				Log.i(TAG, "Starting waypoints...");
-				StringBuilder waypoints_printout = new StringBuilder("Latitude    Longitude\n");
-				for (double[] waypoint : waypoints)
+				Log.i(TAG, String.format("Starting %d waypoints...", waypoints.length));
+				// a mission that fits in the plan window never touches the disk
+				beginMission(waypoints.length > MISSION_WINDOW_AHEAD);
+				addMissionPage(waypoints, null);
+				endMission();
+		}
+
+		/**
+		 * Starts a new mission, replacing any current waypoints. Its waypoints arrive through
+		 * addMissionPage(), and navigation finishes once endMission() was called and the last
+		 * waypoint is reached. Until then the vehicle waits at the end of the waypoints received so far.
+		 */
+		void beginMission()
+		{
+				beginMission(true);
+		}
+
+		/**
+		 * @param stored whether to page the mission through a MissionStore file, which is deleted
+		 *               when the mission finishes or is replaced, or keep it all in the plan
+		 */
+		private void beginMission(boolean stored)
+		{
+				String name = null;
+				synchronized (_waypointLock)
 				{
-						waypoints_printout.append(String.format("%.6f    %.6f\n", waypoint[0], waypoint[1]));
+						closeMission();
+						if (stored)
+						{
+								File file = new File(mLogger.directory(), String.format("mission_%d.bin", System.currentTimeMillis()));
+								try
+								{
+										mMission = MissionStore.create(file);
+										mMissionSource = mMission;
+										name = mMission.name();
+								}
+								catch (IOException e)
+								{
+										// keep the whole mission in the plan instead
+										Log.w(TAG, String.format("Unable to create mission file %s: %s", file, e.getMessage()));
+								}
+						}
+						mMissionOpen = true;
+						mWaypointPlan = mWaypointPlan.replace(new double[0][0]);
+						current_waypoint_index.set(0);
 				}
-				Log.d(TAG, waypoints_printout.toString());
+				ensureNavigation();
 
+				try
+				{
+						mLogger.info(new JSONObject()
+										.put("nav", new JSONObject()
+														.put("mission", name == null ? JSONObject.NULL : name)));
+				}
+				catch (JSONException e)
+				{
+						Log.w(TAG, "Unable to serialize mission.");
+				}
+		}
 
+		/**
+		 * Adds waypoints to the end of the current mission.
+		 *
+		 * @param waypoints     {latitude, longitude} pairs
+		 * @param keep_times_ms station keep time of each waypoint, or null for none
+		 */
+		void addMissionPage(double[][] waypoints, long[] keep_times_ms)
+		{
+				MissionStore mission;
+				int first;
 				synchronized (_waypointLock)
 				{
-						if (waypoints.length > 0)
+						if (!mMissionOpen)
 						{
-								current_waypoint_index.set(0);
+								Log.w(TAG, "Ignoring mission page, no mission is open");
+								return;
 						}
-						_waypoints = waypoints.clone();
-						_waypointsKeepTimes = new Long[_waypoints.length];
-						for (int i = 0; i < _waypointsKeepTimes.length; i++)
+						mission = mMission;
+						first = mMissionCount;
+						if (mission == null)
 						{
-								_waypointsKeepTimes[i] = 0L; // assume all keep times are zero
+								double[] latitudes = new double[waypoints.length];
+								double[] longitudes = new double[waypoints.length];
+								for (int i = 0; i < waypoints.length; i++)
+								{
+										latitudes[i] = waypoints[i][0];
+										longitudes[i] = waypoints[i][1];
+								}
+								long[] keep_times = keep_times_ms == null ? new long[waypoints.length] : keep_times_ms;
+								mWaypointPlan = mWaypointPlan.append(latitudes, longitudes, keep_times, waypoints.length);
+								mMissionCount = first + waypoints.length;
+								mMissionFed = mMissionCount;
 						}
 				}
 
-				// Create a waypoint navigation task
-				TimerTask newNavigationTask = new TimerTask()
+				if (mission != null)
 				{
-						final double dt = (double) UPDATE_INTERVAL_MS / 1000.0;
+						// write outside _waypointLock so the navigation loop never waits for the disk
+						try
+						{
+								mission.append(waypoints, keep_times_ms);
+						}
+						catch (IOException e)
+						{
+								Log.e(TAG, String.format("Unable to store mission page: %s", e.getMessage()));
+								return;
+						}
+						synchronized (_waypointLock)
+						{
+								if (mission != mMission) return; // a new mission started meanwhile
+								mMissionCount = mission.size();
+								feedMission(current_waypoint_index.get());
+						}
+				}
 
+				// the mission file is deleted with the mission, so the log keeps every waypoint, a
+				// bounded number per entry however large the page is
+				int from = 0;
+				do
+				{
+						int to = Math.min(waypoints.length, from + MISSION_LOG_CHUNK);
+						try
+						{
+								JSONObject page = new JSONObject()
+												.put("mission", mission == null ? JSONObject.NULL : mission.name())
+												.put("first", first + from)
+												.put("count", to - from)
+												.put("waypoints", new JSONArray(Arrays.copyOfRange(waypoints, from, to)));
+								if (keep_times_ms != null)
+								{
+										page.put("keep_times_ms", new JSONArray(Arrays.copyOfRange(keep_times_ms, from, to)));
+								}
+								mLogger.info(new JSONObject().put("nav", page));
+						}
+						catch (JSONException e)
+						{
+								Log.w(TAG, "Unable to serialize mission page.");
+						}
+						from = to;
+				}
+				while (from < waypoints.length);
+		}
+
+		/**
+		 * Starts a boustrophedon survey of a polygon, replacing any current waypoints. Tracks are
+		 * generated as the navigation loop needs them, so the size of the area does not matter.
+		 *
+		 * @param spec polygon, swath width and heading in the format of CoveragePattern.parse()
+		 */
+		void startCoverage(String spec)
+		{
+				CoveragePattern pattern = CoveragePattern.parse(spec);
+				setState(VehicleState.States.TIME_SINCE_OPERATOR.name, null);
+				Log.i(TAG, String.format("Starting %s: %d tracks, %d waypoints",
+								pattern.name(), pattern.trackCount(), pattern.size()));
+				synchronized (_waypointLock)
+				{
+						closeMission();
+						mMissionSource = pattern;
+						mMissionCount = pattern.size();
+						mWaypointPlan = mWaypointPlan.replace(new double[0][0]);
+						current_waypoint_index.set(0);
+						feedMission(0);
+				}
+				ensureNavigation();
+
+				try
+				{
+						mLogger.info(new JSONObject()
+										.put("nav", new JSONObject()
+														.put("coverage", new JSONObject()
+																		.put("spec", spec)
+																		.put("tracks", pattern.trackCount())
+																		.put("count", pattern.size()))));
+				}
+				catch (JSONException e)
+				{
+						Log.w(TAG, "Unable to serialize coverage mission.");
+				}
+		}
+
+		/**
+		 * Marks the current mission complete: navigation finishes at its last waypoint.
+		 */
+		void endMission()
+		{
+				mMissionOpen = false;
+				Log.i(TAG, String.format("Mission of %d waypoints complete", mMissionCount));
+		}
+
+		/**
+		 * @return true if the mission has waypoints that are not in the plan yet, or may get more
+		 */
+		private boolean missionPending()
+		{
+				return mMissionOpen || mMissionFed < mMissionCount;
+		}
+
+		/**
+		 * Tops up the plan from the mission store when few waypoints are left ahead of wp_index,
+		 * and drops the waypoints already passed. Must hold _waypointLock.
+		 */
+		private void feedMission(int wp_index)
+		{
+				if (mMissionSource == null || wp_index < 0 || mMissionFed >= mMissionCount) return;
+				WaypointPlan plan = mWaypointPlan;
+				int ahead = plan.end() - Math.max(wp_index, plan.first());
+				if (ahead >= MISSION_REFILL_AHEAD) return;
+				int n;
+				try
+				{
+						n = mMissionSource.read(mMissionFed, MISSION_WINDOW_AHEAD - ahead,
+										mMissionLatitudes, mMissionLongitudes, mMissionKeepTimes);
+				}
+				catch (IOException e)
+				{
+						Log.e(TAG, String.format("Unable to read mission %s: %s", mMissionSource.name(), e.getMessage()));
+						return;
+				}
+				mMissionFed += n;
+				// keep the previous waypoint, it is the start of the segment being tracked
+				mWaypointPlan = plan.dropBefore(wp_index - 1)
+								.append(mMissionLatitudes, mMissionLongitudes, mMissionKeepTimes, n);
+		}
+
+		/**
+		 * Closes the current mission, if any. Must hold _waypointLock.
+		 */
+		private void closeMission()
+		{
+				if (mMissionSource != null) mMissionSource.close();
+				mMissionSource = null;
+				mMission = null;
+				mMissionOpen = false;
+				mMissionCount = 0;
+				mMissionFed = 0;
+		}
+
+		/**
+		 * Starts the navigation loop if it is not already running. A running loop keeps its
+		 * controller, which notices changes to the waypoint plan by itself.
+		 */
+		private void ensureNavigation()
+		{
+				synchronized (_navigationLock)
+				{
+						if (_navigationTask != null) return;
+						_navigationTask = newNavigationLoop();
+						_navigationTask.start();
+				}
+		}
+
+		private ControlLoop newNavigationLoop()
+		{
+				return new ControlLoop("navigation", UPDATE_INTERVAL_MS,
+								ControlLoop.OverrunPolicy.SKIP, new ControlLoop.Tick()
+				{
 						LineFollowController lf = new LineFollowController();
 						VehicleController vc = (VehicleController) lf;
 
 						@Override
-						public void run()
+						public void run(ControlLoop loop, double dt)
 						{
 								int wp_index = current_waypoint_index.get();
+								if (mMissionFed < mMissionCount && mWaypointPlan.end() - wp_index < MISSION_REFILL_AHEAD)
+								{
+										synchronized (_waypointLock)
+										{
+												feedMission(wp_index);
+										}
+								}
 								//if (!_isAutonomous.get())
 								if (!(Boolean)getState(VehicleState.States.IS_AUTONOMOUS.name))
 								{
@@ -1883,50 +2127,33 @@ public class VehicleServerImpl extends AbstractVehicleServer
 										Log.d(TAG, "Paused");
 										sendWaypointUpdate(WaypointState.PAUSED);
 								}
-								else if (wp_index == _waypoints.length)
+								else if (wp_index == mWaypointPlan.end() && !missionPending())
 								{
-										// finished
-										current_waypoint_index.set(-1);
-										Log.i(TAG, "Done");
-										sendWaypointUpdate(WaypointState.DONE);
+										// finished, unless waypoints were added in the meantime
 										synchronized (_navigationLock)
 										{
+												if (wp_index != mWaypointPlan.end() || missionPending()
+																|| !current_waypoint_index.compareAndSet(wp_index, -1)) return;
 												setVelocity(new Twist(DEFAULT_TWIST));
-												this.cancel();
-												_navigationTask = null;
+												loop.stop();
+												if (_navigationTask == loop) _navigationTask = null;
+										}
+										synchronized (_waypointLock)
+										{
+												// unless a new mission or waypoint has started meanwhile
+												if (current_waypoint_index.get() < 0) closeMission();
 										}
+										Log.i(TAG, "Done");
+										sendWaypointUpdate(WaypointState.DONE);
 								}
 								else
 								{
-										// TODO: measure dt directly instead of approximating
 										//Log.v(TAG, "controller update()");
 										vc.update(VehicleServerImpl.this, dt);
 										sendWaypointUpdate(WaypointState.GOING);
 								}
 						}
-				};
-
-				synchronized (_navigationLock)
-				{
-						// Cancel any previous navigation tasks
-						if (_navigationTask != null) _navigationTask.cancel();
-
-						// Schedule this task for execution
-						_navigationTask = newNavigationTask;
-						_navigationTimer.scheduleAtFixedRate(_navigationTask, 0, UPDATE_INTERVAL_MS);
-				}
-
-				// Report the new waypoint in the log file.
-				try
-				{
-						mLogger.info(new JSONObject()
-										.put("nav", new JSONObject()
-														.put("waypoints", new JSONArray(waypoints))));
-				}
-				catch (JSONException e)
-				{
-						Log.w(TAG, "Unable to serialize waypoints.");
-				}
+				});
 		}
 
 		@Override
@@ -1935,19 +2162,23 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				setState(VehicleState.States.TIME_SINCE_OPERATOR.name, null);
 				// Stop the thread that is doing the "navigation" by terminating its
 				// navigation process, clear all the waypoints, and stop the vehicle.
+				ControlLoop navigation;
 				synchronized (_navigationLock)
 				{
-						if (_navigationTask != null)
-						{
-								_navigationTask.cancel();
-								_navigationTask = null;
-								setVelocity(new Twist(DEFAULT_TWIST));
-								Log.i(TAG, "StopWaypoint");
-						}
+						navigation = _navigationTask;
+						_navigationTask = null;
+				}
+				if (navigation != null)
+				{
+						// stop() waits for a running tick, which may itself need _navigationLock
+						navigation.stop();
+						setVelocity(new Twist(DEFAULT_TWIST));
+						Log.i(TAG, "StopWaypoint");
 				}
 				synchronized (_waypointLock)
 				{
-						_waypoints = new double[0][0];
+						closeMission();
+						mWaypointPlan = mWaypointPlan.replace(new double[0][0]);
 						current_waypoint_index.set(-1);
 				}
 				sendWaypointUpdate(WaypointState.CANCELLED);
@@ -1956,27 +2187,21 @@ public class VehicleServerImpl extends AbstractVehicleServer
 		@Override
 		public double[][] getWaypoints()
 		{
-				synchronized (_waypointLock)
-				{
-						return _waypoints.clone();
-				}
+				return mWaypointPlan.toArray();
 		}
 
 		@Override
 		public WaypointState getWaypointStatus()
 		{
-				synchronized (_waypointLock)
+				if (!mWaypointPlan.isEmpty())
 				{
-						if (_waypoints.length > 0)
-						{
-								//return _isAutonomous.get() ? WaypointState.PAUSED
-								return getState(VehicleState.States.IS_AUTONOMOUS.name) ? WaypointState.PAUSED
-												: WaypointState.GOING;
-						}
-						else
-						{
-								return WaypointState.DONE;
-						}
+						//return _isAutonomous.get() ? WaypointState.PAUSED
+						return getState(VehicleState.States.IS_AUTONOMOUS.name) ? WaypointState.PAUSED
+										: WaypointState.GOING;
+				}
+				else
+				{
+						return WaypointState.DONE;
 				}
 		}
 
@@ -1995,7 +2220,9 @@ public class VehicleServerImpl extends AbstractVehicleServer
 		 */
 		public Twist getVelocity()
 		{
-				return _velocities.clone();
+				double[] velocities = new double[VelocityCommand.SIZE];
+				_velocities.read(velocities, System.nanoTime(), VELOCITY_TIMEOUT_NS);
+				return new Twist(velocities);
 		}
 
 		/**
@@ -2004,27 +2231,9 @@ public class VehicleServerImpl extends AbstractVehicleServer
 		public void setVelocity(Twist vel)
 		{
 				setState(VehicleState.States.TIME_SINCE_OPERATOR.name, null);
-				_velocities = vel.clone();
-
-				// Schedule a task to shutdown the velocity if no command is received within the timeout.
-				// Normally, this task will be canceled by a subsequent call to the setVelocity function,
-				// but if no call is made within the timeout, the task will execute, stopping the vehicle.
-				synchronized (mVelocityExecutor)
-				{
-						// Cancel the previous shutdown task.
-						if (mVelocityFuture != null)
-								mVelocityFuture.cancel(false);
-
-						// Schedule a new shutdown task.
-						mVelocityFuture = mVelocityExecutor.schedule(new Runnable()
-						{
-								@Override
-								public void run()
-								{
-										setVelocity(new Twist());
-								}
-						}, VELOCITY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-				}
+				// The update tick zeroes the command once it is older than VELOCITY_TIMEOUT_MS,
+				// so there is no shutdown task to reschedule here.
+				_velocities.set(vel, System.nanoTime());
 		}
 
 		@Override
@@ -2046,7 +2255,7 @@ public class VehicleServerImpl extends AbstractVehicleServer
 				}
 
 				// Set velocities to zero to allow for safer transitions
-				_velocities = new Twist(DEFAULT_TWIST);
+				_velocities.stop(System.nanoTime());
 		}
 
 		/**
@@ -2054,6 +2263,14 @@ public class VehicleServerImpl extends AbstractVehicleServer
 		 */
 		public void shutdown()
 		{
+				mPrefs.unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+				// the last partial windows go into the spool, or straight out since the send timer stops below
+				long now = System.currentTimeMillis();
+				for (SensorData sd : replaceSensorAggregation(SensorAggregator.parse(null)))
+				{
+						if (mReliableTelemetry) queueSensor(sd, now);
+						else sendSensor(sd, 0);
+				}
 				stopWaypoints();
 				stopCamera();
 				autonomous_predicates.cancelAll();
@@ -2067,9 +2284,10 @@ public class VehicleServerImpl extends AbstractVehicleServer
 
 				_crumbSendTimer.cancel();
 				_crumbSendTimer.purge();
-
-				_navigationTimer.cancel();
-				_navigationTimer.purge();
+				_sensorSendTimer.cancel();
+				_sensorSendTimer.purge();
+				if (mSensorSpool != null) mSensorSpool.close();
+				Crumb.closeStore();
 
 				_captureTimer.cancel();
 				_captureTimer.purge();
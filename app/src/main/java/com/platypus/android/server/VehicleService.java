@@ -38,17 +38,11 @@ import com.platypus.crw.data.Utm;
 import com.platypus.crw.data.UtmPose;
 import com.platypus.crw.udp.UdpVehicleService;
 
-import org.jscience.geography.coordinates.LatLong;
-import org.jscience.geography.coordinates.UTM;
-import org.jscience.geography.coordinates.crs.ReferenceEllipsoid;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import javax.measure.unit.NonSI;
-import javax.measure.unit.SI;
-
 import com.platypus.crw.data.Pose3D;
 import com.platypus.crw.data.Quaternion;
 
@@ -200,6 +194,9 @@ public class VehicleService extends Service {
      * Handles GPS updates by calling the appropriate update.
      */
     private LocationListener locationListener = new LocationListener() {
+        // Reused easting/northing output, location updates arrive on a single thread.
+        private final double[] mUtmScratch = new double[2];
+
         public void onStatusChanged(String provider, int status, Bundle extras) {
         }
 
@@ -215,15 +212,14 @@ public class VehicleService extends Service {
             double lat = location.getLatitude();
             double lng = location.getLongitude();
             Log.d("onLocationChanged", String.format("latlng = %f, %f", lat, lng));
-            UTM utmLoc = UTM.latLongToUtm(
-                    LatLong.valueOf(lat, lng, NonSI.DEGREE_ANGLE),
-                    ReferenceEllipsoid.WGS84);
-            Log.d("onLocationChanged", String.format("utm = %s  %d%c",
-                    utmLoc.toString(), utmLoc.longitudeZone(), utmLoc.latitudeZone()));
+            int zone = UtmProjection.latLongToUtm(lat, lng, mUtmScratch);
+            boolean isNorth = lat >= 0.0;
+            Log.d("onLocationChanged", String.format("utm = %.2f, %.2f  %d%s",
+                    mUtmScratch[0], mUtmScratch[1], zone, isNorth ? "N" : "S"));
 
             // Convert to UTM data structure
-            Pose3D pose = new Pose3D(utmLoc.eastingValue(SI.METER),
-                    utmLoc.northingValue(SI.METER), (location.hasAltitude()
+            Pose3D pose = new Pose3D(mUtmScratch[0],
+                    mUtmScratch[1], (location.hasAltitude()
                     ? location.getAltitude()
                     : 0.0), (location.hasBearing()
                     ? Quaternion.fromEulerAngles(0.0, 0.0,
@@ -231,9 +227,7 @@ public class VehicleService extends Service {
                             / 180.0)
                     : Quaternion.fromEulerAngles(0, 0, 0)));
 
-            boolean isNorth = utmLoc.latitudeZone() > 'M';
-            Log.d("onLocationChanged", "isNorth = " + (isNorth ? "True" : "False"));
-            Utm origin = new Utm(utmLoc.longitudeZone(), isNorth);
+            Utm origin = new Utm(zone, isNorth);
             UtmPose utm = new UtmPose(pose, origin);
 
             // Apply update using filter object
@@ -310,7 +304,8 @@ public class VehicleService extends Service {
 
                     try {
                         final int port = Integer.parseInt(preferences.getString("pref_server_port", "11411").trim());
-                        _udpService = new UdpVehicleService(port, _vehicleServerImpl);
+                        // Also serves the compact state stream to clients that register for it
+                        _udpService = new StateStreamService(port, _vehicleServerImpl, _vehicleServerImpl.sensorMaps());
                         Log.i(TAG, "UdpVehicleService launched on port " + port + ".");
                     } catch (Exception e) {
                         Log.e(TAG, "UdpVehicleService failed to launch", e);
@@ -0,0 +1,105 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Twist;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latest 6D velocity command, shared between the threads that receive commands and the update
+ * tick that turns them into motor signals.
+ * <p/>
+ * The six components are published with a seqlock: a writer makes the sequence odd, stores the
+ * components and makes it even again, and a reader retries if the sequence was odd or changed
+ * while it copied. Neither side takes a lock or allocates. Components are stored as raw double
+ * bits in an AtomicLongArray so every access is volatile and the sequence checks are sound.
+ * <p/>
+ * Every command also stamps the monotonic clock. Instead of a timer that has to be rescheduled on
+ * each command, the reader passes the timeout and gets zero velocity once the last command is
+ * older than that.
+ */
+final class VelocityCommand
+{
+		static final int SIZE = 6;
+
+		private final AtomicLong sequence = new AtomicLong(0);
+		private final AtomicLongArray components = new AtomicLongArray(SIZE);
+		private final AtomicLong last_command_ns = new AtomicLong(System.nanoTime());
+
+		/**
+		 * Stores a command. The twist is copied, so callers may reuse it.
+		 */
+		void set(Twist twist, long now_ns)
+		{
+				set(twist.dx(), twist.dy(), twist.dz(), twist.drx(), twist.dry(), twist.drz(), now_ns);
+		}
+
+		void set(double dx, double dy, double dz, double drx, double dry, double drz, long now_ns)
+		{
+				long seq = beginWrite();
+				components.set(0, Double.doubleToRawLongBits(dx));
+				components.set(1, Double.doubleToRawLongBits(dy));
+				components.set(2, Double.doubleToRawLongBits(dz));
+				components.set(3, Double.doubleToRawLongBits(drx));
+				components.set(4, Double.doubleToRawLongBits(dry));
+				components.set(5, Double.doubleToRawLongBits(drz));
+				sequence.set(seq + 2);
+				last_command_ns.set(now_ns);
+		}
+
+		/**
+		 * Stores a zero command, e.g. on a change between manual and autonomous control.
+		 */
+		void stop(long now_ns)
+		{
+				set(0, 0, 0, 0, 0, 0, now_ns);
+		}
+
+		/**
+		 * Copies the command into out, in Twist order {dx, dy, dz, drx, dry, drz}.
+		 *
+		 * @return false, with out set to zero, if the last command is older than timeout_ns
+		 */
+		boolean read(double[] out, long now_ns, long timeout_ns)
+		{
+				if (isStale(now_ns, timeout_ns))
+				{
+						for (int i = 0; i < SIZE; i++) out[i] = 0.0;
+						return false;
+				}
+				while (true)
+				{
+						long seq = sequence.get();
+						if ((seq & 1) != 0)
+						{
+								Thread.yield();
+								continue;
+						}
+						for (int i = 0; i < SIZE; i++) out[i] = Double.longBitsToDouble(components.get(i));
+						if (sequence.get() == seq) return true;
+				}
+		}
+
+		boolean isStale(long now_ns, long timeout_ns)
+		{
+				return now_ns - last_command_ns.get() > timeout_ns;
+		}
+
+		/**
+		 * Nanoseconds since the last command.
+		 */
+		long age(long now_ns)
+		{
+				return now_ns - last_command_ns.get();
+		}
+
+		private long beginWrite()
+		{
+				while (true)
+				{
+						long seq = sequence.get();
+						if ((seq & 1) == 0 && sequence.compareAndSet(seq, seq + 1)) return seq;
+						Thread.yield();
+				}
+		}
+}
@@ -0,0 +1,205 @@
+package com.platypus.android.server;
+
+/**
+ * One version of the waypoint plan: latitude, longitude and station keep time of every waypoint,
+ * in primitive arrays.
+ * <p/>
+ * A published plan never changes. Every edit derives a new plan with the next version number and
+ * the server swaps it in with a single volatile write, so the navigation controller reads the
+ * current plan without a lock and compares versions to notice that it changed.
+ * <p/>
+ * Appending writes into spare capacity of the backing arrays and shares them with the new plan,
+ * which is safe because older plans never read past their own size. Only the newest plan on a
+ * backing store may append into it; any other plan copies first. Plans must be derived by one
+ * thread at a time.
+ * <p/>
+ * A plan may be a window of a longer mission. Waypoint indices are global: the plan holds
+ * waypoints first() up to, but not including, end(). Dropping waypoints from the front keeps
+ * the version, because the waypoints the controller can still be tracking do not change.
+ */
+final class WaypointPlan
+{
+		static final WaypointPlan EMPTY = new WaypointPlan(0, new Store(0), 0, 0, 0);
+
+		private final long version;
+		private final Store store;
+		private final int offset; // position of waypoint first in the store
+		private final int first;
+		private final int size;
+
+		private WaypointPlan(long _version, Store _store, int _offset, int _first, int _size)
+		{
+				version = _version;
+				store = _store;
+				offset = _offset;
+				first = _first;
+				size = _size;
+		}
+
+		long version() { return version; }
+		int first() { return first; }
+		int end() { return first + size; }
+		int size() { return size; }
+		boolean isEmpty() { return size == 0; }
+		double latitude(int i) { return store.latitudes[check(i)]; }
+		double longitude(int i) { return store.longitudes[check(i)]; }
+
+		/**
+		 * @return the station keep time of waypoint i in ms, 0 to pass it without stopping
+		 */
+		long keepTime(int i) { return store.keep_times[check(i)]; }
+
+		/**
+		 * @return waypoint i as {latitude, longitude}, a new array
+		 */
+		double[] waypoint(int i)
+		{
+				return new double[]{latitude(i), longitude(i)};
+		}
+
+		/**
+		 * @return waypoints first() to end() as {latitude, longitude} pairs, new arrays
+		 */
+		double[][] toArray()
+		{
+				double[][] result = new double[size][];
+				for (int i = 0; i < size; i++) result[i] = waypoint(first + i);
+				return result;
+		}
+
+		/**
+		 * @return a plan holding only the given waypoints, none of them station kept
+		 */
+		WaypointPlan replace(double[][] waypoints)
+		{
+				Store replacement = new Store(waypoints.length);
+				for (int i = 0; i < waypoints.length; i++)
+				{
+						replacement.latitudes[i] = waypoints[i][0];
+						replacement.longitudes[i] = waypoints[i][1];
+				}
+				replacement.used = waypoints.length;
+				return new WaypointPlan(version + 1, replacement, 0, 0, waypoints.length);
+		}
+
+		/**
+		 * @return this plan with the waypoints added at the end, none of them station kept
+		 */
+		WaypointPlan append(double[][] waypoints)
+		{
+				Store target = storeForAppend(waypoints.length);
+				int start = target.used;
+				for (int i = 0; i < waypoints.length; i++)
+				{
+						target.latitudes[start + i] = waypoints[i][0];
+						target.longitudes[start + i] = waypoints[i][1];
+						target.keep_times[start + i] = 0;
+				}
+				return appended(target, waypoints.length);
+		}
+
+		/**
+		 * @return this plan with count waypoints added at the end, copied from the arrays
+		 */
+		WaypointPlan append(double[] latitudes, double[] longitudes, long[] keep_times_ms, int count)
+		{
+				Store target = storeForAppend(count);
+				int start = target.used;
+				System.arraycopy(latitudes, 0, target.latitudes, start, count);
+				System.arraycopy(longitudes, 0, target.longitudes, start, count);
+				System.arraycopy(keep_times_ms, 0, target.keep_times, start, count);
+				return appended(target, count);
+		}
+
+		/**
+		 * @param index global index of the new waypoint, clamped to [first(), end()]
+		 * @return this plan with the waypoint inserted before the one at index
+		 */
+		WaypointPlan insert(int index, double latitude, double longitude, long keep_time_ms)
+		{
+				int before = Math.max(0, Math.min(index, end()) - first);
+				int after = size - before;
+				Store target = new Store(capacityFor(size + 1));
+				System.arraycopy(store.latitudes, offset, target.latitudes, 0, before);
+				System.arraycopy(store.longitudes, offset, target.longitudes, 0, before);
+				System.arraycopy(store.keep_times, offset, target.keep_times, 0, before);
+				target.latitudes[before] = latitude;
+				target.longitudes[before] = longitude;
+				target.keep_times[before] = keep_time_ms;
+				System.arraycopy(store.latitudes, offset + before, target.latitudes, before + 1, after);
+				System.arraycopy(store.longitudes, offset + before, target.longitudes, before + 1, after);
+				System.arraycopy(store.keep_times, offset + before, target.keep_times, before + 1, after);
+				target.used = size + 1;
+				return new WaypointPlan(version + 1, target, 0, first, size + 1);
+		}
+
+		/**
+		 * @return this plan without the waypoints before index, with the same version
+		 */
+		WaypointPlan dropBefore(int index)
+		{
+				int dropped = Math.max(0, Math.min(index, end()) - first);
+				if (dropped == 0) return this;
+				return new WaypointPlan(version, store, offset + dropped, first + dropped, size - dropped);
+		}
+
+		@Override
+		public String toString()
+		{
+				return String.format("WaypointPlan(version = %d, waypoints %d to %d)", version, first, end());
+		}
+
+		private WaypointPlan appended(Store target, int count)
+		{
+				int target_offset = target == store ? offset : 0;
+				target.used += count;
+				return new WaypointPlan(version + 1, target, target_offset, first, size + count);
+		}
+
+		/**
+		 * @return the store to append count waypoints to, with used set to where they go
+		 */
+		private Store storeForAppend(int count)
+		{
+				if (store.used == offset + size && offset + size + count <= store.latitudes.length) return store;
+				Store target = new Store(capacityFor(size + count));
+				System.arraycopy(store.latitudes, offset, target.latitudes, 0, size);
+				System.arraycopy(store.longitudes, offset, target.longitudes, 0, size);
+				System.arraycopy(store.keep_times, offset, target.keep_times, 0, size);
+				target.used = size;
+				return target;
+		}
+
+		private int check(int i)
+		{
+				if (i < first || i >= first + size)
+				{
+						throw new IndexOutOfBoundsException(String.format("Waypoint %d, plan holds %d to %d", i, first, end()));
+				}
+				return offset + i - first;
+		}
+
+		private static int capacityFor(int count)
+		{
+				return Math.max(16, count + (count >> 1));
+		}
+
+		/**
+		 * Backing arrays, possibly shared by several plans. used is where the newest plan on this
+		 * store ends, and is only touched by the thread deriving plans.
+		 */
+		private static final class Store
+		{
+				final double[] latitudes;
+				final double[] longitudes;
+				final long[] keep_times;
+				int used = 0;
+
+				Store(int capacity)
+				{
+						latitudes = new double[capacity];
+						longitudes = new double[capacity];
+						keep_times = new long[capacity];
+				}
+		}
+}
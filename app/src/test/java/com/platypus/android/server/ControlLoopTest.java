@@ -0,0 +1,246 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ControlLoopTest {
+    private static final long PERIOD_MS = 10;
+    private static final double PERIOD_S = PERIOD_MS / 1000.0;
+    private static final long MS = 1000000L;
+
+    /**
+     * Time only moves when the loop waits for a deadline or a tick stalls, so the schedule is
+     * the same on any machine.
+     */
+    private static class FakeClock implements ControlLoop.Clock {
+        final AtomicLong now = new AtomicLong(1000 * MS);
+
+        @Override
+        public long nanoTime() {
+            return now.get();
+        }
+
+        @Override
+        public void park(Object blocker, long nanos) {
+            now.addAndGet(nanos);
+            Thread.yield();
+        }
+
+        void advance(long ms) {
+            now.addAndGet(ms * MS);
+        }
+    }
+
+    /**
+     * Records the dt and clock time of every tick, stalls the one it is told to, and stops the
+     * loop from inside its last tick.
+     */
+    private static class Recorder implements ControlLoop.Tick {
+        final List<Double> dts = Collections.synchronizedList(new ArrayList<Double>());
+        final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch done = new CountDownLatch(1);
+        final FakeClock clock;
+        final int ticks;
+        final int stall_at;
+        final long stall_ms;
+
+        Recorder(FakeClock clock, int ticks, int stall_at, long stall_ms) {
+            this.clock = clock;
+            this.ticks = ticks;
+            this.stall_at = stall_at;
+            this.stall_ms = stall_ms;
+        }
+
+        @Override
+        public void run(ControlLoop loop, double dt) {
+            dts.add(dt);
+            times.add(clock.nanoTime());
+            if (dts.size() == stall_at + 1) clock.advance(stall_ms);
+            if (dts.size() == ticks) {
+                loop.stop();
+                done.countDown();
+            }
+        }
+
+        void runOn(ControlLoop.OverrunPolicy policy) throws InterruptedException {
+            ControlLoop loop = new ControlLoop("test", PERIOD_MS, policy, this, clock);
+            loop.start();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void ticks_runAtTheFixedRate() throws Exception {
+        FakeClock clock = new FakeClock();
+        Recorder recorder = new Recorder(clock, 50, -1, 0);
+        recorder.runOn(ControlLoop.OverrunPolicy.SKIP);
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(PERIOD_S, recorder.dts.get(i), 1e-12);
+            assertEquals(PERIOD_MS * MS * i, recorder.times.get(i) - recorder.times.get(0));
+        }
+    }
+
+    @Test
+    public void catchUp_runsMissedTicksBackToBackWithTheirPeriod() throws Exception {
+        // tick 5 takes 35 ms, so the deadlines of ticks 6, 7 and 8 have passed when it ends
+        FakeClock clock = new FakeClock();
+        Recorder recorder = new Recorder(clock, 20, 5, 35);
+        ControlLoop loop = new ControlLoop("test", PERIOD_MS, ControlLoop.OverrunPolicy.CATCH_UP, recorder, clock);
+        loop.start();
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+
+        // ticks 6 and 7 start 25 and 15 ms late, tick 8 only 5 ms
+        assertEquals(2, loop.overrunCount());
+        assertEquals(0, loop.skippedCount());
+        long stalled_until = recorder.times.get(5) + 35 * MS;
+        for (int i = 6; i <= 8; i++) assertEquals(stalled_until, (long) recorder.times.get(i));
+        // back to back, but each is handed its own period so derivatives do not spike
+        for (double dt : recorder.dts) assertEquals(PERIOD_S, dt, 1e-12);
+        // and the schedule goes on from where it was
+        assertEquals(4 * PERIOD_MS * MS, recorder.times.get(9) - recorder.times.get(5));
+    }
+
+    @Test
+    public void catchUp_dropsTicksBeyondTheLimit() throws Exception {
+        // a 150 ms stall misses 14 deadlines, MAX_CATCH_UP_TICKS of which are caught up
+        FakeClock clock = new FakeClock();
+        Recorder recorder = new Recorder(clock, 20, 5, 150);
+        ControlLoop loop = new ControlLoop("test", PERIOD_MS, ControlLoop.OverrunPolicy.CATCH_UP, recorder, clock);
+        loop.start();
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+
+        long dropped = 14 - ControlLoop.MAX_CATCH_UP_TICKS;
+        assertEquals(dropped, loop.skippedCount());
+        // the tick that drops and the four after it still start a period or more late
+        assertEquals(5, loop.overrunCount());
+        // the first tick after the stall also covers the dropped periods
+        assertEquals((dropped + 1) * PERIOD_S, recorder.dts.get(6), 1e-12);
+        for (int i = 7; i < 20; i++) assertEquals(PERIOD_S, recorder.dts.get(i), 1e-12);
+        long stalled_until = recorder.times.get(5) + 150 * MS;
+        for (int i = 6; i <= 6 + ControlLoop.MAX_CATCH_UP_TICKS; i++) {
+            assertEquals(stalled_until, (long) recorder.times.get(i));
+        }
+    }
+
+    @Test
+    public void skip_realignsAfterAnOverrun() throws Exception {
+        // a 55 ms stall misses the deadlines at 10, 20, 30 and 40 ms after tick 5
+        FakeClock clock = new FakeClock();
+        Recorder recorder = new Recorder(clock, 12, 5, 55);
+        ControlLoop loop = new ControlLoop("test", PERIOD_MS, ControlLoop.OverrunPolicy.SKIP, recorder, clock);
+        loop.start();
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, loop.overrunCount());
+        assertEquals(4, loop.skippedCount());
+        // the late tick is handed the real elapsed time, then the schedule is back on its grid
+        assertEquals(0.055, recorder.dts.get(6), 1e-12);
+        assertEquals(0.005, recorder.dts.get(7), 1e-12);
+        for (int i = 8; i < 12; i++) assertEquals(PERIOD_S, recorder.dts.get(i), 1e-12);
+        assertEquals(60 * MS, recorder.times.get(7) - recorder.times.get(5));
+    }
+
+    @Test
+    public void stop_fromAnotherThread_waitsForTheTick() throws Exception {
+        final CountDownLatch in_tick = new CountDownLatch(1);
+        final boolean[] finished = new boolean[1];
+        ControlLoop loop = new ControlLoop("test", PERIOD_MS, ControlLoop.OverrunPolicy.SKIP, new ControlLoop.Tick() {
+            @Override
+            public void run(ControlLoop loop, double dt) {
+                in_tick.countDown();
+                sleep(50);
+                finished[0] = true;
+            }
+        }, new FakeClock());
+        loop.start();
+        assertTrue(in_tick.await(5, TimeUnit.SECONDS));
+        loop.stop();
+        assertTrue(finished[0]);
+        assertFalse(loop.isRunning());
+        long ticks = loop.tickCount();
+        sleep(50);
+        assertEquals(ticks, loop.tickCount());
+    }
+
+    @Test
+    public void stop_fromInsideATick_thenRestart() throws Exception {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch restarted = new CountDownLatch(3);
+        final Set<Thread> after_restart = Collections.synchronizedSet(new HashSet<Thread>());
+        final int[] calls = new int[1];
+        ControlLoop loop = new ControlLoop("test", PERIOD_MS, ControlLoop.OverrunPolicy.SKIP, new ControlLoop.Tick() {
+            @Override
+            public void run(ControlLoop loop, double dt) {
+                if (++calls[0] == 3) {
+                    loop.stop(); // must not wait for itself
+                    stopped.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (calls[0] > 3) {
+                    after_restart.add(Thread.currentThread());
+                    restarted.countDown();
+                }
+            }
+        }, new FakeClock());
+        loop.start();
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertFalse(loop.isRunning());
+
+        // restarted while the old thread is still inside its last tick
+        loop.start();
+        release.countDown();
+        assertTrue(restarted.await(5, TimeUnit.SECONDS));
+        loop.stop();
+
+        assertEquals(1, after_restart.size());
+        long ticks = loop.tickCount();
+        sleep(50);
+        assertEquals(ticks, loop.tickCount());
+    }
+
+    @Test
+    public void systemClock_smokeTest() throws Exception {
+        // the only test on the real clock, with bounds loose enough for a loaded machine
+        final CountDownLatch done = new CountDownLatch(20);
+        final List<Double> dts = Collections.synchronizedList(new ArrayList<Double>());
+        ControlLoop loop = new ControlLoop("test", PERIOD_MS, ControlLoop.OverrunPolicy.SKIP, new ControlLoop.Tick() {
+            @Override
+            public void run(ControlLoop loop, double dt) {
+                dts.add(dt);
+                done.countDown();
+            }
+        });
+        long start = System.nanoTime();
+        loop.start();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        loop.stop();
+
+        // 20 ticks cannot be faster than 19 periods
+        assertTrue((System.nanoTime() - start) / MS >= 19 * PERIOD_MS - 1);
+        for (double dt : dts) assertTrue(dt > 0);
+        assertEquals(loop.tickCount(), loop.lateness().count());
+    }
+}
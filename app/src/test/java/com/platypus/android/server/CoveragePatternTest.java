@@ -0,0 +1,117 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CoveragePatternTest {
+    private static final int ZONE = 32;
+    private static final double E0 = 656000, N0 = 5029000;
+
+    /** Polygon given in meters east and north of (E0, N0). */
+    private static double[][] polygon(double[][] offsets) {
+        double[][] result = new double[offsets.length][2];
+        for (int i = 0; i < offsets.length; i++) {
+            UtmProjection.utmToLatLong(E0 + offsets[i][0], N0 + offsets[i][1], ZONE, true, result[i], 0);
+        }
+        return result;
+    }
+
+    private static double[][] readAll(CoveragePattern pattern, int page) {
+        double[][] en = new double[pattern.size()][2];
+        double[] latitudes = new double[page];
+        double[] longitudes = new double[page];
+        long[] keep_times = new long[page];
+        int index = 0;
+        while (true) {
+            int n = pattern.read(index, page, latitudes, longitudes, keep_times);
+            if (n == 0) break;
+            for (int i = 0; i < n; i++, index++) {
+                UtmProjection.latLongToUtm(latitudes[i], longitudes[i], ZONE, true, en[index], 0);
+                en[index][0] -= E0;
+                en[index][1] -= N0;
+            }
+        }
+        assertEquals(pattern.size(), index);
+        return en;
+    }
+
+    @Test
+    public void square_isCoveredByAlternatingTracks() throws Exception {
+        CoveragePattern pattern = new CoveragePattern(
+                polygon(new double[][]{{0, 0}, {1000, 0}, {1000, 1000}, {0, 1000}}), 10.0, 0.0);
+        assertEquals(100, pattern.trackCount());
+        assertEquals(200, pattern.size());
+
+        double[][] en = readAll(pattern, 64);
+        for (int k = 0; k < 100; k++) {
+            double[] start = en[2 * k];
+            double[] end = en[2 * k + 1];
+            assertEquals(5.0 + 10.0 * k, start[0], 1e-3);
+            assertEquals(start[0], end[0], 1e-3);
+            // northbound on even tracks, southbound on odd ones
+            assertEquals(k % 2 == 0 ? 0.0 : 1000.0, start[1], 1e-3);
+            assertEquals(k % 2 == 0 ? 1000.0 : 0.0, end[1], 1e-3);
+        }
+    }
+
+    @Test
+    public void pagedReads_matchOneRead() throws Exception {
+        double[][] square = polygon(new double[][]{{0, 0}, {400, 0}, {400, 300}, {0, 300}});
+        double[][] paged = readAll(new CoveragePattern(square, 7.0, 30.0), 5);
+        double[][] whole = readAll(new CoveragePattern(square, 7.0, 30.0), 10000);
+        assertEquals(whole.length, paged.length);
+        for (int i = 0; i < whole.length; i++) {
+            assertArrayEquals(whole[i], paged[i], 1e-9);
+        }
+
+        CoveragePattern pattern = new CoveragePattern(square, 7.0, 30.0);
+        double[] latitudes = new double[1], longitudes = new double[1];
+        long[] keep_times = new long[1];
+        pattern.read(20, 1, latitudes, longitudes, keep_times);
+        double[] en = new double[2];
+        UtmProjection.latLongToUtm(latitudes[0], longitudes[0], ZONE, true, en, 0);
+        assertEquals(whole[20][0], en[0] - E0, 1e-6);
+        pattern.read(3, 1, latitudes, longitudes, keep_times); // replays from the start
+        UtmProjection.latLongToUtm(latitudes[0], longitudes[0], ZONE, true, en, 0);
+        assertEquals(whole[3][1], en[1] - N0, 1e-6);
+    }
+
+    @Test
+    public void concavePolygon_splitsTracksAroundTheGap() throws Exception {
+        // a U open to the north: tracks running east cross both arms above y = 100
+        double[][] u = polygon(new double[][]{
+                {0, 0}, {300, 0}, {300, 300}, {200, 300}, {200, 100}, {100, 100}, {100, 300}, {0, 300}});
+        CoveragePattern pattern = new CoveragePattern(u, 10.0, 90.0);
+        assertEquals(30, pattern.trackCount());
+        double[][] en = readAll(pattern, 16);
+        // 10 tracks through the base, 20 through the arms with two stretches each
+        assertEquals(2 * 10 + 4 * 20, en.length);
+        for (double[] point : en) {
+            assertTrue(point[0] > -1e-3 && point[0] < 300 + 1e-3);
+            assertTrue(point[1] > 0 && point[1] < 300);
+        }
+    }
+
+    @Test
+    public void parse_readsTheCoverPreference() throws Exception {
+        double[][] square = polygon(new double[][]{{0, 0}, {400, 0}, {400, 300}, {0, 300}});
+        StringBuilder spec = new StringBuilder(" 7 30");
+        for (double[] vertex : square) spec.append(String.format("; %.9f, %.9f", vertex[0], vertex[1]));
+        double[][] expected = readAll(new CoveragePattern(square, 7.0, 30.0), 64);
+        double[][] parsed = readAll(CoveragePattern.parse(spec.toString()), 64);
+        assertEquals(expected.length, parsed.length);
+        for (int i = 0; i < expected.length; i++) assertArrayEquals(expected[i], parsed[i], 1e-3);
+
+        String[] malformed = {null, "", "7 30; 45,9; 45.001,9", "7; 45,9; 45.001,9; 45.001,9.001",
+                "7 30; 45,9; 45.001; 45.001,9.001", "seven 30; 45,9; 45.001,9; 45.001,9.001"};
+        for (String bad : malformed) {
+            try {
+                CoveragePattern.parse(bad);
+                fail("accepted " + bad);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.platypus.android.server;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot of a crumb trail as a compressed sparse row (CSR) graph, the reference the planner
+ * tests search with brute force.
+ * <p/>
+ * The edges of node i are targets[offsets[i]] .. targets[offsets[i + 1] - 1], with the matching
+ * edge lengths in weights.
+ */
+final class CrumbGraph {
+    final int node_count;
+    final int[] offsets;
+    final int[] targets;
+    final double[] weights;
+
+    private CrumbGraph(int[] offsets, int[] targets, double[] weights) {
+        this.node_count = offsets.length - 1;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+    }
+
+    /**
+     * Connects every pair of crumbs in the grid that are within radius of each other.
+     */
+    static CrumbGraph build(CrumbGrid grid, double radius) {
+        int n = grid.size();
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[Math.max(16, 4 * n)];
+        double[] weights = new double[targets.length];
+        CrumbGrid.Neighbors neighbors = new CrumbGrid.Neighbors();
+        int edge_count = 0;
+        for (int i = 0; i < n; i++) {
+            offsets[i] = edge_count;
+            grid.query(grid.easting(i), grid.northing(i), radius, i, neighbors);
+            if (edge_count + neighbors.count > targets.length) {
+                int capacity = Math.max(2 * targets.length, edge_count + neighbors.count);
+                targets = Arrays.copyOf(targets, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+            }
+            System.arraycopy(neighbors.index, 0, targets, edge_count, neighbors.count);
+            System.arraycopy(neighbors.distance, 0, weights, edge_count, neighbors.count);
+            edge_count += neighbors.count;
+        }
+        offsets[n] = edge_count;
+        return new CrumbGraph(offsets, Arrays.copyOf(targets, edge_count), Arrays.copyOf(weights, edge_count));
+    }
+
+    int edgeCount() {
+        return offsets[node_count];
+    }
+}
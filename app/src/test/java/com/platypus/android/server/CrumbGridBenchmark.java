@@ -0,0 +1,56 @@
+package com.platypus.android.server;
+
+import java.util.Random;
+
+/**
+ * Builds a breadcrumb trail the way the boat drops it, inserting each crumb into a CrumbGrid
+ * and then querying its neighbors, and checks a sample of the queries against a linear scan.
+ * Not a unit test; run main() on the unit test classpath, optionally with the number of crumbs.
+ */
+public class CrumbGridBenchmark {
+    private static final double RADIUS = Crumb.MAX_NEIGHBOR_DISTANCE;
+    private static final int ROUNDS = 3;
+    private static final int CHECKS = 200;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random random = new Random(27);
+        // a random walk with one crumb per drop distance, so the trail keeps crossing itself
+        double[] e = new double[n], no = new double[n];
+        double x = 656000, y = 5029000, heading = 0;
+        for (int i = 0; i < n; i++) {
+            heading += 0.3 * random.nextGaussian();
+            x += RADIUS * Math.cos(heading);
+            y += RADIUS * Math.sin(heading);
+            e[i] = x;
+            no[i] = y;
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            CrumbGrid grid = new CrumbGrid(RADIUS);
+            CrumbGrid.Neighbors neighbors = new CrumbGrid.Neighbors();
+            long found = 0;
+            for (int i = 0; i < n; i++) {
+                grid.add(e[i], no[i]);
+                grid.query(e[i], no[i], RADIUS, i, neighbors);
+                found += neighbors.count;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            for (int k = 0; k < CHECKS; k++) {
+                int i = random.nextInt(n);
+                grid.query(e[i], no[i], RADIUS, i, neighbors);
+                int expected = 0;
+                for (int j = 0; j < n; j++) {
+                    if (j != i && Math.hypot(e[j] - e[i], no[j] - no[i]) <= RADIUS) expected++;
+                }
+                if (expected != neighbors.count) {
+                    throw new AssertionError("crumb " + i + ": " + neighbors.count + " neighbors, expected " + expected);
+                }
+            }
+            System.out.printf("round %d: %d crumbs inserted and queried in %.1f ms, %d neighbors%n",
+                    round, n, elapsed / 1e6, found);
+        }
+    }
+}
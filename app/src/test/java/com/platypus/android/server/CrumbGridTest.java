@@ -0,0 +1,110 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CrumbGridTest {
+    private static final double CELL = 5.0;
+
+    private static CrumbGrid randomGrid(Random random, int n, double[] e, double[] no) {
+        CrumbGrid grid = new CrumbGrid(CELL);
+        for (int i = 0; i < n; i++) {
+            // every fourth point sits exactly on a cell border, some on a corner
+            e[i] = random.nextInt(4) == 0 ? CELL * (random.nextInt(40) - 20) : random.nextDouble() * 200 - 100;
+            no[i] = random.nextInt(4) == 0 ? CELL * (random.nextInt(40) - 20) : random.nextDouble() * 200 - 100;
+            assertEquals(i, grid.add(e[i], no[i]));
+        }
+        return grid;
+    }
+
+    /**
+     * Queries at random points, at cell borders and corners, and far away in empty cells.
+     */
+    private static double[] queryPoint(Random random, int q) {
+        switch (q % 4) {
+            case 0:
+                return new double[]{CELL * (random.nextInt(40) - 20), CELL * (random.nextInt(40) - 20)};
+            case 1:
+                return new double[]{CELL * (random.nextInt(40) - 20), random.nextDouble() * 200 - 100};
+            case 2:
+                return new double[]{1000 + random.nextDouble() * 100, -1000 - random.nextDouble() * 100};
+            default:
+                return new double[]{random.nextDouble() * 220 - 110, random.nextDouble() * 220 - 110};
+        }
+    }
+
+    @Test
+    public void query_matchesLinearScan() throws Exception {
+        Random random = new Random(27);
+        int n = 2000;
+        double[] e = new double[n], no = new double[n];
+        CrumbGrid grid = randomGrid(random, n, e, no);
+        CrumbGrid.Neighbors neighbors = new CrumbGrid.Neighbors();
+        for (int q = 0; q < 1000; q++) {
+            double[] p = queryPoint(random, q);
+            double radius = q % 3 == 0 ? CELL : random.nextDouble() * 3 * CELL;
+            int exclude = q % 5 == 0 ? random.nextInt(n) : -1;
+            grid.query(p[0], p[1], radius, exclude, neighbors);
+
+            int[] found = Arrays.copyOf(neighbors.index, neighbors.count);
+            Arrays.sort(found);
+            int[] expected = new int[n];
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (i != exclude && Math.hypot(e[i] - p[0], no[i] - p[1]) <= radius) expected[count++] = i;
+            }
+            assertArrayEquals("query " + q, Arrays.copyOf(expected, count), found);
+            for (int k = 0; k < neighbors.count; k++) {
+                int i = neighbors.index[k];
+                assertEquals(Math.hypot(e[i] - p[0], no[i] - p[1]), neighbors.distance[k], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void nearest_matchesLinearScan() throws Exception {
+        Random random = new Random(2700);
+        int n = 2000;
+        double[] e = new double[n], no = new double[n];
+        CrumbGrid grid = randomGrid(random, n, e, no);
+        for (int q = 0; q < 1000; q++) {
+            double[] p = queryPoint(random, q);
+            double max_radius = q % 3 == 0 ? CELL : random.nextDouble() * 4 * CELL;
+            int nearest = grid.nearest(p[0], p[1], max_radius);
+
+            double best = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < n; i++) best = Math.min(best, Math.hypot(e[i] - p[0], no[i] - p[1]));
+            if (best > max_radius) {
+                assertEquals("query " + q, -1, nearest);
+            } else {
+                assertTrue("query " + q, nearest >= 0);
+                // ties may resolve to any of the closest points
+                assertEquals(best, Math.hypot(e[nearest] - p[0], no[nearest] - p[1]), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void emptyCells_returnNothing() throws Exception {
+        CrumbGrid grid = new CrumbGrid(CELL);
+        CrumbGrid.Neighbors neighbors = new CrumbGrid.Neighbors();
+        grid.query(0, 0, 100, -1, neighbors);
+        assertEquals(0, neighbors.count);
+        assertEquals(-1, grid.nearest(0, 0, 100));
+
+        grid.add(0, 0);
+        grid.query(CELL, 0, CELL, -1, neighbors); // exactly on the radius, one cell over
+        assertEquals(1, neighbors.count);
+        grid.query(0, 0, CELL, 0, neighbors);
+        assertEquals(0, neighbors.count);
+        assertEquals(-1, grid.nearest(-3 * CELL, 0, 2 * CELL));
+
+        grid.clear();
+        assertEquals(0, grid.size());
+        assertEquals(-1, grid.nearest(0, 0, CELL));
+    }
+}
@@ -0,0 +1,51 @@
+package com.platypus.android.server;
+
+import java.util.Random;
+
+/**
+ * Times go-home planning on a synthetic looping trail: fresh searches between random crumbs,
+ * then repeated replans toward one goal while the boat keeps dropping crumbs, as Crumb.replan
+ * does on the way home. Not a unit test; run main() on the unit test classpath, optionally with
+ * the number of crumbs.
+ */
+public class CrumbPlannerBenchmark {
+    private static final double RADIUS = Crumb.MAX_NEIGHBOR_DISTANCE;
+    private static final int QUERIES = 100;
+    private static final int REPLANS = 1000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random random = new Random(28);
+        for (int round = 0; round < ROUNDS; round++) {
+            CrumbGrid grid = DStarLitePlannerTest.syntheticTrail(28, n);
+
+            long start = System.nanoTime();
+            long expanded = 0;
+            int reached = 0;
+            for (int q = 0; q < QUERIES; q++) {
+                // a new goal starts the search over, like a planner that keeps no state
+                DStarLitePlanner planner = new DStarLitePlanner(grid, RADIUS);
+                if (planner.plan(random.nextInt(n), random.nextInt(n)) != null) reached++;
+                expanded += planner.expandedCount();
+            }
+            long fresh = System.nanoTime() - start;
+
+            DStarLitePlanner planner = new DStarLitePlanner(grid, RADIUS);
+            int boat = grid.size() - 1;
+            planner.plan(boat, 0);
+            start = System.nanoTime();
+            long repaired = 0;
+            for (int r = 0; r < REPLANS; r++) {
+                boat = grid.add(grid.easting(boat) + 0.6 * RADIUS, grid.northing(boat));
+                planner.plan(boat, 0);
+                repaired += planner.expandedCount();
+            }
+            long replan = System.nanoTime() - start;
+
+            System.out.printf("round %d: fresh search %.2f ms (%d expanded, %d/%d reached), replan %.1f us (%d expanded)%n",
+                    round, fresh / 1e6 / QUERIES, expanded / QUERIES, reached, QUERIES,
+                    replan / 1e3 / REPLANS, repaired / REPLANS);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class CrumbStoreTest {
+    private static final double E0 = 656000;
+    private static final double N0 = 5029000;
+
+    private static File tempStore() throws Exception {
+        File file = File.createTempFile("crumbs", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static CrumbStore write(File file, int n) throws Exception {
+        CrumbStore store = CrumbStore.create(file, 32, true, Crumb.MAX_NEIGHBOR_DISTANCE);
+        for (int i = 0; i < n; i++) store.append(E0 + 10 * i, N0 - 5 * i);
+        return store;
+    }
+
+    @Test
+    public void reopen_replaysTrailInOrder() throws Exception {
+        File file = tempStore();
+        write(file, 50).close();
+
+        CrumbStore store = CrumbStore.open(file);
+        assertNotNull(store);
+        assertEquals(32, store.zone());
+        assertTrue(store.isNorth());
+        assertEquals(Crumb.MAX_NEIGHBOR_DISTANCE, store.radius(), 0.0);
+        assertEquals(50, store.size());
+
+        CrumbGrid grid = new CrumbGrid(store.radius());
+        assertEquals(50, store.replay(grid));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(E0 + 10 * i, grid.easting(i), 0.0);
+            assertEquals(N0 - 5 * i, grid.northing(i), 0.0);
+        }
+        store.close();
+    }
+
+    @Test
+    public void firstCrumb_isTheRestoredHome() throws Exception {
+        // HOME_POSE is restored from crumb 0 of the replayed trail, in the stored zone
+        File file = tempStore();
+        CrumbStore store = CrumbStore.create(file, 33, false, Crumb.MAX_NEIGHBOR_DISTANCE);
+        store.append(500123.25, 4100456.75);
+        store.append(500133.25, 4100456.75);
+        store.close();
+
+        store = CrumbStore.open(file);
+        CrumbGrid grid = new CrumbGrid(store.radius());
+        store.replay(grid);
+        assertEquals(33, store.zone());
+        assertFalse(store.isNorth());
+        assertEquals(500123.25, grid.easting(0), 0.0);
+        assertEquals(4100456.75, grid.northing(0), 0.0);
+        store.close();
+    }
+
+    @Test
+    public void tornTrailingRecord_isDroppedAndOverwritten() throws Exception {
+        File file = tempStore();
+        write(file, 10).close();
+        long complete = file.length();
+
+        // the process died halfway through the last record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(complete - 7);
+        raf.close();
+
+        CrumbStore store = CrumbStore.open(file);
+        assertEquals(9, store.size());
+        CrumbGrid grid = new CrumbGrid(store.radius());
+        assertEquals(9, store.replay(grid));
+        assertEquals(E0 + 80, grid.easting(8), 0.0);
+
+        // the next crumb replaces the torn bytes
+        store.append(1, 2);
+        store.close();
+        assertEquals(complete, file.length());
+
+        store = CrumbStore.open(file);
+        assertEquals(10, store.size());
+        grid = new CrumbGrid(store.radius());
+        store.replay(grid);
+        assertEquals(1, grid.easting(9), 0.0);
+        assertEquals(2, grid.northing(9), 0.0);
+        store.close();
+    }
+
+    @Test
+    public void foreignOrEmptyFiles_areNotOpened() throws Exception {
+        File file = tempStore();
+        assertNull(CrumbStore.open(file)); // shorter than a header
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[64]);
+        raf.close();
+        assertNull(CrumbStore.open(file)); // no magic
+
+        assertNull(CrumbStore.open(new File(file.getPath() + ".missing")));
+
+        CrumbStore store = CrumbStore.create(file, 32, true, Crumb.MAX_NEIGHBOR_DISTANCE);
+        store.close();
+        store = CrumbStore.open(file);
+        assertEquals(0, store.size());
+        assertEquals(0, store.replay(new CrumbGrid(store.radius())));
+        store.close();
+    }
+}
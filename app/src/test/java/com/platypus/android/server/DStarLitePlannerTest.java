@@ -0,0 +1,117 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that repairing the D* Lite search gives the same costs as planning from scratch while
+ * the trail grows and the start moves along it.
+ */
+public class DStarLitePlannerTest {
+    private static final double RADIUS = 10.0;
+
+    /**
+     * Builds a wandering trail that loops back on itself, similar to a survey.
+     */
+    static CrumbGrid syntheticTrail(long seed, int crumbs) {
+        Random random = new Random(seed);
+        CrumbGrid grid = new CrumbGrid(RADIUS);
+        double x = 656000.0, y = 5029000.0, heading = 0.0;
+        for (int i = 0; i < crumbs; i++) {
+            heading += 0.4 * random.nextGaussian();
+            double step = 6.0 + 4.0 * random.nextDouble();
+            x += step * Math.cos(heading);
+            y += step * Math.sin(heading);
+            grid.add(x, y);
+        }
+        return grid;
+    }
+
+    /**
+     * Brute-force O(n^2) reference costs from start to every crumb.
+     */
+    static double[] dijkstra(CrumbGraph graph, int start) {
+        int n = graph.node_count;
+        double[] dist = new double[n];
+        boolean[] done = new boolean[n];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[start] = 0.0;
+        for (int iteration = 0; iteration < n; iteration++) {
+            int u = -1;
+            for (int i = 0; i < n; i++) {
+                if (!done[i] && (u < 0 || dist[i] < dist[u])) u = i;
+            }
+            if (u < 0 || Double.isInfinite(dist[u])) break;
+            done[u] = true;
+            for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+                int v = graph.targets[e];
+                dist[v] = Math.min(dist[v], dist[u] + graph.weights[e]);
+            }
+        }
+        return dist;
+    }
+
+    @Test
+    public void plan_matchesDijkstraWhileTrailGrows() throws Exception {
+        for (long seed = 0; seed < 5; seed++) {
+            Random random = new Random(seed);
+            CrumbGrid grid = new CrumbGrid(RADIUS);
+            DStarLitePlanner planner = new DStarLitePlanner(grid, RADIUS);
+            double x = 656000.0, y = 5029000.0, heading = 0.0;
+            int goal = grid.add(x, y);
+            for (int i = 1; i < 600; i++) {
+                heading += 0.4 * random.nextGaussian();
+                double step = 6.0 + 4.0 * random.nextDouble();
+                x += step * Math.cos(heading);
+                y += step * Math.sin(heading);
+                int start = grid.add(x, y);
+                if (i % 7 != 0) continue;
+
+                int[] path = planner.plan(start, goal);
+                double[] expected = dijkstra(CrumbGraph.build(grid, RADIUS), goal);
+                if (Double.isInfinite(expected[start])) {
+                    assertNull(path);
+                    continue;
+                }
+                assertNotNull(path);
+                assertEquals(start, path[0]);
+                assertEquals(goal, path[path.length - 1]);
+                assertEquals(expected[start], planner.lastCost(), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void plan_repairIsCheaperThanFreshSearch() throws Exception {
+        CrumbGrid grid = syntheticTrail(3, 5000);
+        DStarLitePlanner planner = new DStarLitePlanner(grid, RADIUS);
+        int start = grid.size() - 1;
+        assertNotNull(planner.plan(start, 0));
+        int fresh = planner.expandedCount();
+
+        // drop one more crumb next to the boat and move the start onto it
+        int moved = grid.add(grid.easting(start) + 5.0, grid.northing(start));
+        assertNotNull(planner.plan(moved, 0));
+        assertTrue(planner.expandedCount() < fresh / 10);
+    }
+
+    @Test
+    public void plan_changingGoalStartsOver() throws Exception {
+        CrumbGrid grid = syntheticTrail(4, 800);
+        DStarLitePlanner planner = new DStarLitePlanner(grid, RADIUS);
+        CrumbGraph graph = CrumbGraph.build(grid, RADIUS);
+        for (int goal : new int[]{0, 400, 799}) {
+            double[] expected = dijkstra(graph, goal);
+            int[] path = planner.plan(200, goal);
+            if (Double.isInfinite(expected[200])) {
+                assertNull(path);
+            } else {
+                assertEquals(expected[200], planner.lastCost(), 1e-6);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.DataType;
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExplorerTest {
+    private static final double E0 = 656000;
+    private static final double N0 = 5029000;
+
+    private static UtmPose pose(double e, double n) {
+        return new UtmPose(new Pose3D(e, n, 0, 0, 0, 0), new Utm(32, true));
+    }
+
+    /**
+     * Ticks until a sweep publishes a target and returns it as {easting, northing}.
+     */
+    private static double[] target(Explorer explorer, UtmPose at) {
+        for (int i = 0; i <= explorer.candidates() && !explorer.hasTarget(); i++) explorer.tick(at);
+        double[] latlng = new double[2];
+        assertTrue(explorer.nextTarget(latlng, false));
+        double[] en = new double[2];
+        UtmProjection.latLongToUtm(latlng[0], latlng[1], 32, true, en, 0);
+        return en;
+    }
+
+    private static double distance(double[] en, double e, double n) {
+        return Math.hypot(en[0] - e, en[1] - n);
+    }
+
+    @Test
+    public void tick_staysWithinBudget() throws Exception {
+        Explorer explorer = new Explorer(new SensorMaps(), DataType.EC_GOSYS,
+                Explorer.Strategy.UNCERTAINTY, 100, 64, new SampleIndex(10));
+        assertEquals(41 * 41, explorer.candidates());
+        int ticks = 0;
+        while (explorer.sweeps() == 0) {
+            explorer.tick(pose(E0, N0));
+            ticks++;
+            assertTrue(explorer.evaluated() <= 64L * ticks);
+        }
+        assertEquals((41 * 41 + 63) / 64, ticks);
+        assertEquals(41 * 41, explorer.evaluated());
+        assertTrue(explorer.hasTarget());
+    }
+
+    @Test
+    public void uncertainty_prefersUnvisitedCells() throws Exception {
+        SensorMaps maps = new SensorMaps();
+        // everything east of the boat is well sampled
+        for (double e = E0; e < E0 + 60; e += 5) {
+            for (double n = N0 - 60; n < N0 + 60; n += 5) {
+                for (int k = 0; k < 4; k++) maps.record(reading(e + 2.5, n + 2.5, 1.0), 0);
+            }
+        }
+        Explorer explorer = new Explorer(maps, DataType.EC_GOSYS,
+                Explorer.Strategy.UNCERTAINTY, 50, 64, new SampleIndex(10));
+        double[] en = target(explorer, pose(E0 + 1, N0 + 1));
+        assertTrue(en[0] < E0);
+        assertTrue(distance(en, E0 + 1, N0 + 1) >= Explorer.MIN_SPACING_M);
+    }
+
+    @Test
+    public void gradient_headsForTheFront() throws Exception {
+        SensorMaps maps = new SensorMaps();
+        // flat everywhere except a step 30 m north of the boat
+        for (double e = E0 - 50; e < E0 + 50; e += 5) {
+            for (double n = N0 - 50; n < N0 + 50; n += 5) {
+                maps.record(reading(e + 2.5, n + 2.5, n < N0 + 30 ? 500 : 1500), 0);
+            }
+        }
+        Explorer explorer = new Explorer(maps, DataType.EC_GOSYS,
+                Explorer.Strategy.GRADIENT, 50, 64, new SampleIndex(10));
+        double[] en = target(explorer, pose(E0, N0));
+        assertEquals(N0 + 30, en[1], 5.0);
+        assertEquals(E0, en[0], 10.0);
+    }
+
+    @Test
+    public void targets_keepTheirSpacing() throws Exception {
+        SampleIndex samples = new SampleIndex(10);
+        samples.add(E0 + 12.5, N0 + 2.5);
+        Explorer explorer = new Explorer(new SensorMaps(), DataType.EC_GOSYS,
+                Explorer.Strategy.UNCERTAINTY, 40, 64, samples);
+        double[][] targets = new double[8][];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = target(explorer, pose(E0, N0));
+            assertTrue(distance(targets[i], E0 + 12.5, N0 + 2.5) >= 10 - 1e-6);
+            assertTrue(distance(targets[i], E0, N0) <= 40);
+            for (int j = 0; j < i; j++) assertTrue(distance(targets[i], targets[j][0], targets[j][1]) >= 10 - 1e-6);
+        }
+        assertFalse(explorer.nextTarget(new double[2], false));
+    }
+
+    @Test
+    public void exploreAgain_afterTheLegCompletes() throws Exception {
+        SampleIndex samples = new SampleIndex(10);
+        Explorer explorer = new Explorer(new SensorMaps(), DataType.EC_GOSYS,
+                Explorer.Strategy.UNCERTAINTY, 60, 64, samples);
+        double[] first = target(explorer, pose(E0, N0));
+
+        // on the way there the next sweep finishes, but its target waits for the leg to end
+        for (int i = 0; i <= explorer.candidates(); i++) explorer.tick(pose((E0 + first[0]) / 2, (N0 + first[1]) / 2));
+        assertTrue(explorer.hasTarget());
+        assertFalse(explorer.nextTarget(new double[2], true));
+        assertTrue(explorer.hasTarget());
+
+        // the leg completes at the first target and the sampler runs there
+        samples.add(first[0], first[1]);
+        double[] second = target(explorer, pose(first[0], first[1]));
+        assertTrue(distance(second, first[0], first[1]) >= Explorer.MIN_SPACING_M - 1e-6);
+        double[] third = target(explorer, pose(second[0], second[1]));
+        assertTrue(distance(third, first[0], first[1]) >= Explorer.MIN_SPACING_M - 1e-6);
+        assertTrue(distance(third, second[0], second[1]) >= Explorer.MIN_SPACING_M - 1e-6);
+    }
+
+    @Test
+    public void nextLeg_replacesThePlanWithTheNewTarget() throws Exception {
+        SampleIndex samples = new SampleIndex(10);
+        Explorer explorer = new Explorer(new SensorMaps(), DataType.EC_GOSYS,
+                Explorer.Strategy.UNCERTAINTY, 60, 64, samples);
+        // the server is idle at the end of an earlier mission, which stays in the plan
+        WaypointPlan plan = WaypointPlan.EMPTY.replace(new double[][]{{45.1, 7.6}, {45.2, 7.7}});
+
+        for (int i = 0; i <= explorer.candidates(); i++) explorer.tick(pose(E0, N0));
+        WaypointPlan first = explorer.nextLeg(plan, false);
+        assertEquals(1, first.size());
+        assertEquals(0, first.first());
+        assertTrue(first.version() > plan.version());
+        assertNull(explorer.nextLeg(first, true));
+
+        double[] reached = new double[2];
+        UtmProjection.latLongToUtm(first.latitude(0), first.longitude(0), 32, true, reached, 0);
+        samples.add(reached[0], reached[1]);
+        for (int i = 0; i <= explorer.candidates(); i++) explorer.tick(pose(reached[0], reached[1]));
+        WaypointPlan second = explorer.nextLeg(first, false);
+
+        // only the second target, the boat does not drive back to the first one
+        assertEquals(1, second.size());
+        assertEquals(0, second.first());
+        double[] en = new double[2];
+        UtmProjection.latLongToUtm(second.latitude(0), second.longitude(0), 32, true, en, 0);
+        assertTrue(distance(en, reached[0], reached[1]) >= Explorer.MIN_SPACING_M - 1e-6);
+        assertNull(explorer.nextLeg(second, false));
+    }
+
+    @Test
+    public void sampleIndex_findsCloseSamplesAcrossBuckets() throws Exception {
+        SampleIndex index = new SampleIndex(10);
+        assertFalse(index.isCrowded(E0, N0));
+        index.add(E0 + 9.9, N0);
+        index.add(E0 + 9.8, N0 + 0.1);
+        assertEquals(2, index.size());
+        assertTrue(index.isCrowded(E0 + 0.5, N0));
+        assertTrue(index.isCrowded(E0 + 19.5, N0 - 0.5));
+        assertFalse(index.isCrowded(E0 - 0.5, N0));
+        assertFalse(index.isCrowded(E0 + 9.9, N0 + 10.2));
+        index.clear();
+        assertFalse(index.isCrowded(E0 + 9.9, N0));
+    }
+
+    private static SensorData reading(double e, double n, double value) {
+        SensorData sd = new SensorData();
+        sd.channel = 1;
+        sd.type = DataType.EC_GOSYS;
+        sd.value = value;
+        sd.latlng = new double[2];
+        UtmProjection.utmToLatLong(e, n, 32, true, sd.latlng, 0);
+        return sd;
+    }
+}
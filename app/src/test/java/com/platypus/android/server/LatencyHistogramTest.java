@@ -0,0 +1,33 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void buckets_areContiguousAndWithinSixPercent() throws Exception {
+        int previous = -1;
+        for (long us = 0; us < 1 << 20; us++) {
+            int bucket = LatencyHistogram.bucketOf(us);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue(upper >= us);
+            assertTrue(upper - us <= us / 16);
+            previous = bucket;
+        }
+    }
+
+    @Test
+    public void percentiles_followTheRecordedValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i * 1000L); // 1 .. 1000 us
+        assertEquals(1000, histogram.count());
+        assertEquals(1000, histogram.maxMicros());
+        assertEquals(500.5, histogram.meanMicros(), 1e-9);
+        assertEquals(500.0, histogram.percentileMicros(0.5), 500 / 16.0);
+        assertEquals(990.0, histogram.percentileMicros(0.99), 990 / 16.0);
+        histogram.reset();
+        assertEquals(0, histogram.percentileMicros(0.5));
+    }
+}
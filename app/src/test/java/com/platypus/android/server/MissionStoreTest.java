@@ -0,0 +1,46 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class MissionStoreTest {
+    @Test
+    public void pages_readBackInWindows() throws Exception {
+        File file = File.createTempFile("mission", ".bin");
+        file.deleteOnExit();
+        MissionStore store = MissionStore.create(file);
+        for (int page = 0; page < 10; page++) {
+            double[][] waypoints = new double[100][];
+            long[] keep_times = new long[100];
+            for (int i = 0; i < 100; i++) {
+                int index = page * 100 + i;
+                waypoints[i] = new double[]{45.0 + index * 1e-5, 11.0 - index * 1e-5};
+                keep_times[i] = index % 7 == 0 ? index : 0;
+            }
+            store.append(waypoints, page % 2 == 0 ? keep_times : null);
+        }
+        assertEquals(1000, store.size());
+
+        double[] latitudes = new double[64];
+        double[] longitudes = new double[64];
+        long[] keep_times = new long[64];
+        int index = 0;
+        while (true) {
+            int n = store.read(index, 64, latitudes, longitudes, keep_times);
+            if (n == 0) break;
+            for (int i = 0; i < n; i++, index++) {
+                assertEquals(45.0 + index * 1e-5, latitudes[i], 0.0);
+                assertEquals(11.0 - index * 1e-5, longitudes[i], 0.0);
+                boolean kept = (index / 100) % 2 == 0 && index % 7 == 0;
+                assertEquals(kept ? index : 0, keep_times[i]);
+            }
+        }
+        assertEquals(1000, index);
+        assertEquals(8 + 1000 * 24, file.length());
+        store.close();
+        assertFalse(file.exists()); // the file only lives as long as the mission
+    }
+}
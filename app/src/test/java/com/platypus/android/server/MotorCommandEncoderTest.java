@@ -0,0 +1,50 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class MotorCommandEncoderTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static String json(MotorCommandEncoder encoder) {
+        return new String(encoder.buffer(), 0, encoder.jsonLength(), ASCII);
+    }
+
+    @Test
+    public void encode_differentialCommand() throws Exception {
+        MotorCommandEncoder encoder = new MotorCommandEncoder();
+        encoder.begin().motor(0, 0.25).motor(1, -0.1).end();
+        assertEquals("{\"m0\":{\"v\":0.25},\"m1\":{\"v\":-0.1}}", json(encoder));
+        assertEquals("\r\n", new String(encoder.buffer(), encoder.jsonLength(), 2, ASCII));
+        assertEquals(encoder.jsonLength() + 2, encoder.length());
+    }
+
+    @Test
+    public void encode_vectoredCommandAndNumberEdgeCases() throws Exception {
+        MotorCommandEncoder encoder = new MotorCommandEncoder();
+        encoder.begin().motor(0, 1.0).servo(0, -0.0000004).end();
+        assertEquals("{\"m0\":{\"v\":1},\"s0\":{\"p\":0}}", json(encoder));
+
+        encoder.begin().motor(0, Double.NaN).servo(0, (float) 0.3).end();
+        assertEquals("{\"m0\":{\"v\":0},\"s0\":{\"p\":0.3}}", json(encoder));
+
+        encoder.begin().motor(12, -0.000001).end();
+        assertEquals("{\"m12\":{\"v\":-0.000001}}", json(encoder));
+    }
+
+    @Test
+    public void encode_roundTripsThroughParseDouble() throws Exception {
+        MotorCommandEncoder encoder = new MotorCommandEncoder();
+        java.util.Random random = new java.util.Random(0);
+        for (int i = 0; i < 10000; i++) {
+            double value = 2.0 * random.nextDouble() - 1.0;
+            encoder.begin().motor(0, value).end();
+            String text = json(encoder);
+            double parsed = Double.parseDouble(text.substring(text.indexOf(":{\"v\":") + 6, text.length() - 2));
+            assertEquals(value, parsed, 0.5e-6);
+        }
+    }
+}
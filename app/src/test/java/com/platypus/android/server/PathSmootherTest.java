@@ -0,0 +1,72 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PathSmootherTest {
+    private static final double SPACING = 10.0;
+
+    private static CrumbGrid trail(double[] xs, double[] ys) {
+        CrumbGrid grid = new CrumbGrid(SPACING);
+        for (int i = 0; i < xs.length; i++) grid.add(xs[i], ys[i]);
+        return grid;
+    }
+
+    @Test
+    public void straightTrail_collapsesToEndpoints() throws Exception {
+        int n = 50;
+        double[] xs = new double[n], ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = i * SPACING;
+            ys[i] = 0.3 * Math.sin(i);
+        }
+        double[][] path = new PathSmoother(2.0, 5.0, 5.0).smooth(xs, ys, n, trail(xs, ys));
+        assertEquals(2, path.length);
+        assertEquals(0.0, path[0][0], 0.0);
+        assertEquals(xs[n - 1], path[1][0], 0.0);
+    }
+
+    @Test
+    public void uShapedTrail_doesNotShortcutAcrossTheGap() throws Exception {
+        // out 200 m east, 100 m north, back 200 m west: the ends are 100 m apart over unknown water
+        double[] xs = new double[61], ys = new double[61];
+        int n = 0;
+        for (int i = 0; i <= 20; i++, n++) { xs[n] = i * SPACING; ys[n] = 0.0; }
+        for (int i = 1; i <= 10; i++, n++) { xs[n] = 200.0; ys[n] = i * SPACING; }
+        for (int i = 1; i <= 20; i++, n++) { xs[n] = 200.0 - i * SPACING; ys[n] = 100.0; }
+        CrumbGrid grid = trail(xs, ys);
+        PathSmoother smoother = new PathSmoother(2.0, 5.0, 5.0);
+
+        int[] kept = smoother.simplify(xs, ys, n, grid);
+        assertEquals(4, kept.length);
+
+        double[][] path = smoother.smooth(xs, ys, n, grid);
+        for (int i = 1; i < path.length; i++) {
+            // every leg of the smoothed path stays next to the trail
+            for (int s = 0; s <= 10; s++) {
+                double t = s / 10.0;
+                double x = path[i - 1][0] + t * (path[i][0] - path[i - 1][0]);
+                double y = path[i - 1][1] + t * (path[i][1] - path[i - 1][1]);
+                assertTrue(grid.nearest(x, y, SPACING) >= 0);
+            }
+        }
+        assertEquals(xs[n - 1], path[path.length - 1][0], 0.0);
+        assertEquals(ys[n - 1], path[path.length - 1][1], 0.0);
+    }
+
+    @Test
+    public void corner_isRoundedWithinTurnRadius() throws Exception {
+        double[] xs = {0.0, 50.0, 50.0};
+        double[] ys = {0.0, 0.0, 50.0};
+        CrumbGrid grid = new CrumbGrid(SPACING);
+        for (int i = 0; i <= 5; i++) grid.add(i * SPACING, 0.0);
+        for (int i = 1; i <= 5; i++) grid.add(50.0, i * SPACING);
+        double[][] path = new PathSmoother(2.0, 5.0, 5.0).smooth(xs, ys, 3, grid);
+        assertTrue(path.length > 3);
+        // the arc is centered at (45, 5) with radius 5
+        for (int i = 1; i < path.length - 1; i++) {
+            assertEquals(5.0, Math.hypot(path[i][0] - 45.0, path[i][1] - 5.0), 1e-9);
+        }
+    }
+}
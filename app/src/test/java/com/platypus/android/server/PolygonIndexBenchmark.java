@@ -0,0 +1,92 @@
+package com.platypus.android.server;
+
+import java.util.Random;
+
+/**
+ * Evaluates many concave geofences at random positions, as the trigger predicates do on every
+ * tick, with PolygonIndex and with a plain even-odd crossing test over all edges. Not a unit
+ * test; run main() on the unit test classpath, optionally with vertex counts as arguments.
+ */
+public class PolygonIndexBenchmark {
+    private static final int FENCES = 100;
+    private static final int POSITIONS = 20000;
+    private static final int WARMUP = 3;
+
+    /**
+     * A star with alternating inner and outer vertices, concave everywhere.
+     */
+    private static double[] star(int vertices, double cx, double cy, double inner, double outer) {
+        double[] ring = new double[2 * vertices];
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices, r = i % 2 == 0 ? outer : inner;
+            ring[2 * i] = cx + r * Math.cos(angle);
+            ring[2 * i + 1] = cy + r * Math.sin(angle);
+        }
+        return ring;
+    }
+
+    private static boolean bruteForce(double[] ring, double x, double y) {
+        boolean inside = false;
+        int n = ring.length / 2;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            double xi = ring[2 * i], yi = ring[2 * i + 1], xj = ring[2 * j], yj = ring[2 * j + 1];
+            if ((yi > y) != (yj > y) && x < xj + (y - yj) * (xi - xj) / (yi - yj)) inside = !inside;
+        }
+        return inside;
+    }
+
+    public static void main(String[] args) {
+        int[] vertex_counts = {20, 200, 1000};
+        if (args.length > 0) {
+            vertex_counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) vertex_counts[i] = Integer.parseInt(args[i]);
+        }
+        for (int vertices : vertex_counts) run(vertices);
+    }
+
+    private static void run(int vertices) {
+        Random random = new Random(40);
+        double[][] rings = new double[FENCES][];
+        PolygonIndex[] indexes = new PolygonIndex[FENCES];
+        long start = System.nanoTime();
+        for (int f = 0; f < FENCES; f++) {
+            rings[f] = star(vertices, random.nextDouble() * 2000, random.nextDouble() * 2000,
+                    60 + random.nextDouble() * 60, 150);
+            indexes[f] = new PolygonIndex(new double[][]{rings[f]});
+        }
+        long build = System.nanoTime() - start;
+        double[] xs = new double[POSITIONS], ys = new double[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            xs[i] = random.nextDouble() * 2000;
+            ys[i] = random.nextDouble() * 2000;
+        }
+
+        for (int w = 0; w < WARMUP; w++) {
+            for (int i = 0; i < POSITIONS; i++) {
+                for (int f = 0; f < FENCES; f++) {
+                    if (indexes[f].contains(xs[i], ys[i]) != bruteForce(rings[f], xs[i], ys[i])) {
+                        throw new AssertionError("fence " + f + " disagrees at position " + i);
+                    }
+                }
+            }
+        }
+
+        int inside = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < POSITIONS; i++) {
+            for (int f = 0; f < FENCES; f++) if (indexes[f].contains(xs[i], ys[i])) inside++;
+        }
+        long indexed = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < POSITIONS; i++) {
+            for (int f = 0; f < FENCES; f++) if (bruteForce(rings[f], xs[i], ys[i])) inside--;
+        }
+        long brute = System.nanoTime() - start;
+
+        System.out.printf("%d vertices: %.1f ns per fence test vs %.1f ns brute force, "
+                        + "%.2f us vs %.2f us per %d-fence tick, built in %.1f ms (%s)%n",
+                vertices, indexed / (double) POSITIONS / FENCES, brute / (double) POSITIONS / FENCES,
+                indexed / 1e3 / POSITIONS, brute / 1e3 / POSITIONS, FENCES, build / 1e6,
+                inside == 0 ? "ok" : "mismatch");
+    }
+}
@@ -0,0 +1,128 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PolygonIndexTest {
+
+    /** Reference even-odd test over every edge of every ring. */
+    private static boolean bruteForce(double[][] rings, double x, double y) {
+        boolean inside = false;
+        for (double[] ring : rings) {
+            int n = ring.length / 2;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                double xi = ring[2 * i], yi = ring[2 * i + 1];
+                double xj = ring[2 * j], yj = ring[2 * j + 1];
+                if ((yi > y) != (yj > y) && x < xj + (y - yj) * (xi - xj) / (yi - yj)) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /** Concave star with the given number of vertices, alternating between two radii. */
+    private static double[] star(int vertices, double cx, double cy, double inner, double outer) {
+        double[] ring = new double[2 * vertices];
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            double r = i % 2 == 0 ? outer : inner;
+            ring[2 * i] = cx + r * Math.cos(angle);
+            ring[2 * i + 1] = cy + r * Math.sin(angle);
+        }
+        return ring;
+    }
+
+    private static void assertMatchesBruteForce(double[][] rings, double lo, double hi, int samples) {
+        PolygonIndex index = new PolygonIndex(rings);
+        Random random = new Random(7);
+        for (int k = 0; k < samples; k++) {
+            double x = lo + (hi - lo) * random.nextDouble();
+            double y = lo + (hi - lo) * random.nextDouble();
+            assertEquals(String.format("(%f, %f)", x, y), bruteForce(rings, x, y), index.contains(x, y));
+        }
+    }
+
+    @Test
+    public void square_containsInteriorOnly() throws Exception {
+        PolygonIndex index = new PolygonIndex(new double[][]{{0, 0, 10, 0, 10, 10, 0, 10}});
+        assertTrue(index.contains(5, 5));
+        assertTrue(index.contains(0.01, 9.99));
+        assertFalse(index.contains(-0.01, 5));
+        assertFalse(index.contains(5, 10.01));
+        assertFalse(index.contains(50, 50));
+    }
+
+    @Test
+    public void concaveStar_matchesBruteForce() throws Exception {
+        double[][] rings = {star(500, 0, 0, 40, 100)};
+        assertMatchesBruteForce(rings, -110, 110, 20000);
+    }
+
+    @Test
+    public void holeAndSeparateRing_useEvenOddRule() throws Exception {
+        double[][] rings = {
+                {0, 0, 100, 0, 100, 100, 0, 100},
+                {40, 40, 60, 40, 60, 60, 40, 60},
+                star(200, 200, 50, 10, 30),
+        };
+        PolygonIndex index = new PolygonIndex(rings);
+        assertTrue(index.contains(20, 20));
+        assertFalse(index.contains(50, 50));
+        assertTrue(index.contains(200, 50));
+        assertFalse(index.contains(150, 50));
+        assertMatchesBruteForce(rings, -10, 240, 20000);
+    }
+
+    @Test
+    public void gridPoints_onCellCenters_matchBruteForce() throws Exception {
+        // query points that line up with cell centers and shared vertices
+        double[][] rings = {star(64, 0, 0, 20, 50)};
+        PolygonIndex index = new PolygonIndex(rings);
+        for (double x = -60; x <= 60; x += 0.5) {
+            for (double y = -60; y <= 60; y += 0.5) {
+                if (y == 0) continue; // passes exactly through vertices, either answer is allowed
+                assertEquals(String.format("(%f, %f)", x, y), bruteForce(rings, x, y), index.contains(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void manyVertices_testFewEdgesPerQuery() throws Exception {
+        PolygonIndex index = new PolygonIndex(new double[][]{star(1000, 0, 0, 90, 100)});
+        assertEquals(1000, index.edgeCount());
+        assertTrue(index.meanEdgesPerCell() < 4.0);
+    }
+
+    @Test
+    public void degenerateRings_containNothing() throws Exception {
+        assertFalse(new PolygonIndex(new double[][]{}).contains(0, 0));
+        assertFalse(new PolygonIndex(new double[][]{{0, 0, 1, 1}}).contains(0.5, 0.5));
+        assertFalse(new PolygonIndex(new double[][]{{0, 0, 1, 0, 2, 0}}).contains(1, 0));
+    }
+
+    @Test
+    public void geofence_keepInAndKeepOut() throws Exception {
+        double[] origin = new double[2];
+        UtmProjection.utmToLatLong(656000, 5029000, 32, true, origin, 0);
+        double[][][] square = {{
+                {origin[0], origin[1]},
+                {origin[0], origin[1] + 0.01},
+                {origin[0] + 0.01, origin[1] + 0.01},
+                {origin[0] + 0.01, origin[1]},
+        }};
+        Geofence keep_in = new Geofence("lake", Geofence.Kind.KEEP_IN, square);
+        Geofence keep_out = new Geofence("harbor", Geofence.Kind.KEEP_OUT, square);
+
+        double[] inside = {origin[0] + 0.005, origin[1] + 0.005};
+        double[] outside = {origin[0] - 0.005, origin[1] + 0.005};
+        assertFalse(keep_in.isViolatedBy(UtmProjection.toUtmPose(inside[0], inside[1])));
+        assertTrue(keep_in.isViolatedBy(UtmProjection.toUtmPose(outside[0], outside[1])));
+        assertTrue(keep_out.isViolatedBy(UtmProjection.toUtmPose(inside[0], inside[1])));
+        assertFalse(keep_out.isViolatedBy(UtmProjection.toUtmPose(outside[0], outside[1])));
+        assertEquals(Geofence.Kind.KEEP_OUT, Geofence.Kind.fromString("keep_out"));
+    }
+}
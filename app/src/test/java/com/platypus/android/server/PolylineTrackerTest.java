@@ -0,0 +1,53 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PolylineTrackerTest {
+    // an L: 10 m east, then 10 m north
+    private static PolylineTracker ell() {
+        return new PolylineTracker(new double[]{0.0, 10.0, 10.0}, new double[]{0.0, 0.0, 10.0}, 3);
+    }
+
+    @Test
+    public void project_tracksProgressAndCrossTrackError() throws Exception {
+        PolylineTracker tracker = ell();
+        assertEquals(20.0, tracker.length(), 1e-12);
+        tracker.project(4.0, 1.5);
+        assertEquals(0, tracker.segment());
+        assertEquals(4.0, tracker.progress(), 1e-12);
+        assertEquals(1.5, tracker.crossTrackError(), 1e-12); // left of an eastbound segment
+
+        tracker.project(11.0, 6.0);
+        assertEquals(1, tracker.segment());
+        assertEquals(16.0, tracker.progress(), 1e-12);
+        assertEquals(-1.0, tracker.crossTrackError(), 1e-12); // right of a northbound segment
+    }
+
+    @Test
+    public void project_neverMovesBackwards() throws Exception {
+        PolylineTracker tracker = ell();
+        tracker.project(10.0, 5.0);
+        tracker.project(2.0, 0.0);
+        assertEquals(1, tracker.segment());
+        assertEquals(15.0, tracker.progress(), 1e-12);
+    }
+
+    @Test
+    public void lookahead_crossesSegmentsAndStopsAtTheEnd() throws Exception {
+        PolylineTracker tracker = ell();
+        double[] point = new double[2];
+        tracker.project(8.0, 0.0);
+        assertEquals(1, tracker.lookahead(5.0, point));
+        assertEquals(10.0, point[0], 1e-12);
+        assertEquals(3.0, point[1], 1e-12);
+
+        assertEquals(0, tracker.lookahead(1.0, point));
+        assertEquals(9.0, point[0], 1e-12);
+
+        tracker.lookahead(50.0, point);
+        assertEquals(10.0, point[0], 1e-12);
+        assertEquals(10.0, point[1], 1e-12);
+    }
+}
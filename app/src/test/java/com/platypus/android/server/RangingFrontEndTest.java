@@ -0,0 +1,120 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.UtmPose;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RangingFrontEndTest {
+    private static final double[] XS = {0, 40, 40, 0, 20, -10};
+    private static final double[] YS = {0, 0, 30, 30, -15, 15};
+
+    private static double[] ranges(double x, double y, Random random) {
+        double[] d = new double[XS.length];
+        for (int i = 0; i < d.length; i++) {
+            d[i] = Math.hypot(x - XS[i], y - YS[i]) + 0.1 * random.nextGaussian();
+        }
+        return d;
+    }
+
+    @Test
+    public void spikesOnOneAnchor_areGatedOut() throws Exception {
+        Random random = new Random(1);
+        RangingFrontEnd front_end = new RangingFrontEnd(XS, YS, 5, 1.5);
+        int spikes = 0;
+        for (int k = 0; k < 500; k++) {
+            double[] d = ranges(15, 12, random);
+            if (k > 20 && k % 5 == 0) {
+                d[2] += 10.0;
+                spikes++;
+            }
+            assertTrue(front_end.update(d, 15, 12, k == 0 ? Double.POSITIVE_INFINITY : 0.05));
+            assertEquals(15.0, front_end.x(), 0.3);
+            assertEquals(12.0, front_end.y(), 0.3);
+        }
+        assertEquals(spikes, front_end.rejected(2));
+        assertEquals(0, front_end.rejected(0));
+        assertEquals(1.0 - spikes / 500.0, front_end.acceptRate(2), 1e-9);
+        assertTrue(front_end.isHealthy(2));
+    }
+
+    @Test
+    public void zeroRange_dropsOnlyThatAnchor() throws Exception {
+        Random random = new Random(2);
+        RangingFrontEnd front_end = new RangingFrontEnd(XS, YS, 5, 1.5);
+        for (int k = 0; k < 50; k++) {
+            double x = 5 + 0.02 * k;
+            double[] d = ranges(x, 10, random);
+            d[1] = 0.0;
+            assertTrue(front_end.update(d, x, 10, k == 0 ? Double.POSITIVE_INFINITY : 0.25));
+            assertEquals(XS.length - 1, front_end.used());
+            assertEquals(x, front_end.x(), 0.5);
+        }
+        assertEquals(50, front_end.rejected(1));
+        assertFalse(front_end.isHealthy(1));
+    }
+
+    @Test
+    public void wrongPrediction_isReacquired() throws Exception {
+        Random random = new Random(3);
+        RangingFrontEnd front_end = new RangingFrontEnd(XS, YS, 5, 1.5);
+        int k = 0;
+        // the filter is confidently 25 m away from the truth, e.g. after a bad reset
+        while (!front_end.update(ranges(20, 20, random), -5, 20, 0.01)) {
+            k++;
+            assertTrue(k <= RangingFrontEnd.REACQUIRE_AFTER);
+        }
+        assertEquals(RangingFrontEnd.REACQUIRE_AFTER, k);
+        assertEquals(1, front_end.reacquisitions());
+        assertEquals(20.0, front_end.x(), 0.5);
+        assertEquals(20.0, front_end.y(), 0.5);
+    }
+
+    @Test
+    public void covariance_shrinksWithMedianWindow() throws Exception {
+        Random random = new Random(4);
+        RangingFrontEnd front_end = new RangingFrontEnd(XS, YS, 9, 1.5);
+        assertTrue(front_end.update(ranges(10, 10, random), 0, 0, Double.POSITIVE_INFINITY));
+        double first = front_end.covarianceXX();
+        for (int k = 0; k < 8; k++) front_end.update(ranges(10, 10, random), 10, 10, 0.05);
+        assertTrue(first > 0);
+        assertTrue(front_end.covarianceXX() < first);
+        assertTrue(front_end.covarianceYY() > 0);
+    }
+
+    @Test
+    public void medianWindowOfZero_usesTheRawRanges() throws Exception {
+        Random random = new Random(5);
+        RangingFrontEnd filtered = new RangingFrontEnd(XS, YS, 5, 1.5);
+        RangingFrontEnd raw = new RangingFrontEnd(XS, YS, 0, 1.5);
+        for (int k = 0; k < 5; k++) {
+            double[] d = ranges(15, 12, random);
+            assertTrue(filtered.update(d, 0, 0, Double.POSITIVE_INFINITY));
+            assertTrue(raw.update(d, 0, 0, Double.POSITIVE_INFINITY));
+        }
+        // the boat jumps 10 m east: the medians still hold the old ranges, the raw fix follows
+        double[] d = ranges(25, 12, random);
+        assertTrue(filtered.update(d, 0, 0, Double.POSITIVE_INFINITY));
+        assertTrue(raw.update(d, 0, 0, Double.POSITIVE_INFINITY));
+        assertEquals(15.0, filtered.x(), 0.5);
+        assertEquals(25.0, raw.x(), 0.5);
+    }
+
+    @Test
+    public void filterPositionUpdate_weighsByCovariance() throws Exception {
+        SimpleFilter filter = new SimpleFilter();
+        filter.positionUpdate(UtmProjection.toUtmPose(45.0, 9.0), 0.01, 0.0, 0.01, 1000);
+        double x0 = filter.pose(1000).pose.getX();
+        assertEquals(0.01, filter.positionVariance(1000), 1e-9);
+        // a much noisier fix 10 m east only moves the estimate a little
+        UtmPose east = filter.pose(1000);
+        east.pose = new Pose3D(x0 + 10, east.pose.getY(), 0, 0, 0, 0);
+        filter.positionUpdate(east, 100.0, 0.0, 100.0, 1000);
+        assertEquals(x0 + 10 * 0.01 / 100.01, filter.pose(1000).pose.getX(), 1e-6);
+        assertTrue(filter.positionVariance(1000) < 0.01);
+    }
+}
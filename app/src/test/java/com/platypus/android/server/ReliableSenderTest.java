@@ -0,0 +1,135 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReliableSenderTest {
+
+    /** In-process stand-in for the radio link and the listener that acknowledges what it receives. */
+    private static class LossyLink implements ReliableSender.Channel {
+        final BitSet pending = new BitSet();
+        final BitSet received = new BitSet();
+        final List<long[]> acks = new ArrayList<>(); // {id, arrival time}
+        final Random random = new Random(9);
+        final double loss;
+        final long one_way_ms;
+        int item_count = 0;
+        long now = 0;
+        int transmissions = 0;
+        int max_sends_per_ms = 0;
+
+        LossyLink(double loss, long one_way_ms) {
+            this.loss = loss;
+            this.one_way_ms = one_way_ms;
+        }
+
+        void add(int count) {
+            pending.set(item_count, item_count + count);
+            item_count += count;
+        }
+
+        @Override
+        public long nextPending(long after) {
+            return pending.nextSetBit((int) after + 1);
+        }
+
+        @Override
+        public boolean isPending(long id) {
+            return pending.get((int) id);
+        }
+
+        @Override
+        public boolean transmit(long id) {
+            transmissions++;
+            if (random.nextDouble() < loss) return true; // lost on the way out
+            received.set((int) id);
+            if (random.nextDouble() < loss) return true; // acknowledgement lost on the way back
+            acks.add(new long[]{id, now + 2 * one_way_ms});
+            return true;
+        }
+
+        /** Runs the sender for the given time, ticking every 100 ms and delivering acks on arrival. */
+        void run(ReliableSender sender, long duration_ms) {
+            long end = now + duration_ms;
+            for (; now < end; now += 10) {
+                for (int i = acks.size() - 1; i >= 0; i--) {
+                    long[] ack = acks.get(i);
+                    if (ack[1] <= now) {
+                        pending.clear((int) ack[0]);
+                        sender.acknowledged(ack[0], now);
+                        acks.remove(i);
+                    }
+                }
+                if (now % 100 == 0) sender.tick(now);
+            }
+        }
+    }
+
+    @Test
+    public void lossyLink_deliversEverything() throws Exception {
+        LossyLink link = new LossyLink(0.3, 60);
+        ReliableSender sender = new ReliableSender(link, 32, 200, 8000, 16);
+        link.add(500);
+        link.run(sender, 120000);
+        assertEquals(500, link.received.cardinality());
+        assertTrue(link.pending.isEmpty());
+        assertEquals(0, sender.inFlight());
+        // each packet gets through with probability 0.7 * 0.7, so about 2 transmissions per item
+        assertTrue(link.transmissions < 4 * 500);
+    }
+
+    @Test
+    public void cleanLink_sendsEachItemOnce() throws Exception {
+        LossyLink link = new LossyLink(0.0, 40);
+        ReliableSender sender = new ReliableSender(link, 32, 200, 8000, 16);
+        link.add(200);
+        link.run(sender, 30000);
+        assertEquals(200, link.received.cardinality());
+        assertEquals(200, link.transmissions);
+        assertEquals(0, sender.retransmitted());
+        // the timeout settles just above the 80 ms round trip, at the configured minimum
+        assertEquals(200, sender.rtoMs());
+        assertEquals(32.0, sender.window(), 1.0);
+    }
+
+    @Test
+    public void slowLink_raisesTimeoutInsteadOfRetransmitting() throws Exception {
+        LossyLink link = new LossyLink(0.0, 400);
+        ReliableSender sender = new ReliableSender(link, 32, 200, 8000, 16);
+        link.add(300);
+        link.run(sender, 60000);
+        assertEquals(300, link.received.cardinality());
+        assertTrue(sender.rtoMs() >= 800);
+        assertTrue(sender.retransmitted() < 10);
+    }
+
+    @Test
+    public void deadLink_backsOff() throws Exception {
+        LossyLink link = new LossyLink(1.0, 60);
+        ReliableSender sender = new ReliableSender(link, 32, 200, 8000, 16);
+        link.add(1000);
+        link.run(sender, 60000);
+        assertEquals(1.0, sender.window(), 0.0);
+        assertTrue(sender.inFlight() <= 4);
+        // a tick every 100 ms for a minute, at most one packet each once the window has collapsed
+        assertTrue(link.transmissions < 700);
+    }
+
+    @Test
+    public void itemsAcknowledgedElsewhere_leaveTheWindow() throws Exception {
+        LossyLink link = new LossyLink(1.0, 60);
+        ReliableSender sender = new ReliableSender(link, 32, 200, 8000, 16);
+        link.add(4);
+        sender.tick(0);
+        assertEquals(4, sender.inFlight());
+        link.pending.clear();
+        sender.tick(100);
+        assertEquals(0, sender.inFlight());
+    }
+}
@@ -0,0 +1,143 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.DataType;
+import com.platypus.crw.data.SensorData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SensorAggregatorTest {
+    private static SensorData reading(int channel, DataType type, double value) {
+        SensorData sd = new SensorData();
+        sd.channel = channel;
+        sd.type = type;
+        sd.value = value;
+        sd.latlng = new double[]{value, -value};
+        return sd;
+    }
+
+    /**
+     * Offers value i at time 100 * i ms for i in [0, n) and collects what is reported.
+     */
+    private static List<SensorData> run(SensorAggregator aggregator, int channel, DataType type, int n) {
+        List<SensorData> out = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            SensorData sd = aggregator.offer(reading(channel, type, i), 100L * i);
+            if (sd != null) out.add(sd);
+        }
+        return out;
+    }
+
+    @Test
+    public void noRules_passEverything() throws Exception {
+        SensorAggregator aggregator = SensorAggregator.parse("");
+        SensorData sd = reading(1, DataType.BATTERY, 12.0);
+        assertSame(sd, aggregator.offer(sd, 0));
+        assertEquals(20, run(aggregator, 2, DataType.DEPTH_LOWRANCE, 20).size());
+    }
+
+    @Test
+    public void windowedModes_reportOncePerWindow() throws Exception {
+        SensorAggregator aggregator = SensorAggregator.parse(
+                "1 * mean 1000; 2 * min 1000; 3 * max 1000; 4 * last 1000");
+        // windows are [0, 9], [10, 19], ... and each is reported when the next one starts
+        List<SensorData> mean = run(aggregator, 1, DataType.DEPTH_LOWRANCE, 35);
+        List<SensorData> min = run(aggregator, 2, DataType.DEPTH_LOWRANCE, 35);
+        List<SensorData> max = run(aggregator, 3, DataType.DEPTH_LOWRANCE, 35);
+        List<SensorData> last = run(aggregator, 4, DataType.DEPTH_LOWRANCE, 35);
+        assertEquals(3, mean.size());
+        for (int w = 0; w < 3; w++) {
+            assertEquals(10 * w + 4.5, mean.get(w).value, 1e-9);
+            assertEquals(10 * w, min.get(w).value, 0.0);
+            assertEquals(10 * w + 9, max.get(w).value, 0.0);
+            assertEquals(10 * w + 9, last.get(w).value, 0.0);
+            assertEquals(10 * w + 9, mean.get(w).latlng[0], 0.0);
+            assertEquals(1, mean.get(w).channel);
+            assertEquals(DataType.DEPTH_LOWRANCE, mean.get(w).type);
+        }
+    }
+
+    @Test
+    public void deadband_reportsChangesOnly() throws Exception {
+        SensorAggregator aggregator = SensorAggregator.parse("1 DEPTH_LOWRANCE deadband 0.5");
+        double[] depths = {3.0, 3.2, 3.4, 3.6, 3.5, 3.0, 3.1, 2.4};
+        List<Double> reported = new ArrayList<>();
+        for (int i = 0; i < depths.length; i++) {
+            SensorData sd = aggregator.offer(reading(1, DataType.DEPTH_LOWRANCE, depths[i]), i);
+            if (sd != null) reported.add(sd.value);
+        }
+        assertEquals(4, reported.size());
+        assertEquals(3.0, reported.get(0), 0.0);
+        assertEquals(3.6, reported.get(1), 0.0);
+        assertEquals(3.0, reported.get(2), 0.0);
+        assertEquals(2.4, reported.get(3), 0.0);
+    }
+
+    @Test
+    public void rules_matchByChannelAndType() throws Exception {
+        SensorAggregator aggregator = SensorAggregator.parse(
+                "1 T_LOWRANCE last 1000; * DEPTH_LOWRANCE mean 500; 2 * max 1000");
+        assertEquals(3, aggregator.ruleCount());
+        // channel 1 temperature: first rule
+        assertEquals(3, run(aggregator, 1, DataType.T_LOWRANCE, 35).size());
+        // depth on any channel: second rule wins over the third
+        assertEquals(6, run(aggregator, 2, DataType.DEPTH_LOWRANCE, 35).size());
+        // anything else on channel 2: third rule
+        assertEquals(3, run(aggregator, 2, DataType.BATTERY, 35).size());
+        // no rule
+        assertEquals(35, run(aggregator, 3, DataType.BATTERY, 35).size());
+        assertEquals(4 * 35, aggregator.offered());
+        assertEquals(3 + 6 + 3 + 35, aggregator.reported());
+    }
+
+    @Test
+    public void malformedRules_areRejected() throws Exception {
+        String[] specs = {"1 DEPTH_LOWRANCE mean", "x * mean 100", "1 NOT_A_TYPE mean 100",
+                "1 * median 100", "1 * deadband -1"};
+        for (String spec : specs) {
+            try {
+                SensorAggregator.parse(spec);
+                fail(spec);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void flush_reportsTheOpenWindows() throws Exception {
+        SensorAggregator aggregator = SensorAggregator.parse(
+                "1 * mean 1000; 2 * max 1000; 3 * deadband 0.5; 4 DEPTH_LOWRANCE last 1000");
+        // 35 readings close windows [0, 9], [10, 19] and [20, 29] and leave [30, 34] open
+        assertEquals(3, run(aggregator, 1, DataType.DEPTH_LOWRANCE, 35).size());
+        assertEquals(1, run(aggregator, 2, DataType.BATTERY, 12).size());
+        run(aggregator, 3, DataType.DEPTH_LOWRANCE, 5);
+        run(aggregator, 4, DataType.DEPTH_LOWRANCE, 10);
+        run(aggregator, 4, DataType.BATTERY, 10); // no rule, passed through
+
+        List<SensorData> flushed = aggregator.flush();
+        assertEquals(3, flushed.size());
+        assertEquals(1, flushed.get(0).channel);
+        assertEquals(DataType.DEPTH_LOWRANCE, flushed.get(0).type);
+        assertEquals(32.0, flushed.get(0).value, 1e-9);
+        assertEquals(34.0, flushed.get(0).latlng[0], 0.0);
+        assertEquals(2, flushed.get(1).channel);
+        assertEquals(DataType.BATTERY, flushed.get(1).type);
+        assertEquals(11.0, flushed.get(1).value, 0.0);
+        assertEquals(4, flushed.get(2).channel);
+        assertEquals(9.0, flushed.get(2).value, 0.0);
+        // closed windows, every deadband change, pass-through readings and the flushed windows
+        assertEquals(3 + 1 + 5 + 10 + 3, aggregator.reported());
+
+        // nothing is reported twice, and the next window starts at the next reading
+        assertEquals(0, aggregator.flush().size());
+        assertNull(aggregator.offer(reading(1, DataType.DEPTH_LOWRANCE, 100), 10000));
+        assertNull(aggregator.offer(reading(1, DataType.DEPTH_LOWRANCE, 200), 10999));
+        SensorData sd = aggregator.offer(reading(1, DataType.DEPTH_LOWRANCE, 300), 11000);
+        assertEquals(150.0, sd.value, 1e-9);
+    }
+}
@@ -0,0 +1,119 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SensorMapTest {
+    private static final double E0 = 656000;
+    private static final double N0 = 5029000;
+
+    @Test
+    public void cells_keepRunningStatistics() throws Exception {
+        SensorMap map = new SensorMap(5.0, 16);
+        double[] values = {2.0, 4.0, 4.0, 4.0, 5.0, 5.0, 7.0, 9.0};
+        for (int i = 0; i < values.length; i++) {
+            map.addUtm(E0 + 0.5 * i, N0 + 0.5 * i, values[i], 1000L * i);
+        }
+        assertEquals(values.length, map.count(E0 + 1, N0 + 1));
+        assertEquals(5.0, map.mean(E0 + 1, N0 + 1), 1e-12);
+        assertEquals(32.0 / 7, map.variance(E0 + 1, N0 + 1), 1e-12);
+        assertEquals(7000L, map.lastUpdate(E0 + 1, N0 + 1));
+        // the next cell over has nothing
+        assertEquals(0, map.count(E0 + 6, N0));
+        assertTrue(Double.isNaN(map.mean(E0 + 6, N0)));
+        assertEquals(-1L, map.lastUpdate(E0 + 6, N0));
+        // neither does anything in a tile that was never created
+        assertTrue(Double.isNaN(map.variance(E0 - 1000, N0)));
+    }
+
+    @Test
+    public void gradient_ofLinearField() throws Exception {
+        SensorMap map = new SensorMap(5.0, 16);
+        // value = 0.2 * east - 0.1 * north, sampled at cell centers across a tile border
+        for (int i = -4; i <= 4; i++) {
+            for (int j = -4; j <= 4; j++) {
+                double e = E0 + 5 * i + 2.5, n = N0 + 5 * j + 2.5;
+                map.addUtm(e, n, 0.2 * (e - E0) - 0.1 * (n - N0), 0);
+            }
+        }
+        double[] g = new double[2];
+        assertTrue(map.gradient(E0 + 2.5, N0 + 2.5, g));
+        assertEquals(0.2, g[0], 1e-9);
+        assertEquals(-0.1, g[1], 1e-9);
+        // one-sided at the edge of the data
+        assertTrue(map.gradient(E0 + 22.5, N0 + 2.5, g));
+        assertEquals(0.2, g[0], 1e-9);
+        assertEquals(Math.hypot(0.2, 0.1), map.gradientMagnitude(E0 + 22.5, N0 + 22.5), 1e-9);
+        // no neighbors at all
+        assertTrue(Double.isNaN(map.gradientMagnitude(E0 + 500, N0)));
+    }
+
+    @Test
+    public void drainDirty_returnsChangedTilesOnce() throws Exception {
+        SensorMap map = new SensorMap(1.0, 16);
+        map.addUtm(E0, N0, 1, 0);
+        map.addUtm(E0 + 100, N0, 1, 0);
+        assertEquals(2, map.drainDirty().size());
+        assertTrue(map.drainDirty().isEmpty());
+
+        map.addUtm(E0 + 100.5, N0, 2, 0);
+        List<SensorMap.Tile> dirty = map.drainDirty();
+        assertEquals(1, dirty.size());
+        assertEquals(Math.floorDiv((long)(E0 + 100), SensorMap.TILE), dirty.get(0).tx);
+
+        map.markAllDirty();
+        assertEquals(2, map.drainDirty().size());
+    }
+
+    @Test
+    public void tiles_areEvictedLeastRecentlyUsedFirst() throws Exception {
+        SensorMap map = new SensorMap(1.0, 4);
+        double tile = SensorMap.TILE;
+        for (int i = 0; i < 4; i++) map.addUtm(E0 + tile * i, N0, i, 0);
+        // reading the first tile again makes the second one the oldest
+        map.addUtm(E0, N0, 0, 0);
+        map.addUtm(E0 + tile * 10, N0, 10, 0);
+        assertEquals(4, map.tileCount());
+        assertEquals(1, map.evicted());
+        assertEquals(1, map.count(E0 + tile * 10, N0));
+        assertEquals(2, map.count(E0, N0));
+        assertEquals(0, map.count(E0 + tile, N0));
+        assertEquals(6, map.readings());
+    }
+
+    @Test
+    public void readings_areProjectedIntoTheFirstZone() throws Exception {
+        SensorMap map = new SensorMap(5.0, 16);
+        // a cell center, so projection error cannot move the reading into the next cell
+        double e = E0 + 2.5, n = N0 + 2.5;
+        double[] latlng = new double[2];
+        UtmProjection.utmToLatLong(e, n, 32, true, latlng, 0);
+        map.add(latlng[0], latlng[1], 42, 0);
+        assertEquals(32, map.zone());
+        assertTrue(map.isNorth());
+
+        double[] en = new double[2];
+        assertTrue(map.toMap(new UtmPose(new Pose3D(e, n, 0, 0, 0, 0), new Utm(32, true)), en));
+        assertEquals(42, map.mean(en[0], en[1]), 0.0);
+        // the same spot seen from the neighboring zone lands in the same cell
+        double[] other = new double[2];
+        UtmProjection.latLongToUtm(latlng[0], latlng[1], 33, true, other, 0);
+        assertTrue(map.toMap(new UtmPose(new Pose3D(other[0], other[1], 0, 0, 0, 0), new Utm(33, true)), en));
+        assertEquals(e, en[0], 1e-3);
+        assertEquals(n, en[1], 1e-3);
+        assertEquals(42, map.mean(en[0], en[1]), 0.0);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.writeTile(map.drainDirty().get(0), 5000, new DataOutputStream(bytes));
+        assertEquals(8 + 32 + 12, bytes.size());
+    }
+}
@@ -0,0 +1,152 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer;
+import com.platypus.crw.data.SensorData;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class SensorSpoolTest {
+    private static SensorData reading(int i) {
+        SensorData sd = new SensorData();
+        sd.channel = i % 4;
+        sd.type = VehicleServer.DataType.values()[i % VehicleServer.DataType.values().length];
+        sd.value = i * 0.5;
+        sd.latlng = i % 3 == 0 ? null : new double[]{40.0 + i * 1e-6, -80.0 - i * 1e-6};
+        return sd;
+    }
+
+    private static File tempFile() throws Exception {
+        File file = File.createTempFile("sensors", ".spool");
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void readings_roundTrip() throws Exception {
+        SensorSpool spool = SensorSpool.open(tempFile(), 64);
+        for (int i = 0; i < 50; i++) assertEquals(i, spool.append(reading(i), 1000 + i));
+        for (int i = 0; i < 50; i++) {
+            SensorData expected = reading(i);
+            SensorData sd = spool.get(i);
+            assertEquals(expected.channel, sd.channel);
+            assertEquals(expected.type, sd.type);
+            assertEquals(expected.value, sd.value, 0.0);
+            if (expected.latlng == null) {
+                assertNull(sd.latlng);
+            } else {
+                assertEquals(expected.latlng[0], sd.latlng[0], 0.0);
+                assertEquals(expected.latlng[1], sd.latlng[1], 0.0);
+            }
+            assertEquals(1000 + i, spool.timestamp(i));
+        }
+        assertNull(spool.get(50));
+        spool.close();
+    }
+
+    @Test
+    public void cursor_advancesOverOutOfOrderAcks() throws Exception {
+        SensorSpool spool = SensorSpool.open(tempFile(), 64);
+        for (int i = 0; i < 10; i++) spool.append(reading(i), i);
+        spool.acknowledged(1);
+        spool.acknowledged(2);
+        spool.acknowledged(5);
+        assertEquals(0, spool.cursor());
+        assertEquals(7, spool.unacked());
+        assertEquals(3, spool.nextUnacked(0));
+        assertFalse(spool.isUnacked(5));
+
+        spool.acknowledged(0);
+        assertEquals(3, spool.cursor());
+        spool.acknowledged(3);
+        spool.acknowledged(4);
+        assertEquals(6, spool.cursor());
+        assertEquals(6, spool.nextUnacked(-1));
+        assertEquals(-1, spool.nextUnacked(9));
+
+        // acknowledging twice, or below the cursor, changes nothing
+        spool.acknowledged(3);
+        spool.acknowledged(5);
+        assertEquals(4, spool.unacked());
+        spool.close();
+    }
+
+    @Test
+    public void fullRing_evictsOldestUnacked() throws Exception {
+        SensorSpool spool = SensorSpool.open(tempFile(), 16);
+        for (int i = 0; i < 16; i++) spool.append(reading(i), i);
+        spool.acknowledged(1);
+        spool.acknowledged(2);
+
+        // evicting 0 lets the cursor skip the acknowledged 1 and 2
+        spool.append(reading(16), 16);
+        assertEquals(1, spool.evicted());
+        assertEquals(3, spool.cursor());
+        assertEquals(14, spool.unacked());
+        assertNull(spool.get(0));
+
+        for (int i = 17; i < 40; i++) spool.append(reading(i), i);
+        assertEquals(40 - 16, spool.cursor());
+        assertEquals(16, spool.unacked());
+        assertEquals(22, spool.evicted());
+        assertEquals(reading(39).value, spool.get(39).value, 0.0);
+        spool.close();
+    }
+
+    @Test
+    public void reopen_keepsUnackedReadings() throws Exception {
+        File file = tempFile();
+        SensorSpool spool = SensorSpool.open(file, 32);
+        for (int i = 0; i < 40; i++) spool.append(reading(i), i);
+        for (int i = 8; i < 20; i++) spool.acknowledged(i);
+        spool.close();
+
+        // the stored capacity wins over the requested one
+        spool = SensorSpool.open(file, 1024);
+        assertEquals(32, spool.capacity());
+        assertEquals(40, spool.nextId());
+        assertEquals(20, spool.cursor());
+        assertEquals(20, spool.unacked());
+        assertEquals(20, spool.nextUnacked(-1));
+        assertEquals(reading(25).value, spool.get(25).value, 0.0);
+        assertEquals(40, spool.append(reading(40), 40));
+        spool.close();
+    }
+
+    @Test
+    public void reopen_recoversRecordsAfterStaleHeader() throws Exception {
+        File file = tempFile();
+        SensorSpool spool = SensorSpool.open(file, 32);
+        for (int i = 0; i < 5; i++) spool.append(reading(i), i);
+        spool.close();
+
+        // roll the header back as if the process died before updating it
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(16);
+        raf.writeLong(Long.reverseBytes(2));
+        raf.close();
+
+        spool = SensorSpool.open(file, 32);
+        assertEquals(5, spool.nextId());
+        assertEquals(5, spool.unacked());
+        spool.close();
+    }
+
+    @Test
+    public void garbageFile_isReplaced() throws Exception {
+        File file = tempFile();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeBytes("not a spool at all, just some text");
+        raf.close();
+        SensorSpool spool = SensorSpool.open(file, 8);
+        assertEquals(0, spool.nextId());
+        assertEquals(0, spool.unacked());
+        spool.close();
+        assertEquals(32 + 8 * 48, file.length());
+    }
+}
@@ -0,0 +1,71 @@
+package com.platypus.android.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Feeds Gaussian range samples through SlidingMedian and through the filter it replaced, which
+ * kept a boxed history, copied it out and sorted it for every sample, for window lengths from 5
+ * to 500. Not a unit test; run main() on the unit test classpath, optionally with window lengths
+ * as arguments.
+ */
+public class SlidingMedianBenchmark {
+    private static final int SAMPLES = 200000;
+    private static final int ROUNDS = 3;
+
+    /**
+     * The old filter, which also checks the new one.
+     */
+    private static double sortedMedian(List<Double> history, double sample, int window) {
+        history.add(sample);
+        if (history.size() > window) history.remove(0);
+        Double[] boxed = history.toArray(new Double[0]);
+        double[] values = new double[boxed.length];
+        for (int k = 0; k < boxed.length; k++) values[k] = boxed[k];
+        Arrays.sort(values);
+        int mid = values.length / 2;
+        return values.length % 2 == 0 ? (values[mid - 1] + values[mid]) / 2 : values[mid];
+    }
+
+    public static void main(String[] args) {
+        int[] windows = {5, 20, 100, 500};
+        if (args.length > 0) {
+            windows = new int[args.length];
+            for (int i = 0; i < args.length; i++) windows[i] = Integer.parseInt(args[i]);
+        }
+        Random random = new Random(41);
+        double[] samples = new double[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) samples[i] = 10 + random.nextGaussian();
+
+        for (int window : windows) {
+            // the old filter is slow enough on long windows that it gets fewer samples
+            int old_samples = Math.min(SAMPLES, 2000000 / window);
+            SlidingMedian check = new SlidingMedian(window);
+            List<Double> check_history = new ArrayList<>();
+            for (int i = 0; i < old_samples; i++) {
+                if (check.add(samples[i]) != sortedMedian(check_history, samples[i], window)) {
+                    throw new AssertionError("window " + window + " disagrees at sample " + i);
+                }
+            }
+
+            for (int round = 0; round < ROUNDS; round++) {
+                double sink = 0;
+                SlidingMedian median = new SlidingMedian(window);
+                long start = System.nanoTime();
+                for (int i = 0; i < SAMPLES; i++) sink += median.add(samples[i]);
+                long heaps = System.nanoTime() - start;
+
+                List<Double> history = new ArrayList<>();
+                start = System.nanoTime();
+                for (int i = 0; i < old_samples; i++) sink += sortedMedian(history, samples[i], window);
+                long sorted = System.nanoTime() - start;
+
+                System.out.printf("window %d, round %d: %.0f ns per sample vs %.0f ns for the old filter (%s)%n",
+                        window, round, heaps / (double) SAMPLES, sorted / (double) old_samples,
+                        sink > 0 ? "ok" : "-");
+            }
+        }
+    }
+}
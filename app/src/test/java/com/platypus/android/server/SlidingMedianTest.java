@@ -0,0 +1,68 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SlidingMedianTest {
+
+    private static double sortedMedian(double[] stream, int end, int window) {
+        int start = Math.max(0, end - window);
+        double[] x = Arrays.copyOfRange(stream, start, end);
+        Arrays.sort(x);
+        return x.length % 2 == 0 ? (x[x.length / 2] + x[x.length / 2 - 1]) / 2 : x[x.length / 2];
+    }
+
+    private static void assertMatchesSort(int window, double[] stream) {
+        SlidingMedian median = new SlidingMedian(window);
+        for (int i = 0; i < stream.length; i++) {
+            assertEquals(sortedMedian(stream, i + 1, window), median.add(stream[i]), 0.0);
+            assertEquals(Math.min(i + 1, window), median.size());
+        }
+    }
+
+    @Test
+    public void randomStreams_matchSortedWindows() throws Exception {
+        Random random = new Random(3);
+        for (int window : new int[]{1, 2, 3, 5, 20, 64, 500}) {
+            double[] stream = new double[3 * window + 50];
+            for (int i = 0; i < stream.length; i++) stream[i] = 10 + random.nextGaussian();
+            assertMatchesSort(window, stream);
+        }
+    }
+
+    @Test
+    public void repeatedAndMonotonicValues_matchSortedWindows() throws Exception {
+        double[] ties = new double[200];
+        double[] rising = new double[200];
+        for (int i = 0; i < ties.length; i++) {
+            ties[i] = i % 3;
+            rising[i] = i;
+        }
+        assertMatchesSort(7, ties);
+        assertMatchesSort(8, rising);
+        for (int i = 0; i < rising.length; i++) rising[i] = -i;
+        assertMatchesSort(9, rising);
+    }
+
+    @Test
+    public void singleOutlier_doesNotMoveMedian() throws Exception {
+        SlidingMedian median = new SlidingMedian(5);
+        for (int i = 0; i < 5; i++) median.add(4.0);
+        assertEquals(4.0, median.add(400.0), 0.0);
+        assertEquals(4.0, median.add(0.0), 0.0);
+    }
+
+    @Test
+    public void clear_emptiesWindow() throws Exception {
+        SlidingMedian median = new SlidingMedian(4);
+        median.add(1.0);
+        median.add(2.0);
+        median.clear();
+        assertTrue(Double.isNaN(median.median()));
+        assertEquals(7.0, median.add(7.0), 0.0);
+    }
+}
@@ -0,0 +1,82 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+import com.platypus.crw.udp.UdpConstants;
+import com.platypus.crw.udp.UdpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Bandwidth of one subscriber over a simulated one hour lawnmower survey at the server's 10 Hz,
+ * for the full pose stream and for state streams with different fields and rates. Packet sizes
+ * are those of the UDP responses the services build, with ticket and command string but without
+ * UDP/IP headers. Not a unit test; run main() on the unit test classpath.
+ */
+public class StateStreamBenchmark {
+    private static final int STEPS = 36000;
+    private static final SocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 11411);
+
+    /**
+     * 40 m legs 5 m apart at 1.5 m/s with a 5 s stop at each turn, plus a little GPS and
+     * attitude jitter so the boat is never perfectly still.
+     */
+    private static UtmPose surveyPose(int step) {
+        double t = step * 0.1;
+        double leg_time = 40.0 / 1.5 + 5.0;
+        int leg = (int) (t / leg_time);
+        double along = Math.min(40.0, (t - leg * leg_time) * 1.5);
+        boolean outbound = leg % 2 == 0;
+        double jitter = 0.02 * Math.sin(step * 0.7);
+        return new UtmPose(new Pose3D(
+                589000.0 + (outbound ? along : 40.0 - along) + jitter, 4477000.0 + leg * 5.0 + jitter, 0.0,
+                0.01 * Math.sin(step * 0.3), 0.01 * Math.cos(step * 0.2), outbound ? jitter : Math.PI - 0.05),
+                new Utm(17, true));
+    }
+
+    public static void main(String[] args) throws IOException {
+        UdpServer.Response response = new UdpServer.Response(UdpConstants.NO_TICKET, CLIENT);
+        long full_packets = 0, full_payload = 0;
+        for (int step = 0; step < STEPS; step++) {
+            response.reset();
+            response.stream.writeUTF(UdpConstants.COMMAND.CMD_SEND_POSE.str);
+            int header = response.getBytes().length;
+            UdpConstants.writePose(response.stream, surveyPose(step));
+            full_packets += response.getBytes().length;
+            full_payload += response.getBytes().length - header;
+        }
+        double full_rate = full_packets / (STEPS / 10.0);
+        System.out.printf("%-22s %4.0f B/s (%.1f B payload per pose)%n",
+                "full pose stream:", full_rate, full_payload / (double) STEPS);
+
+        run("all fields, 10 Hz", StateStreamCodec.ALL_FIELDS, 10, response, full_rate);
+        run("planar fields, 10 Hz", StateStreamCodec.PLANAR_FIELDS, 10, response, full_rate);
+        run("planar fields, 2 Hz", StateStreamCodec.PLANAR_FIELDS, 2, response, full_rate);
+    }
+
+    private static void run(String name, int mask, int rate_hz, UdpServer.Response response, double full_rate)
+            throws IOException {
+        StateStreamCodec.Stream stream = new StateStreamCodec.Stream(mask, 1000 / rate_hz,
+                StateStreamService.KEYFRAME_INTERVAL_MS);
+        byte[] packet = new byte[StateStreamCodec.MAX_BYTES];
+        long sent = 0, payload = 0, packets = 0;
+        for (int step = 0; step < STEPS; step++) {
+            int n = StateStreamCodec.encode(stream, surveyPose(step), step * 100L, packet);
+            if (n == 0) continue;
+            // framed the way StateStreamService sends it
+            response.reset();
+            response.stream.writeUTF(StateStreamService.CMD_STATE_DELTA);
+            response.stream.writeByte(n);
+            response.stream.write(packet, 0, n);
+            sent++;
+            payload += n;
+            packets += response.getBytes().length;
+        }
+        double rate = packets / (STEPS / 10.0);
+        System.out.printf("%-22s %4.0f B/s (%.1f B payload per pose, %d poses, %.0f%% of full)%n",
+                name + ":", rate, payload / (double) sent, sent, 100 * rate / full_rate);
+    }
+}
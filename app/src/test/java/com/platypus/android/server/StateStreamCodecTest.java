@@ -0,0 +1,121 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+import com.platypus.crw.udp.UdpConstants;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import static org.junit.Assert.*;
+
+public class StateStreamCodecTest {
+    private static UtmPose pose(double easting, double northing, double yaw) {
+        return new UtmPose(new Pose3D(easting, northing, 0.0, 0.0, 0.0, yaw), new Utm(17, true));
+    }
+
+    /**
+     * A lawnmower survey at 1.5 m/s with 40 m legs, sampled at the server's 10 Hz, with a short
+     * stop at each turn.
+     */
+    private static UtmPose surveyPose(int step) {
+        double t = step * 0.1;
+        double leg_time = 40.0 / 1.5 + 5.0;
+        int leg = (int) (t / leg_time);
+        double along = Math.min(40.0, (t - leg * leg_time) * 1.5);
+        boolean outbound = leg % 2 == 0;
+        double easting = 589000.0 + (outbound ? along : 40.0 - along);
+        double northing = 4477000.0 + leg * 5.0;
+        return pose(easting, northing, outbound ? 0.0 : Math.PI - 1e-3);
+    }
+
+    @Test
+    public void poses_roundTripWithinQuantum() throws Exception {
+        StateStreamCodec.Stream sender = new StateStreamCodec.Stream(StateStreamCodec.ALL_FIELDS, 0, 1000);
+        StateStreamCodec.Stream receiver = new StateStreamCodec.Stream(StateStreamCodec.ALL_FIELDS, 0, 1000);
+        byte[] packet = new byte[StateStreamCodec.MAX_BYTES];
+        for (int step = 0; step < 2000; step++) {
+            UtmPose sent = surveyPose(step);
+            int n = StateStreamCodec.encode(sender, sent, step * 100L, packet);
+            if (n == 0) continue;
+            UtmPose received = StateStreamCodec.decode(receiver, packet, 0, n);
+            assertNotNull(received);
+            assertEquals(sent.pose.getX(), received.pose.getX(), 0.006);
+            assertEquals(sent.pose.getY(), received.pose.getY(), 0.006);
+            assertEquals(sent.pose.getRotation().toYaw(), received.pose.getRotation().toYaw(), 0.001);
+            assertEquals(17, received.origin.zone);
+            assertTrue(received.origin.isNorth);
+        }
+    }
+
+    @Test
+    public void boatAtRest_sendsOnlyKeyframes() throws Exception {
+        StateStreamCodec.Stream stream = new StateStreamCodec.Stream(StateStreamCodec.PLANAR_FIELDS, 0, 1000);
+        byte[] packet = new byte[StateStreamCodec.MAX_BYTES];
+        int sent = 0;
+        for (int step = 0; step < 100; step++) {
+            int n = StateStreamCodec.encode(stream, pose(589000.0, 4477000.0, 1.0), step * 100L, packet);
+            if (n > 0) {
+                sent++;
+                assertTrue((packet[0] & StateStreamCodec.KEYFRAME) != 0);
+            }
+        }
+        assertEquals(10, sent);
+    }
+
+    @Test
+    public void interval_limitsRate() throws Exception {
+        StateStreamCodec.Stream stream = new StateStreamCodec.Stream(StateStreamCodec.PLANAR_FIELDS, 500, 1000);
+        byte[] packet = new byte[StateStreamCodec.MAX_BYTES];
+        int sent = 0;
+        for (int step = 0; step < 100; step++) {
+            if (StateStreamCodec.encode(stream, surveyPose(step), step * 100L, packet) > 0) sent++;
+        }
+        assertEquals(20, sent);
+    }
+
+    @Test
+    public void lostPackets_onlyCostTheirOwnKeyframe() throws Exception {
+        StateStreamCodec.Stream sender = new StateStreamCodec.Stream(StateStreamCodec.PLANAR_FIELDS, 0, 1000);
+        StateStreamCodec.Stream receiver = new StateStreamCodec.Stream(StateStreamCodec.PLANAR_FIELDS, 0, 1000);
+        byte[] packet = new byte[StateStreamCodec.MAX_BYTES];
+        int decoded = 0, dropped = 0;
+        for (int step = 0; step < 300; step++) {
+            UtmPose sent = surveyPose(step);
+            int n = StateStreamCodec.encode(sender, sent, step * 100L, packet);
+            if (n == 0) continue;
+            boolean keyframe = (packet[0] & StateStreamCodec.KEYFRAME) != 0;
+            // lose every third delta, and the keyframe at 10 s with the deltas after it
+            if ((!keyframe && step % 3 == 0) || step == 100) continue;
+            UtmPose received = StateStreamCodec.decode(receiver, packet, 0, n);
+            if (received == null) {
+                assertTrue(step > 100 && step < 110);
+                dropped++;
+                continue;
+            }
+            decoded++;
+            assertEquals(sent.pose.getX(), received.pose.getX(), 0.006);
+            assertEquals(sent.pose.getY(), received.pose.getY(), 0.006);
+        }
+        assertTrue(dropped > 0);
+        assertTrue(decoded > 150);
+    }
+
+    @Test
+    public void survey_usesAFractionOfFullPoses() throws Exception {
+        StateStreamCodec.Stream stream = new StateStreamCodec.Stream(StateStreamCodec.PLANAR_FIELDS, 0, 1000);
+        byte[] packet = new byte[StateStreamCodec.MAX_BYTES];
+        long delta_bytes = 0, full_bytes = 0;
+        for (int step = 0; step < 36000; step++) {
+            UtmPose pose = surveyPose(step);
+            delta_bytes += StateStreamCodec.encode(stream, pose, step * 100L, packet);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            UdpConstants.writePose(new DataOutputStream(buffer), pose);
+            full_bytes += buffer.size();
+        }
+        assertTrue(delta_bytes * 8 < full_bytes);
+    }
+}
@@ -0,0 +1,77 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ThrustMixersTest {
+    private static final double[] GAINS = {0.5, 0.0, 0.0};
+    private final double[] motors = new double[ThrustMixer.MAX_OUTPUTS];
+    private final double[] servos = new double[ThrustMixer.MAX_OUTPUTS];
+
+    @Test
+    public void differential_clipsEachMotor() throws Exception {
+        ThrustMixer mixer = ThrustMixers.create("DIFFERENTIAL", GAINS);
+        assertEquals(2, mixer.motorCount());
+        assertEquals(0, mixer.servoCount());
+        mixer.mix(0.8, 0.5, motors, servos);
+        assertEquals(0.3, motors[0], 1e-12);
+        assertEquals(1.0, motors[1], 1e-12);
+    }
+
+    @Test
+    public void vectored_reversesTheRudder() throws Exception {
+        ThrustMixer mixer = ThrustMixers.create("VECTORED", GAINS);
+        mixer.mix(0.4, 2.0, motors, servos);
+        assertEquals(0.4, motors[0], 1e-12);
+        assertEquals(-1.0, servos[0], 1e-12);
+    }
+
+    @Test
+    public void propguard_scalesTogetherAndGuardsTurnsInPlace() throws Exception {
+        ThrustMixer mixer = ThrustMixers.create("PROPGUARD", GAINS);
+        // out of range, both scaled by the larger magnitude
+        mixer.mix(1.0, 1.0, motors, servos);
+        assertEquals(0.0, motors[0], 1e-12);
+        assertEquals(1.0, motors[1], 1e-12);
+
+        // turning in place, the forward motor is reduced by the default scale
+        mixer.mix(0.0, -0.5, motors, servos);
+        assertEquals(0.5 / ThrustMixers.DEFAULT_PROPGUARD_SCALE, motors[0], 1e-12);
+        assertEquals(-0.5, motors[1], 1e-12);
+
+        // the integral thrust gain overrides the scale
+        ThrustMixers.create("PROPGUARD", new double[]{0.5, 2.0, 0.0}).mix(0.0, 0.5, motors, servos);
+        assertEquals(-0.5, motors[0], 1e-12);
+        assertEquals(0.25, motors[1], 1e-12);
+    }
+
+    @Test
+    public void registry_acceptsNewHulls() throws Exception {
+        assertNull(ThrustMixers.create("QUAD_CATAMARAN", GAINS));
+        try {
+            ThrustMixers.register("QUAD_CATAMARAN", new ThrustMixer.Factory() {
+                @Override
+                public ThrustMixer create(double[] thrust_gains) {
+                    return new ThrustMixer() {
+                        public int motorCount() { return 4; }
+                        public int servoCount() { return 0; }
+                        public void mix(double thrust, double heading, double[] m, double[] s) {
+                            m[0] = m[2] = thrust - heading;
+                            m[1] = m[3] = thrust + heading;
+                        }
+                    };
+                }
+            });
+            ThrustMixer mixer = ThrustMixers.create("QUAD_CATAMARAN", GAINS);
+            assertTrue(ThrustMixers.vehicleTypes().contains("QUAD_CATAMARAN"));
+            mixer.mix(0.5, 0.1, motors, servos);
+            assertEquals(4, mixer.motorCount());
+            assertEquals(0.6, motors[3], 1e-12);
+        } finally {
+            // the registry is static, leave it as the other tests expect it
+            ThrustMixers.unregister("QUAD_CATAMARAN");
+        }
+        assertFalse(ThrustMixers.vehicleTypes().contains("QUAD_CATAMARAN"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.SensorData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimestampedSensorDataTest {
+
+    private static SensorData reading(double value) {
+        SensorData sd = new SensorData();
+        sd.value = value;
+        return sd;
+    }
+
+    @Test
+    public void fullRing_evictsOldestFirst() throws Exception {
+        TimestampedSensorData.purgeAll();
+        long first = TimestampedSensorData.add(reading(0));
+        for (int i = 1; i < TimestampedSensorData.CAPACITY + 10; i++) {
+            TimestampedSensorData.add(reading(i));
+        }
+        assertEquals(TimestampedSensorData.CAPACITY, TimestampedSensorData.size());
+        assertNull(TimestampedSensorData.get(first + 9));
+        assertEquals(10.0, TimestampedSensorData.get(first + 10).value, 0.0);
+        assertEquals(first + 10, TimestampedSensorData.nextUnsent(-1));
+        assertEquals(TimestampedSensorData.CAPACITY, TimestampedSensorData.unsentCount());
+    }
+
+    @Test
+    public void acknowledged_skipsToNextOldestUnsent() throws Exception {
+        TimestampedSensorData.purgeAll();
+        long a = TimestampedSensorData.add(reading(1));
+        long b = TimestampedSensorData.add(reading(2));
+        long c = TimestampedSensorData.add(reading(3));
+        TimestampedSensorData.acknowledged(a);
+        TimestampedSensorData.acknowledged(a);
+        assertEquals(b, TimestampedSensorData.nextUnsent(-1));
+        TimestampedSensorData.acknowledged(b);
+        assertEquals(c, TimestampedSensorData.nextUnsent(-1));
+        assertEquals(1, TimestampedSensorData.unsentCount());
+        // acknowledged readings stay readable until they are evicted
+        assertEquals(1.0, TimestampedSensorData.get(a).value, 0.0);
+        TimestampedSensorData.acknowledged(c);
+        assertEquals(-1, TimestampedSensorData.nextUnsent(-1));
+    }
+
+    @Test
+    public void nextUnsent_walksTheUnsentIdsInOrder() throws Exception {
+        TimestampedSensorData.purgeAll();
+        List<Long> unsent = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            long id = TimestampedSensorData.add(reading(i));
+            if (i % 3 == 0) unsent.add(id);
+            else TimestampedSensorData.acknowledged(id);
+        }
+        List<Long> walked = new ArrayList<>();
+        for (long id = TimestampedSensorData.nextUnsent(-1); id >= 0; id = TimestampedSensorData.nextUnsent(id)) {
+            walked.add(id);
+        }
+        assertEquals(unsent, walked);
+    }
+
+    @Test
+    public void wrappedRing_keepsIdOrder() throws Exception {
+        TimestampedSensorData.purgeAll();
+        int total = TimestampedSensorData.CAPACITY + TimestampedSensorData.CAPACITY / 2;
+        long[] ids = new long[total];
+        for (int i = 0; i < total; i++) ids[i] = TimestampedSensorData.add(reading(i));
+        // after wrapping, the oldest live reading sits in a higher slot than the newest one
+        long older = ids[total - TimestampedSensorData.CAPACITY + 5];
+        long newest = ids[total - 1];
+        for (int i = total - TimestampedSensorData.CAPACITY; i < total; i++) {
+            if (ids[i] != older && ids[i] != newest) TimestampedSensorData.acknowledged(ids[i]);
+        }
+        assertEquals(older, TimestampedSensorData.nextUnsent(-1));
+        TimestampedSensorData.acknowledged(older);
+        assertEquals(newest, TimestampedSensorData.nextUnsent(-1));
+        assertEquals(TimestampedSensorData.CAPACITY / 2, TimestampedSensorData.evictedUnsent());
+    }
+}
@@ -0,0 +1,92 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TrilaterationTest {
+    private static final double[] XS = {0, 40, 40, 0, 20, -10, 55, 25};
+    private static final double[] YS = {0, 0, 30, 30, -15, 15, 15, 45};
+
+    private static double[] ranges(double x, double y, double noise, Random random) {
+        double[] d = new double[XS.length];
+        for (int i = 0; i < d.length; i++) {
+            d[i] = Math.hypot(x - XS[i], y - YS[i]) + (noise == 0 ? 0 : noise * random.nextGaussian());
+        }
+        return d;
+    }
+
+    @Test
+    public void exactRanges_recoverPosition() throws Exception {
+        Trilateration trilateration = new Trilateration(XS, YS, 1.5);
+        assertTrue(trilateration.solve(ranges(12.5, 21.0, 0.0, null), null));
+        assertEquals(12.5, trilateration.x(), 1e-6);
+        assertEquals(21.0, trilateration.y(), 1e-6);
+        assertEquals(XS.length, trilateration.used());
+        assertEquals(0.0, trilateration.rms(), 1e-6);
+    }
+
+    @Test
+    public void threeAnchorsInAnyOrientation_recoverPosition() throws Exception {
+        // no axis or handedness required of the anchors
+        Trilateration trilateration = new Trilateration(
+                new double[]{10, -20, 5}, new double[]{3, 8, -25}, 1.5);
+        double[] d = {Math.hypot(-4 - 10, 2 - 3), Math.hypot(-4 + 20, 2 - 8), Math.hypot(-4 - 5, 2 + 25)};
+        assertTrue(trilateration.solve(d, null));
+        assertEquals(-4.0, trilateration.x(), 1e-6);
+        assertEquals(2.0, trilateration.y(), 1e-6);
+    }
+
+    @Test
+    public void corruptedRange_isRejected() throws Exception {
+        Random random = new Random(11);
+        Trilateration trilateration = new Trilateration(XS, YS, 1.5);
+        double[] d = ranges(30.0, 10.0, 0.1, random);
+        d[2] += 8.0; // e.g. a multipath reflection
+        assertTrue(trilateration.solve(d, null));
+        assertFalse(trilateration.isUsed(2));
+        assertEquals(XS.length - 1, trilateration.used());
+        assertEquals(30.0, trilateration.x(), 0.3);
+        assertEquals(10.0, trilateration.y(), 0.3);
+    }
+
+    @Test
+    public void zeroWeightsAndZeroRanges_areIgnored() throws Exception {
+        Trilateration trilateration = new Trilateration(XS, YS, 1.5);
+        double[] d = ranges(5.0, 5.0, 0.0, null);
+        double[] w = new double[XS.length];
+        Arrays.fill(w, 1.0);
+        w[0] = 0.0;
+        d[1] = 0.0;
+        d[3] = 1000.0;
+        w[3] = 0.0;
+        assertTrue(trilateration.solve(d, w));
+        assertEquals(XS.length - 3, trilateration.used());
+        assertEquals(5.0, trilateration.x(), 1e-6);
+        assertEquals(5.0, trilateration.y(), 1e-6);
+    }
+
+    @Test
+    public void tooFewAnchors_giveNoFix() throws Exception {
+        Trilateration trilateration = new Trilateration(XS, YS, 1.5);
+        double[] w = new double[XS.length];
+        w[0] = w[1] = 1.0;
+        assertFalse(trilateration.solve(ranges(5.0, 5.0, 0.0, null), w));
+    }
+
+    @Test
+    public void movingTag_tracksFromPreviousFix() throws Exception {
+        Random random = new Random(5);
+        Trilateration trilateration = new Trilateration(XS, YS, 1.5);
+        for (int k = 0; k < 200; k++) {
+            double x = 20 + 15 * Math.cos(k / 20.0);
+            double y = 15 + 15 * Math.sin(k / 20.0);
+            assertTrue(trilateration.solve(ranges(x, y, 0.05, random), null));
+            assertEquals(x, trilateration.x(), 0.15);
+            assertEquals(y, trilateration.y(), 0.15);
+        }
+    }
+}
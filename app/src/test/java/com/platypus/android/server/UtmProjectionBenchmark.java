@@ -0,0 +1,53 @@
+package com.platypus.android.server;
+
+import org.jscience.geography.coordinates.LatLong;
+import org.jscience.geography.coordinates.UTM;
+import org.jscience.geography.coordinates.crs.ReferenceEllipsoid;
+
+import java.util.Random;
+
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+/**
+ * Forward projection throughput of UtmProjection against jscience, over random points in the
+ * UTM latitude band. Not a unit test; run main() on the unit test classpath, optionally with
+ * the number of points as the only argument.
+ */
+public class UtmProjectionBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        Random random = new Random(26);
+        double[] lats = new double[n], lngs = new double[n];
+        for (int i = 0; i < n; i++) {
+            lats[i] = -79.0 + 158.0 * random.nextDouble();
+            lngs[i] = -180.0 + 360.0 * random.nextDouble();
+        }
+
+        double[] en = new double[2];
+        for (int round = 0; round < ROUNDS; round++) {
+            double sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                UtmProjection.latLongToUtm(lats[i], lngs[i], en);
+                sink += en[0];
+            }
+            long primitive = System.nanoTime() - start;
+
+            // jscience is much slower, so it gets a tenth of the points
+            int m = n / 10;
+            start = System.nanoTime();
+            for (int i = 0; i < m; i++) {
+                UTM utm = UTM.latLongToUtm(
+                        LatLong.valueOf(lats[i], lngs[i], NonSI.DEGREE_ANGLE), ReferenceEllipsoid.WGS84);
+                sink += utm.eastingValue(SI.METER);
+            }
+            long jscience = System.nanoTime() - start;
+
+            System.out.printf("round %d: UtmProjection %.0f ns/point, jscience %.0f ns/point (%s)%n",
+                    round, primitive / (double) n, jscience / (double) m, sink != 0 ? "ok" : "-");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.platypus.android.server;
+
+import org.jscience.geography.coordinates.LatLong;
+import org.jscience.geography.coordinates.UTM;
+import org.jscience.geography.coordinates.crs.ReferenceEllipsoid;
+import org.junit.Test;
+
+import java.util.Random;
+
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the primitive UTM projection against jscience.
+ */
+public class UtmProjectionTest {
+    private static final int SAMPLES = 5000;
+
+    @Test
+    public void latLongToUtm_matchesJScience() throws Exception {
+        Random random = new Random(42);
+        double[] en = new double[2];
+        for (int i = 0; i < SAMPLES; i++) {
+            double lat = -79.0 + 158.0 * random.nextDouble();
+            double lng = -180.0 + 360.0 * random.nextDouble();
+
+            UTM expected = UTM.latLongToUtm(
+                    LatLong.valueOf(lat, lng, NonSI.DEGREE_ANGLE), ReferenceEllipsoid.WGS84);
+            int zone = UtmProjection.latLongToUtm(lat, lng, en);
+
+            assertEquals(expected.longitudeZone(), zone);
+            assertEquals(expected.eastingValue(SI.METER), en[0], 1e-3);
+            assertEquals(expected.northingValue(SI.METER), en[1], 1e-3);
+        }
+    }
+
+    @Test
+    public void utmToLatLong_roundTrips() throws Exception {
+        Random random = new Random(7);
+        double[] en = new double[2];
+        double[] latlng = new double[2];
+        for (int i = 0; i < SAMPLES; i++) {
+            double lat = -79.0 + 158.0 * random.nextDouble();
+            double lng = -180.0 + 360.0 * random.nextDouble();
+
+            int zone = UtmProjection.latLongToUtm(lat, lng, en);
+            UtmProjection.utmToLatLong(en[0], en[1], zone, lat >= 0.0, latlng, 0);
+
+            assertEquals(lat, latlng[0], 1e-9);
+            assertEquals(lng, latlng[1], 1e-9);
+        }
+    }
+
+    @Test
+    public void batch_matchesSinglePoint() throws Exception {
+        double[] latlngs = {45.4033802, 10.9993635, 45.4035170, 10.9992842, 45.4033402, 10.9992327};
+        double[] batch = new double[latlngs.length];
+        UtmProjection.latLongToUtm(latlngs, 32, true, batch, 3);
+
+        double[] en = new double[2];
+        for (int i = 0; i < 3; i++) {
+            UtmProjection.latLongToUtm(latlngs[2 * i], latlngs[2 * i + 1], 32, true, en, 0);
+            assertEquals(en[0], batch[2 * i], 0.0);
+            assertEquals(en[1], batch[2 * i + 1], 0.0);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Twist;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VelocityCommandTest {
+    private static final long TIMEOUT_NS = 10000000000L;
+
+    @Test
+    public void read_returnsTheLatestCommandUntilItTimesOut() throws Exception {
+        VelocityCommand command = new VelocityCommand();
+        double[] out = new double[VelocityCommand.SIZE];
+        command.set(new Twist(0.5, 0, 0, 0, 0, -0.25), 1000L);
+
+        assertTrue(command.read(out, 1000L + TIMEOUT_NS, TIMEOUT_NS));
+        assertEquals(0.5, out[0], 0.0);
+        assertEquals(-0.25, out[5], 0.0);
+
+        assertFalse(command.read(out, 1001L + TIMEOUT_NS, TIMEOUT_NS));
+        assertArrayEquals(new double[VelocityCommand.SIZE], out, 0.0);
+
+        command.set(new Twist(0.1, 0, 0, 0, 0, 0.2), 2000L + TIMEOUT_NS);
+        assertTrue(command.read(out, 2000L + TIMEOUT_NS, TIMEOUT_NS));
+        assertEquals(0.1, out[0], 0.0);
+        command.stop(3000L + TIMEOUT_NS);
+        assertTrue(command.read(out, 3000L + TIMEOUT_NS, TIMEOUT_NS));
+        assertEquals(0.0, out[0], 0.0);
+        assertEquals(0.0, out[5], 0.0);
+    }
+
+    @Test
+    public void read_neverSeesATornCommand() throws Exception {
+        final VelocityCommand command = new VelocityCommand();
+        final long forever = Long.MAX_VALUE / 2;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 200000; i++) command.set(i, i, i, i, i, i, 0L);
+            }
+        });
+        writer.start();
+        double[] out = new double[VelocityCommand.SIZE];
+        while (writer.isAlive()) {
+            assertTrue(command.read(out, 0L, forever));
+            for (int i = 1; i < VelocityCommand.SIZE; i++) assertEquals(out[0], out[i], 0.0);
+        }
+        writer.join();
+        command.read(out, 0L, forever);
+        assertEquals(200000.0, out[5], 0.0);
+    }
+}
@@ -0,0 +1,90 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WaypointPlanTest {
+    private static double[][] waypoints(int first, int count) {
+        double[][] result = new double[count][];
+        for (int i = 0; i < count; i++) result[i] = new double[]{first + i, -(first + i)};
+        return result;
+    }
+
+    @Test
+    public void edits_produceNewVersionsAndLeaveOldPlansUnchanged() throws Exception {
+        WaypointPlan a = WaypointPlan.EMPTY.replace(waypoints(0, 3));
+        WaypointPlan b = a.insert(1, 42, -42, 60000);
+        WaypointPlan c = b.append(waypoints(3, 2));
+
+        assertEquals(3, a.size());
+        assertArrayEquals(new double[]{1, -1}, a.waypoint(1), 0.0);
+        assertEquals(0, a.keepTime(1));
+
+        assertEquals(a.version() + 1, b.version());
+        assertEquals(4, b.size());
+        assertEquals(42, b.latitude(1), 0.0);
+        assertEquals(60000, b.keepTime(1));
+        assertEquals(1, b.latitude(2), 0.0);
+
+        assertEquals(b.version() + 1, c.version());
+        assertEquals(6, c.size());
+        assertEquals(4, c.latitude(5), 0.0);
+        assertEquals(60000, c.keepTime(1));
+        assertEquals(4, b.size());
+    }
+
+    @Test
+    public void append_onAnOlderPlanDoesNotOverwriteANewerOne() throws Exception {
+        WaypointPlan base = WaypointPlan.EMPTY.replace(new double[0][0]).append(waypoints(0, 2));
+        WaypointPlan first = base.append(waypoints(10, 1));
+        WaypointPlan second = base.append(waypoints(20, 1));
+        assertEquals(10, first.latitude(2), 0.0);
+        assertEquals(20, second.latitude(2), 0.0);
+
+        WaypointPlan grown = first;
+        for (int i = 0; i < 100; i++) grown = grown.append(waypoints(100 + i, 1));
+        assertEquals(103, grown.size());
+        assertEquals(199, grown.latitude(102), 0.0);
+        assertEquals(10, first.latitude(2), 0.0);
+    }
+
+    @Test
+    public void window_keepsGlobalIndicesAndVersionWhenDropping() throws Exception {
+        WaypointPlan plan = WaypointPlan.EMPTY.replace(waypoints(0, 10));
+        WaypointPlan window = plan.dropBefore(4);
+        assertEquals(plan.version(), window.version());
+        assertEquals(4, window.first());
+        assertEquals(10, window.end());
+        assertEquals(6, window.latitude(6), 0.0);
+        try {
+            window.latitude(3);
+            fail("waypoint 3 was dropped");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        double[] latitudes = {10, 11};
+        double[] longitudes = {-10, -11};
+        long[] keep_times = {0, 5000};
+        WaypointPlan extended = window.append(latitudes, longitudes, keep_times, 2);
+        assertEquals(12, extended.end());
+        assertEquals(11, extended.latitude(11), 0.0);
+        assertEquals(5000, extended.keepTime(11));
+        assertEquals(4, extended.latitude(4), 0.0);
+
+        WaypointPlan inserted = extended.insert(5, 42, -42, 0);
+        assertEquals(4, inserted.first());
+        assertEquals(42, inserted.latitude(5), 0.0);
+        assertEquals(5, inserted.latitude(6), 0.0);
+        assertEquals(11, inserted.latitude(12), 0.0);
+    }
+
+    @Test
+    public void insert_clampsTheIndex() throws Exception {
+        WaypointPlan plan = WaypointPlan.EMPTY.replace(waypoints(0, 2));
+        assertEquals(7, plan.insert(-3, 7, 7, 0).latitude(0), 0.0);
+        assertEquals(7, plan.insert(10, 7, 7, 0).latitude(2), 0.0);
+        assertEquals(1, WaypointPlan.EMPTY.insert(0, 1, 1, 5).size());
+    }
+}